@@ -44,6 +44,7 @@ import org.apache.xml.utils.NodeConsumer;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xml.utils.SAXSourceLocator;
 import org.apache.xml.utils.XMLCharacterRecognizer;
+import org.apache.xpath.SharedDocumentCache;
 import org.apache.xpath.XPath;
 import org.apache.xpath.compiler.FunctionTable;
 import org.apache.xpath.functions.Function;
@@ -88,6 +89,11 @@ public class StylesheetHandler extends DefaultHandler
    */
   private boolean m_source_location = false;
   
+  /**
+   * The cache for the setting of the shared document cache feature;
+   */
+  private SharedDocumentCache m_sharedDocumentCache = null;
+  
   /**
    * Create a StylesheetHandler object, creating a root stylesheet
    * as the target.
@@ -115,6 +121,8 @@ public class StylesheetHandler extends DefaultHandler
             TransformerFactoryImpl.FEATURE_INCREMENTAL)).booleanValue();
     m_source_location = ((Boolean) processor.getAttribute(
             TransformerFactoryImpl.FEATURE_SOURCE_LOCATION)).booleanValue();
+    m_sharedDocumentCache = (SharedDocumentCache) processor.getAttribute(
+            TransformerFactoryImpl.FEATURE_SHARED_DOCUMENT_CACHE);
     // m_schema = new XSLTSchema();
     init(processor);
     
@@ -1198,6 +1206,7 @@ public class StylesheetHandler extends DefaultHandler
         m_stylesheetRoot.setOptimizer(m_optimize);
         m_stylesheetRoot.setIncremental(m_incremental);
         m_stylesheetRoot.setSource_location(m_source_location);  		
+        m_stylesheetRoot.setSharedDocumentCache(m_sharedDocumentCache);
     }
     return m_stylesheetRoot;
   }
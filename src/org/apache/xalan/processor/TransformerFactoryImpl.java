@@ -57,6 +57,7 @@ import org.apache.xml.utils.SystemIDResolver;
 import org.apache.xml.utils.TreeWalker;
 import org.apache.xml.utils.StylesheetPIHandler;
 import org.apache.xml.utils.StopParseException;
+import org.apache.xpath.SharedDocumentCache;
 
 import org.w3c.dom.Node;
 
@@ -105,6 +106,10 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
   public static final String FEATURE_SOURCE_LOCATION =
                              XalanProperties.SOURCE_LOCATION;
 
+  /** Static string to be used for shared document cache feature */
+  public static final String FEATURE_SHARED_DOCUMENT_CACHE =
+                             "http://xml.apache.org/xalan/features/shared-document-cache";
+
   public javax.xml.transform.Templates processFromNode(Node node)
           throws TransformerConfigurationException
   {
@@ -496,6 +501,15 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
    * default this attribute is set to false. 
    */
   private boolean m_incremental = false;
+
+  /**
+   * Cache set by FEATURE_SHARED_DOCUMENT_CACHE.
+   * Documents loaded with the document() function are kept in this cache
+   * and shared by every transformation that uses it, rather than being
+   * parsed by each one. By default this attribute is null, and every
+   * transformation parses its own documents.
+   */
+  private SharedDocumentCache m_sharedDocumentCache = null;
   
   /**
    * Allows the user to set specific attributes on the underlying
@@ -570,6 +584,30 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
         throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
       }
     }
+
+    // Custom Xalan feature: share the documents loaded by document()
+    // between transformations. "true" selects the process-wide cache; a
+    // SharedDocumentCache may also be given directly.
+    else if(name.equals(FEATURE_SHARED_DOCUMENT_CACHE))
+    {
+      if(value instanceof SharedDocumentCache)
+      {
+        m_sharedDocumentCache = (SharedDocumentCache)value;
+      }
+      else if(value instanceof Boolean || value instanceof String)
+      {
+        boolean share = (value instanceof Boolean)
+                        ? ((Boolean)value).booleanValue()
+                        : (new Boolean((String)value)).booleanValue();
+        m_sharedDocumentCache = share ? SharedDocumentCache.getDefaultInstance()
+                                      : null;
+      }
+      else
+      {
+        // Give a more meaningful error message
+        throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_BAD_VALUE, new Object[]{name, value})); //name + " bad value " + value);
+      }
+    }
     
     else
     {
@@ -601,6 +639,10 @@ public class TransformerFactoryImpl extends SAXTransformerFactory
     {
       return new Boolean(m_source_location);
     }
+    else if (name.equals(FEATURE_SHARED_DOCUMENT_CACHE))
+    {
+      return m_sharedDocumentCache;
+    }
     else
       throw new IllegalArgumentException(XSLMessages.createMessage(XSLTErrorResources.ER_ATTRIB_VALUE_NOT_RECOGNIZED, new Object[]{name})); //name + " attribute not recognized");
   }
@@ -43,6 +43,7 @@ import org.apache.xml.dtm.DTM;
 import org.apache.xml.dtm.ref.ExpandedNameTable;
 import org.apache.xml.utils.IntStack;
 import org.apache.xml.utils.QName;
+import org.apache.xpath.SharedDocumentCache;
 import org.apache.xpath.XPath;
 import org.apache.xpath.XPathContext;
 
@@ -70,6 +71,11 @@ public class StylesheetRoot extends StylesheetComposed
      */  
     private boolean m_source_location = false;
 
+    /**
+     * The cache for the setting of the shared document cache feature;
+     */  
+    private transient SharedDocumentCache m_sharedDocumentCache = null;
+
     /**
      * State of the secure processing feature.
      */
@@ -1402,4 +1408,18 @@ public class StylesheetRoot extends StylesheetComposed
         m_source_location = b;
     }
 
+    /**
+     * @return Shared document cache, or null
+     */
+    public SharedDocumentCache getSharedDocumentCache() {
+        return m_sharedDocumentCache;
+    }
+
+    /**
+     * @param cache Shared document cache, or null
+     */
+    public void setSharedDocumentCache(SharedDocumentCache cache) {
+        m_sharedDocumentCache = cache;
+    }
+
 }
@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xalan.transformer;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xalan.templates.FuncDocument;
+import org.apache.xalan.templates.FuncKey;
+import org.apache.xalan.templates.KeyDeclaration;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xml.utils.IntVector;
+import org.apache.xml.utils.PrefixResolver;
+import org.apache.xml.utils.WrappedRuntimeException;
+import org.apache.xml.utils.XMLString;
+import org.apache.xpath.ExpressionOwner;
+import org.apache.xpath.XPath;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.XPathVisitor;
+import org.apache.xpath.functions.FuncCurrent;
+import org.apache.xpath.functions.FuncExtFunction;
+import org.apache.xpath.functions.Function;
+import org.apache.xpath.objects.XNodeSet;
+import org.apache.xpath.objects.XObject;
+import org.apache.xpath.operations.Variable;
+
+/**
+ * The index of one key over one document: for every value of the key's
+ * use clause, the nodes that have that value, in document order and
+ * without duplicates. Once built the index is never changed, so one index
+ * may be used by any number of transformations at once.
+ *
+ * <p>Indexes over documents held in a
+ * {@link org.apache.xpath.SharedDocumentCache} are kept with the
+ * document, keyed by the key declarations they were built from, so that
+ * every transformation by the same stylesheet finds the index already
+ * built. Only keys whose match and use clauses do not depend on the
+ * transformation (no variables, current(), document(), key() or extension
+ * functions) are shared this way.</p>
+ * @xsl.usage internal
+ */
+class DocumentKeyIndex
+{
+
+  /**
+   * Map from ref value, an XMLString, to the nodes with that value, an
+   * int array of node handles.
+   */
+  private Hashtable m_refs;
+
+  /** Whether the build has finished, successfully or not. */
+  private boolean m_done = false;
+
+  /**
+   * Get the nodes with the given value.
+   *
+   * @param ref The value of the use clause.
+   *
+   * @return the node handles in document order, or null if no node has
+   * this value.
+   */
+  int[] getNodes(XMLString ref)
+  {
+    return (int[]) m_refs.get(ref);
+  }
+
+  /**
+   * Build the index by walking the nodes the key matches and evaluating
+   * the use clause of each declaration for each of them.
+   *
+   * @param keyNodes The node set of nodes the key matches.
+   * @param keyDecls The declarations of the key.
+   * @param xctxt The XPath context to evaluate the use clauses in.
+   * @param nscontext The namespace context for the use clauses.
+   */
+  void build(XNodeSet keyNodes, Vector keyDecls, XPathContext xctxt,
+             PrefixResolver nscontext)
+  {
+    // initial capacity set to a prime number to improve hash performance
+    Hashtable refs = new Hashtable(89);
+    int nKeyDecls = keyDecls.size();
+
+    int currentNode;
+    keyNodes.reset();
+    while (DTM.NULL != (currentNode = keyNodes.nextNode()))
+    {
+      try
+      {
+        for (int keyDeclIdx = 0; keyDeclIdx < nKeyDecls; keyDeclIdx++)
+        {
+          KeyDeclaration keyDeclaration =
+            (KeyDeclaration) keyDecls.elementAt(keyDeclIdx);
+          XObject xuse = keyDeclaration.getUse().execute(xctxt, currentNode,
+                                                         nscontext);
+
+          if (xuse.getType() != XObject.CLASS_NODESET)
+          {
+            addRef(refs, xuse.xstr(), currentNode);
+          }
+          else
+          {
+            DTMIterator i = ((XNodeSet) xuse).iterRaw();
+            int currentNodeInUseClause;
+
+            while (DTM.NULL != (currentNodeInUseClause = i.nextNode()))
+            {
+              DTM dtm = xctxt.getDTM(currentNodeInUseClause);
+              addRef(refs, dtm.getStringValue(currentNodeInUseClause),
+                     currentNode);
+            }
+          }
+        }
+      }
+      catch (TransformerException te)
+      {
+        throw new WrappedRuntimeException(te);
+      }
+    }
+
+    // Trade the growable vectors for exact-size arrays.
+    for (Enumeration e = refs.keys(); e.hasMoreElements(); )
+    {
+      Object ref = e.nextElement();
+      IntVector nodes = (IntVector) refs.get(ref);
+      int[] handles = new int[nodes.size()];
+      for (int i = 0; i < handles.length; i++)
+        handles[i] = nodes.elementAt(i);
+      refs.put(ref, handles);
+    }
+
+    complete(refs);
+  }
+
+  /**
+   * Add an association between a ref and a node.
+   */
+  private static void addRef(Hashtable refs, XMLString ref, int node)
+  {
+    IntVector nodes = (IntVector) refs.get(ref);
+    if (nodes == null)
+    {
+      nodes = new IntVector(4);
+      refs.put(ref, nodes);
+      nodes.addElement(node);
+    }
+    // Nodes are passed to this method in document order.  Since we need to
+    // suppress duplicates, we only need to check against the last entry.
+    else if (nodes.elementAt(nodes.size() - 1) != node)
+    {
+      nodes.addElement(node);
+    }
+  }
+
+  /**
+   * Record the outcome of the build and wake any threads waiting for it.
+   *
+   * @param refs The finished table, or null if the build failed.
+   */
+  synchronized void complete(Hashtable refs)
+  {
+    m_refs = refs;
+    m_done = true;
+    notifyAll();
+  }
+
+  /**
+   * Wait for another thread to finish building the index.
+   *
+   * @return true if the index was built, false if the build failed or the
+   * wait was interrupted.
+   */
+  synchronized boolean await()
+  {
+    while (!m_done)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return null != m_refs;
+  }
+
+  /**
+   * Tell whether an index for the given declarations gives the same result
+   * in every transformation, and so may be shared.
+   *
+   * @param keyDecls The declarations of one key.
+   *
+   * @return true if no match or use clause depends on the transformation.
+   */
+  static boolean isShareable(Vector keyDecls)
+  {
+    ShareableChecker checker = new ShareableChecker();
+    int nKeyDecls = keyDecls.size();
+    for (int i = 0; i < nKeyDecls && checker.m_shareable; i++)
+    {
+      KeyDeclaration kd = (KeyDeclaration) keyDecls.elementAt(i);
+      checker.check(kd.getMatch());
+      checker.check(kd.getUse());
+    }
+    return checker.m_shareable;
+  }
+
+  /**
+   * Looks for variables and functions whose value may differ from one
+   * transformation to another.
+   */
+  private static class ShareableChecker extends XPathVisitor
+  {
+    boolean m_shareable = true;
+
+    void check(XPath path)
+    {
+      if (null != path)
+        path.getExpression().callVisitors(path, this);
+    }
+
+    public boolean visitFunction(ExpressionOwner owner, Function func)
+    {
+      if ((func instanceof FuncCurrent) || (func instanceof FuncExtFunction)
+          || (func instanceof FuncDocument) || (func instanceof FuncKey))
+        m_shareable = false;
+      return true;
+    }
+
+    public boolean visitVariableRef(ExpressionOwner owner, Variable var)
+    {
+      m_shareable = false;
+      return true;
+    }
+  }
+}
@@ -23,18 +23,13 @@ package org.apache.xalan.transformer;
 import java.util.Hashtable;
 import java.util.Vector;
 
-import javax.xml.transform.TransformerException;
-
 import org.apache.xalan.templates.KeyDeclaration;
-import org.apache.xml.dtm.DTM;
-import org.apache.xml.dtm.DTMIterator;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xml.utils.QName;
-import org.apache.xml.utils.WrappedRuntimeException;
 import org.apache.xml.utils.XMLString;
+import org.apache.xpath.SharedDocumentCache;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.objects.XNodeSet;
-import org.apache.xpath.objects.XObject;
 
 /**
  * Table of element keys, keyed by document node.  An instance of this
@@ -62,6 +57,11 @@ public class KeyTable
    */
   private Hashtable m_refsTable = null;
 
+  /**
+   * The index of the key over the document, built on first use.
+   */
+  private DocumentKeyIndex m_index = null;
+
   /**
    * Get the document root matching this key.  
    *
@@ -115,7 +115,7 @@ public class KeyTable
   public XNodeSet getNodeSetDTMByKey(QName name, XMLString ref)
 
   {
-    XNodeSet refNodes = (XNodeSet) getRefsTable().get(ref);
+    XNodeSet refNodes = getRefNodes(ref);
     // clone wiht reset the node set
    try
     {
@@ -177,84 +177,95 @@ public class KeyTable
   }
 
   /**
-   * @return lazy initialized refs table associating evaluation of key function
-   *         with a XNodeSet
+   * @return lazy initialized index of the key over this document, shared
+   *         with other transformations when the document is held in the
+   *         shared document cache
    */
-  private Hashtable getRefsTable()
+  private DocumentKeyIndex getIndex()
   {
-    if (m_refsTable == null) {
-      // initial capacity set to a prime number to improve hash performance
-      m_refsTable = new Hashtable(89);
-
+    if (m_index == null) {
       KeyIterator ki = (KeyIterator) (m_keyNodes).getContainedIter();
       XPathContext xctxt = ki.getXPathContext();
-
       Vector keyDecls = getKeyDeclarations();
-      int nKeyDecls = keyDecls.size();
 
-      int currentNode;
-      m_keyNodes.reset();
-      while (DTM.NULL != (currentNode = m_keyNodes.nextNode()))
-      {
-        try
-        {
-          for (int keyDeclIdx = 0; keyDeclIdx < nKeyDecls; keyDeclIdx++) {
-            KeyDeclaration keyDeclaration =
-                (KeyDeclaration) keyDecls.elementAt(keyDeclIdx);
-            XObject xuse =
-                keyDeclaration.getUse().execute(xctxt,
-                                                currentNode,
-                                                ki.getPrefixResolver());
+      Hashtable shared = null;
+      SharedDocumentCache cache =
+          xctxt.getSourceTreeManager().getSharedDocumentCache();
+      if (cache != null && DocumentKeyIndex.isShareable(keyDecls)) {
+        shared = cache.getDocumentData(xctxt.getDTM(m_docKey));
+      }
 
-            if (xuse.getType() != xuse.CLASS_NODESET) {
-              XMLString exprResult = xuse.xstr();
-              addValueInRefsTable(xctxt, exprResult, currentNode);
-            } else {
-              DTMIterator i = ((XNodeSet)xuse).iterRaw();
-              int currentNodeInUseClause;
+      if (shared == null) {
+        m_index = new DocumentKeyIndex();
+        m_index.build(m_keyNodes, keyDecls, xctxt, ki.getPrefixResolver());
+        return m_index;
+      }
+
+      // The declarations, compared by identity, stand for the stylesheet
+      // the index was built for.
+      DocumentKeyIndex index;
+      boolean build = false;
+      synchronized (shared) {
+        index = (DocumentKeyIndex) shared.get(keyDecls);
+        if (index == null) {
+          index = new DocumentKeyIndex();
+          shared.put(keyDecls, index);
+          build = true;
+        }
+      }
 
-              while (DTM.NULL != (currentNodeInUseClause = i.nextNode())) {
-                DTM dtm = xctxt.getDTM(currentNodeInUseClause);
-                XMLString exprResult =
-                    dtm.getStringValue(currentNodeInUseClause);
-                addValueInRefsTable(xctxt, exprResult, currentNode);
-              }
+      if (!build) {
+        if (!index.await()) {
+          // The other build failed, so build a private index instead.
+          index = new DocumentKeyIndex();
+          index.build(m_keyNodes, keyDecls, xctxt, ki.getPrefixResolver());
+        }
+      } else {
+        boolean built = false;
+        try {
+          index.build(m_keyNodes, keyDecls, xctxt, ki.getPrefixResolver());
+          built = true;
+        } finally {
+          if (!built) {
+            synchronized (shared) {
+              shared.remove(keyDecls);
             }
+            index.complete(null);
           }
-        } catch (TransformerException te) {
-          throw new WrappedRuntimeException(te);
         }
       }
+      m_index = index;
     }
-    return m_refsTable;
+    return m_index;
   }
 
   /**
-   * Add an association between a ref and a node in the m_refsTable.
-   * Requires that m_refsTable != null
-   * @param xctxt XPath context
-   * @param ref the value of the use clause of the current key for the given node
-   * @param node the node to reference
+   * Get the key() function result for a ref, creating and caching it from
+   * the index the first time the ref is asked for.
+   * @param ref the value of the use clause
+   * @return the node set, positioned at its start, or null if no node has
+   *         the given value
    */
-  private void addValueInRefsTable(XPathContext xctxt, XMLString ref, int node) {
-    
+  private XNodeSet getRefNodes(XMLString ref)
+  {
+    if (m_refsTable == null) {
+      // initial capacity set to a prime number to improve hash performance
+      m_refsTable = new Hashtable(89);
+    }
+
     XNodeSet nodes = (XNodeSet) m_refsTable.get(ref);
-    if (nodes == null)
-    {
-      nodes = new XNodeSet(node, xctxt.getDTMManager());
-      nodes.nextNode();
+    if (nodes == null) {
+      int[] handles = getIndex().getNodes(ref);
+      if (handles == null)
+        return null;
+
+      KeyIterator ki = (KeyIterator) (m_keyNodes).getContainedIter();
+      nodes = new XNodeSet(handles[0], ki.getXPathContext().getDTMManager());
+      for (int i = 1; i < handles.length; i++) {
+        nodes.mutableNodeset().addNode(handles[i]);
+      }
       m_refsTable.put(ref, nodes);
     }
-    else
-    {
-      // Nodes are passed to this method in document order.  Since we need to
-      // suppress duplicates, we only need to check against the last entry
-      // in each nodeset.  We use nodes.nextNode after each entry so we can
-      // easily compare node against the current node.
-      if (nodes.getCurrentNode() != node) {
-          nodes.mutableNodeset().addNode(node);
-          nodes.nextNode();
-      }    
-    }
+    return nodes;
   }
 }
@@ -20,15 +20,21 @@
  */
 package org.apache.xalan.transformer;
 
-import java.text.CollationKey;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
 import java.util.Vector;
 
 import javax.xml.transform.TransformerException;
 
 import org.apache.xml.dtm.DTM;
 import org.apache.xml.dtm.DTMIterator;
+import org.apache.xml.utils.ExternalMergeSort;
+import org.apache.xml.utils.ParallelMergeSort;
+import org.apache.xml.utils.StringComparable;
+import org.apache.xml.utils.WrappedRuntimeException;
 import org.apache.xpath.XPathContext;
-import org.apache.xpath.objects.XNodeSet;
 import org.apache.xpath.objects.XObject;
 
 /**
@@ -79,6 +85,16 @@ public class NodeSorter
     // QuickSort2(v, 0, v.size() - 1 );
     int n = v.getLength();
 
+    // With a memory limit, sort through an ExternalMergeSort, which
+    // writes sorted runs of keys to disk once the limit is passed.
+    long memoryLimit = ExternalMergeSort.getMemoryLimit();
+    if (memoryLimit > 0)
+    {
+      externalSort(v, n, support, memoryLimit);
+      v.setCurrentPos(0);
+      return;
+    }
+
     // %OPT% Change mergesort to just take a DTMIterator?
     // We would also have to adapt DTMIterator to have the function 
     // of NodeCompareElem.
@@ -94,9 +110,24 @@ public class NodeSorter
       nodes.addElement(elem);
     }
 
-    Vector scratchVector = new Vector();
+    // Every key was computed above, so comparing elements no longer
+    // touches the XPath context and large sorts can be spread over several
+    // threads. Comparisons never tie (document order breaks them), so the
+    // result is the same as the mergesort's.
+    if (ParallelMergeSort.isParallel(n))
+    {
+      Object[] elems = new Object[n];
+      nodes.copyInto(elems);
+      parallelSort(elems, support);
+      for (int i = 0; i < n; i++)
+        nodes.setElementAt(elems[i], i);
+    }
+    else
+    {
+      Vector scratchVector = new Vector();
 
-    mergesort(nodes, scratchVector, 0, n - 1, support);
+      mergesort(nodes, scratchVector, 0, n - 1, support);
+    }
 
     // return sorted vector of nodes
     for (int i = 0; i < n; i++)
@@ -111,8 +142,8 @@ public class NodeSorter
   }
 
   /**
-   * Return the results of a compare of two nodes.
-   * TODO: Optimize compare -- cache the getStringExpr results, key by m_selectPat + hash of node.
+   * Return the results of a compare of two nodes, using the key values
+   * computed into their NodeCompareElems.
    *
    * @param n1 First node to use in compare
    * @param n2 Second node to use in compare
@@ -133,41 +164,8 @@ public class NodeSorter
 
     if (k.m_treatAsNumbers)
     {
-      double n1Num, n2Num;
-
-      if (kIndex == 0)
-      {
-        n1Num = ((Double) n1.m_key1Value).doubleValue();
-        n2Num = ((Double) n2.m_key1Value).doubleValue();
-      }
-      else if (kIndex == 1)
-      {
-        n1Num = ((Double) n1.m_key2Value).doubleValue();
-        n2Num = ((Double) n2.m_key2Value).doubleValue();
-      }
-
-      /* Leave this in case we decide to use an array later
-      if (kIndex < maxkey)
-      {
-      double n1Num = (double)n1.m_keyValue[kIndex];
-      double n2Num = (double)n2.m_keyValue[kIndex];
-      }*/
-      else
-      {
-
-        // Get values dynamically
-        XObject r1 = k.m_selectPat.execute(m_execContext, n1.m_node,
-                                           k.m_namespaceContext);
-        XObject r2 = k.m_selectPat.execute(m_execContext, n2.m_node,
-                                           k.m_namespaceContext);
-        n1Num = r1.num();
-
-        // Can't use NaN for compare. They are never equal. Use zero instead.
-        // That way we can keep elements in document order. 
-        //n1Num = Double.isNaN(d) ? 0.0 : d;
-        n2Num = r2.num();
-        //n2Num = Double.isNaN(d) ? 0.0 : d;
-      }
+      double n1Num = n1.m_numKeys[kIndex];
+      double n2Num = n2.m_numKeys[kIndex];
 
       if ((n1Num == n2Num) && ((kIndex + 1) < m_keys.size()))
       {
@@ -196,47 +194,16 @@ public class NodeSorter
     }  // end treat as numbers 
     else
     {
-      CollationKey n1String, n2String;
-
-      if (kIndex == 0)
-      {
-        n1String = (CollationKey) n1.m_key1Value;
-        n2String = (CollationKey) n2.m_key1Value;
-      }
-      else if (kIndex == 1)
-      {
-        n1String = (CollationKey) n1.m_key2Value;
-        n2String = (CollationKey) n2.m_key2Value;
-      }
-
-      /* Leave this in case we decide to use an array later
-      if (kIndex < maxkey)
-      {
-        String n1String = (String)n1.m_keyValue[kIndex];
-        String n2String = (String)n2.m_keyValue[kIndex];
-      }*/
-      else
-      {
-
-        // Get values dynamically
-        XObject r1 = k.m_selectPat.execute(m_execContext, n1.m_node,
-                                           k.m_namespaceContext);
-        XObject r2 = k.m_selectPat.execute(m_execContext, n2.m_node,
-                                           k.m_namespaceContext);
-
-        n1String = k.m_col.getCollationKey(r1.str());
-        n2String = k.m_col.getCollationKey(r2.str());
-      }
-
       // Use collation keys for faster compare, but note that whitespaces 
       // etc... are treated differently from if we were comparing Strings.
-      result = n1String.compareTo(n2String);
+      result = StringComparable.compareKeys(n1.m_strKeys[kIndex],
+                                            n2.m_strKeys[kIndex]);
 
       //Process caseOrder parameter
       if (k.m_caseOrderUpper)
       {
-        String tempN1 = n1String.getSourceString().toLowerCase();
-        String tempN2 = n2String.getSourceString().toLowerCase();
+        String tempN1 = n1.m_strSources[kIndex].toLowerCase();
+        String tempN2 = n2.m_strSources[kIndex].toLowerCase();
 
         if (tempN1.equals(tempN2))
         {
@@ -277,6 +244,81 @@ public class NodeSorter
     return result;
   }
 
+  /**
+   * Sort an array of NodeCompareElems with a ParallelMergeSort.
+   *
+   * @param elems Array of NodeCompareElems to sort
+   * @param support XPath context to use
+   *
+   * @throws TransformerException
+   */
+  void parallelSort(Object[] elems, final XPathContext support)
+          throws TransformerException
+  {
+    try
+    {
+      ParallelMergeSort.sort(elems, 0, elems.length,
+                             new ElemComparator(support));
+    }
+    catch (WrappedRuntimeException wre)
+    {
+      if (wre.getException() instanceof TransformerException)
+        throw (TransformerException) wre.getException();
+      throw wre;
+    }
+  }
+
+  /**
+   * Sort the nodes of an iterator with an ExternalMergeSort, so that the
+   * keys of only some of them need be held in memory at once.
+   *
+   * @param v The nodes to sort, which are replaced by the sorted nodes
+   * @param n The number of nodes
+   * @param support XPath context to use
+   * @param memoryLimit Estimated size of the keys held before they are
+   * written to disk
+   *
+   * @throws TransformerException
+   */
+  void externalSort(DTMIterator v, int n, XPathContext support,
+                    long memoryLimit)
+          throws TransformerException
+  {
+    ExternalMergeSort sorter =
+      new ExternalMergeSort(new ElemComparator(support), new ElemCodec(),
+                            memoryLimit);
+    try
+    {
+      for (int i = 0; i < n; i++)
+      {
+        NodeCompareElem elem = new NodeCompareElem(v.item(i));
+
+        sorter.add(elem, elem.getSize());
+      }
+
+      sorter.finish();
+
+      for (int i = 0; i < n; i++)
+      {
+        v.setItem(((NodeCompareElem) sorter.next()).m_node, i);
+      }
+    }
+    catch (IOException ioe)
+    {
+      throw new TransformerException(ioe);
+    }
+    catch (WrappedRuntimeException wre)
+    {
+      if (wre.getException() instanceof TransformerException)
+        throw (TransformerException) wre.getException();
+      throw wre;
+    }
+    finally
+    {
+      sorter.close();
+    }
+  }
+
   /**
    * This implements a standard Mergesort, as described in
    * Robert Sedgewick's Algorithms book.  This is a better
@@ -454,8 +496,123 @@ public class NodeSorter
 //  }
 
   /**
-   * This class holds the value(s) from executing the given
-   * node against the sort key(s). 
+   * Compares NodeCompareElems for the parallel and external sorts.
+   * TransformerExceptions are wrapped in WrappedRuntimeExceptions.
+   */
+  class ElemComparator implements Comparator
+  {
+
+    /** XPath context to use          */
+    XPathContext m_support;
+
+    /**
+     * Constructor ElemComparator
+     *
+     * @param support XPath context to use
+     */
+    ElemComparator(XPathContext support)
+    {
+      m_support = support;
+    }
+
+    public int compare(Object o1, Object o2)
+    {
+      try
+      {
+        return NodeSorter.this.compare((NodeCompareElem) o1,
+                                       (NodeCompareElem) o2, 0, m_support);
+      }
+      catch (TransformerException te)
+      {
+        throw new WrappedRuntimeException(te);
+      }
+    }
+  }
+
+  /**
+   * Writes NodeCompareElems to the runs of an external sort, and reads
+   * them back.
+   */
+  class ElemCodec implements ExternalMergeSort.RecordCodec
+  {
+
+    public void writeRecord(Object record, DataOutputStream out)
+            throws IOException
+    {
+      NodeCompareElem elem = (NodeCompareElem) record;
+      int nKeys = m_keys.size();
+
+      out.writeInt(elem.m_node);
+      for (int kIndex = 0; kIndex < nKeys; kIndex++)
+      {
+        NodeSortKey k = (NodeSortKey) m_keys.elementAt(kIndex);
+
+        if (k.m_treatAsNumbers)
+        {
+          out.writeDouble(elem.m_numKeys[kIndex]);
+        }
+        else
+        {
+          byte[] key = elem.m_strKeys[kIndex];
+
+          out.writeInt(key.length);
+          out.write(key);
+          if (k.m_caseOrderUpper)
+          {
+            String str = elem.m_strSources[kIndex];
+
+            out.writeInt(str.length());
+            out.writeChars(str);
+          }
+        }
+      }
+    }
+
+    public Object readRecord(DataInputStream in) throws IOException
+    {
+      int nKeys = m_keys.size();
+      int node = in.readInt();
+      double[] numKeys = null;
+      byte[][] strKeys = null;
+      String[] strSources = null;
+
+      for (int kIndex = 0; kIndex < nKeys; kIndex++)
+      {
+        NodeSortKey k = (NodeSortKey) m_keys.elementAt(kIndex);
+
+        if (k.m_treatAsNumbers)
+        {
+          if (null == numKeys)
+            numKeys = new double[nKeys];
+          numKeys[kIndex] = in.readDouble();
+        }
+        else
+        {
+          if (null == strKeys)
+            strKeys = new byte[nKeys][];
+          strKeys[kIndex] = new byte[in.readInt()];
+          in.readFully(strKeys[kIndex]);
+          if (k.m_caseOrderUpper)
+          {
+            char[] chars = new char[in.readInt()];
+
+            for (int i = 0; i < chars.length; i++)
+              chars[i] = in.readChar();
+            if (null == strSources)
+              strSources = new String[nKeys];
+            strSources[kIndex] = new String(chars);
+          }
+        }
+      }
+      return new NodeCompareElem(node, numKeys, strKeys, strSources);
+    }
+  }
+
+  /**
+   * This class holds the values from executing the given
+   * node against the sort keys. Every key is evaluated once, when
+   * the element is created, so that comparing elements never has to
+   * execute a select pattern again.
    * @xsl.usage internal
    */
   class NodeCompareElem
@@ -464,21 +621,18 @@ public class NodeSorter
     /** Current node          */
     int m_node;
 
-    /** This maxkey value was chosen arbitrarily. We are assuming that the    
-    // maxkey + 1 keys will only hit fairly rarely and therefore, we
-    // will get the node values for those keys dynamically.
-    */
-    int maxkey = 2;
-
-    // Keep this in case we decide to use an array. Right now
-    // using two variables is cheaper.
-    //Object[] m_KeyValue = new Object[2];
+    /** Values of the numeric sort keys, indexed by key; null if there
+     * are no numeric keys. */
+    double[] m_numKeys;
 
-    /** Value from first sort key           */
-    Object m_key1Value;
+    /** Collation keys of the string sort keys, as returned by
+     * CollationKey.toByteArray(), indexed by key; null if there are no
+     * string keys. */
+    byte[][] m_strKeys;
 
-    /** Value from second sort key            */
-    Object m_key2Value;
+    /** Values of the string sort keys that have an upper-first case
+     * order, indexed by key; null if there are none. */
+    String[] m_strSources;
 
     /**
      * Constructor NodeCompareElem
@@ -492,66 +646,82 @@ public class NodeSorter
     {
       m_node = node;
 
-      if (!m_keys.isEmpty())
-      {
-        NodeSortKey k1 = (NodeSortKey) m_keys.elementAt(0);
-        XObject r = k1.m_selectPat.execute(m_execContext, node,
-                                           k1.m_namespaceContext);
+      int nKeys = m_keys.size();
 
-        double d;
+      for (int kIndex = 0; kIndex < nKeys; kIndex++)
+      {
+        NodeSortKey k = (NodeSortKey) m_keys.elementAt(kIndex);
+        XObject r = k.m_selectPat.execute(m_execContext, node,
+                                          k.m_namespaceContext);
 
-        if (k1.m_treatAsNumbers)
+        if (k.m_treatAsNumbers)
         {
-          d = r.num();
-
-          // Can't use NaN for compare. They are never equal. Use zero instead.  
-          m_key1Value = new Double(d);
+          if (null == m_numKeys)
+            m_numKeys = new double[nKeys];
+          m_numKeys[kIndex] = r.num();
         }
         else
         {
-          m_key1Value = k1.m_col.getCollationKey(r.str());
-        }
+          String str = r.str();
 
-        if (r.getType() == XObject.CLASS_NODESET)
-        {
-          // %REVIEW%
-          DTMIterator ni = ((XNodeSet)r).iterRaw();
-          int current = ni.getCurrentNode();
-          if(DTM.NULL == current)
-            current = ni.nextNode();
+          if (null == m_strKeys)
+            m_strKeys = new byte[nKeys][];
+          m_strKeys[kIndex] = k.m_col.getCollationKey(str).toByteArray();
 
-          // if (ni instanceof ContextNodeList) // %REVIEW%
-          // tryNextKey = (DTM.NULL != current);
-
-          // else abdicate... should never happen, but... -sb
+          if (k.m_caseOrderUpper)
+          {
+            if (null == m_strSources)
+              m_strSources = new String[nKeys];
+            m_strSources[kIndex] = str;
+          }
         }
+      }
+    }
 
-        if (m_keys.size() > 1)
-        {
-          NodeSortKey k2 = (NodeSortKey) m_keys.elementAt(1);
-
-          XObject r2 = k2.m_selectPat.execute(m_execContext, node,
-                                              k2.m_namespaceContext);
+    /**
+     * Constructor NodeCompareElem, for key values that have already
+     * been computed.
+     *
+     * @param node Current node
+     * @param numKeys Values of the numeric sort keys, or null
+     * @param strKeys Collation keys of the string sort keys, or null
+     * @param strSources Values of the upper-first string sort keys, or null
+     */
+    NodeCompareElem(int node, double[] numKeys, byte[][] strKeys,
+                    String[] strSources)
+    {
+      m_node = node;
+      m_numKeys = numKeys;
+      m_strKeys = strKeys;
+      m_strSources = strSources;
+    }
 
-          if (k2.m_treatAsNumbers) {
-            d = r2.num();
-            m_key2Value = new Double(d);
-          } else {
-            m_key2Value = k2.m_col.getCollationKey(r2.str());
-          }
-        }
+    /**
+     * Estimate the memory this element takes.
+     *
+     * @return The estimated size in bytes.
+     */
+    long getSize()
+    {
+      long size = 32;
 
-        /* Leave this in case we decide to use an array later
-        while (kIndex <= m_keys.size() && kIndex < maxkey)
-        {
-          NodeSortKey k = (NodeSortKey)m_keys.elementAt(kIndex);
-          XObject r = k.m_selectPat.execute(m_execContext, node, k.m_namespaceContext);
-          if(k.m_treatAsNumbers)
-            m_KeyValue[kIndex] = r.num();
-          else
-            m_KeyValue[kIndex] = r.str();
-        } */
-      }  // end if not empty    
+      if (null != m_numKeys)
+        size += 16 + 8 * m_numKeys.length;
+      if (null != m_strKeys)
+      {
+        size += 16 + 4 * m_strKeys.length;
+        for (int i = 0; i < m_strKeys.length; i++)
+          if (null != m_strKeys[i])
+            size += 16 + m_strKeys[i].length;
+      }
+      if (null != m_strSources)
+      {
+        size += 16 + 4 * m_strSources.length;
+        for (int i = 0; i < m_strSources.length; i++)
+          if (null != m_strSources[i])
+            size += 40 + 2 * m_strSources[i].length();
+      }
+      return size;
     }
   }  // end NodeCompareElem class
 }
@@ -86,6 +86,7 @@ import org.apache.xml.utils.SAXSourceLocator;
 import org.apache.xml.utils.ThreadControllerWrapper;
 import org.apache.xpath.Arg;
 import org.apache.xpath.ExtensionsProvider;
+import org.apache.xpath.SharedDocumentCache;
 import org.apache.xpath.VariableStack;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.functions.FuncExtFunction;
@@ -399,6 +400,13 @@ public class TransformerImpl extends Transformer
     xPath.getDTMManager().setIncremental(m_incremental);
     xPath.setSource_location(m_source_location);
     xPath.getDTMManager().setSource_location(m_source_location);
+
+    // Documents stripped of whitespace, or carrying source locations, are
+    // particular to this transformation and can not be shared.
+    SharedDocumentCache sharedDocumentCache = stylesheet.getSharedDocumentCache();
+    if (null != sharedDocumentCache && !m_source_location
+        && !stylesheet.shouldCheckWhitespace())
+      xPath.getSourceTreeManager().setSharedDocumentCache(sharedDocumentCache);
     
     if (stylesheet.isSecureProcessing())
       xPath.setSecureProcessing(true);
@@ -1168,8 +1176,9 @@ public class TransformerImpl extends Transformer
 
         try
         {
+          // Take a serializer from the pool; transform() gives it back
           SerializationHandler serializer =
-            (SerializationHandler) SerializerFactory.getSerializer(format.getProperties());
+            (SerializationHandler) SerializerFactory.getPooledSerializer(format.getProperties());
 
           if (null != sresult.getWriter())
             serializer.setWriter(sresult.getWriter());
@@ -1270,7 +1279,16 @@ public class TransformerImpl extends Transformer
 
       m_outputTarget = outputTarget;
 
-      transform(xmlSource, shouldRelease);
+      try
+      {
+        transform(xmlSource, shouldRelease);
+      }
+      finally
+      {
+        // A serializer taken from the pool goes back to it; any other
+        // serializer is left alone.
+        SerializerFactory.releaseSerializer(xoh);
+      }
     }
   }
 
@@ -387,6 +387,10 @@ public interface Constants extends InstructionConstants {
         = "_hasIdCall";
     public static final String HASIDCALL_INDEX_SIG
         = "Z";
+    public static final String SHARABLEKEYS_INDEX
+        = "_hasSharableKeys";
+    public static final String SHARABLEKEYS_INDEX_SIG
+        = "Z";
     public static final String TRANSLET_VERSION_INDEX
         = "transletVersion";
     public static final String TRANSLET_VERSION_INDEX_SIG
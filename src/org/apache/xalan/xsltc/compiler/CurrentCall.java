@@ -23,6 +23,8 @@ package org.apache.xalan.xsltc.compiler;
 
 import org.apache.xalan.xsltc.compiler.util.ClassGenerator;
 import org.apache.xalan.xsltc.compiler.util.MethodGenerator;
+import org.apache.xalan.xsltc.compiler.util.Type;
+import org.apache.xalan.xsltc.compiler.util.TypeCheckError;
 
 /**
  * @author Jacek Ambroziak
@@ -33,6 +35,11 @@ final class CurrentCall extends FunctionCall {
 	super(fname);
     }
 
+    public Type typeCheck(SymbolTable stable) throws TypeCheckError {
+	Key.addDependentCall(this);
+	return super.typeCheck(stable);
+    }
+
     public void translate(ClassGenerator classGen, MethodGenerator methodGen) {
 	methodGen.getInstructionList().append(methodGen.loadCurrentNode());
     }
@@ -58,6 +58,9 @@ final class DocumentCall extends FunctionCall {
      * URI of the document
      */
     public Type typeCheck(SymbolTable stable) throws TypeCheckError {
+        // The document loaded may differ between transformations
+        Key.addDependentCall(this);
+
         // At least one argument - two at most
         final int ac = argumentCount();
         if ((ac < 1) || (ac > 2)) {
@@ -333,6 +333,7 @@ class FunctionCall extends Expression {
 	}
 	// Handle extension functions (they all have a namespace)
 	else {
+	    Key.addDependentCall(this);
 	    try {
 	    	_className = getClassNameFromUri(namespace);
 		  
@@ -129,9 +129,31 @@ final class Key extends TopLevelElement {
 	    _use = new CastExpr(_use, Type.String);
 	}
 
+	// Keys that refer to variables or other keys cannot share their
+	// indexes between transformations
+	if (getDependencies() != null) {
+	    getXSLTC().setHasDependentKeys(true);
+	}
+
 	return Type.Void;
     }
 
+    /**
+     * Called for function calls whose value may differ from one
+     * transformation to another, such as current() or an extension
+     * function. If the call is in the match or use clause of a key, the
+     * translet may not share its key indexes between transformations.
+     */
+    static void addDependentCall(SyntaxTreeNode call) {
+	SyntaxTreeNode node = call;
+	while (node != null && node instanceof TopLevelElement == false) {
+	    node = node.getParent();
+	}
+	if (node instanceof Key) {
+	    call.getXSLTC().setHasDependentKeys(true);
+	}
+    }
+
     /**
      * This method is called if the "use" attribute of the key contains a
      * node set. In this case we must traverse all nodes in the set and
@@ -192,6 +192,11 @@ public final class Stylesheet extends SyntaxTreeNode {
      * Flag indicating if id() is called.
      */
     private boolean _hasIdCall = false;
+
+    /**
+     * Flag indicating if any key depends on more than the document.
+     */
+    private boolean _hasDependentKeys = false;
     
     /**
      * Set to true to enable template inlining optimization.
@@ -265,6 +270,10 @@ public final class Stylesheet extends SyntaxTreeNode {
         _hasIdCall = flag;
     }
 
+    public void setHasDependentKeys(boolean flag) {
+        _hasDependentKeys = flag;
+    }
+
     public void setOutputProperty(String key, String value) {
 	if (_outputProperties == null) {
 	    _outputProperties = new Properties();
@@ -1098,6 +1107,18 @@ public final class Stylesheet extends SyntaxTreeNode {
 					           HASIDCALL_INDEX_SIG)));
             constructor.markChunkEnd();
 	}
+
+	// Key indexes may be shared between transformations only if they
+	// depend on nothing but the document
+	if (!_hasDependentKeys) {
+            constructor.markChunkStart();
+	    il.append(classGen.loadTranslet());
+	    il.append(new PUSH(cpg, Boolean.TRUE));
+	    il.append(new PUTFIELD(cpg.addFieldref(TRANSLET_CLASS,
+					           SHARABLEKEYS_INDEX,
+					           SHARABLEKEYS_INDEX_SIG)));
+            constructor.markChunkEnd();
+	}
 	
         // Compile in code to set the output configuration from <xsl:output>
 	if (output != null) {
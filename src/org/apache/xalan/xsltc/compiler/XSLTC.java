@@ -116,6 +116,7 @@ public final class XSLTC {
     private boolean _callsNodeset = false;
     private boolean _multiDocument = false;
     private boolean _hasIdCall = false;
+    private boolean _hasDependentKeys = false;
 
     private Vector _stylesheetNSAncestorPointers;
     private Vector _prefixURIPairs;
@@ -208,6 +209,7 @@ public final class XSLTC {
 	_attributeSetSerial = 0;
 	_multiDocument      = false;
 	_hasIdCall          = false;
+	_hasDependentKeys   = false;
         _stylesheetNSAncestorPointers = null;
         _prefixURIPairs     = null;
         _prefixURIPairsIdx  = null;
@@ -365,6 +367,7 @@ public final class XSLTC {
 		_stylesheet.setCallsNodeset(_callsNodeset);
 		_stylesheet.setMultiDocument(_multiDocument);
 		_stylesheet.setHasIdCall(_hasIdCall);
+		_stylesheet.setHasDependentKeys(_hasDependentKeys);
 
 		// Class synchronization is needed for BCEL
 		synchronized (getClass()) {
@@ -538,6 +541,19 @@ public final class XSLTC {
     	return _hasIdCall;
     }
 
+    /**
+     * Record that the match or use clause of an xsl:key depends on
+     * something other than the document, such as a variable, current()
+     * or an extension function.
+     */
+    protected void setHasDependentKeys(boolean flag) {
+    	_hasDependentKeys = flag;
+    }
+
+    public boolean hasDependentKeys() {
+    	return _hasDependentKeys;
+    }
+
     /**
      * Set the class name for the generated translet. This class name is
      * overridden if multiple stylesheets are compiled in one go using the
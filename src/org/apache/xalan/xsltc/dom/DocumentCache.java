@@ -27,11 +27,9 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.Hashtable;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
 
@@ -39,29 +37,61 @@ import org.apache.xalan.xsltc.DOM;
 import org.apache.xalan.xsltc.DOMCache;
 import org.apache.xalan.xsltc.DOMEnhancedForDTM;
 import org.apache.xalan.xsltc.Translet;
+import org.apache.xalan.xsltc.TransletException;
 import org.apache.xalan.xsltc.runtime.AbstractTranslet;
-import org.apache.xalan.xsltc.runtime.BasisLibrary;
-import org.apache.xalan.xsltc.runtime.Constants;
+import org.apache.xalan.xsltc.util.IntegerArray;
 import org.apache.xml.utils.SystemIDResolver;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
 /**
+ * A cache of documents loaded by the document() function, shared by any
+ * number of translets and threads.
+ *
+ * <p>The cache is bounded by a number of documents and, optionally, by the
+ * total estimated size of the cached documents. When either bound is
+ * exceeded, documents are evicted according to the eviction policy:
+ * least recently used (EVICT_LRU, the default), least frequently used
+ * (EVICT_LFU) or oldest loaded (EVICT_TTL). A time to live may also be set,
+ * after which a document is loaded again whatever the policy.</p>
+ *
+ * <p>A document is only loaded once however many threads ask for it at
+ * the same time; the other threads wait for the first one to finish.
+ * Loading is done without holding the cache's lock, so lookups of other
+ * documents are not held up by a slow load.</p>
+ *
  * @author Morten Jorgensen
  */
 public final class DocumentCache implements DOMCache {
 
+    /** Evict the least recently used document first. */
+    public static final int EVICT_LRU = 0;
+
+    /** Evict the least frequently used document first. */
+    public static final int EVICT_LFU = 1;
+
+    /** Evict the document that was loaded longest ago first. */
+    public static final int EVICT_TTL = 2;
+
     private int       _size;
+    private long      _maxEstimatedSize = 0;
+    private int       _evictionPolicy = EVICT_LRU;
+    private long      _timeToLive = 0;
     private Hashtable _references;
-    private String[]  _URIs;
-    private int       _count;
-    private int       _current;
-    private SAXParser _parser;
-    private XMLReader _reader;
+    private Hashtable _loading;
+    private long      _estimatedSize;
     private XSLTCDTMManager _dtmManager;
 
+    // Statistics, guarded by the cache's lock
+    private long _hits;
+    private long _misses;
+    private long _loads;
+    private long _loadFailures;
+    private long _loadTime;
+    private long _reloads;
+    private long _evictions;
+
     private static final int REFRESH_INTERVAL = 1000;
 
     /*
@@ -79,6 +109,9 @@ public final class DocumentCache implements DOMCache {
 
 	// DOM and DTD handler references
 	private DOMEnhancedForDTM _dom = null;
+
+	// Key indexes built for this document, by translet class
+	private final Hashtable _keys = new Hashtable();
 	
 	/**
 	 * Constructor - load document and initialise statistics
@@ -88,6 +121,7 @@ public final class DocumentCache implements DOMCache {
 	    final long stamp = System.currentTimeMillis();
 	    _firstReferenced = stamp;
 	    _lastReferenced  = stamp;
+	    _lastChecked     = stamp;
 	    _accessCount     = 0;
 	    loadDocument(uri);
 
@@ -101,8 +135,11 @@ public final class DocumentCache implements DOMCache {
 
 	    try {
 		final long stamp = System.currentTimeMillis();
+                // Leave the choice of XMLReader to the DTM manager, which
+                // takes one from its pool, so documents can be loaded on
+                // several threads at once.
                 _dom = (DOMEnhancedForDTM)_dtmManager.getDTM(
-                                 new SAXSource(_reader, new InputSource(uri)),
+                                 new SAXSource(new InputSource(uri)),
                                  false, null, true, false);
 		_dom.setDocumentURI(uri);
 
@@ -146,6 +183,159 @@ public final class DocumentCache implements DOMCache {
 		return(0);
 	}
 
+	/**
+	 * Records an access to the document
+	 */
+	void reference(long now) {
+	    _lastReferenced = now;
+	    _accessCount++;
+	}
+    }
+
+    /**
+     * A load in progress, which threads asking for the same document wait
+     * on instead of loading it again.
+     */
+    private static final class PendingLoad {
+	private CachedDocument _doc;
+	private boolean _done = false;
+
+	/**
+	 * Hands the loaded document (or null) to the waiting threads
+	 */
+	synchronized void complete(CachedDocument doc) {
+	    _doc = doc;
+	    _done = true;
+	    notifyAll();
+	}
+
+	/**
+	 * Waits for the load to complete and returns its document
+	 */
+	synchronized CachedDocument await() {
+	    while (!_done) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return null;
+		}
+	    }
+	    return _doc;
+	}
+    }
+
+    /**
+     * The key indexes one translet class builds for a document, shared by
+     * every instance of that class that loads the document. Threads that
+     * need them while they are being built wait for that build.
+     */
+    private static final class SharedKeys {
+	private org.apache.xalan.xsltc.runtime.Hashtable _keys;
+	private boolean _done = false;
+
+	/**
+	 * Hands the built indexes (or null) to the waiting threads
+	 */
+	synchronized void complete(org.apache.xalan.xsltc.runtime.Hashtable keys) {
+	    _keys = keys;
+	    _done = true;
+	    notifyAll();
+	}
+
+	/**
+	 * Waits for the build to complete and returns its indexes
+	 */
+	synchronized org.apache.xalan.xsltc.runtime.Hashtable await() {
+	    while (!_done) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		    return null;
+		}
+	    }
+	    return _keys;
+	}
+    }
+
+    /**
+     * A snapshot of the cache's counters, as returned by getStatistics().
+     * Times are in milliseconds and sizes are estimated sizes in bytes.
+     */
+    public static final class Statistics {
+	private final long _hits;
+	private final long _misses;
+	private final long _loads;
+	private final long _loadFailures;
+	private final long _loadTime;
+	private final long _reloads;
+	private final long _evictions;
+	private final int  _documentCount;
+	private final long _estimatedSize;
+
+	Statistics(long hits, long misses, long loads, long loadFailures,
+		   long loadTime, long reloads, long evictions,
+		   int documentCount, long estimatedSize) {
+	    _hits = hits;
+	    _misses = misses;
+	    _loads = loads;
+	    _loadFailures = loadFailures;
+	    _loadTime = loadTime;
+	    _reloads = reloads;
+	    _evictions = evictions;
+	    _documentCount = documentCount;
+	    _estimatedSize = estimatedSize;
+	}
+
+	/** Requests answered from the cache, including those that waited
+	 *  for another thread's load */
+	public long getHitCount()          { return(_hits); }
+
+	/** Requests that had to load the document */
+	public long getMissCount()         { return(_misses); }
+
+	/** Documents loaded, whether successfully or not */
+	public long getLoadCount()         { return(_loads); }
+
+	/** Loads that did not produce a document */
+	public long getLoadFailureCount()  { return(_loadFailures); }
+
+	/** Total time spent loading documents */
+	public long getTotalLoadTime()     { return(_loadTime); }
+
+	/** Average time spent loading a document */
+	public long getAverageLoadTime() {
+	    return (_loads == 0) ? 0 : _loadTime / _loads;
+	}
+
+	/** Documents loaded again because they were modified or expired */
+	public long getReloadCount()       { return(_reloads); }
+
+	/** Documents evicted to keep the cache within its bounds */
+	public long getEvictionCount()     { return(_evictions); }
+
+	/** Documents currently in the cache */
+	public int getDocumentCount()      { return(_documentCount); }
+
+	/** Estimated size of the documents currently in the cache */
+	public long getEstimatedSize()     { return(_estimatedSize); }
+
+	/** The fraction of requests answered from the cache */
+	public double getHitRatio() {
+	    final long requests = _hits + _misses;
+	    return (requests == 0) ? 0.0 : (double)_hits / requests;
+	}
+
+	public String toString() {
+	    return "hits=" + _hits + " misses=" + _misses + " loads=" + _loads +
+		   " loadFailures=" + _loadFailures + " loadTime=" + _loadTime +
+		   "ms reloads=" + _reloads + " evictions=" + _evictions +
+		   " documents=" + _documentCount + " estimatedSize=" +
+		   _estimatedSize;
+	}
     }
 
     /**
@@ -166,27 +356,57 @@ public final class DocumentCache implements DOMCache {
      */
     public DocumentCache(int size, XSLTCDTMManager dtmManager) throws SAXException {
 	_dtmManager = dtmManager;
-	_count = 0;
-	_current = 0;
 	_size  = size;
 	_references = new Hashtable(_size+2);
-	_URIs = new String[_size];
+	_loading = new Hashtable();
+    }
 
-	try {
-	    // Create a SAX parser and get the XMLReader object it uses
-	    final SAXParserFactory factory = SAXParserFactory.newInstance();
-	    try {
-		factory.setFeature(Constants.NAMESPACE_FEATURE,true);
-	    }
-	    catch (Exception e) {
-		factory.setNamespaceAware(true);
-	    }
-	    _parser = factory.newSAXParser();
-	    _reader = _parser.getXMLReader();
-	}
-	catch (ParserConfigurationException e) {
-	    BasisLibrary.runTimeError(BasisLibrary.NAMESPACES_SUPPORT_ERR);
-	}
+    /**
+     * Bounds the total estimated size of the cached documents, in bytes.
+     * A value of 0 (the default) leaves the size unbounded.
+     */
+    public synchronized void setMaxEstimatedSize(long maxEstimatedSize) {
+	_maxEstimatedSize = maxEstimatedSize;
+	evict(null);
+    }
+
+    /**
+     * Returns the bound on the total estimated size of the cached documents
+     */
+    public synchronized long getMaxEstimatedSize() {
+	return _maxEstimatedSize;
+    }
+
+    /**
+     * Sets the eviction policy: EVICT_LRU, EVICT_LFU or EVICT_TTL
+     */
+    public synchronized void setEvictionPolicy(int policy) {
+	if (policy != EVICT_LRU && policy != EVICT_LFU && policy != EVICT_TTL)
+	    throw new IllegalArgumentException(String.valueOf(policy));
+	_evictionPolicy = policy;
+    }
+
+    /**
+     * Returns the eviction policy
+     */
+    public synchronized int getEvictionPolicy() {
+	return _evictionPolicy;
+    }
+
+    /**
+     * Sets the time, in milliseconds, after which a cached document is
+     * loaded again. A value of 0 (the default) keeps documents until they
+     * are modified or evicted.
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+	_timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the time to live of cached documents
+     */
+    public synchronized long getTimeToLive() {
+	return _timeToLive;
     }
 
     /**
@@ -213,40 +433,152 @@ public final class DocumentCache implements DOMCache {
     }
 
     /**
-     *
+     * Returns true if a document has outlived the time to live
      */
-    private CachedDocument lookupDocument(String uri) {
-	return((CachedDocument)_references.get(uri));
+    private boolean isExpired(CachedDocument doc, long now) {
+	return _timeToLive > 0 && now - doc.getFirstReferenced() > _timeToLive;
     }
 
     /**
-     *
+     * Puts a newly loaded document in the cache, in place of any older copy
      */
     private synchronized void insertDocument(String uri, CachedDocument doc) {
-	if (_count < _size) {
-	    // Insert out URI in circular buffer
-	    _URIs[_count++] = uri;
-	    _current = 0;
-	}
-	else {
-	    // Remove oldest URI from reference Hashtable
-	    _references.remove(_URIs[_current]);
-	    // Insert our URI in circular buffer
-	    _URIs[_current] = uri;
-	    if (++_current >= _size) _current = 0;
-	}
-	_references.put(uri, doc);
+	CachedDocument old = (CachedDocument)_references.put(uri, doc);
+	if (old != null)
+	    _estimatedSize -= old.getEstimatedSize();
+	_estimatedSize += doc.getEstimatedSize();
+	evict(doc);
+    }
+
+    /**
+     * Evicts documents until the cache is within its bounds. The document
+     * just inserted, if any, is never evicted.
+     */
+    private void evict(CachedDocument keep) {
+	while (_references.size() > _size
+	       || (_maxEstimatedSize > 0 && _estimatedSize > _maxEstimatedSize)) {
+	    String victim = null;
+	    CachedDocument victimDoc = null;
+
+	    for (Enumeration e = _references.keys(); e.hasMoreElements(); ) {
+		final String uri = (String)e.nextElement();
+		final CachedDocument doc = (CachedDocument)_references.get(uri);
+		if (doc != keep && (victimDoc == null || isBetterVictim(doc, victimDoc))) {
+		    victim = uri;
+		    victimDoc = doc;
+		}
+	    }
+
+	    if (victim == null) break;
+
+	    _references.remove(victim);
+	    _estimatedSize -= victimDoc.getEstimatedSize();
+	    _evictions++;
+	}
+    }
+
+    /**
+     * Returns true if the eviction policy prefers to evict a over b
+     */
+    private boolean isBetterVictim(CachedDocument a, CachedDocument b) {
+	switch (_evictionPolicy) {
+	case EVICT_LFU:
+	    if (a.getAccessCount() != b.getAccessCount())
+		return a.getAccessCount() < b.getAccessCount();
+	    break;
+	case EVICT_TTL:
+	    return a.getFirstReferenced() < b.getFirstReferenced();
+	}
+	return a.getLastReferenced() < b.getLastReferenced();
     }
 
     /**
-     *
+     * Returns the cached document for a URI if it may still be used,
+     * checking at most once per REFRESH_INTERVAL whether it has been
+     * modified. Returns null if the document must be loaded.
      */
-    private synchronized void replaceDocument(String uri, CachedDocument doc) {
-	CachedDocument old = (CachedDocument)_references.get(uri);
-	if (doc == null)
-	    insertDocument(uri, doc);
-	else
-	    _references.put(uri, doc);
+    private CachedDocument lookupDocument(String uri) {
+	final long now = System.currentTimeMillis();
+	CachedDocument doc;
+	long chk;
+
+	synchronized (this) {
+	    doc = (CachedDocument)_references.get(uri);
+	    if (doc == null || isExpired(doc, now)) return null;
+
+	    chk = doc.getLastChecked();
+	    if (now <= chk + REFRESH_INTERVAL) {
+		_hits++;
+		doc.reference(now);
+		return doc;
+	    }
+	    doc.setLastChecked(now);
+	}
+
+	// Has the document been modified since it was loaded? This may
+	// need a round trip to a server, so is done without the lock.
+	if (getLastModified(uri) > doc.getLastModified()) return null;
+
+	synchronized (this) {
+	    _hits++;
+	    doc.reference(now);
+	}
+	return doc;
+    }
+
+    /**
+     * Loads a document, or waits for another thread that is already
+     * loading it. Returns null if the document could not be loaded.
+     */
+    private CachedDocument loadDocument(String uri) {
+	PendingLoad load;
+
+	synchronized (this) {
+	    load = (PendingLoad)_loading.get(uri);
+	    if (load != null) {
+		_hits++;
+	    }
+	    else {
+		load = new PendingLoad();
+		_loading.put(uri, load);
+		_misses++;
+		if (_references.containsKey(uri)) _reloads++;
+		load = null;
+	    }
+	}
+
+	if (load != null) {
+	    final CachedDocument doc = load.await();
+	    if (doc != null) {
+		synchronized (this) {
+		    doc.reference(System.currentTimeMillis());
+		}
+	    }
+	    return doc;
+	}
+
+	CachedDocument doc = null;
+	try {
+	    doc = new CachedDocument(uri);
+	    doc.setLastModified(getLastModified(uri));
+	    if (doc.getDocument() == null) doc = null;
+	}
+	finally {
+	    synchronized (this) {
+		load = (PendingLoad)_loading.remove(uri);
+		_loads++;
+		if (doc != null) {
+		    _loadTime += doc.getLatency();
+		    doc.reference(System.currentTimeMillis());
+		    insertDocument(uri, doc);
+		}
+		else {
+		    _loadFailures++;
+		}
+	    }
+	    load.complete(doc);
+	}
+	return doc;
     }
 
     /**
@@ -267,39 +599,15 @@ public final class DocumentCache implements DOMCache {
     
 	// Try to get the document from the cache first
 	if ((doc = lookupDocument(uri)) == null) {
-	    doc = new CachedDocument(uri);
-	    if (doc == null) return null; // better error handling needed!!!
-	    doc.setLastModified(getLastModified(uri));
-	    insertDocument(uri, doc);
+	    doc = loadDocument(uri);
 	}
-	// If the document is in the cache we must check if it is still valid
-	else {
-	    long now = System.currentTimeMillis();
-	    long chk = doc.getLastChecked();
-	    doc.setLastChecked(now);
-	    // Has the modification time for this file been checked lately?
-	    if (now > (chk + REFRESH_INTERVAL)) {
-		doc.setLastChecked(now);
-		long last = getLastModified(uri);
-		// Reload document if it has been modified since last download
-		if (last > doc.getLastModified()) {
-		    doc = new CachedDocument(uri);
-		    if (doc == null) return null;
-		    doc.setLastModified(getLastModified(uri));
-		    replaceDocument(uri, doc);
-		}
-	    }
-	    
-	}
-
-	// Get the references to the actual DOM and DTD handler
-	final DOM dom = doc.getDocument();
 
-	// The dom reference may be null if the URL pointed to a
+	// The document may be null if the URL pointed to a
 	// non-existing document
-	if (dom == null) return null;
+	if (doc == null) return null;
 
-	doc.incAccessCount(); // For statistics
+	// Get the references to the actual DOM and DTD handler
+	final DOM dom = doc.getDocument();
 
 	final AbstractTranslet translet = (AbstractTranslet)trs;
 
@@ -307,13 +615,136 @@ public final class DocumentCache implements DOMCache {
         // information from the DOM object that it would like.
 	translet.prepassDocument(dom);
 
-	return(doc.getDocument());
+	return(dom);
+    }
+
+    /**
+     * Builds the key indexes of a translet for a document returned by
+     * retrieveDocument(). The indexes are built once per translet class
+     * for as long as the document stays in the cache; other instances of
+     * the class use them as they are. Translets whose keys depend on more
+     * than the document, and documents no longer in the cache, get indexes
+     * of their own.
+     */
+    public void buildKeys(AbstractTranslet translet, DOMAdapter adapter,
+			  DOM dom) throws TransletException {
+	final int root = dom.getDocument();
+	CachedDocument doc = null;
+
+	if (translet.hasSharableKeys()) {
+	    synchronized (this) {
+		for (Enumeration e = _references.elements(); e.hasMoreElements(); ) {
+		    final CachedDocument d = (CachedDocument)e.nextElement();
+		    if (d.getDocument() == dom) {
+			doc = d;
+			break;
+		    }
+		}
+	    }
+	}
+	if (doc == null) {
+	    translet.buildKeys(adapter, null, null, root);
+	    return;
+	}
+
+	SharedKeys keys;
+	boolean build = false;
+	synchronized (doc._keys) {
+	    keys = (SharedKeys)doc._keys.get(translet.getClass());
+	    if (keys == null) {
+		keys = new SharedKeys();
+		doc._keys.put(translet.getClass(), keys);
+		build = true;
+	    }
+	}
+
+	if (!build) {
+	    final org.apache.xalan.xsltc.runtime.Hashtable shared = keys.await();
+	    if (shared != null) {
+		translet.setDocumentKeys(root, shared);
+	    }
+	    else {
+		translet.buildKeys(adapter, null, null, root);
+	    }
+	    return;
+	}
+
+	org.apache.xalan.xsltc.runtime.Hashtable shared = null;
+	try {
+	    translet.buildKeys(adapter, null, null, root);
+	    shared = compactKeys(translet.getDocumentKeys(root));
+	}
+	finally {
+	    if (shared == null) {
+		synchronized (doc._keys) {
+		    doc._keys.remove(translet.getClass());
+		}
+	    }
+	    keys.complete(shared);
+	}
+    }
+
+    /**
+     * Copies key indexes into exact-size node arrays, so that the copies
+     * can be shared while the translet that built them carries on adding
+     * to its own.
+     */
+    private static org.apache.xalan.xsltc.runtime.Hashtable compactKeys(
+		org.apache.xalan.xsltc.runtime.Hashtable keys) {
+	final org.apache.xalan.xsltc.runtime.Hashtable result =
+	    new org.apache.xalan.xsltc.runtime.Hashtable();
+	for (Enumeration names = keys.keys(); names.hasMoreElements(); ) {
+	    final Object name = names.nextElement();
+	    final org.apache.xalan.xsltc.runtime.Hashtable index =
+		(org.apache.xalan.xsltc.runtime.Hashtable)keys.get(name);
+	    final org.apache.xalan.xsltc.runtime.Hashtable copy =
+		new org.apache.xalan.xsltc.runtime.Hashtable();
+	    for (Enumeration values = index.keys(); values.hasMoreElements(); ) {
+		final Object value = values.nextElement();
+		final IntegerArray nodes = (IntegerArray)index.get(value);
+		copy.put(value, nodes.clone());
+	    }
+	    result.put(name, copy);
+	}
+	return result;
+    }
+
+    /**
+     * Returns a snapshot of the cache's counters
+     */
+    public synchronized Statistics getStatistics() {
+	return new Statistics(_hits, _misses, _loads, _loadFailures, _loadTime,
+			      _reloads, _evictions, _references.size(),
+			      _estimatedSize);
+    }
+
+    /**
+     * Resets the cache's counters to zero
+     */
+    public synchronized void resetStatistics() {
+	_hits = _misses = _loads = _loadFailures = 0;
+	_loadTime = _reloads = _evictions = 0;
     }
 
     /**
      * Outputs the cache statistics
      */
     public void getStatistics(PrintWriter out) {
+	final Statistics stats;
+	final String[] uris;
+	final CachedDocument[] docs;
+
+	synchronized (this) {
+	    stats = getStatistics();
+	    uris = new String[_references.size()];
+	    docs = new CachedDocument[uris.length];
+	    int i = 0;
+	    for (Enumeration e = _references.keys(); e.hasMoreElements(); i++) {
+		uris[i] = (String)e.nextElement();
+		docs[i] = (CachedDocument)_references.get(uris[i]);
+	    }
+	}
+
 	out.println("<h2>DOM cache statistics</h2><center><table border=\"2\">"+
 		    "<tr><td><b>Document URI</b></td>"+
 		    "<td><center><b>Build time</b></center></td>"+
@@ -321,10 +752,10 @@ public final class DocumentCache implements DOMCache {
 		    "<td><center><b>Last accessed</b></center></td>"+
 		    "<td><center><b>Last modified</b></center></td></tr>");
 
-	for (int i=0; i<_count; i++) {
-	    CachedDocument doc = (CachedDocument)_references.get(_URIs[i]);
-	    out.print("<tr><td><a href=\""+_URIs[i]+"\">"+
-		      "<font size=-1>"+_URIs[i]+"</font></a></td>");
+	for (int i=0; i<uris.length; i++) {
+	    CachedDocument doc = docs[i];
+	    out.print("<tr><td><a href=\""+uris[i]+"\">"+
+		      "<font size=-1>"+uris[i]+"</font></a></td>");
 	    out.print("<td><center>"+doc.getLatency()+"ms</center></td>");
 	    out.print("<td><center>"+doc.getAccessCount()+"</center></td>");
 	    out.print("<td><center>"+(new Date(doc.getLastReferenced()))+
@@ -335,5 +766,6 @@ public final class DocumentCache implements DOMCache {
 	}
 
 	out.println("</table></center>");
+	out.println("<p>"+stats+"</p>");
     }
 }
@@ -110,6 +110,23 @@ public class KeyIndex extends DTMAxisIteratorBase {
         }
     }
 
+    /**
+     * Returns the map from values to nodes built for the document with the
+     * given root, or null if there is none.
+     */
+    public Hashtable getDocumentIndex(int rootNode) {
+        return (Hashtable) _rootToIndexMap.get(new Integer(rootNode));
+    }
+
+    /**
+     * Sets the map from values to nodes for the document with the given
+     * root, as returned by getDocumentIndex() on another KeyIndex. The map
+     * may be shared, so it is never added to.
+     */
+    public void setDocumentIndex(int rootNode, Hashtable index) {
+        _rootToIndexMap.put(new Integer(rootNode), index);
+    }
+
     /**
      * Merge the current value's nodeset set by lookupKey() with _nodes.
      * @deprecated
@@ -224,8 +224,13 @@ public final class LoadDocument {
         final DOMAdapter domAdapter = translet.makeDOMAdapter(newdom);
         multiplexer.addDOMAdapter(domAdapter);
 
-        // Create index for any key elements
-        translet.buildKeys(domAdapter, null, null, newdom.getDocument());
+        // Create index for any key elements, reusing the indexes of
+        // documents held by a DocumentCache
+        if (cache instanceof DocumentCache) {
+            ((DocumentCache)cache).buildKeys(translet, domAdapter, newdom);
+        } else {
+            translet.buildKeys(domAdapter, null, null, newdom.getDocument());
+        }
 
         // Return a singleton iterator containing the root node
         return new SingletonIterator(newdom.getDocument(), true);
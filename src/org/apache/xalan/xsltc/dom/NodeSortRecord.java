@@ -21,6 +21,9 @@
 
 package org.apache.xalan.xsltc.dom;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.text.CollationKey;
 import java.text.Collator;
 import java.util.Locale;
@@ -73,7 +76,9 @@ public abstract class NodeSortRecord {
     private int    _last = 0;       // Number of nodes in the current iterator
     private int    _scanned = 0;    // Number of key levels extracted from DOM
 
-    private Object[] _values; // Contains Comparable  objects
+    private Object[] _values; // Contains Comparable objects for text keys,
+                              // or byte[] forms of CollationKeys
+    private double[] _numValues; // Contains the values of numeric keys
 
     /**
      * This constructor is run by a call to ClassLoader in the
@@ -104,6 +109,7 @@ public abstract class NodeSortRecord {
 
         int levels = settings.getSortOrders().length;
 	_values = new Object[levels];
+	_numValues = new double[levels];
   
 	// -- W. Eliot Kimber (eliot@isogen.com)
         String colFactClassname = 
@@ -146,9 +152,10 @@ public abstract class NodeSortRecord {
     /**
      * Get the string or numeric value of a specific level key for this sort
      * element. The value is extracted from the DOM if it is not already in
-     * our sort key vector.
+     * our sort key vector. Plain collation keys are kept in the smaller
+     * form returned by CollationKey.toByteArray().
      */
-    private final Comparable stringValue(int level) {
+    private final Object stringValue(int level) {
     	// Get value from our array if possible
     	if (_scanned <= level) {
             AbstractTranslet translet = _settings.getTranslet();
@@ -158,36 +165,127 @@ public abstract class NodeSortRecord {
     	    // Get value from DOM if accessed for the first time
     	    final String str = extractValueFromDOM(_dom, _node, level,
     						   translet, _last);
-    	    final Comparable key =
+    	    Object key =
                 StringComparable.getComparator(str, locales[level],
                                                _collators[level],
                                                caseOrder[level]);
+            if (key instanceof CollationKey) {
+                key = ((CollationKey) key).toByteArray();
+            }
     	    _values[_scanned++] = key;
     	    return(key);
     	}
-    	return((Comparable)_values[level]);
+    	return(_values[level]);
   }
     
-    private final Double numericValue(int level) {
-	// Get value from our vector if possible
+    private final double numericValue(int level) {
+	// Get value from our array if possible
 	if (_scanned <= level) {
             AbstractTranslet translet = _settings.getTranslet();
 
 	    // Get value from DOM if accessed for the first time
 	    final String str = extractValueFromDOM(_dom, _node, level,
 						   translet, _last);
-	    Double num;
+	    double num;
 	    try {
-		num = new Double(str);
+		num = Double.parseDouble(str);
 	    }
 	    // Treat number as NaN if it cannot be parsed as a double
 	    catch (NumberFormatException e) {
-		num = new Double(Double.NEGATIVE_INFINITY);
+		num = Double.NEGATIVE_INFINITY;
 	    }
-	    _values[_scanned++] = num;
+	    _numValues[_scanned++] = num;
 	    return(num);
 	}
-	return((Double)_values[level]);
+	return(_numValues[level]);
+    }
+
+    /**
+     * Extract the values of every level of this key from the DOM now,
+     * rather than when they are first compared. Once this has been done
+     * compareTo() no longer calls into the translet or the DOM.
+     */
+    final void extractValues() {
+        int[] compareTypes = _settings.getTypes();
+        for (int level = _scanned; level < compareTypes.length; level++) {
+            if (compareTypes[level] == COMPARE_NUMERIC) {
+                numericValue(level);
+            }
+            else {
+                stringValue(level);
+            }
+        }
+    }
+
+    /**
+     * Returns true if every level of this key is numeric or a plain
+     * collation key. Records with such keys can, once their values are
+     * extracted, be compared from several threads at once and written to
+     * disk. That is not so when a case-order is given, since such values
+     * share a Collator whose strength is changed while comparing.
+     */
+    final boolean hasPlainKeys() {
+        int[] compareTypes = _settings.getTypes();
+        String[] caseOrder = _settings.getCaseOrders();
+        for (int level = 0; level < compareTypes.length; level++) {
+            if (compareTypes[level] != COMPARE_NUMERIC
+                && caseOrder[level] != null && caseOrder[level].length() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the values of every level of this key, which must have been
+     * extracted and must all be plain, for an external sort.
+     */
+    final void writeValues(DataOutputStream out) throws IOException {
+        int[] compareTypes = _settings.getTypes();
+        for (int level = 0; level < compareTypes.length; level++) {
+            if (compareTypes[level] == COMPARE_NUMERIC) {
+                out.writeDouble(_numValues[level]);
+            }
+            else {
+                final byte[] key = (byte[]) _values[level];
+                out.writeInt(key.length);
+                out.write(key);
+            }
+        }
+    }
+
+    /**
+     * Read the values written by writeValues() into this record, in place
+     * of extracting them from the DOM.
+     */
+    final void readValues(DataInputStream in) throws IOException {
+        int[] compareTypes = _settings.getTypes();
+        for (int level = 0; level < compareTypes.length; level++) {
+            if (compareTypes[level] == COMPARE_NUMERIC) {
+                _numValues[level] = in.readDouble();
+            }
+            else {
+                final byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                _values[level] = key;
+            }
+        }
+        _scanned = compareTypes.length;
+    }
+
+    /**
+     * Estimate the memory taken by this record once its values have been
+     * extracted.
+     */
+    final long getSize() {
+        long size = 64 + 16 + 8 * _numValues.length
+                    + 16 + 4 * _values.length;
+        for (int level = 0; level < _scanned; level++) {
+            if (_values[level] instanceof byte[]) {
+                size += 16 + ((byte[]) _values[level]).length;
+            }
+        }
+        return size;
     }
 
     /**
@@ -206,14 +304,20 @@ public abstract class NodeSortRecord {
 	for (level = 0; level < levels; level++) {
 	    // Compare the two nodes either as numeric or text values
 	    if (compareTypes[level] == COMPARE_NUMERIC) {
-		final Double our = numericValue(level);
-		final Double their = other.numericValue(level);
-		cmp = our.compareTo(their);
+		// Same ordering as Double.compareTo(), without the boxing
+		cmp = Double.compare(numericValue(level),
+				     other.numericValue(level));
 	    }
 	    else {
-		final Comparable our = stringValue(level);
-		final Comparable their = other.stringValue(level);
-		cmp = our.compareTo(their);
+		final Object our = stringValue(level);
+		final Object their = other.stringValue(level);
+		if (our instanceof byte[]) {
+		    cmp = StringComparable.compareKeys((byte[]) our,
+						       (byte[]) their);
+		}
+		else {
+		    cmp = ((Comparable) our).compareTo(their);
+		}
 	    }
 	    
 	    // Return inverse compare value if inverse sort order
@@ -21,6 +21,8 @@
 
 package org.apache.xalan.xsltc.dom;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.net.MalformedURLException;
 import java.util.Enumeration;
@@ -48,6 +50,7 @@ import org.apache.xml.serializer.SerializationHandler;
 import org.apache.xml.serializer.ToXMLSAXHandler;
 import org.apache.xml.utils.XMLStringFactory;
 import org.apache.xml.utils.SystemIDResolver;
+import org.apache.xml.utils.WrappedRuntimeException;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.w3c.dom.Document;
@@ -893,6 +896,31 @@ public final class SAXImpl extends SAX2DTM2
         _namesSize = m_expandedNameTable.getSize();
     }
 
+    /**
+     * Load this document from a snapshot written by
+     * {@link SAX2DTM2#writeSnapshot}, rebuilding the namespace index that
+     * startPrefixMapping() would have built during parsing.
+     */
+    public void readSnapshot(InputStream is) throws IOException
+    {
+        super.readSnapshot(is);
+
+        try {
+            _nsIndex.put(new Integer(0), new Integer(_uriCount++));
+            definePrefixAndUri(XML_PREFIX, XML_URI);
+
+            for (int i = 0; i < m_size; i++) {
+                if (_type2(i) == DTM.NAMESPACE_NODE) {
+                    definePrefixAndUri(null, getNodeValue(makeNodeHandle(i)));
+                }
+            }
+        }
+        catch (SAXException e) {
+            throw new WrappedRuntimeException(e);
+        }
+        _namesSize = m_expandedNameTable.getSize();
+    }
+
     /**
      * Specialized interface used by DOM2SAX. This one has an extra Node
      * parameter to build the Node -> id map.
@@ -21,9 +21,17 @@
 
 package org.apache.xalan.xsltc.dom;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+
 import org.apache.xalan.xsltc.runtime.BasisLibrary;
 import org.apache.xml.dtm.DTMAxisIterator;
 import org.apache.xml.dtm.ref.DTMAxisIteratorBase;
+import org.apache.xml.utils.ExternalMergeSort;
+import org.apache.xml.utils.ParallelMergeSort;
+import org.apache.xml.utils.WrappedRuntimeException;
 
 /**
  * @author Jacek Ambroziak
@@ -33,10 +41,20 @@ import org.apache.xml.dtm.ref.DTMAxisIteratorBase;
 public final class SortingIterator extends DTMAxisIteratorBase {
     private final static int INIT_DATA_SIZE = 16;
 
+    /**
+     * Compares NodeSortRecords for the parallel sort.
+     */
+    private final static Comparator RECORD_COMPARATOR = new Comparator() {
+	public int compare(Object o1, Object o2) {
+	    return ((NodeSortRecord) o1).compareTo((NodeSortRecord) o2);
+	}
+    };
+
     private DTMAxisIterator _source;
     private NodeSortRecordFactory _factory;
 
     private NodeSortRecord[] _data;
+    private int[] _nodes;	// the sorted nodes, once the records are gone
     private int _free = 0;
     private int _current;	// index in _nodes of the next node to try
 
@@ -47,29 +65,144 @@ public final class SortingIterator extends DTMAxisIteratorBase {
     }
 
     public int next() {
-	return _current < _free ? _data[_current++].getNode() : END;
+	return _current < _free ? _nodes[_current++] : END;
     }
 	
     public DTMAxisIterator setStartNode(int node) {
+	// next() reads _nodes, so it must never be left from an earlier run
+	_nodes = null;
+	_free = 0;
+	_current = 0;
 	try {
 	    _source.setStartNode(_startNode = node);
 	    _data = new NodeSortRecord[INIT_DATA_SIZE];
-	    _free = 0;
 
 	    // gather all nodes from the source iterator
+	    final long memoryLimit = ExternalMergeSort.getMemoryLimit();
 	    while ((node = _source.next()) != END) {
-		addRecord(_factory.makeNodeSortRecord(node,_free));
+		final NodeSortRecord record =
+		    _factory.makeNodeSortRecord(node,_free);
+		if (_free == 0 && memoryLimit > 0 && record.hasPlainKeys()) {
+		    externalSort(record, memoryLimit);
+		    _current = 0;
+		    return this;
+		}
+		addRecord(record);
 	    }
 	    // now sort the records
-	    quicksort(0, _free - 1);
+	    if (ParallelMergeSort.isParallel(_free)
+		&& _data[0].hasPlainKeys()) {
+		parallelSort();
+	    }
+	    else {
+		quicksort(0, _free - 1);
+	    }
+
+	    // keep just the sorted nodes
+	    _nodes = new int[_free];
+	    for (int i = 0; i < _free; i++) {
+		_nodes[i] = _data[i].getNode();
+	    }
+	    _data = null;
 
 	    _current = 0;
 	    return this;
 	}
+	catch (IOException e) {
+	    keepGathered();
+	    BasisLibrary.runTimeError(BasisLibrary.RUN_TIME_INTERNAL_ERR,
+				      e.getMessage());
+	    return this;
+	}
 	catch (Exception e) {
+	    keepGathered();
 	    return this;
 	}
     }
+
+    /**
+     * After a failed sort, return the nodes of the records gathered so
+     * far, as they are, or none if the records went to an external sort.
+     */
+    private void keepGathered() {
+	if (_nodes == null) {
+	    if (_data == null) {
+		_free = 0;
+	    }
+	    else {
+		_nodes = new int[_free];
+		for (int i = 0; i < _free; i++) {
+		    _nodes[i] = _data[i].getNode();
+		}
+		_data = null;
+	    }
+	}
+	_current = 0;
+    }
+
+    /**
+     * Gather and sort the records through an ExternalMergeSort, which
+     * writes sorted runs of their keys to disk once the memory limit is
+     * passed. Only records with plain keys can be written.
+     */
+    private void externalSort(NodeSortRecord first, long memoryLimit)
+	throws Exception {
+	final ExternalMergeSort sorter =
+	    new ExternalMergeSort(RECORD_COMPARATOR, new RecordCodec(),
+				  memoryLimit);
+	_data = null;
+	try {
+	    NodeSortRecord record = first;
+	    int node;
+	    while (true) {
+		record.extractValues();
+		sorter.add(record, record.getSize());
+		_free++;
+		if ((node = _source.next()) == END) {
+		    break;
+		}
+		record = _factory.makeNodeSortRecord(node, _free);
+	    }
+
+	    sorter.finish();
+	    final int[] nodes = new int[_free];
+	    for (int i = 0; i < _free; i++) {
+		nodes[i] = ((NodeSortRecord) sorter.next()).getNode();
+	    }
+	    _nodes = nodes;
+	}
+	finally {
+	    sorter.close();
+	}
+    }
+
+    /**
+     * Writes NodeSortRecords to the runs of an external sort and reads
+     * them back, as new records made by the factory.
+     */
+    private final class RecordCodec
+	implements ExternalMergeSort.RecordCodec {
+	public void writeRecord(Object record, DataOutputStream out)
+	    throws IOException {
+	    out.writeInt(((NodeSortRecord) record).getNode());
+	    ((NodeSortRecord) record).writeValues(out);
+	}
+
+	public Object readRecord(DataInputStream in) throws IOException {
+	    final NodeSortRecord record;
+	    try {
+		record = _factory.makeNodeSortRecord(in.readInt(), 0);
+	    }
+	    catch (IOException e) {
+		throw e;
+	    }
+	    catch (Exception e) {
+		throw new WrappedRuntimeException(e);
+	    }
+	    record.readValues(in);
+	    return record;
+	}
+    }
 	
     public int getPosition() {
 	return _current == 0 ? 1 : _current;
@@ -100,6 +233,7 @@ public final class SortingIterator extends DTMAxisIteratorBase {
 	    clone._source = _source.cloneIterator();  
 	    clone._factory = _factory;		// shared between clones
 	    clone._data = _data;		// shared between clones
+	    clone._nodes = _nodes;		// shared between clones
 	    clone._free = _free;
 	    clone._current = _current;
 	    clone.setRestartable(false);
@@ -121,6 +255,19 @@ public final class SortingIterator extends DTMAxisIteratorBase {
 	_data[_free++] = record;
     }
 
+    /**
+     * Sort the records on several threads. All the keys are extracted
+     * first, on this thread, as the translet and DOM are not thread-safe.
+     * Records never compare equal (document order breaks ties), so the
+     * order is the same as that of quicksort().
+     */
+    private void parallelSort() {
+	for (int i = 0; i < _free; i++) {
+	    _data[i].extractValues();
+	}
+	ParallelMergeSort.sort(_data, 0, _free, RECORD_COMPARATOR);
+    }
+
     private void quicksort(int p, int r) {
 	while (p < r) {
 	    final int q = partition(p, r);
@@ -30,6 +30,7 @@ import org.apache.xml.dtm.ref.DTMDefaultBase;
 import org.apache.xml.dtm.DTMException;
 import org.apache.xml.dtm.DTMWSFilter;
 import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xml.dtm.ref.DTMSnapshotSource;
 import org.apache.xml.res.XMLErrorResources;
 import org.apache.xml.res.XMLMessages;
 import org.apache.xml.utils.SystemIDResolver;
@@ -275,142 +276,167 @@ public class XSLTCDTMManager extends DTMManagerDefault
         int dtmPos = getFirstFreeDTMID();
         int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
-        if ((null != source) && source instanceof DOMSource)
+        // The ID is reserved until a DTM is added under it, so it must be
+        // handed back if the DTM cannot be built.
+        boolean added = false;
+        try
         {
-            final DOMSource domsrc = (DOMSource) source;
-            final org.w3c.dom.Node node = domsrc.getNode();
-            final DOM2SAX dom2sax = new DOM2SAX(node);
+            if ((null != source) && source instanceof DOMSource)
+            {
+                final DOMSource domsrc = (DOMSource) source;
+                final org.w3c.dom.Node node = domsrc.getNode();
+                final DOM2SAX dom2sax = new DOM2SAX(node);
       
-            SAXImpl dtm;
+                SAXImpl dtm;
 
-            if (size <= 0) {
-                dtm = new SAXImpl(this, source, documentID,
-                                  whiteSpaceFilter, null, doIndexing, 
-                                  DTMDefaultBase.DEFAULT_BLOCKSIZE,
-                                  buildIdIndex, newNameTable);
-            } else {
-                dtm = new SAXImpl(this, source, documentID,
-                                  whiteSpaceFilter, null, doIndexing, 
-                                  size, buildIdIndex, newNameTable);
-            }
+                if (size <= 0) {
+                    dtm = new SAXImpl(this, source, documentID,
+                                      whiteSpaceFilter, null, doIndexing, 
+                                      DTMDefaultBase.DEFAULT_BLOCKSIZE,
+                                      buildIdIndex, newNameTable);
+                } else {
+                    dtm = new SAXImpl(this, source, documentID,
+                                      whiteSpaceFilter, null, doIndexing, 
+                                      size, buildIdIndex, newNameTable);
+                }
       
-            dtm.setDocumentURI(source.getSystemId());
+                dtm.setDocumentURI(source.getSystemId());
 
-            addDTM(dtm, dtmPos, 0);
+                addDTM(dtm, dtmPos, 0);
+                added = true;
       
-            dom2sax.setContentHandler(dtm);
+                dom2sax.setContentHandler(dtm);
       
-            try {
-                dom2sax.parse();
-            }
-            catch (RuntimeException re) {
-                throw re;
+                try {
+                    dom2sax.parse();
+                }
+                catch (RuntimeException re) {
+                    throw re;
+                }
+                catch (Exception e) {
+                    throw new org.apache.xml.utils.WrappedRuntimeException(e);
+                }
+      
+                return dtm;
             }
-            catch (Exception e) {
-                throw new org.apache.xml.utils.WrappedRuntimeException(e);
+            else if ((null != source) && source instanceof DTMSnapshotSource)
+            {
+                SAXImpl dtm = new SAXImpl(this, source, documentID, null, null,
+                                          false, DTMDefaultBase.DEFAULT_BLOCKSIZE,
+                                          buildIdIndex, newNameTable);
+
+                addDTM(dtm, dtmPos, 0);
+                added = true;
+                loadSnapshot(dtm, (DTMSnapshotSource) source);
+
+                return dtm;
             }
-      
-            return dtm;
-        }
-        else
-        {
-            boolean isSAXSource = (null != source)
-                                  ? (source instanceof SAXSource) : true;
-            boolean isStreamSource = (null != source)
-                                  ? (source instanceof StreamSource) : false;
+            else
+            {
+                boolean isSAXSource = (null != source)
+                                      ? (source instanceof SAXSource) : true;
+                boolean isStreamSource = (null != source)
+                                      ? (source instanceof StreamSource) : false;
 
-            if (isSAXSource || isStreamSource) {
-                XMLReader reader;
-                InputSource xmlSource;
+                if (isSAXSource || isStreamSource) {
+                    XMLReader reader;
+                    InputSource xmlSource;
 
-                if (null == source) {
-                    xmlSource = null;
-                    reader = null;
-                    hasUserReader = false;  // Make sure the user didn't lie
-                }
-                else {
-                    reader = getXMLReader(source);
-                    xmlSource = SAXSource.sourceToInputSource(source);
+                    if (null == source) {
+                        xmlSource = null;
+                        reader = null;
+                        hasUserReader = false;  // Make sure the user didn't lie
+                    }
+                    else {
+                        reader = getXMLReader(source);
+                        xmlSource = SAXSource.sourceToInputSource(source);
 
-                    String urlOfSource = xmlSource.getSystemId();
+                        String urlOfSource = xmlSource.getSystemId();
 
-                    if (null != urlOfSource) {
-                        try {
-                            urlOfSource = SystemIDResolver.getAbsoluteURI(urlOfSource);
-                        }
-                        catch (Exception e) {
-                            // %REVIEW% Is there a better way to send a warning?
-                            System.err.println("Can not absolutize URL: " + urlOfSource);
-                        }
+                        if (null != urlOfSource) {
+                            try {
+                                urlOfSource = SystemIDResolver.getAbsoluteURI(urlOfSource);
+                            }
+                            catch (Exception e) {
+                                // %REVIEW% Is there a better way to send a warning?
+                                System.err.println("Can not absolutize URL: " + urlOfSource);
+                            }
 
-                        xmlSource.setSystemId(urlOfSource);
+                            xmlSource.setSystemId(urlOfSource);
+                        }
                     }
-                }
 
-                // Create the basic SAX2DTM.
-                SAXImpl dtm;
-                if (size <= 0) {
-                    dtm = new SAXImpl(this, source, documentID, whiteSpaceFilter,
-			              null, doIndexing, 
-			              DTMDefaultBase.DEFAULT_BLOCKSIZE,
-			              buildIdIndex, newNameTable);
-                } else {
-                    dtm = new SAXImpl(this, source, documentID, whiteSpaceFilter,
-			    null, doIndexing, size, buildIdIndex, newNameTable);
-                }
+                    // Create the basic SAX2DTM.
+                    SAXImpl dtm;
+                    if (size <= 0) {
+                        dtm = new SAXImpl(this, source, documentID, whiteSpaceFilter,
+    			              null, doIndexing, 
+    			              DTMDefaultBase.DEFAULT_BLOCKSIZE,
+    			              buildIdIndex, newNameTable);
+                    } else {
+                        dtm = new SAXImpl(this, source, documentID, whiteSpaceFilter,
+    			    null, doIndexing, size, buildIdIndex, newNameTable);
+                    }
 
-                // Go ahead and add the DTM to the lookup table.  This needs to be
-                // done before any parsing occurs. Note offset 0, since we've just
-                // created a new DTM.
-                addDTM(dtm, dtmPos, 0);
+                    // Go ahead and add the DTM to the lookup table.  This needs to be
+                    // done before any parsing occurs. Note offset 0, since we've just
+                    // created a new DTM.
+                    addDTM(dtm, dtmPos, 0);
+                    added = true;
 
-                if (null == reader) {
-                    // Then the user will construct it themselves.
-                    return dtm;
-                }
+                    if (null == reader) {
+                        // Then the user will construct it themselves.
+                        return dtm;
+                    }
 
-                reader.setContentHandler(dtm.getBuilder());
+                    reader.setContentHandler(dtm.getBuilder());
                 
-                if (!hasUserReader || null == reader.getDTDHandler()) {
-                    reader.setDTDHandler(dtm);
-                }
+                    if (!hasUserReader || null == reader.getDTDHandler()) {
+                        reader.setDTDHandler(dtm);
+                    }
                 
-                if(!hasUserReader || null == reader.getErrorHandler()) {
-                    reader.setErrorHandler(dtm);
-                }
+                    if(!hasUserReader || null == reader.getErrorHandler()) {
+                        reader.setErrorHandler(dtm);
+                    }
 
-                try {
-                    reader.setProperty("http://xml.org/sax/properties/lexical-handler", dtm);
-                }
-                catch (SAXNotRecognizedException e){}
-                catch (SAXNotSupportedException e){}
+                    try {
+                        reader.setProperty("http://xml.org/sax/properties/lexical-handler", dtm);
+                    }
+                    catch (SAXNotRecognizedException e){}
+                    catch (SAXNotSupportedException e){}
 
-                try {
-                    reader.parse(xmlSource);
-                }
-                catch (RuntimeException re) {
-                    throw re;
-                }
-                catch (Exception e) {
-                    throw new org.apache.xml.utils.WrappedRuntimeException(e);
-                } finally {
-                    if (!hasUserReader) {
-                        releaseXMLReader(reader);
+                    try {
+                        reader.parse(xmlSource);
+                    }
+                    catch (RuntimeException re) {
+                        throw re;
+                    }
+                    catch (Exception e) {
+                        throw new org.apache.xml.utils.WrappedRuntimeException(e);
+                    } finally {
+                        if (!hasUserReader) {
+                            releaseXMLReader(reader);
+                        }
                     }
-                }
 
-                if (DUMPTREE) {
-                    System.out.println("Dumping SAX2DOM");
-                    dtm.dumpDTM(System.err);
-                }
+                    if (DUMPTREE) {
+                        System.out.println("Dumping SAX2DOM");
+                        dtm.dumpDTM(System.err);
+                    }
 
-                return dtm;
-            }
-            else {
-                // It should have been handled by a derived class or the caller
-                // made a mistake.
-                throw new DTMException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NOT_SUPPORTED, new Object[]{source}));
+                    return dtm;
+                }
+                else {
+                    // It should have been handled by a derived class or the caller
+                    // made a mistake.
+                    throw new DTMException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NOT_SUPPORTED, new Object[]{source}));
+                }
             }
         }
+        finally
+        {
+            if (!added)
+                freeDTMID(dtmPos);
+        }
     }
 }
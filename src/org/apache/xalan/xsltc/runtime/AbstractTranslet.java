@@ -46,6 +46,7 @@ import org.apache.xalan.xsltc.dom.KeyIndex;
 import org.apache.xalan.xsltc.runtime.output.TransletOutputHandlerFactory;
 import org.apache.xml.dtm.DTMAxisIterator;
 import org.apache.xml.serializer.SerializationHandler;
+import org.apache.xml.serializer.SerializerFactory;
 
 /**
  * @author Jacek Ambroziak
@@ -93,6 +94,10 @@ public abstract class AbstractTranslet implements Translet {
     // Boolean flag to indicate whether this translet has id functions.
     protected boolean _hasIdCall = false;
 
+    // Boolean flag to indicate whether the key indexes this translet builds
+    // for a document depend on nothing but the document.
+    protected boolean _hasSharableKeys = false;
+
     // TODO - these should only be instanciated when needed
     protected StringValueHandler stringValueHandler = new StringValueHandler();
 
@@ -502,6 +507,48 @@ public abstract class AbstractTranslet implements Translet {
 			  	
     }
     
+    /**
+     * Returns the indexes built by buildKeys() for one document, so that
+     * other instances of this translet can use them for the same document.
+     * The result maps each key name to a Hashtable from key value to an
+     * IntegerArray of nodes. The index used by id() is not included.
+     */
+    public Hashtable getDocumentKeys(int root) {
+	final Hashtable keys = new Hashtable();
+	if (_keyIndexes != null) {
+	    final Enumeration names = _keyIndexes.keys();
+	    while (names.hasMoreElements()) {
+		final String name = (String)names.nextElement();
+		if (name.equals(ID_INDEX_NAME)) continue;
+
+		final Hashtable index =
+		    ((KeyIndex)_keyIndexes.get(name)).getDocumentIndex(root);
+		if (index != null) {
+		    keys.put(name, index);
+		}
+	    }
+	}
+	return keys;
+    }
+
+    /**
+     * Installs indexes returned by getDocumentKeys() in place of building
+     * them with buildKeys(). The indexes are only read from, never changed.
+     */
+    public void setDocumentKeys(int root, Hashtable keys) {
+	if (_keyIndexes == null) _keyIndexes = new Hashtable();
+
+	final Enumeration names = keys.keys();
+	while (names.hasMoreElements()) {
+	    final String name = (String)names.nextElement();
+	    KeyIndex index = (KeyIndex)_keyIndexes.get(name);
+	    if (index == null) {
+		_keyIndexes.put(name, index = new KeyIndex(_indexSize));
+	    }
+	    index.setDocumentIndex(root, (Hashtable)keys.get(name));
+	}
+    }
+
     /**
      * This method builds key indexes - it is overridden in the compiled
      * translet in cases where the <xsl:key> element is used
@@ -583,6 +630,7 @@ public abstract class AbstractTranslet implements Translet {
 	catch (Exception e) {
 	    // what can you do?
 	}
+	SerializerFactory.releaseSerializer(handler);
     }
 
     /************************************************************************
@@ -728,6 +776,10 @@ public abstract class AbstractTranslet implements Translet {
     public boolean hasIdCall() {
     	return _hasIdCall;
     }
+
+    public boolean hasSharableKeys() {
+    	return _hasSharableKeys;
+    }
     
     public Templates getTemplates() {
     	return _templates;
@@ -24,15 +24,15 @@ package org.apache.xalan.xsltc.runtime.output;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.util.Properties;
 
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.apache.xalan.xsltc.trax.SAX2DOM;
-import org.apache.xml.serializer.ToHTMLStream;
-import org.apache.xml.serializer.ToTextStream;
-import org.apache.xml.serializer.ToUnknownStream;
+import org.apache.xml.serializer.Method;
+import org.apache.xml.serializer.OutputPropertiesFactory;
+import org.apache.xml.serializer.SerializerFactory;
 import org.apache.xml.serializer.ToXMLSAXHandler;
-import org.apache.xml.serializer.ToXMLStream;
 import org.apache.xml.serializer.SerializationHandler;
 import org.w3c.dom.Node;
 
@@ -56,6 +56,9 @@ public class TransletOutputHandlerFactory {
     private Node           _node   = null;
     private Node   _nextSibling    = null;
     private int _indentNumber      = -1;
+    private boolean _asyncOutput   = false;
+    private String _compression    = null;
+    private String _parallelDepth  = null;
     private ContentHandler _handler    = null;
     private LexicalHandler _lexHandler = null;
 
@@ -110,6 +113,30 @@ public class TransletOutputHandlerFactory {
 	_indentNumber = value;
     }
 
+    /**
+     * Set whether output to an OutputStream is written on a background
+     * thread, through an AsyncOutputStream.
+     */
+    public void setAsyncOutput(boolean async) {
+	_asyncOutput = async;
+    }
+
+    /**
+     * Set the format, "gzip" or "deflate", in which output to an
+     * OutputStream is compressed, or null for none.
+     */
+    public void setCompression(String compression) {
+	_compression = compression;
+    }
+
+    /**
+     * Set the depth of the elements that are serialized on several
+     * threads at once, or null for none.
+     */
+    public void setParallelDepth(String depth) {
+	_parallelDepth = depth;
+    }
+
     public SerializationHandler getSerializationHandler()
         throws IOException, ParserConfigurationException
     {
@@ -120,24 +147,24 @@ public class TransletOutputHandlerFactory {
 
                 if (_method == null)
                 {
-                    result = new ToUnknownStream();
+                    result = getPooledSerializer(Method.UNKNOWN);
                 }
                 else if (_method.equalsIgnoreCase("xml"))
                 {
 
-                    result = new ToXMLStream();
+                    result = getPooledSerializer(Method.XML);
 
                 }
                 else if (_method.equalsIgnoreCase("html"))
                 {
 
-                    result = new ToHTMLStream();
+                    result = getPooledSerializer(Method.HTML);
 
                 }
                 else if (_method.equalsIgnoreCase("text"))
                 {
 
-                    result = new ToTextStream();
+                    result = getPooledSerializer(Method.TEXT);
 
                 }
 
@@ -186,4 +213,32 @@ public class TransletOutputHandlerFactory {
         return null;
     }
 
+    /**
+     * Take a stream serializer for an output method from the serializer
+     * pool. The translet's output settings are applied to it afterwards,
+     * and the transformer gives it back to the pool when it is done.
+     */
+    private SerializationHandler getPooledSerializer(String method)
+    {
+        Properties format =
+            OutputPropertiesFactory.getDefaultMethodProperties(method);
+        if (_asyncOutput || _compression != null || _parallelDepth != null) {
+            // The stream settings are part of the format, so that the
+            // serializer sets up its own output stages for them
+            format = new Properties(format);
+            if (_asyncOutput)
+                format.setProperty(
+                    OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT, "yes");
+            if (_compression != null)
+                format.setProperty(
+                    OutputPropertiesFactory.S_KEY_COMPRESSION, _compression);
+            if (_parallelDepth != null)
+                format.setProperty(
+                    OutputPropertiesFactory.S_KEY_PARALLEL_DEPTH,
+                    _parallelDepth);
+        }
+        return (SerializationHandler) SerializerFactory.getPooledSerializer(
+            format);
+    }
+
 }
@@ -236,6 +236,7 @@ public class TemplatesHandlerImpl
             if (!_parser.errorsFound() && stylesheet != null) {
                 stylesheet.setMultiDocument(xsltc.isMultiDocument());
                 stylesheet.setHasIdCall(xsltc.hasIdCall());
+                stylesheet.setHasDependentKeys(xsltc.hasDependentKeys());
 
                 // Class synchronization is needed for BCEL
                 synchronized (xsltc.getClass()) {
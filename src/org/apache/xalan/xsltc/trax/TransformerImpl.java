@@ -63,6 +63,7 @@ import org.apache.xalan.xsltc.Translet;
 import org.apache.xalan.xsltc.TransletException;
 import org.apache.xml.serializer.OutputPropertiesFactory;
 import org.apache.xml.serializer.SerializationHandler;
+import org.apache.xml.serializer.SerializerFactory;
 import org.apache.xalan.xsltc.compiler.util.ErrorMsg;
 import org.apache.xalan.xsltc.dom.DOMWSFilter;
 import org.apache.xalan.xsltc.dom.SAXImpl;
@@ -300,7 +301,13 @@ public final class TransformerImpl extends Transformer
 	    transferOutputProperties(toHandler);
 	}
 
-	transform(source, toHandler, _encoding);
+	try {
+	    transform(source, toHandler, _encoding);
+	}
+	finally {
+	    // A stream serializer taken from the pool goes back to it
+	    SerializerFactory.releaseSerializer(toHandler);
+	}
 
 	if (result instanceof DOMResult) {
 	    ((DOMResult)result).setNode(_tohFactory.getNode());
@@ -332,6 +339,15 @@ public final class TransformerImpl extends Transformer
 	    _tohFactory.setIndentNumber(_indentNumber);
 	}
 
+	// Write stream output on a background thread, compress it, and
+	// serialize it on several threads, if asked to
+	_tohFactory.setAsyncOutput("yes".equals(_properties.getProperty(
+	    OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT)));
+	_tohFactory.setCompression(_properties.getProperty(
+	    OutputPropertiesFactory.S_KEY_COMPRESSION));
+	_tohFactory.setParallelDepth(_properties.getProperty(
+	    OutputPropertiesFactory.S_KEY_PARALLEL_DEPTH));
+
 	// Return the content handler for this Result object
 	try {
 	    // Result object could be SAXResult, DOMResult, or StreamResult 
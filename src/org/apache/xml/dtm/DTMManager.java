@@ -361,7 +361,50 @@ public abstract class DTMManager
     catch (SecurityException ex){}
   }
 
-  /** This value, set at compile time, controls how many bits of the
+  /**
+   * The name of the system property that selects how many bits of a node
+   * handle are used for the node's index within its DTM identity.
+   */
+  public static final String IDENT_NODE_BITS_PROPERTY =
+    "org.apache.xml.dtm.DTMManager.nodeBits";
+
+  /** The smallest value accepted for {@link #IDENT_NODE_BITS_PROPERTY}. */
+  public static final int MIN_IDENT_DTM_NODE_BITS = 10;
+
+  /**
+   * The largest value accepted for {@link #IDENT_NODE_BITS_PROPERTY}.
+   * Anything wider would leave too few DTM identities for a transformation
+   * that uses result tree fragments and the document() function.
+   */
+  public static final int MAX_IDENT_DTM_NODE_BITS = 26;
+
+  /**
+   * Read the node/DTM bit split from {@link #IDENT_NODE_BITS_PROPERTY},
+   * falling back to 16 if it is not set, not a number, out of range, or
+   * cannot be read because of a security manager.
+   *
+   * @return the number of node bits in a DTM node handle.
+   */
+  private static int getIdentNodeBits()
+  {
+    int bits = 16;
+    try
+    {
+      String value = System.getProperty(IDENT_NODE_BITS_PROPERTY);
+      if (value != null)
+      {
+        int requested = Integer.parseInt(value.trim());
+        if (requested >= MIN_IDENT_DTM_NODE_BITS
+            && requested <= MAX_IDENT_DTM_NODE_BITS)
+          bits = requested;
+      }
+    }
+    catch (SecurityException ex){}
+    catch (NumberFormatException ex){}
+    return bits;
+  }
+
+  /** This value, set when this class is loaded, controls how many bits of the
    * DTM node identifier numbers are used to identify a node within a
    * document, and thus sets the maximum number of nodes per
    * document. The remaining bits are used to identify the DTM
@@ -375,8 +418,19 @@ public abstract class DTMManager
    * _correct_ (presuming no other breakage), but simple equality
    * comparison against the previous "golden" files will probably
    * complain.)
+   *
+   * The default split is 16 node bits, which gives 65536 nodes per DTM
+   * identity and 65536 DTM identities. A different split can be chosen
+   * when the JVM starts by setting the system property named by
+   * {@link #IDENT_NODE_BITS_PROPERTY} to a value between
+   * {@link #MIN_IDENT_DTM_NODE_BITS} and {@link #MAX_IDENT_DTM_NODE_BITS}.
+   * A wider node field lets a very large document be addressed through
+   * a single DTM identity, so the overflow offset table is never consulted
+   * for its nodes; a narrower one leaves room for more documents. The split
+   * is fixed for the lifetime of the JVM, since node handles are shared by
+   * every DTMManager.
    * */
-  public static final int IDENT_DTM_NODE_BITS = 16;
+  public static final int IDENT_DTM_NODE_BITS = getIdentNodeBits();
     
 
   /** When this bitmask is ANDed with a DTM node handle number, the result
@@ -121,6 +121,12 @@ public abstract class DTMDefaultBase implements DTM
    * range of the first that was assigned to us, we may add others. */
   protected SuballocatedIntVector m_dtmIdent;
 
+  /** Cached copy of the first entry of m_dtmIdent. Nodes addressed through
+   * the first identity need no offset, so handle/identity conversion for
+   * them can skip both m_dtmIdent and the manager's offset table. Must be
+   * kept in step with m_dtmIdent.elementAt(0); see setDTMIdentity(). */
+  protected int m_dtmIdentBase;
+
   /** The mask for the identity.
       %REVIEW% Should this really be set to the _DEFAULT? What if
       a particular DTM wanted to use another value? */
@@ -223,7 +229,7 @@ public abstract class DTMDefaultBase implements DTM
       m_mgrDefault=(DTMManagerDefault)mgr;
     
     m_documentBaseURI = (null != source) ? source.getSystemId() : null;
-    m_dtmIdent.setElementAt(dtmIdentity,0);
+    setDTMIdentity(dtmIdentity, 0);
     m_wsfilter = whiteSpaceFilter;
     m_xstrf = xstringfactory;
     m_indexing = doIndexing;
@@ -902,6 +908,10 @@ public abstract class DTMDefaultBase implements DTM
   final public int makeNodeHandle(int nodeIdentity)
   {
     if(NULL==nodeIdentity) return NULL;
+
+    // Fast path: the node lies within the first DTM identity.
+    if((nodeIdentity & DTMManager.IDENT_DTM_DEFAULT) == 0)
+      return m_dtmIdentBase | nodeIdentity;
 		
     if(JJK_DEBUG && nodeIdentity>DTMManager.IDENT_NODE_DEFAULT)
       System.err.println("GONK! (only useful in limited situations)");
@@ -930,6 +940,11 @@ public abstract class DTMDefaultBase implements DTM
   {
     if(NULL==nodeHandle) return NULL;
 
+    // Fast path: the handle was issued through our first DTM identity,
+    // which always starts at offset 0.
+    if((nodeHandle & DTMManager.IDENT_DTM_DEFAULT) == m_dtmIdentBase)
+      return nodeHandle & DTMManager.IDENT_NODE_DEFAULT;
+
     if(m_mgrDefault!=null)
     {
       // Optimization: use the DTMManagerDefault's fast DTMID-to-offsets
@@ -941,10 +956,11 @@ public abstract class DTMDefaultBase implements DTM
       // %REVIEW% Wish I didn't have to perform the pre-test, but
       // someone is apparently asking DTMs whether they contain nodes
       // which really don't belong to them. That's probably a bug
-      // which should be fixed, but until it is:
-      if(m_mgrDefault.m_dtms[whichDTMindex]!=this)
-	return NULL;
-      else
+      // which should be fixed, but until it is... A DTM that has been
+      // released from its manager while still attached to others (see
+      // DTMManagerDefault.addSharedDTM()) also fails the test, so fall
+      // back on our own list of identities below.
+      if(m_mgrDefault.m_dtms[whichDTMindex]==this)
 	return
 	  m_mgrDefault.m_dtm_offsets[whichDTMindex]
 	  | (nodeHandle & DTMManager.IDENT_NODE_DEFAULT);
@@ -2357,6 +2373,20 @@ public abstract class DTMDefaultBase implements DTM
 		 return m_mgr;
 	 }
 
+	 /** Set one of the DTM identities used by this DTM, keeping the
+	  * cached first identity in step.
+	  *
+	  * @param dtmIdentity The DTM identity, as the high bits of a node handle.
+	  * @param index Which of this DTM's identities to set; 0 is the
+	  * identity that addresses the start of the document.
+	  */
+	 protected void setDTMIdentity(int dtmIdentity, int index)
+	 {
+		 m_dtmIdent.setElementAt(dtmIdentity, index);
+		 if (index == 0)
+			 m_dtmIdentBase = dtmIdentity;
+	 }
+
 	 /** Query which DTMIDs this DTM is currently using within the DTMManager.
 	  * 
 	  * %REVEW% Should this become part of the base DTM API?
@@ -20,6 +20,10 @@
  */
 package org.apache.xml.dtm.ref;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Hashtable;
+
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.Source;
@@ -35,11 +39,13 @@ import org.apache.xml.dtm.DTMManager;
 import org.apache.xml.dtm.DTMWSFilter;
 import org.apache.xml.dtm.ref.dom2dtm.DOM2DTM;
 import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM;
+import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM2;
 import org.apache.xml.dtm.ref.sax2dtm.SAX2RTFDTM;
 import org.apache.xml.res.XMLErrorResources;
 import org.apache.xml.res.XMLMessages;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xml.utils.SystemIDResolver;
+import org.apache.xml.utils.WrappedRuntimeException;
 import org.apache.xml.utils.XMLReaderManager;
 import org.apache.xml.utils.XMLStringFactory;
 
@@ -69,6 +75,14 @@ import org.xml.sax.helpers.DefaultHandler;
  * activity (eg, when getDTM() is invoked). The downside of that solution
  * would be a greater delay before the DTM's storage is actually released
  * for reuse.
+ *
+ * One manager may also be shared by several threads building documents at
+ * once. Only the bookkeeping on the DTM tables is synchronized: building
+ * a document in getDTM() does not hold the manager's lock, and looking a
+ * DTM up by node handle does not lock at all. DTM IDs are reserved as
+ * they are handed out by getFirstFreeDTMID(), so two threads never
+ * receive the same ID, and the tables are replaced rather than resized
+ * in place when they grow.
  * */
 public class DTMManagerDefault extends DTMManager
 {
@@ -91,7 +105,7 @@ public class DTMManagerDefault extends DTMManager
    * This array grows as necessary; see addDTM(). Growth is uncommon... but
    * access needs to be blindingly fast since it's used in node addressing.
    */
-  protected DTM m_dtms[] = new DTM[256];
+  protected volatile DTM m_dtms[] = new DTM[256];
 	
   /** Map from DTM identifier numbers to offsets. For small DTMs with a 
    * single identifier, this will always be 0. In overflow addressing, where
@@ -105,8 +119,33 @@ public class DTMManagerDefault extends DTMManager
    * access needs to be blindingly fast since it's used in node addressing.
    * (And at the moment, that includes accessing it from DTMDefaultBase,
    * which is why this is not Protected or Private.)
+   * 
+   * An ID that has been handed out by getFirstFreeDTMID() but not yet
+   * bound by addDTM() is marked here with DTMID_RESERVED.
+   */
+  volatile int m_dtm_offsets[] = new int[256];
+
+  /** Offset recorded for a DTM ID that is reserved but not yet in use. */
+  private static final int DTMID_RESERVED = -1;
+
+  /** No DTM ID below this one is free. */
+  private int m_firstFreeDTMID = 1;
+
+  /** The lowest DTM ID this manager hands out. */
+  private int m_minDTMID = 1;
+
+  /**
+   * DTMs owned by another manager that have been attached to this one
+   * with addSharedDTM(). Releasing them only unbinds their IDs here.
+   */
+  private Hashtable m_sharedDTMs = new Hashtable();
+
+  /**
+   * Map from the root node of each DOM wrapped by a DOM2DTM to that
+   * DOM2DTM, so getDTMHandleFromNode() can usually find the DTM for a
+   * DOM node without asking every DOM2DTM in turn.
    */
-  int m_dtm_offsets[] = new int[256];
+  protected Hashtable m_dom2dtms = new Hashtable();
 
   /**
    * The cache for XMLReader objects to be used if the user did not
@@ -153,45 +192,148 @@ public class DTMManagerDefault extends DTMManager
 		// to allocate that much space unless needed. We could use one of our
 		// handy-dandy Fast*Vectors, but this will do for now.
 		// %REVIEW%
-		int oldlen=m_dtms.length;
-		if(oldlen<=id)
-		{
-			// Various growth strategies are possible. I think we don't want 
-			// to over-allocate excessively, and I'm willing to reallocate
-			// more often to get that. See also Fast*Vector classes.
-			//
-			// %REVIEW% Should throw a more diagnostic error if we go over the max...
-			int newlen=Math.min((id+256),IDENT_MAX_DTMS);
-
-			DTM new_m_dtms[] = new DTM[newlen];
-			System.arraycopy(m_dtms,0,new_m_dtms,0,oldlen);
-			m_dtms=new_m_dtms;
-			int new_m_dtm_offsets[] = new int[newlen];
-			System.arraycopy(m_dtm_offsets,0,new_m_dtm_offsets,0,oldlen);
-			m_dtm_offsets=new_m_dtm_offsets;
-		}
+		if(m_dtms.length<=id)
+			growDTMTables(id);
 		
-    m_dtms[id] = dtm;
 		m_dtm_offsets[id]=offset;
+    m_dtms[id] = dtm;
+
+    // Remember which DOM this DTM wraps.
+    if (offset == 0 && dtm instanceof DOM2DTM)
+    {
+      Node root = ((DOM2DTM) dtm).getNode(dtm.getDocument());
+      if (root != null && !m_dom2dtms.containsKey(root))
+        m_dom2dtms.put(root, dtm);
+    }
+
     dtm.documentRegistration();
 		// The DTM should have been told who its manager was when we created it.
 		// Do we need to allow for adopting DTMs _not_ created by this manager?
   }
 
   /**
-   * Get the first free DTM ID available. %OPT% Linear search is inefficient!
+   * Replace the DTM tables with larger copies that can hold the given ID.
+   * The offsets table is published first, since readers fetch m_dtms
+   * before m_dtm_offsets.
+   */
+  private void growDTMTables(int id)
+  {
+		// We used to just allocate the array size to IDENT_MAX_DTMS.
+		// But we expect to increase that to 16 bits, and I'm not willing
+		// to allocate that much space unless needed. We could use one of our
+		// handy-dandy Fast*Vectors, but this will do for now.
+		// %REVIEW%
+		int oldlen=m_dtms.length;
+
+		// Various growth strategies are possible. I think we don't want 
+		// to over-allocate excessively, and I'm willing to reallocate
+		// more often to get that. See also Fast*Vector classes.
+		//
+		// %REVIEW% Should throw a more diagnostic error if we go over the max...
+		int newlen=Math.min((id+256),IDENT_MAX_DTMS);
+
+		int new_m_dtm_offsets[] = new int[newlen];
+		System.arraycopy(m_dtm_offsets,0,new_m_dtm_offsets,0,oldlen);
+		DTM new_m_dtms[] = new DTM[newlen];
+		System.arraycopy(m_dtms,0,new_m_dtms,0,oldlen);
+		m_dtm_offsets=new_m_dtm_offsets;
+		m_dtms=new_m_dtms;
+  }
+
+  /**
+   * Get the first free DTM ID available, and reserve it for the caller,
+   * who is expected to bind it with addDTM(). An ID that will not be
+   * bound after all should be handed back with freeDTMID().
    */
   synchronized public int getFirstFreeDTMID()
   {
     int n = m_dtms.length;
-    for (int i = 1; i < n; i++)
+    for (int i = m_firstFreeDTMID; i < n; i++)
     {
-      if(null == m_dtms[i])
+      if(null == m_dtms[i] && m_dtm_offsets[i] != DTMID_RESERVED)
       {
+        m_dtm_offsets[i] = DTMID_RESERVED;
+        m_firstFreeDTMID = i + 1;
         return i;
       }
     }
-		return n; // count on addDTM() to throw exception if out of range
+
+    if (n >= IDENT_MAX_DTMS)
+      return n; // count on addDTM() to throw exception if out of range
+
+    growDTMTables(n);
+    m_dtm_offsets[n] = DTMID_RESERVED;
+    m_firstFreeDTMID = n + 1;
+    return n;
+  }
+
+  /**
+   * Hand back a DTM ID reserved by getFirstFreeDTMID() that was never
+   * bound to a DTM.
+   *
+   * @param id The DTM ID (as an index, not as the high bits of a handle).
+   */
+  synchronized public void freeDTMID(int id)
+  {
+    if (id < m_dtms.length && null == m_dtms[id])
+    {
+      m_dtm_offsets[id] = 0;
+      if (id < m_firstFreeDTMID && id >= m_minDTMID)
+        m_firstFreeDTMID = id;
+    }
+  }
+
+  /**
+   * Make this manager hand out DTM IDs starting from the given ID rather
+   * than from 1. A manager whose DTMs are attached to other managers with
+   * addSharedDTM() uses this to keep its IDs clear of the ones those
+   * managers assign to their own documents.
+   *
+   * @param id The lowest DTM ID to hand out.
+   */
+  protected synchronized void setMinimumDTMID(int id)
+  {
+    m_minDTMID = id;
+    if (m_firstFreeDTMID < id)
+      m_firstFreeDTMID = id;
+  }
+
+  /**
+   * Attach a fully built DTM that belongs to another manager, under the
+   * same DTM IDs it has there, so that its node handles can be used with
+   * this manager too. The DTM is not told of the attachment, and
+   * releasing it from this manager leaves it intact.
+   *
+   * @param dtm The DTM to attach.
+   *
+   * @return true if the DTM was attached, or false if this manager
+   * already uses one of its IDs or it is not a DTMDefaultBase.
+   */
+  synchronized public boolean addSharedDTM(DTM dtm)
+  {
+    if (!(dtm instanceof DTMDefaultBase))
+      return false;
+
+    org.apache.xml.utils.SuballocatedIntVector ids=((DTMDefaultBase)dtm).getDTMIDs();
+    int n = ids.size();
+    for (int i = 0; i < n; i++)
+    {
+      int id = ids.elementAt(i) >>> IDENT_DTM_NODE_BITS;
+      if (id < m_dtms.length
+          && (null != m_dtms[id] || m_dtm_offsets[id] == DTMID_RESERVED))
+        return false;
+    }
+
+    for (int i = 0; i < n; i++)
+    {
+      int id = ids.elementAt(i) >>> IDENT_DTM_NODE_BITS;
+      if (m_dtms.length <= id)
+        growDTMTables(id);
+      m_dtm_offsets[id] = i << IDENT_DTM_NODE_BITS;
+      m_dtms[id] = dtm;
+    }
+    m_sharedDTMs.put(dtm, dtm);
+    return true;
   }
 
   /**
@@ -233,9 +375,9 @@ public class DTMManagerDefault extends DTMManager
    *
    * @return a non-null DTM reference.
    */
-  synchronized public DTM getDTM(Source source, boolean unique,
-                                 DTMWSFilter whiteSpaceFilter,
-                                 boolean incremental, boolean doIndexing)
+  public DTM getDTM(Source source, boolean unique,
+                    DTMWSFilter whiteSpaceFilter,
+                    boolean incremental, boolean doIndexing)
   {
 
     if(DEBUG && null != source)
@@ -248,233 +390,296 @@ public class DTMManagerDefault extends DTMManager
     int dtmPos = getFirstFreeDTMID();
     int documentID = dtmPos << IDENT_DTM_NODE_BITS;
 
-    if ((null != source) && source instanceof DOMSource)
-    {
-      DOM2DTM dtm = new DOM2DTM(this, (DOMSource) source, documentID,
-                                whiteSpaceFilter, xstringFactory, doIndexing);
-
-      addDTM(dtm, dtmPos, 0);
-
-      //      if (DUMPTREE)
-      //      {
-      //        dtm.dumpDTM();
-      //      }
-
-      return dtm;
-    }
-    else
+    // The ID is reserved until a DTM is added under it, so it must be
+    // handed back if the DTM cannot be built.
+    boolean added = false;
+    try
     {
-      boolean isSAXSource = (null != source)
-        ? (source instanceof SAXSource) : true;
-      boolean isStreamSource = (null != source)
-        ? (source instanceof StreamSource) : false;
+      if ((null != source) && source instanceof DOMSource)
+      {
+        DOM2DTM dtm = new DOM2DTM(this, (DOMSource) source, documentID,
+                                  whiteSpaceFilter, xstringFactory, doIndexing);
 
-      if (isSAXSource || isStreamSource) {
-        XMLReader reader = null;
-        SAX2DTM dtm;
+        addDTM(dtm, dtmPos, 0);
+        added = true;
 
-        try {
-          InputSource xmlSource;
+        //      if (DUMPTREE)
+        //      {
+        //        dtm.dumpDTM();
+        //      }
 
-          if (null == source) {
-            xmlSource = null;
-          } else {
-            reader = getXMLReader(source);
-            xmlSource = SAXSource.sourceToInputSource(source);
+        return dtm;
+      }
+      else if ((null != source) && source instanceof DTMSnapshotSource)
+      {
+        SAX2DTM2 dtm = new SAX2DTM2(this, source, documentID, null,
+                                    xstringFactory, false);
 
-            String urlOfSource = xmlSource.getSystemId();
+        // The DTM must be in the lookup table before loading, so that any
+        // extra DTM IDs a large document needs can be assigned.
+        addDTM(dtm, dtmPos, 0);
+        added = true;
+        loadSnapshot(dtm, (DTMSnapshotSource) source);
 
-            if (null != urlOfSource) {
-              try {
-                urlOfSource = SystemIDResolver.getAbsoluteURI(urlOfSource);
-              } catch (Exception e) {
-                // %REVIEW% Is there a better way to send a warning?
-                System.err.println("Can not absolutize URL: " + urlOfSource);
+        return dtm;
+      }
+      else
+      {
+        boolean isSAXSource = (null != source)
+          ? (source instanceof SAXSource) : true;
+        boolean isStreamSource = (null != source)
+          ? (source instanceof StreamSource) : false;
+
+        if (isSAXSource || isStreamSource) {
+          XMLReader reader = null;
+          SAX2DTM dtm;
+
+          try {
+            InputSource xmlSource;
+
+            if (null == source) {
+              xmlSource = null;
+            } else {
+              reader = getXMLReader(source);
+              xmlSource = SAXSource.sourceToInputSource(source);
+
+              String urlOfSource = xmlSource.getSystemId();
+
+              if (null != urlOfSource) {
+                try {
+                  urlOfSource = SystemIDResolver.getAbsoluteURI(urlOfSource);
+                } catch (Exception e) {
+                  // %REVIEW% Is there a better way to send a warning?
+                  System.err.println("Can not absolutize URL: " + urlOfSource);
+                }
+
+                xmlSource.setSystemId(urlOfSource);
               }
-
-              xmlSource.setSystemId(urlOfSource);
             }
-          }
 
-          if (source==null && unique && !incremental && !doIndexing) {
-            // Special case to support RTF construction into shared DTM.
-            // It should actually still work for other uses,
-            // but may be slightly deoptimized relative to the base
-            // to allow it to deal with carrying multiple documents.
-            //
-            // %REVIEW% This is a sloppy way to request this mode;
-            // we need to consider architectural improvements.
-            dtm = new SAX2RTFDTM(this, source, documentID, whiteSpaceFilter,
-                                 xstringFactory, doIndexing);
-          }
-          /**************************************************************
-          // EXPERIMENTAL 3/22/02
-          else if(JKESS_XNI_EXPERIMENT && m_incremental) {        	
-            dtm = new XNI2DTM(this, source, documentID, whiteSpaceFilter,
-                              xstringFactory, doIndexing);
-          }
-          **************************************************************/
-          // Create the basic SAX2DTM.
-          else {
-            dtm = new SAX2DTM(this, source, documentID, whiteSpaceFilter,
-                              xstringFactory, doIndexing);
-          }
+            if (source==null && unique && !incremental && !doIndexing) {
+              // Special case to support RTF construction into shared DTM.
+              // It should actually still work for other uses,
+              // but may be slightly deoptimized relative to the base
+              // to allow it to deal with carrying multiple documents.
+              //
+              // %REVIEW% This is a sloppy way to request this mode;
+              // we need to consider architectural improvements.
+              dtm = new SAX2RTFDTM(this, source, documentID, whiteSpaceFilter,
+                                   xstringFactory, doIndexing);
+            }
+            /**************************************************************
+            // EXPERIMENTAL 3/22/02
+            else if(JKESS_XNI_EXPERIMENT && m_incremental) {        	
+              dtm = new XNI2DTM(this, source, documentID, whiteSpaceFilter,
+                                xstringFactory, doIndexing);
+            }
+            **************************************************************/
+            // Create the basic SAX2DTM.
+            else {
+              dtm = new SAX2DTM(this, source, documentID, whiteSpaceFilter,
+                                xstringFactory, doIndexing);
+            }
 
-          // Go ahead and add the DTM to the lookup table.  This needs to be
-          // done before any parsing occurs. Note offset 0, since we've just
-          // created a new DTM.
-          addDTM(dtm, dtmPos, 0);
+            // Go ahead and add the DTM to the lookup table.  This needs to be
+            // done before any parsing occurs. Note offset 0, since we've just
+            // created a new DTM.
+            addDTM(dtm, dtmPos, 0);
+            added = true;
 
 
-          boolean haveXercesParser =
-                     (null != reader)
-                     && (reader.getClass()
-                               .getName()
-                               .equals("org.apache.xerces.parsers.SAXParser") );
-        
-          if (haveXercesParser) {
-            incremental = true;  // No matter what.  %REVIEW%
-          }
+            boolean haveXercesParser =
+                       (null != reader)
+                       && (reader.getClass()
+                                 .getName()
+                                 .equals("org.apache.xerces.parsers.SAXParser") );
         
-          // If the reader is null, but they still requested an incremental
-          // build, then we still want to set up the IncrementalSAXSource stuff.
-          if (m_incremental && incremental
-               /* || ((null == reader) && incremental) */) {
-            IncrementalSAXSource coParser=null;
-
             if (haveXercesParser) {
-              // IncrementalSAXSource_Xerces to avoid threading.
-              try {
-                coParser =(IncrementalSAXSource)
-                  Class.forName("org.apache.xml.dtm.ref.IncrementalSAXSource_Xerces").newInstance();  
-              }  catch( Exception ex ) {
-                ex.printStackTrace();
-                coParser=null;
-              }
+              incremental = true;  // No matter what.  %REVIEW%
             }
+        
+            // If the reader is null, but they still requested an incremental
+            // build, then we still want to set up the IncrementalSAXSource stuff.
+            if (m_incremental && incremental
+                 /* || ((null == reader) && incremental) */) {
+              IncrementalSAXSource coParser=null;
+
+              if (haveXercesParser) {
+                // IncrementalSAXSource_Xerces to avoid threading.
+                try {
+                  coParser =(IncrementalSAXSource)
+                    Class.forName("org.apache.xml.dtm.ref.IncrementalSAXSource_Xerces").newInstance();  
+                }  catch( Exception ex ) {
+                  ex.printStackTrace();
+                  coParser=null;
+                }
+              }
 
-            if (coParser==null ) {
-              // Create a IncrementalSAXSource to run on the secondary thread.
-              if (null == reader) {
-                coParser = new IncrementalSAXSource_Filter();
-              } else {
-                IncrementalSAXSource_Filter filter =
-                         new IncrementalSAXSource_Filter();
-                filter.setXMLReader(reader);
-                coParser=filter;
+              if (coParser==null ) {
+                // Create a IncrementalSAXSource to run on the secondary thread.
+                if (null == reader) {
+                  coParser = new IncrementalSAXSource_Filter();
+                } else {
+                  IncrementalSAXSource_Filter filter =
+                           new IncrementalSAXSource_Filter();
+                  filter.setXMLReader(reader);
+                  coParser=filter;
+                }
               }
-            }
 
 			
-            /**************************************************************
-            // EXPERIMENTAL 3/22/02
-            if (JKESS_XNI_EXPERIMENT && m_incremental &&
-                  dtm instanceof XNI2DTM && 
-                  coParser instanceof IncrementalSAXSource_Xerces) {
-                org.apache.xerces.xni.parser.XMLPullParserConfiguration xpc=
-                      ((IncrementalSAXSource_Xerces)coParser)
-                                           .getXNIParserConfiguration();
-              if (xpc!=null) {
-                // Bypass SAX; listen to the XNI stream
-                ((XNI2DTM)dtm).setIncrementalXNISource(xpc);
-              } else {
-                  // Listen to the SAX stream (will fail, diagnostically...)
-                dtm.setIncrementalSAXSource(coParser);
-              }
-            } else
-            ***************************************************************/
+              /**************************************************************
+              // EXPERIMENTAL 3/22/02
+              if (JKESS_XNI_EXPERIMENT && m_incremental &&
+                    dtm instanceof XNI2DTM && 
+                    coParser instanceof IncrementalSAXSource_Xerces) {
+                  org.apache.xerces.xni.parser.XMLPullParserConfiguration xpc=
+                        ((IncrementalSAXSource_Xerces)coParser)
+                                             .getXNIParserConfiguration();
+                if (xpc!=null) {
+                  // Bypass SAX; listen to the XNI stream
+                  ((XNI2DTM)dtm).setIncrementalXNISource(xpc);
+                } else {
+                    // Listen to the SAX stream (will fail, diagnostically...)
+                  dtm.setIncrementalSAXSource(coParser);
+                }
+              } else
+              ***************************************************************/
           
-            // Have the DTM set itself up as IncrementalSAXSource's listener.
-            dtm.setIncrementalSAXSource(coParser);
+              // Have the DTM set itself up as IncrementalSAXSource's listener.
+              dtm.setIncrementalSAXSource(coParser);
 
-            if (null == xmlSource) {
+              if (null == xmlSource) {
 
-              // Then the user will construct it themselves.
-              return dtm;
-            }
+                // Then the user will construct it themselves.
+                return dtm;
+              }
 
-            if (null == reader.getErrorHandler()) {
-              reader.setErrorHandler(dtm);
-            }
-            reader.setDTDHandler(dtm);
+              if (null == reader.getErrorHandler()) {
+                reader.setErrorHandler(dtm);
+              }
+              reader.setDTDHandler(dtm);
 
-            try {
-              // Launch parsing coroutine.  Launches a second thread,
-              // if we're using IncrementalSAXSource.filter().
+              try {
+                // Launch parsing coroutine.  Launches a second thread,
+                // if we're using IncrementalSAXSource.filter().
 
-              coParser.startParse(xmlSource);
-            } catch (RuntimeException re) {
+                coParser.startParse(xmlSource);
+              } catch (RuntimeException re) {
 
-              dtm.clearCoRoutine();
+                dtm.clearCoRoutine();
 
-              throw re;
-            } catch (Exception e) {
+                throw re;
+              } catch (Exception e) {
 
-              dtm.clearCoRoutine();
+                dtm.clearCoRoutine();
 
-              throw new org.apache.xml.utils.WrappedRuntimeException(e);
-            }
-          } else {
-            if (null == reader) {
+                throw new org.apache.xml.utils.WrappedRuntimeException(e);
+              }
+            } else {
+              if (null == reader) {
 
-              // Then the user will construct it themselves.
-              return dtm;
-            }
+                // Then the user will construct it themselves.
+                return dtm;
+              }
 
-            // not incremental
-            reader.setContentHandler(dtm);
-            reader.setDTDHandler(dtm);
-            if (null == reader.getErrorHandler()) {
-              reader.setErrorHandler(dtm);
-            }
+              // not incremental
+              reader.setContentHandler(dtm);
+              reader.setDTDHandler(dtm);
+              if (null == reader.getErrorHandler()) {
+                reader.setErrorHandler(dtm);
+              }
 
-            try {
-              reader.setProperty(
-                               "http://xml.org/sax/properties/lexical-handler",
-                               dtm);
-            } catch (SAXNotRecognizedException e){}
-              catch (SAXNotSupportedException e){}
+              try {
+                reader.setProperty(
+                                 "http://xml.org/sax/properties/lexical-handler",
+                                 dtm);
+              } catch (SAXNotRecognizedException e){}
+                catch (SAXNotSupportedException e){}
 
-            try {
-              reader.parse(xmlSource);
-            } catch (RuntimeException re) {
-              dtm.clearCoRoutine();
+              try {
+                reader.parse(xmlSource);
+              } catch (RuntimeException re) {
+                dtm.clearCoRoutine();
 
-              throw re;
-            } catch (Exception e) {
-              dtm.clearCoRoutine();
+                throw re;
+              } catch (Exception e) {
+                dtm.clearCoRoutine();
 
-              throw new org.apache.xml.utils.WrappedRuntimeException(e);
+                throw new org.apache.xml.utils.WrappedRuntimeException(e);
+              }
             }
-          }
 
-          if (DUMPTREE) {
-            System.out.println("Dumping SAX2DOM");
-            dtm.dumpDTM(System.err);
-          }
+            if (DUMPTREE) {
+              System.out.println("Dumping SAX2DOM");
+              dtm.dumpDTM(System.err);
+            }
 
-          return dtm;
-        } finally {
-          // Reset the ContentHandler, DTDHandler, ErrorHandler to the DefaultHandler
-          // after creating the DTM.
-          if (reader != null && !(m_incremental && incremental)) {
-            reader.setContentHandler(m_defaultHandler);
-            reader.setDTDHandler(m_defaultHandler);
-            reader.setErrorHandler(m_defaultHandler);
+            return dtm;
+          } finally {
+            // Reset the ContentHandler, DTDHandler, ErrorHandler to the DefaultHandler
+            // after creating the DTM.
+            if (reader != null && !(m_incremental && incremental)) {
+              reader.setContentHandler(m_defaultHandler);
+              reader.setDTDHandler(m_defaultHandler);
+              reader.setErrorHandler(m_defaultHandler);
             
-            // Reset the LexicalHandler to null after creating the DTM.
-            try {
-              reader.setProperty("http://xml.org/sax/properties/lexical-handler", null);
+              // Reset the LexicalHandler to null after creating the DTM.
+              try {
+                reader.setProperty("http://xml.org/sax/properties/lexical-handler", null);
+              }
+              catch (Exception e) {}
             }
-            catch (Exception e) {}
+            releaseXMLReader(reader);
           }
-          releaseXMLReader(reader);
+        } else {
+          // It should have been handled by a derived class or the caller
+          // made a mistake.
+          throw new DTMException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NOT_SUPPORTED, new Object[]{source})); //"Not supported: " + source);
         }
-      } else {
+      }
+    }
+    finally
+    {
+      if (!added)
+        freeDTMID(dtmPos);
+    }
+  }
+
+  /**
+   * Load a newly created and registered DTM from a snapshot. If the
+   * snapshot cannot be read, the DTM is released again.
+   *
+   * @param dtm The DTM to load.
+   * @param source The snapshot to load it from.
+   */
+  protected void loadSnapshot(SAX2DTM2 dtm, DTMSnapshotSource source)
+  {
+    InputStream is = null;
+    boolean loaded = false;
 
-        // It should have been handled by a derived class or the caller
-        // made a mistake.
-        throw new DTMException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NOT_SUPPORTED, new Object[]{source})); //"Not supported: " + source);
+    try
+    {
+      is = source.openStream();
+      dtm.readSnapshot(is);
+      loaded = true;
+    }
+    catch (IOException ioe)
+    {
+      throw new WrappedRuntimeException(ioe);
+    }
+    finally
+    {
+      if (!loaded)
+        release(dtm, true);
+
+      if (is != null && source.getFile() != null)
+      {
+        try
+        {
+          is.close();
+        }
+        catch (IOException ioe) {}
       }
     }
   }
@@ -488,7 +693,7 @@ public class DTMManagerDefault extends DTMManager
    *
    * @return a valid DTM handle.
    */
-  synchronized public int getDTMHandleFromNode(org.w3c.dom.Node node)
+  public int getDTMHandleFromNode(org.w3c.dom.Node node)
   {
     if(null == node)
       throw new IllegalArgumentException(XMLMessages.createXMLMessage(XMLErrorResources.ER_NODE_NON_NULL, null)); //"node must be non-null for getDTMHandleFromNode!");
@@ -519,10 +724,30 @@ public class DTMManagerDefault extends DTMManager
 			// POSSIBLE SOLUTIONS: 
 			//   Generate a list of _unique_ DTM objects?
 			//   Have each DTM cache last DOM node search?
-			int max = m_dtms.length;
+
+      // Since the real root of our tree may be a DocumentFragment, we need to
+      // use getParent to find the root, instead of getOwnerDocument.  Otherwise
+      // DOM2DTM#getHandleOfNode will be very unhappy.
+      Node root = node;
+      Node p = (root.getNodeType() == Node.ATTRIBUTE_NODE) ? ((org.w3c.dom.Attr)root).getOwnerElement() : root.getParentNode();
+      for (; p != null; p = p.getParentNode())
+      {
+        root = p;
+      }
+
+      // Usually the node belongs to a DTM wrapped around its whole tree.
+      DOM2DTM rootDTM = (DOM2DTM) m_dom2dtms.get(root);
+      if (rootDTM != null)
+      {
+        int handle = rootDTM.getHandleOfNode(node);
+        if (handle != DTM.NULL) return handle;
+      }
+
+			DTM dtms[] = m_dtms;
+			int max = dtms.length;
       for(int i = 0; i < max; i++)
         {
-          DTM thisDTM=m_dtms[i];
+          DTM thisDTM=dtms[i];
           if((null != thisDTM) && thisDTM instanceof DOM2DTM)
           {
             int handle=((DOM2DTM)thisDTM).getHandleOfNode(node);
@@ -546,16 +771,6 @@ public class DTMManagerDefault extends DTMManager
 			// be resynthesized). Another reason to push hard on making all DTMs
 			// be managed DTMs.
 
-			// Since the real root of our tree may be a DocumentFragment, we need to
-      // use getParent to find the root, instead of getOwnerDocument.  Otherwise
-      // DOM2DTM#getHandleOfNode will be very unhappy.
-      Node root = node;
-      Node p = (root.getNodeType() == Node.ATTRIBUTE_NODE) ? ((org.w3c.dom.Attr)root).getOwnerElement() : root.getParentNode();
-      for (; p != null; p = p.getParentNode())
-      {
-        root = p;
-      }
-
       DOM2DTM dtm = (DOM2DTM) getDTM(new javax.xml.transform.dom.DOMSource(root),
 																		 false, null, true, true);
 
@@ -640,7 +855,7 @@ public class DTMManagerDefault extends DTMManager
    *
    * @return a reference to the DTM object containing this node.
    */
-  synchronized public DTM getDTM(int nodeHandle)
+  public DTM getDTM(int nodeHandle)
   {
     try
     {
@@ -666,7 +881,7 @@ public class DTMManagerDefault extends DTMManager
    * @return The DTM ID (as the high bits of a NodeHandle, not as our
    * internal index), or -1 if the DTM doesn't belong to this manager.
    */
-  synchronized public int getDTMIdentity(DTM dtm)
+  public int getDTMIdentity(DTM dtm)
   {
 	// Shortcut using DTMDefaultBase's extension hooks
 	// %REVIEW% Should the lookup be part of the basic DTM API?
@@ -679,13 +894,15 @@ public class DTMManagerDefault extends DTMManager
 			return -1;
 	}
 				
-    int n = m_dtms.length;
+    DTM dtms[] = m_dtms;
+    int offsets[] = m_dtm_offsets;
+    int n = dtms.length;
 
     for (int i = 0; i < n; i++)
     {
-      DTM tdtm = m_dtms[i];
+      DTM tdtm = dtms[i];
 
-      if (tdtm == dtm && m_dtm_offsets[i]==0)
+      if (tdtm == dtm && offsets[i]==0)
         return i << IDENT_DTM_NODE_BITS;
     }
 
@@ -720,6 +937,15 @@ public class DTMManagerDefault extends DTMManager
 			 );
     }
 
+    // A shared DTM still belongs to its own manager; just forget it here.
+    if (null != m_sharedDTMs.remove(dtm))
+    {
+      org.apache.xml.utils.SuballocatedIntVector ids=((DTMDefaultBase)dtm).getDTMIDs();
+      for(int i=ids.size()-1;i>=0;--i)
+        releaseDTMID(ids.elementAt(i)>>>DTMManager.IDENT_DTM_NODE_BITS);
+      return true;
+    }
+
     if (dtm instanceof SAX2DTM)
     {
       ((SAX2DTM) dtm).clearCoRoutine();
@@ -737,21 +963,41 @@ public class DTMManagerDefault extends DTMManager
 		{
 			org.apache.xml.utils.SuballocatedIntVector ids=((DTMDefaultBase)dtm).getDTMIDs();
 			for(int i=ids.size()-1;i>=0;--i)
-				m_dtms[ids.elementAt(i)>>>DTMManager.IDENT_DTM_NODE_BITS]=null;
+				releaseDTMID(ids.elementAt(i)>>>DTMManager.IDENT_DTM_NODE_BITS);
 		}
 		else
 		{
 			int i = getDTMIdentity(dtm);
 		    if (i >= 0)
 			{
-				m_dtms[i >>> DTMManager.IDENT_DTM_NODE_BITS] = null;
+				releaseDTMID(i >>> DTMManager.IDENT_DTM_NODE_BITS);
 			}
 		}
 
+    if (dtm instanceof DOM2DTM)
+    {
+      Node root = ((DOM2DTM) dtm).getNode(dtm.getDocument());
+      if (root != null && m_dom2dtms.get(root) == dtm)
+        m_dom2dtms.remove(root);
+    }
+
     dtm.documentRelease();
     return true;
   }
 
+  /**
+   * Unbind a DTM ID, making it free for reuse.
+   *
+   * @param id The DTM ID (as an index, not as the high bits of a handle).
+   */
+  private void releaseDTMID(int id)
+  {
+    m_dtms[id] = null;
+    m_dtm_offsets[id] = 0;
+    if (id < m_firstFreeDTMID && id >= m_minDTMID)
+      m_firstFreeDTMID = id;
+  }
+
   /**
    * Method createDocumentFragment
    *
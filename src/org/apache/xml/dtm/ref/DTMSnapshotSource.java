@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.dtm.ref;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.xml.transform.Source;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMException;
+import org.apache.xml.dtm.ref.sax2dtm.SAX2DTM2;
+import org.apache.xml.res.XMLErrorResources;
+import org.apache.xml.res.XMLMessages;
+
+/**
+ * A Source that reads a document from a binary snapshot of a previously
+ * built DTM, rather than parsing it. Snapshots are written with
+ * {@link #write(DTM, OutputStream)}; the format is described on
+ * {@link SAX2DTM2#writeSnapshot}.
+ *
+ * <p>Passing a DTMSnapshotSource to DTMManager.getDTM() restores the
+ * document's node tables and text directly, which avoids the cost of
+ * parsing a large, frequently used input document. The document comes
+ * back exactly as it was built: whitespace stripping that was applied when
+ * the snapshot was written stays applied, and no new stripping is done.
+ * Source location information is not kept in a snapshot.</p>
+ *
+ * <p>Unless a system ID is set on this Source, the restored document has
+ * the base URI it was originally built with.</p>
+ */
+public class DTMSnapshotSource implements Source
+{
+  /** The file holding the snapshot, or null if reading from a stream. */
+  private File m_file;
+
+  /** The stream holding the snapshot, or null if reading from a file. */
+  private InputStream m_inputStream;
+
+  /** The system ID to give the restored document, or null. */
+  private String m_systemId;
+
+  /**
+   * Create a source that reads a snapshot from a file.
+   *
+   * @param file The snapshot file.
+   */
+  public DTMSnapshotSource(File file)
+  {
+    m_file = file;
+  }
+
+  /**
+   * Create a source that reads a snapshot from a stream. The stream is
+   * not closed once the snapshot has been read.
+   *
+   * @param inputStream The stream holding the snapshot.
+   */
+  public DTMSnapshotSource(InputStream inputStream)
+  {
+    m_inputStream = inputStream;
+  }
+
+  /**
+   * Set the system ID for the restored document, in place of the base
+   * URI recorded in the snapshot.
+   *
+   * @param systemId The system ID, or null to use the recorded base URI.
+   */
+  public void setSystemId(String systemId)
+  {
+    m_systemId = systemId;
+  }
+
+  /**
+   * Get the system ID set with setSystemId().
+   *
+   * @return The system ID, or null.
+   */
+  public String getSystemId()
+  {
+    return m_systemId;
+  }
+
+  /**
+   * Get the file the snapshot is read from.
+   *
+   * @return The file, or null if the snapshot is read from a stream.
+   */
+  public File getFile()
+  {
+    return m_file;
+  }
+
+  /**
+   * Get the stream the snapshot is read from.
+   *
+   * @return The stream, or null if the snapshot is read from a file.
+   */
+  public InputStream getInputStream()
+  {
+    return m_inputStream;
+  }
+
+  /**
+   * Open the snapshot for reading. When reading from a file, the caller
+   * is responsible for closing the returned stream.
+   *
+   * @return A buffered stream positioned at the start of the snapshot.
+   * @throws IOException if the file cannot be opened.
+   */
+  public InputStream openStream() throws IOException
+  {
+    if (m_file != null)
+      return new BufferedInputStream(new FileInputStream(m_file));
+    return m_inputStream;
+  }
+
+  /**
+   * Write a snapshot of a fully built document to a stream. The stream is
+   * flushed but not closed.
+   *
+   * @param dtm The document to write. Only documents built by SAX2DTM2,
+   * which includes XSLTC's documents, can be written.
+   * @param os The stream to write to.
+   * @throws IOException if the stream cannot be written.
+   * @throws DTMException if the DTM cannot be written as a snapshot.
+   */
+  public static void write(DTM dtm, OutputStream os) throws IOException
+  {
+    if (!(dtm instanceof SAX2DTM2))
+      throw new DTMException(XMLMessages.createXMLMessage(
+        XMLErrorResources.ER_NOT_SUPPORTED,
+        new Object[]{dtm.getClass().getName()}));
+
+    ((SAX2DTM2) dtm).writeSnapshot(os);
+  }
+}
@@ -90,6 +90,15 @@ public class DTMStringPool
       m_hashChain.removeAllElements();
     }
 
+  /** @return the number of strings in the pool. Since indices are handed
+   * out consecutively from zero, this is also the index the next new string
+   * will receive.
+   * */
+  public int size()
+    {
+      return m_intToString.size();
+    }
+
   /** @return string whose value is uniquely identified by this integer index.
    * @throws java.lang.ArrayIndexOutOfBoundsException
    *  if index doesn't map to a string.
@@ -33,12 +33,17 @@ import org.apache.xml.dtm.DTM;
  * are combined in getExpandedTypeID() method to share the same hash calculation
  * code. We only need to implement the rehash() interface which is used to
  * expand the hash table.
+ *
+ * A table may be shared by documents being built on several threads at
+ * once. Lookups do not lock: hash entries are never changed once they have
+ * been added, and rehash() copies them into a new table rather than
+ * relinking them. Only adding a new expanded name is synchronized.
  */
 public class ExpandedNameTable
 {
 
   /** Array of extended types for this document   */
-  private ExtendedType[] m_extendedTypes;
+  private volatile ExtendedType[] m_extendedTypes;
 
   /** The initial size of the m_extendedTypes array */
   private static int m_initialSize = 128;
@@ -46,7 +51,7 @@ public class ExpandedNameTable
   /** Next available extended type   */
   // %REVIEW% Since this is (should be) always equal 
   // to the length of m_extendedTypes, do we need this? 
-  private int m_nextType;
+  private volatile int m_nextType;
 
   // These are all the types prerotated, for caller convenience.
   public static final int ELEMENT = ((int)DTM.ELEMENT_NODE) ;
@@ -63,10 +68,6 @@ public class ExpandedNameTable
   public static final int NOTATION = ((int)DTM.NOTATION_NODE) ;
   public static final int NAMESPACE = ((int)DTM.NAMESPACE_NODE) ;
 
-  /** Workspace for lookup. NOT THREAD SAFE!
-   * */
-  ExtendedType hashET = new ExtendedType(-1, "", "");
-
   /** The array to store the default extended types. */
   private static ExtendedType[] m_defaultExtendedTypes;
 
@@ -99,7 +100,7 @@ public class ExpandedNameTable
    * The internal array to store the hash entries.
    * Each array member is a slot for a hash bucket.
    */
-  private HashEntry[] m_table;
+  private volatile HashEntry[] m_table;
 
   /**
    * Init default values
@@ -186,47 +187,72 @@ public class ExpandedNameTable
     // Calculate the hash code
     int hash = type + namespace.hashCode() + localName.hashCode();
     
-    // Redefine the hashET object to represent the new expanded name.
-    hashET.redefine(type, namespace, localName, hash);
-    
+    // Look up the expanded name in the hash table. Return the id if
+    // the expanded name is already in the hash table.
+    int id = lookup(m_table, type, namespace, localName, hash);
+    if (id != DTM.NULL || searchOnly)
+      return id;
+
+    return addExpandedTypeID(type, namespace, localName, hash);
+  }
+
+  /**
+   * Look up an expanded name in a hash table.
+   *
+   * @return the expanded-name id, or DTM.NULL if it is not in the table.
+   */
+  private static int lookup(HashEntry[] table, int type, String namespace,
+                            String localName, int hash)
+  {
     // Calculate the index into the HashEntry table.
-    int index = hash % m_capacity;
+    int index = hash % table.length;
     if (index < 0)
       index = -index;
 
-    // Look up the expanded name in the hash table. Return the id if
-    // the expanded name is already in the hash table.
-    for (HashEntry e = m_table[index]; e != null; e = e.next)
+    for (HashEntry e = table[index]; e != null; e = e.next)
     {
-      if (e.hash == hash && e.key.equals(hashET))
+      if (e.hash == hash && e.key.equals(type, namespace, localName))
         return e.value;
     }
-    
-    if (searchOnly)
-    {
-      return DTM.NULL;
-    }
+    return DTM.NULL;
+  }
+
+  /**
+   * Add an expanded name to the table, unless another thread has added it
+   * since our lookup.
+   *
+   * @return the expanded-name id of the name.
+   */
+  private synchronized int addExpandedTypeID(int type, String namespace,
+                                             String localName, int hash)
+  {
+    int id = lookup(m_table, type, namespace, localName, hash);
+    if (id != DTM.NULL)
+      return id;
 
     // Expand the internal HashEntry array if necessary.
-    if (m_nextType > m_threshold) {
+    if (m_nextType > m_threshold)
       rehash();
-      index = hash % m_capacity;
-      if (index < 0)
-        index = -index;
-    }
+
+    int index = hash % m_capacity;
+    if (index < 0)
+      index = -index;
     
     // Create a new ExtendedType object
     ExtendedType newET = new ExtendedType(type, namespace, localName, hash);
     
-    // Expand the m_extendedTypes array if necessary.
-    if (m_extendedTypes.length == m_nextType) {
-        ExtendedType[] newArray = new ExtendedType[m_extendedTypes.length * 2];
-        System.arraycopy(m_extendedTypes, 0, newArray, 0,
-                         m_extendedTypes.length);
+    // Expand the m_extendedTypes array if necessary. The new type is
+    // stored before the array is published, so readers never see a gap.
+    ExtendedType[] extendedTypes = m_extendedTypes;
+    if (extendedTypes.length == m_nextType) {
+        ExtendedType[] newArray = new ExtendedType[extendedTypes.length * 2];
+        System.arraycopy(extendedTypes, 0, newArray, 0,
+                         extendedTypes.length);
+        newArray[m_nextType] = newET;
         m_extendedTypes = newArray;
     }
-    
-    m_extendedTypes[m_nextType] = newET;
+    else
+        extendedTypes[m_nextType] = newET;
     
     // Create a new hash entry for the new ExtendedType and put it into 
     // the table.
@@ -251,22 +277,22 @@ public class ExpandedNameTable
     m_capacity = newCapacity;
     m_threshold = (int)(newCapacity * m_loadFactor);
       
-    m_table = new HashEntry[newCapacity];
+    // Copy the entries rather than relinking them, since lookups on other
+    // threads may still be walking the old table.
+    HashEntry[] newTable = new HashEntry[newCapacity];
     for (int i = oldCapacity-1; i >=0 ; i--)
     {
-      for (HashEntry old = oldTable[i]; old != null; )
+      for (HashEntry e = oldTable[i]; e != null; e = e.next)
       {
-        HashEntry e = old;
-        old = old.next;
-          
         int newIndex = e.hash % newCapacity;
         if (newIndex < 0)
           newIndex = -newIndex;
           
-        e.next = m_table[newIndex];
-        m_table[newIndex] = e;
+        newTable[newIndex] = new HashEntry(e.key, e.value, e.hash,
+                                           newTable[newIndex]);
       }
     }
+    m_table = newTable;
   }
 
   /**
@@ -374,10 +400,10 @@ public class ExpandedNameTable
    */
   private static final class HashEntry
   {
-    ExtendedType key;
-    int value;
-    int hash;
-    HashEntry next;
+    final ExtendedType key;
+    final int value;
+    final int hash;
+    final HashEntry next;
       
     protected HashEntry(ExtendedType key, int value, int hash, HashEntry next)
     {
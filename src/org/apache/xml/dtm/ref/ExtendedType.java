@@ -118,6 +118,21 @@ public final class ExtendedType
       }
     }
     
+    /**
+     * Test if this ExtendedType object represents the given extended type.
+     * 
+     * @param nodetype Type of the node
+     * @param namespace Namespace of the node
+     * @param localName Local name of the node
+     * @return true if this ExtendedType represents the given type.
+     */
+    boolean equals(int nodetype, String namespace, String localName)
+    {
+      return nodetype == this.nodetype &&
+              localName.equals(this.localName) &&
+              namespace.equals(this.namespace);
+    }
+    
     /**
      * Return the node type
      */
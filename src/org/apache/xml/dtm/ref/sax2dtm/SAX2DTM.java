@@ -161,7 +161,7 @@ public class SAX2DTM extends DTMDefaultBaseIterators
    * Vector of entities.  Each record is composed of four Strings:
    *  publicId, systemID, notationName, and name.
    */
-  private Vector m_entities = null;
+  protected Vector m_entities = null;
 
   /** m_entities public ID offset. */
   private static final int ENTITY_FIELD_PUBLICID = 0;
@@ -955,13 +955,12 @@ public class SAX2DTM extends DTMDefaultBaseIterators
     // We have to reset the information in m_dtmIdent and
     // register the DTM with the new manager. 
     int numDTMs = m_dtmIdent.size();
-    int dtmId = m_mgrDefault.getFirstFreeDTMID();
     int nodeIndex = 0;
     for (int i = 0; i < numDTMs; i++)
     {     
-      m_dtmIdent.setElementAt(dtmId << DTMManager.IDENT_DTM_NODE_BITS, i);
+      int dtmId = m_mgrDefault.getFirstFreeDTMID();
+      setDTMIdentity(dtmId << DTMManager.IDENT_DTM_NODE_BITS, i);
       m_mgrDefault.addDTM(this, dtmId, nodeIndex);
-      dtmId++;
       nodeIndex += (1 << DTMManager.IDENT_DTM_NODE_BITS);
     }
   }
@@ -23,6 +23,8 @@ package org.apache.xml.dtm.ref.sax2dtm;
 import org.apache.xml.dtm.*;
 import org.apache.xml.dtm.ref.*;
 import org.apache.xml.utils.FastStringBuffer;
+import org.apache.xml.utils.IntBufferAllocator;
+import org.apache.xml.utils.SuballocatedIntBuffer;
 import org.apache.xml.utils.XMLString;
 import org.apache.xml.utils.XMLStringDefault;
 import org.apache.xml.utils.XMLStringFactory;
@@ -31,6 +33,14 @@ import org.apache.xml.res.XMLErrorResources;
 import org.apache.xml.serializer.SerializationHandler;
 
 import javax.xml.transform.Source;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
 import java.util.Vector;
 import org.apache.xml.utils.SuballocatedIntVector;
 import org.xml.sax.*;
@@ -1788,6 +1798,43 @@ public class SAX2DTM2 extends SAX2DTM
   private int[][] m_firstch_map;
   private int[][] m_parent_map;
 
+  /**
+   * The name of the system property that selects where the node tables
+   * (exptype, nextsib, firstch, parent, prevsib and dataOrQName) of source
+   * documents are kept. The value may be "heap" (the default), "direct"
+   * for direct buffers outside the Java heap, "mapped" for a memory-mapped
+   * temporary file, or the class name of an
+   * {@link org.apache.xml.utils.IntBufferAllocator} subclass.
+   *
+   * Result tree fragments always keep their tables on the heap.
+   */
+  public static final String NODE_STORAGE_PROPERTY =
+    "org.apache.xml.dtm.ref.sax2dtm.nodeStorage";
+
+  /** The value of NODE_STORAGE_PROPERTY, or null if the tables stay on the
+   * heap. */
+  private static String m_nodeStorage;
+
+  static
+  {
+    try
+    {
+      m_nodeStorage = System.getProperty(NODE_STORAGE_PROPERTY);
+      if ("heap".equals(m_nodeStorage))
+        m_nodeStorage = null;
+    }
+    catch (SecurityException ex){}
+  }
+
+  /** The number of ints in each block of an off-heap node table. Blocks
+   * are not reached through the map0 shortcut, so fewer, larger blocks
+   * keep the number of buffers (and file mappings) down. */
+  private static final int NODE_BUFFER_BLOCKSIZE = 1 << 16;
+
+  /** The allocator that holds the node tables outside the heap, or null if
+   * they are ordinary SuballocatedIntVectors. */
+  private IntBufferAllocator m_tableAllocator;
+
   // %OPT% Cache the array of extended types in this class
   protected ExtendedType[] m_extendedTypes;
 
@@ -1885,6 +1932,24 @@ public class SAX2DTM2 extends SAX2DTM
 
     m_maxNodeIndex = 1 << DTMManager.IDENT_DTM_NODE_BITS;
 
+    // Move the node tables out of the heap if so configured. This has to
+    // happen before the first node is added.
+    if (m_nodeStorage != null && source != null)
+    {
+      m_tableAllocator = IntBufferAllocator.newInstance(m_nodeStorage);
+      m_exptype = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+      m_nextsib = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+      m_firstch = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+      m_parent = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+      m_dataOrQName = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+      if (m_prevsib != null)
+        m_prevsib = new SuballocatedIntBuffer(NODE_BUFFER_BLOCKSIZE, m_tableAllocator);
+
+      // There are no arrays to take shortcuts into; the accessors below
+      // fall back to elementAt().
+      m_blocksize = 0;
+    }
+
     // Set the map0 values in the constructor.
     m_exptype_map0 = m_exptype.getMap0();
     m_nextsib_map0 = m_nextsib.getMap0();
@@ -1925,6 +1990,8 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_exptype_map0[identity];
+    else if (m_tableAllocator != null)
+      return m_exptype.elementAt(identity);
     else
       return m_exptype_map[identity>>>m_SHIFT][identity&m_MASK];
   }
@@ -1941,6 +2008,8 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_nextsib_map0[identity];
+    else if (m_tableAllocator != null)
+      return m_nextsib.elementAt(identity);
     else
       return m_nextsib_map[identity>>>m_SHIFT][identity&m_MASK];
   }
@@ -1957,6 +2026,8 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_firstch_map0[identity];
+    else if (m_tableAllocator != null)
+      return m_firstch.elementAt(identity);
     else
       return m_firstch_map[identity>>>m_SHIFT][identity&m_MASK];
   }
@@ -1973,6 +2044,8 @@ public class SAX2DTM2 extends SAX2DTM
 
     if (identity < m_blocksize)
       return m_parent_map0[identity];
+    else if (m_tableAllocator != null)
+      return m_parent.elementAt(identity);
     else
       return m_parent_map[identity>>>m_SHIFT][identity&m_MASK];
   }
@@ -1989,6 +2062,8 @@ public class SAX2DTM2 extends SAX2DTM
     int eType;
     if (identity < m_blocksize)
       eType = m_exptype_map0[identity];
+    else if (m_tableAllocator != null)
+      eType = m_exptype.elementAt(identity);
     else
       eType = m_exptype_map[identity>>>m_SHIFT][identity&m_MASK];
 
@@ -2013,6 +2088,8 @@ public class SAX2DTM2 extends SAX2DTM
     if (nodeID != NULL) {
       if (nodeID < m_blocksize)
         return m_exptype_map0[nodeID];
+      else if (m_tableAllocator != null)
+        return m_exptype.elementAt(nodeID);
       else
         return m_exptype_map[nodeID>>>m_SHIFT][nodeID&m_MASK];
     }
@@ -2310,7 +2387,15 @@ public class SAX2DTM2 extends SAX2DTM
     m_nextsib.addElement(NULL);
     m_firstch.addElement(NULL);
 
-    // Set the cached references after the document is built.
+    cacheBuiltTables();
+  }
+
+  /**
+   * Set the cached references to the node tables once the document is
+   * fully built.
+   */
+  private void cacheBuiltTables()
+  {
     m_extendedTypes = m_expandedNameTable.getExtendedTypes();
     m_exptype_map = m_exptype.getMap();
     m_nextsib_map = m_nextsib.getMap();
@@ -2318,6 +2403,400 @@ public class SAX2DTM2 extends SAX2DTM
     m_parent_map  = m_parent.getMap();
   }
 
+  /**
+   * Release the storage behind off-heap node tables, if any, when our
+   * DTMManager lets go of this DTM.
+   */
+  public void documentRelease()
+  {
+    super.documentRelease();
+
+    if (m_tableAllocator != null)
+      m_tableAllocator.release();
+  }
+
+  /*************************************************************************
+   *                 Binary snapshots
+   *
+   * A snapshot is a copy of a fully built document that can be loaded back
+   * into a fresh SAX2DTM2 without parsing. Everything is written in Java's
+   * big-endian DataOutput format. Strings are written as an int length
+   * (-1 for null) followed by that many UTF-16 chars, and int tables as an
+   * int count followed by the ints. In order, a snapshot holds:
+   *
+   *   int     SNAPSHOT_MAGIC ("XDTM")
+   *   int     SNAPSHOT_VERSION
+   *   string  document base URI
+   *   int     number of nodes (m_size)
+   *   int     size of the expanded name table, followed by the node type,
+   *           namespace and local name of each entry from DTM.NTYPES on
+   *   int     size of the string pool, followed by each string after
+   *           the empty string at index 0
+   *   tables  exptype, firstch, nextsib, parent
+   *   boolean whether a prevsib table follows, and if so the table
+   *   tables  dataOrQName, data
+   *   int     number of namespace declaration sets (-1 if none), each set
+   *           as a table, then (if there are any) the table of declaring
+   *           elements
+   *   int     number of characters, followed by the characters
+   *   int     number of attribute and other node values, followed by them
+   *   int     number of ID attributes, followed by (string, node) pairs
+   *   int     number of unparsed entity strings (-1 if none), followed
+   *           by them
+   *
+   * Expanded type IDs are remapped on loading, so a snapshot can be loaded
+   * into a DTM that shares its ExpandedNameTable with other documents.
+   * Whitespace stripping and source location information are not
+   * applied when loading; the document is restored as it was built.
+   *************************************************************************/
+
+  /** The first int of a snapshot: the characters "XDTM". */
+  public static final int SNAPSHOT_MAGIC = 0x5844544D;
+
+  /** The snapshot format version written and accepted by this class. */
+  public static final int SNAPSHOT_VERSION = 1;
+
+  /** Number of bytes moved at a time when copying tables and text. */
+  private static final int SNAPSHOT_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Write a snapshot of this document to a stream. The stream is flushed
+   * but not closed.
+   *
+   * @param os The stream to write to.
+   * @throws IOException if the stream cannot be written.
+   * @throws DTMException if the document has not been fully built.
+   */
+  public void writeSnapshot(OutputStream os) throws IOException
+  {
+    if (!m_endDocumentOccured)
+      throw new DTMException(XMLMessages.createXMLMessage(
+        XMLErrorResources.ER_NOT_SUPPORTED,
+        new Object[]{"writeSnapshot: " + getDocumentBaseURI()}));
+
+    DataOutputStream out =
+      new DataOutputStream(new BufferedOutputStream(os, SNAPSHOT_BUFFER_SIZE));
+    byte[] buf = new byte[SNAPSHOT_BUFFER_SIZE];
+
+    out.writeInt(SNAPSHOT_MAGIC);
+    out.writeInt(SNAPSHOT_VERSION);
+    writeSnapshotString(out, m_documentBaseURI);
+    out.writeInt(m_size);
+
+    int names = m_expandedNameTable.getSize();
+    out.writeInt(names);
+    for (int i = DTM.NTYPES; i < names; i++)
+    {
+      out.writeInt(m_expandedNameTable.getType(i));
+      writeSnapshotString(out, m_expandedNameTable.getNamespace(i));
+      writeSnapshotString(out, m_expandedNameTable.getLocalName(i));
+    }
+
+    int strings = m_valuesOrPrefixes.size();
+    out.writeInt(strings);
+    for (int i = 1; i < strings; i++)
+      writeSnapshotString(out, m_valuesOrPrefixes.indexToString(i));
+
+    writeSnapshotTable(out, m_exptype, buf);
+    writeSnapshotTable(out, m_firstch, buf);
+    writeSnapshotTable(out, m_nextsib, buf);
+    writeSnapshotTable(out, m_parent, buf);
+    out.writeBoolean(m_prevsib != null);
+    if (m_prevsib != null)
+      writeSnapshotTable(out, m_prevsib, buf);
+    writeSnapshotTable(out, m_dataOrQName, buf);
+    writeSnapshotTable(out, m_data, buf);
+
+    if (m_namespaceDeclSets == null)
+      out.writeInt(-1);
+    else
+    {
+      int sets = m_namespaceDeclSets.size();
+      out.writeInt(sets);
+      for (int i = 0; i < sets; i++)
+        writeSnapshotTable(out,
+          (SuballocatedIntVector) m_namespaceDeclSets.elementAt(i),
+          buf);
+      writeSnapshotTable(out, m_namespaceDeclSetElements, buf);
+    }
+
+    int length = m_chars.size();
+    out.writeInt(length);
+    for (int start = 0; start < length; start += (SNAPSHOT_BUFFER_SIZE >> 1))
+    {
+      int count = Math.min(SNAPSHOT_BUFFER_SIZE >> 1, length - start);
+      out.writeChars(m_chars.getString(start, count));
+    }
+
+    int values = m_values.size();
+    out.writeInt(values);
+    for (int i = 0; i < values; i++)
+      writeSnapshotString(out, (String) m_values.elementAt(i));
+
+    out.writeInt(m_idAttributes.size());
+    for (Enumeration ids = m_idAttributes.keys(); ids.hasMoreElements(); )
+    {
+      String id = (String) ids.nextElement();
+      writeSnapshotString(out, id);
+      out.writeInt(((Integer) m_idAttributes.get(id)).intValue());
+    }
+
+    if (m_entities == null)
+      out.writeInt(-1);
+    else
+    {
+      int entities = m_entities.size();
+      out.writeInt(entities);
+      for (int i = 0; i < entities; i++)
+        writeSnapshotString(out, (String) m_entities.elementAt(i));
+    }
+
+    out.flush();
+  }
+
+  /**
+   * Load this DTM from a snapshot written by {@link #writeSnapshot}, in
+   * place of parsing a document. The DTM must be newly constructed and
+   * already registered with its DTMManager, since documents larger than
+   * one DTM identity need further identities assigned as they are loaded.
+   * The stream is not closed.
+   *
+   * @param is The stream to read from.
+   * @throws IOException if the stream cannot be read.
+   * @throws DTMException if the stream does not hold a snapshot of this
+   * version.
+   */
+  public void readSnapshot(InputStream is) throws IOException
+  {
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(is, SNAPSHOT_BUFFER_SIZE));
+    byte[] buf = new byte[SNAPSHOT_BUFFER_SIZE];
+
+    if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION)
+      throw badSnapshot();
+
+    String baseURI = readSnapshotString(in, buf);
+    if (m_documentBaseURI == null)
+      m_documentBaseURI = baseURI;
+    int size = in.readInt();
+
+    // Expanded names may get different IDs in our table than they had
+    // in the one the snapshot was written from.
+    int names = in.readInt();
+    if (names < DTM.NTYPES)
+      throw badSnapshot();
+    int[] typeMap = new int[names];
+    boolean remap = false;
+    for (int i = 0; i < DTM.NTYPES; i++)
+      typeMap[i] = i;
+    for (int i = DTM.NTYPES; i < names; i++)
+    {
+      int type = in.readInt();
+      String namespace = readSnapshotString(in, buf);
+      String localName = readSnapshotString(in, buf);
+      typeMap[i] = m_expandedNameTable.getExpandedTypeID(namespace, localName, type);
+      remap |= (typeMap[i] != i);
+    }
+
+    // The string pool must come back with exactly the same indices.
+    int strings = in.readInt();
+    for (int i = 1; i < strings; i++)
+    {
+      if (m_valuesOrPrefixes.stringToIndex(readSnapshotString(in, buf)) != i)
+        throw badSnapshot();
+    }
+
+    readSnapshotTable(in, m_exptype, buf);
+    readSnapshotTable(in, m_firstch, buf);
+    readSnapshotTable(in, m_nextsib, buf);
+    readSnapshotTable(in, m_parent, buf);
+    // The previous sibling table is optional; keep it only if both the
+    // snapshot and this DTM have one.
+    if (in.readBoolean())
+      readSnapshotTable(in, (m_prevsib != null) ? m_prevsib
+                              : new SuballocatedIntVector(DEFAULT_BLOCKSIZE), buf);
+    else
+      m_prevsib = null;
+    readSnapshotTable(in, m_dataOrQName, buf);
+    readSnapshotTable(in, m_data, buf);
+
+    if (remap)
+    {
+      for (int i = m_exptype.size() - 1; i >= 0; i--)
+      {
+        int eType = m_exptype.elementAt(i);
+        if (eType != NULL)
+          m_exptype.setElementAt(typeMap[eType], i);
+      }
+    }
+
+    int sets = in.readInt();
+    if (sets >= 0)
+    {
+      m_namespaceDeclSets = new Vector(sets);
+      for (int i = 0; i < sets; i++)
+      {
+        SuballocatedIntVector set = new SuballocatedIntVector(32);
+        readSnapshotTable(in, set, buf);
+        m_namespaceDeclSets.addElement(set);
+      }
+      m_namespaceDeclSetElements = new SuballocatedIntVector(32);
+      readSnapshotTable(in, m_namespaceDeclSetElements, buf);
+    }
+
+    int length = in.readInt();
+    char[] chars = new char[SNAPSHOT_BUFFER_SIZE >> 1];
+    m_chars.setLength(0);
+    while (length > 0)
+    {
+      int count = Math.min(chars.length, length);
+      in.readFully(buf, 0, count << 1);
+      for (int i = 0, b = 0; i < count; i++, b += 2)
+        chars[i] = (char) (((buf[b] & 0xFF) << 8) | (buf[b + 1] & 0xFF));
+      m_chars.append(chars, 0, count);
+      length -= count;
+    }
+
+    int values = in.readInt();
+    m_values.removeAllElements();
+    for (int i = 0; i < values; i++)
+      m_values.addElement(readSnapshotString(in, buf));
+    m_valueIndex = values;
+
+    int ids = in.readInt();
+    for (int i = 0; i < ids; i++)
+    {
+      String id = readSnapshotString(in, buf);
+      m_idAttributes.put(id, new Integer(in.readInt()));
+    }
+
+    int entities = in.readInt();
+    if (entities >= 0)
+    {
+      m_entities = new Vector(entities);
+      for (int i = 0; i < entities; i++)
+        m_entities.addElement(readSnapshotString(in, buf));
+    }
+
+    m_size = size;
+
+    // Claim the extra DTM identities addNode() would have claimed.
+    while (m_maxNodeIndex < m_size)
+    {
+      addNewDTMID(m_maxNodeIndex);
+      m_maxNodeIndex += (1 << DTMManager.IDENT_DTM_NODE_BITS);
+    }
+
+    // Leave the DTM in the state endDocument() would have left it in.
+    m_parents = null;
+    m_prefixMappings = null;
+    m_contextIndexes = null;
+    m_locator = null;
+    m_useSourceLocationProperty = false;
+    m_endDocumentOccured = true;
+    cacheBuiltTables();
+  }
+
+  /**
+   * Create the exception thrown for a stream that is not a snapshot we
+   * can read.
+   */
+  private DTMException badSnapshot()
+  {
+    return new DTMException(XMLMessages.createXMLMessage(
+      XMLErrorResources.ER_BAD_DTM_SNAPSHOT,
+      new Object[]{getDocumentBaseURI()}));
+  }
+
+  /**
+   * Write a possibly null string to a snapshot.
+   */
+  private static void writeSnapshotString(DataOutputStream out, String s)
+    throws IOException
+  {
+    if (s == null)
+      out.writeInt(-1);
+    else
+    {
+      out.writeInt(s.length());
+      out.writeChars(s);
+    }
+  }
+
+  /**
+   * Read a string written by writeSnapshotString.
+   */
+  private static String readSnapshotString(DataInputStream in, byte[] buf)
+    throws IOException
+  {
+    int length = in.readInt();
+    if (length < 0)
+      return null;
+
+    char[] chars = new char[length];
+    for (int i = 0; i < length; )
+    {
+      int count = Math.min(buf.length >> 1, length - i);
+      in.readFully(buf, 0, count << 1);
+      for (int b = 0; b < (count << 1); b += 2)
+        chars[i++] = (char) (((buf[b] & 0xFF) << 8) | (buf[b + 1] & 0xFF));
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Write the contents of an int table to a snapshot.
+   */
+  private static void writeSnapshotTable(DataOutputStream out,
+                                         SuballocatedIntVector table,
+                                         byte[] buf)
+    throws IOException
+  {
+    int size = table.size();
+    out.writeInt(size);
+
+    int b = 0;
+    for (int i = 0; i < size; i++)
+    {
+      int value = table.elementAt(i);
+      buf[b++] = (byte) (value >>> 24);
+      buf[b++] = (byte) (value >>> 16);
+      buf[b++] = (byte) (value >>> 8);
+      buf[b++] = (byte) value;
+      if (b == buf.length)
+      {
+        out.write(buf, 0, b);
+        b = 0;
+      }
+    }
+    out.write(buf, 0, b);
+  }
+
+  /**
+   * Replace the contents of an int table with a table read from a
+   * snapshot.
+   */
+  private static void readSnapshotTable(DataInputStream in,
+                                        SuballocatedIntVector table,
+                                        byte[] buf)
+    throws IOException
+  {
+    int size = in.readInt();
+    if (size < 0)
+      throw new IOException();
+
+    table.removeAllElements();
+    while (size > 0)
+    {
+      int count = Math.min(buf.length >> 2, size);
+      in.readFully(buf, 0, count << 2);
+      for (int b = 0; b < (count << 2); b += 4)
+        table.addElement(((buf[b] & 0xFF) << 24) | ((buf[b + 1] & 0xFF) << 16)
+                         | ((buf[b + 2] & 0xFF) << 8) | (buf[b + 3] & 0xFF));
+      size -= count;
+    }
+  }
+
   /**
    * Construct the node map from the node.
    *
@@ -142,6 +142,7 @@ public class XMLErrorResources extends ListResourceBundle
   public static final String ER_ARG_LOCALNAME_INVALID = "ER_ARG_LOCALNAME_INVALID";  
   public static final String ER_ARG_PREFIX_INVALID = "ER_ARG_PREFIX_INVALID";  
   public static final String ER_NAME_CANT_START_WITH_COLON = "ER_NAME_CANT_START_WITH_COLON";
+  public static final String ER_BAD_DTM_SNAPSHOT = "ER_BAD_DTM_SNAPSHOT";
 
   /*
    * Now fill in the message text.
@@ -354,6 +355,9 @@ public class XMLErrorResources extends ListResourceBundle
        
     { ER_NAME_CANT_START_WITH_COLON,
       "Name cannot start with a colon"},
+
+    { ER_BAD_DTM_SNAPSHOT,
+      "Not a DTM snapshot, or a snapshot written by an incompatible version: {0}"},
        
     { "BAD_CODE", "Parameter to createMessage was out of bounds"},
     { "FORMAT_FAILED", "Exception thrown during messageFormat call"},
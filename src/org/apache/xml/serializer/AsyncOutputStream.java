@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that writes to another stream on a background thread,
+ * so that a transformation can go on producing output while earlier
+ * output is being written to a slow file or socket.
+ *
+ * <p>The stream has two buffers. The caller fills one while the
+ * background thread writes the other; when the caller's buffer is full it
+ * waits, if need be, for the other to be written, and then the two are
+ * swapped. At most two buffers of output are ever held, and a caller
+ * that produces output faster than it can be written is slowed to the
+ * speed of the underlying stream.</p>
+ *
+ * <p>An IOException from the underlying stream is kept and thrown by the
+ * next write(), flush() or close(); any other exception or error is
+ * thrown there too, as the cause of an IOException. flush() waits until all the output
+ * has been written, so a serializer reports any error from its
+ * endDocument(), which flushes its output.</p>
+ *
+ * <p>The background thread is a daemon thread. It is started when a
+ * full buffer is handed to it, and ends as soon as a flush() has been
+ * written, so a serializer leaves no thread behind once its endDocument()
+ * returns. Otherwise it ends once it has been idle for a few seconds or
+ * the stream is closed.</p>
+ *
+ * <p>A serializer writes through this class when the
+ * {@link OutputPropertiesFactory#S_KEY_ASYNC_OUTPUT} output property is
+ * "yes". Output that goes to a Writer rather than an OutputStream is
+ * written on the caller's thread as usual.</p>
+ *
+ * @xsl.usage general
+ */
+public final class AsyncOutputStream extends OutputStream
+{
+
+    /** The default size of each buffer, in bytes. */
+    private static final int DEFAULT_BUFFER_SIZE = 64*1024;
+
+    /** How long the background thread waits for work before ending. */
+    private static final long IDLE_TIMEOUT = 5000;
+
+    /** The stream to write to. */
+    private final OutputStream m_os;
+
+    /** The buffer the caller is filling. */
+    private byte[] m_buffer;
+
+    /** The number of bytes in m_buffer. */
+    private int m_count = 0;
+
+    /**
+     * The buffer the background thread is writing, or null if it has
+     * nothing to write.
+     */
+    private byte[] m_pending;
+
+    /** The number of bytes in m_pending. */
+    private int m_pendingCount;
+
+    /** Whether the underlying stream is to be flushed after m_pending. */
+    private boolean m_pendingFlush;
+
+    /** The buffer the background thread has finished with. */
+    private byte[] m_free;
+
+    /** The background thread, or null if none is running. */
+    private Thread m_thread;
+
+    /** The first error from the underlying stream, if there was one. */
+    private IOException m_error;
+
+    /** Whether close() has been called. */
+    private boolean m_closed = false;
+
+    /**
+     * Create a stream with buffers of the default size.
+     *
+     * @param out the stream to write to.
+     */
+    public AsyncOutputStream(OutputStream out)
+    {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a stream.
+     *
+     * @param out the stream to write to.
+     * @param bufferSize the size of each of the two buffers, in bytes.
+     */
+    public AsyncOutputStream(OutputStream out, int bufferSize)
+    {
+        m_os = out;
+        m_buffer = new byte[bufferSize];
+        m_free = new byte[bufferSize];
+    }
+
+    /**
+     * Get the stream this stream writes to.
+     *
+     * @return the underlying stream.
+     */
+    public OutputStream getOutputStream()
+    {
+        return m_os;
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param b the byte, in the low eight bits.
+     * @throws IOException if an earlier write to the underlying stream
+     * failed.
+     */
+    public void write(int b) throws IOException
+    {
+        if (m_count == m_buffer.length)
+            handOff(false);
+        m_buffer[m_count++] = (byte) b;
+    }
+
+    /**
+     * Write part of an array of bytes.
+     *
+     * @param b the bytes.
+     * @param off the index of the first byte to write.
+     * @param len the number of bytes to write.
+     * @throws IOException if an earlier write to the underlying stream
+     * failed.
+     */
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0)
+        {
+            if (m_count == m_buffer.length)
+                handOff(false);
+            final int n = Math.min(len, m_buffer.length - m_count);
+            System.arraycopy(b, off, m_buffer, m_count, n);
+            m_count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Write all the output so far to the underlying stream, flush it, and
+     * wait for that to finish.
+     *
+     * @throws IOException if the output could not be written.
+     */
+    public void flush() throws IOException
+    {
+        if (m_closed)
+            return;
+        handOff(true);
+        drain();
+    }
+
+    /**
+     * Write all the output, then close the underlying stream.
+     *
+     * @throws IOException if the output could not be written or the
+     * stream could not be closed.
+     */
+    public void close() throws IOException
+    {
+        if (m_closed)
+            return;
+        try
+        {
+            handOff(false);
+            drain();
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                m_closed = true;
+                notifyAll();
+            }
+            m_os.close();
+        }
+    }
+
+    /**
+     * Give the caller's buffer to the background thread, once it has
+     * finished with the previous one, and take that one back to fill.
+     *
+     * @param flush whether the underlying stream should be flushed after
+     * the buffer is written.
+     */
+    private synchronized void handOff(boolean flush) throws IOException
+    {
+        if (m_closed)
+            throw new IOException("Stream closed");
+
+        waitForPending();
+        if (0 == m_count && !flush)
+            return;
+
+        m_pending = m_buffer;
+        m_pendingCount = m_count;
+        m_pendingFlush = flush;
+        m_buffer = m_free;
+        m_free = null;
+        m_count = 0;
+
+        if (null == m_thread)
+        {
+            m_thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    writeLoop();
+                }
+            }, "Xalan serializer output");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+        else
+            notifyAll();
+    }
+
+    /**
+     * Wait for the background thread to write everything handed to it.
+     */
+    private synchronized void drain() throws IOException
+    {
+        waitForPending();
+    }
+
+    /**
+     * Wait until the background thread has no buffer to write, and throw
+     * any error it met. The caller holds this object's lock.
+     */
+    private void waitForPending() throws IOException
+    {
+        try
+        {
+            while (null != m_pending && null == m_error)
+                wait();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (null != m_error)
+            throw m_error;
+    }
+
+    /**
+     * The body of the background thread: write each buffer handed over,
+     * and end once a flush has been written, or after a while with
+     * nothing to do.
+     */
+    private void writeLoop()
+    {
+        while (true)
+        {
+            byte[] buffer;
+            int count;
+            boolean flush;
+            synchronized (this)
+            {
+                if (null == m_pending && !m_closed)
+                {
+                    try
+                    {
+                        wait(IDLE_TIMEOUT);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        // Treat it as the end of the wait
+                    }
+                }
+                if (null == m_pending)
+                {
+                    m_thread = null;
+                    return;
+                }
+                buffer = m_pending;
+                count = m_pendingCount;
+                flush = m_pendingFlush;
+            }
+
+            IOException error = null;
+            try
+            {
+                m_os.write(buffer, 0, count);
+                if (flush)
+                    m_os.flush();
+            }
+            catch (IOException ioe)
+            {
+                error = ioe;
+            }
+            catch (Throwable t)
+            {
+                // Even an Error must reach the caller, which would
+                // otherwise wait for this buffer forever
+                error = new IOException(t.toString());
+                error.initCause(t);
+            }
+
+            synchronized (this)
+            {
+                if (null != error && null == m_error)
+                    m_error = error;
+                m_free = buffer;
+                m_pending = null;
+                notifyAll();
+
+                // A flush usually ends the output, and the next handOff()
+                // starts a new thread if it did not.
+                if (flush)
+                {
+                    m_thread = null;
+                    return;
+                }
+            }
+        }
+    }
+}
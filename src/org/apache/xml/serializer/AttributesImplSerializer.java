@@ -21,17 +21,23 @@
 
 package org.apache.xml.serializer;
 
-import java.util.Hashtable;
+import java.util.Arrays;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * This class extends org.xml.sax.helpers.AttributesImpl which implements org.
- * xml.sax.Attributes. But for optimization this class adds a Hashtable for
+ * xml.sax.Attributes. But for optimization this class adds an index for
  * faster lookup of an index by qName, which is commonly done in the stream
  * serializer.
  * 
+ * The index is a pair of open-addressed hash tables of int, one keyed by
+ * qName and one by URI and local name, which hold attribute indexes. They
+ * are only used once an element has many attributes, and are cleared and
+ * reused from one element to the next, so adding and finding attributes
+ * creates no objects.
+ * 
  * @see org.xml.sax.Attributes
  * 
  * @xsl.usage internal
@@ -39,16 +45,20 @@ import org.xml.sax.helpers.AttributesImpl;
 public final class AttributesImplSerializer extends AttributesImpl
 {
     /**
-     * Hash table of qName/index values to quickly lookup the index
-     * of an attributes qName.  qNames are in uppercase in the hash table
-     * to make the search case insensitive.
-     * 
-     * The keys to the hashtable to find the index are either
-     * "prefix:localName"  or "{uri}localName".
+     * Hash table from qName to attribute index. Each slot holds an
+     * attribute index plus one, or 0 if the slot is empty; collisions go
+     * to the next slot.
      */
-    private final Hashtable m_indexFromQName = new Hashtable();
-    
-    private final StringBuffer m_buff = new StringBuffer();
+    private int[] m_indexFromQName = new int[INITIAL_TABLE_SIZE];
+
+    /**
+     * Hash table from URI and local name to attribute index, laid out as
+     * m_indexFromQName is.
+     */
+    private int[] m_indexFromURILocal = new int[INITIAL_TABLE_SIZE];
+
+    /** True if the tables hold the current attributes. */
+    private boolean m_hashed = false;
     
     /**
      * This is the number of attributes before switching to the hash table,
@@ -58,10 +68,16 @@ public final class AttributesImplSerializer extends AttributesImpl
     
     /**
      * One less than the number of attributes before switching to
-     * the Hashtable.
+     * the hash tables.
      */
     private static final int MAXMinus1 = MAX - 1;
 
+    /**
+     * The initial size of each table, a power of two at least twice MAX
+     * so that the tables are never more than half full.
+     */
+    private static final int INITIAL_TABLE_SIZE = 32;
+
     /**
      * This method gets the index of an attribute given its qName.
      * @param qname the qualified name of the attribute, e.g. "prefix1:locName1"
@@ -70,24 +86,27 @@ public final class AttributesImplSerializer extends AttributesImpl
      */
     public final int getIndex(String qname)
     {
-        int index;
-
-        if (super.getLength() < MAX)
+        if (!m_hashed)
         {
             // if we haven't got too many attributes let the
             // super class look it up
-            index = super.getIndex(qname);
-            return index;
+            return super.getIndex(qname);
         }
         // we have too many attributes and the super class is slow
-        // so find it quickly using our Hashtable.
-        Integer i = (Integer)m_indexFromQName.get(qname);
-        if (i == null)
-            index = -1;
-        else
-            index = i.intValue();
-        return index;
+        // so find it quickly using our table.
+        final int[] table = m_indexFromQName;
+        final int mask = table.length - 1;
+        int slot = hash(qname) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0)
+        {
+            if (qname.equals(super.getQName(entry - 1)))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
     }
+
     /**
      * This method adds the attribute, but also records its qName/index pair in
      * the hashtable for fast lookup by getIndex(qName).
@@ -122,44 +141,76 @@ public final class AttributesImplSerializer extends AttributesImpl
         }
         else
         {
-            /* add the key with the format of "prefix:localName" */
             /* we have just added the attibute, its index is the old length */
-            Integer i = new Integer(index);
-            m_indexFromQName.put(qname, i);
-            
-            /* now add with key of the format "{uri}localName" */
-            m_buff.setLength(0);
-            m_buff.append('{').append(uri).append('}').append(local);
-            String key = m_buff.toString();
-            m_indexFromQName.put(key, i);
+            if (2 * (index + 1) > m_indexFromQName.length)
+            {
+                // Keep the tables at most half full
+                final int size = 2 * m_indexFromQName.length;
+                m_indexFromQName = new int[size];
+                m_indexFromURILocal = new int[size];
+                switchOverToHash(index + 1);
+            }
+            else
+                putIndex(index);
         }
         return;
     }
 
     /**
-     * We are switching over to having a hash table for quick look
+     * We are switching over to having hash tables for quick look
      * up of attributes, but up until now we haven't kept any
-     * information in the Hashtable, so we now update the Hashtable.
-     * Future additional attributes will update the Hashtable as
+     * information in the tables, so we now fill them in.
+     * Future additional attributes will update the tables as
      * they are added.
      * @param numAtts
      */
     private void switchOverToHash(int numAtts)
     {
-        for (int index = 0; index < numAtts; index++)
+        int size = m_indexFromQName.length;
+        if (2 * numAtts > size)
+        {
+            while (2 * numAtts > size)
+                size *= 2;
+            m_indexFromQName = new int[size];
+            m_indexFromURILocal = new int[size];
+        }
+        else if (m_hashed)
         {
-            String qName = super.getQName(index);
-            Integer i = new Integer(index);
-            m_indexFromQName.put(qName, i);
-            
-            // Add quick look-up to find with uri/local name pair
-            String uri = super.getURI(index);
-            String local = super.getLocalName(index);
-            m_buff.setLength(0);
-            m_buff.append('{').append(uri).append('}').append(local);
-            String key = m_buff.toString();
-            m_indexFromQName.put(key, i);
+            Arrays.fill(m_indexFromQName, 0);
+            Arrays.fill(m_indexFromURILocal, 0);
         }
+
+        for (int index = 0; index < numAtts; index++)
+            putIndex(index);
+        m_hashed = true;
+    }
+
+    /**
+     * Enter an attribute in both tables. An earlier attribute with the same
+     * name is replaced, so a lookup finds the latest one.
+     * @param index the index of the attribute
+     */
+    private void putIndex(int index)
+    {
+        final String qname = super.getQName(index);
+        int[] table = m_indexFromQName;
+        int mask = table.length - 1;
+        int slot = hash(qname) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0
+               && !qname.equals(super.getQName(entry - 1)))
+            slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+
+        final String uri = super.getURI(index);
+        final String local = super.getLocalName(index);
+        table = m_indexFromURILocal;
+        slot = hash(uri, local) & mask;
+        while ((entry = table[slot]) != 0
+               && !(equals(uri, super.getURI(entry - 1))
+                    && equals(local, super.getLocalName(entry - 1))))
+            slot = (slot + 1) & mask;
+        table[slot] = index + 1;
     }
 
     /**
@@ -170,13 +221,14 @@ public final class AttributesImplSerializer extends AttributesImpl
     public final void clear()
     {
 
-        int len = super.getLength();
         super.clear();
-        if (MAX <= len)
+        if (m_hashed)
         {
             // if we have had enough attributes and are
-            // using the Hashtable, then clear the Hashtable too.
-            m_indexFromQName.clear();
+            // using the tables, then clear the tables too.
+            Arrays.fill(m_indexFromQName, 0);
+            Arrays.fill(m_indexFromURILocal, 0);
+            m_hashed = false;
         }
 
     }
@@ -195,11 +247,17 @@ public final class AttributesImplSerializer extends AttributesImpl
         super.setAttributes(atts);
 
         // we've let the super class add the attributes, but
-        // we need to keep the hash table up to date ourselves for the
+        // we need to keep the hash tables up to date ourselves for the
         // potentially new qName/index pairs for quick lookup. 
         int numAtts = atts.getLength();
         if (MAX <= numAtts)
             switchOverToHash(numAtts);
+        else if (m_hashed)
+        {
+            Arrays.fill(m_indexFromQName, 0);
+            Arrays.fill(m_indexFromURILocal, 0);
+            m_hashed = false;
+        }
 
     }
     
@@ -212,26 +270,45 @@ public final class AttributesImplSerializer extends AttributesImpl
      */
     public final int getIndex(String uri, String localName)
     {
-        int index;
-
-        if (super.getLength() < MAX)
+        if (!m_hashed)
         {
             // if we haven't got too many attributes let the
             // super class look it up
-            index = super.getIndex(uri,localName);
-            return index;
+            return super.getIndex(uri,localName);
         }
         // we have too many attributes and the super class is slow
-        // so find it quickly using our Hashtable.
-        // Form the key of format "{uri}localName"
-        m_buff.setLength(0);
-        m_buff.append('{').append(uri).append('}').append(localName);
-        String key = m_buff.toString();
-        Integer i = (Integer)m_indexFromQName.get(key);
-        if (i == null)
-            index = -1;
-        else
-            index = i.intValue();
-        return index;
+        // so find it quickly using our table.
+        final int[] table = m_indexFromURILocal;
+        final int mask = table.length - 1;
+        int slot = hash(uri, localName) & mask;
+        int entry;
+        while ((entry = table[slot]) != 0)
+        {
+            if (equals(uri, super.getURI(entry - 1))
+                && equals(localName, super.getLocalName(entry - 1)))
+                return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Spread the bits of a String's hash code, so that names that differ
+     * only near the end do not crowd into neighbouring slots.
+     */
+    private static int hash(String s)
+    {
+        final int h = (s == null) ? 0 : s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(String uri, String local)
+    {
+        return hash(uri) * 31 + hash(local);
+    }
+
+    private static boolean equals(String a, String b)
+    {
+        return (a == null) ? (b == null) : a.equals(b);
     }
 }
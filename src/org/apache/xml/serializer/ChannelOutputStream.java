@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Vector;
+
+/**
+ * An OutputStream that sends serialized output to a
+ * java.nio.channels.WritableByteChannel, such as a SocketChannel or a
+ * FileChannel. The bytes are gathered into direct ByteBuffers, which the
+ * channel can write without first copying them out of the Java heap, and
+ * several full buffers are handed to the channel in one gathering write.
+ * The buffers are taken from a pool shared by all streams.
+ *
+ * <p>The serializer's own encoders write to the stream in large blocks, so
+ * the stream can be given to a serializer with
+ * {@link ToStream#setOutputChannel(WritableByteChannel)}, or to a
+ * transformation as <code>new StreamResult(new ChannelOutputStream(ch))</code>.
+ * Output may stay in the buffers until flush(), releaseBuffers() or
+ * close() is called.</p>
+ *
+ * <p>The channel must be in blocking mode; a non-blocking channel causes
+ * an IllegalBlockingModeException, as with
+ * java.nio.channels.Channels.newOutputStream(). To keep I/O threads free,
+ * run the serializer on a thread of its own.</p>
+ *
+ * @xsl.usage general
+ */
+public final class ChannelOutputStream extends OutputStream
+{
+
+  /** The size of each buffer, in bytes. */
+  private static final int BUFFER_SIZE = 64*1024;
+
+  /** The number of buffers a stream fills before writing them. */
+  private static final int GATHER_COUNT = 4;
+
+  /** The most buffers kept in the pool. */
+  private static final int POOL_MAX = 32;
+
+  /** Direct buffers not in use by any stream. */
+  private static final Vector m_pool = new Vector();
+
+  /** The channel to write to. */
+  private final WritableByteChannel m_channel;
+
+  /** The buffers holding output not yet written, in order. */
+  private final ByteBuffer[] m_buffers = new ByteBuffer[GATHER_COUNT];
+
+  /** The number of entries of m_buffers in use. */
+  private int m_count = 0;
+
+  /** Whether close() has been called. */
+  private boolean m_closed = false;
+
+  /**
+   * Create a stream that writes to a channel.
+   *
+   * @param channel the channel, which must be in blocking mode.
+   * @throws IllegalBlockingModeException if the channel is selectable
+   * and in non-blocking mode.
+   */
+  public ChannelOutputStream(WritableByteChannel channel)
+  {
+    if (channel instanceof SelectableChannel
+        && !((SelectableChannel) channel).isBlocking())
+      throw new IllegalBlockingModeException();
+    m_channel = channel;
+  }
+
+  /**
+   * Get the channel this stream writes to.
+   *
+   * @return the channel.
+   */
+  public WritableByteChannel getChannel()
+  {
+    return m_channel;
+  }
+
+  /**
+   * Write a byte.
+   *
+   * @param b the byte, in the low eight bits.
+   * @throws IOException if the channel cannot be written to.
+   */
+  public void write(int b) throws IOException
+  {
+    currentBuffer().put((byte) b);
+  }
+
+  /**
+   * Write part of an array of bytes.
+   *
+   * @param b the bytes.
+   * @param off the index of the first byte to write.
+   * @param len the number of bytes to write.
+   * @throws IOException if the channel cannot be written to.
+   */
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0)
+    {
+      ByteBuffer buf = currentBuffer();
+      int n = Math.min(len, buf.remaining());
+      buf.put(b, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Write all buffered output to the channel. Channels have no flush of
+   * their own, so nothing more is done.
+   *
+   * @throws IOException if the channel cannot be written to.
+   */
+  public void flush() throws IOException
+  {
+    if (m_closed)
+      return;
+    writeBuffers();
+  }
+
+  /**
+   * Write all buffered output to the channel, and give the buffers back
+   * to the pool. The stream can still be written to, and takes buffers
+   * from the pool again as it needs them. A serializer calls this at the
+   * end of each document written to a stream it made, which it never
+   * closes.
+   *
+   * @throws IOException if the channel cannot be written to.
+   */
+  public void releaseBuffers() throws IOException
+  {
+    if (m_closed)
+      return;
+    try
+    {
+      writeBuffers();
+    }
+    finally
+    {
+      for (int i = 0; i < m_count; i++)
+      {
+        release(m_buffers[i]);
+        m_buffers[i] = null;
+      }
+      m_count = 0;
+    }
+  }
+
+  /**
+   * Write all buffered output, give the buffers back to the pool, and
+   * close the channel.
+   *
+   * @throws IOException if the channel cannot be written to or closed.
+   */
+  public void close() throws IOException
+  {
+    if (m_closed)
+      return;
+    try
+    {
+      writeBuffers();
+    }
+    finally
+    {
+      m_closed = true;
+      for (int i = 0; i < m_count; i++)
+        release(m_buffers[i]);
+      m_count = 0;
+      m_channel.close();
+    }
+  }
+
+  /**
+   * Get a buffer with room for at least one byte, writing the buffers out
+   * first if they are all full.
+   */
+  private ByteBuffer currentBuffer() throws IOException
+  {
+    if (m_closed)
+      throw new IOException("Stream closed");
+
+    if (m_count > 0 && m_buffers[m_count - 1].hasRemaining())
+      return m_buffers[m_count - 1];
+
+    if (m_count == GATHER_COUNT)
+    {
+      writeBuffers();
+      return m_buffers[0];
+    }
+
+    ByteBuffer buf = acquire();
+    m_buffers[m_count++] = buf;
+    return buf;
+  }
+
+  /**
+   * Hand the buffered output to the channel, with a gathering write if it
+   * takes one, and keep one buffer for the output still to come.
+   */
+  private void writeBuffers() throws IOException
+  {
+    if (0 == m_count)
+      return;
+
+    for (int i = 0; i < m_count; i++)
+      m_buffers[i].flip();
+
+    ByteBuffer last = m_buffers[m_count - 1];
+    if (m_channel instanceof GatheringByteChannel && m_count > 1)
+    {
+      GatheringByteChannel channel = (GatheringByteChannel) m_channel;
+      while (last.hasRemaining())
+        channel.write(m_buffers, 0, m_count);
+    }
+    else
+    {
+      for (int i = 0; i < m_count; i++)
+      {
+        while (m_buffers[i].hasRemaining())
+          m_channel.write(m_buffers[i]);
+      }
+    }
+
+    for (int i = 0; i < m_count - 1; i++)
+    {
+      release(m_buffers[i]);
+      m_buffers[i] = null;
+    }
+    last.clear();
+    m_buffers[0] = last;
+    m_count = 1;
+  }
+
+  /**
+   * Take a buffer from the pool, or allocate one if the pool is empty.
+   */
+  private static ByteBuffer acquire()
+  {
+    synchronized (m_pool)
+    {
+      int n = m_pool.size();
+      if (n > 0)
+      {
+        ByteBuffer buf = (ByteBuffer) m_pool.elementAt(n - 1);
+        m_pool.removeElementAt(n - 1);
+        return buf;
+      }
+    }
+    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  /**
+   * Give a buffer back to the pool, unless the pool is full.
+   */
+  private static void release(ByteBuffer buf)
+  {
+    buf.clear();
+    synchronized (m_pool)
+    {
+      if (m_pool.size() < POOL_MAX)
+        m_pool.addElement(buf);
+    }
+  }
+}
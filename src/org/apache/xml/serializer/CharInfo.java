@@ -26,7 +26,6 @@ import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.PropertyResourceBundle;
 import java.util.ResourceBundle;
@@ -46,14 +45,62 @@ import org.apache.xml.serializer.utils.WrappedRuntimeException;
  * of a newline character.  It also provides character to entity reference
  * lookup.
  *
+ * Once built a CharInfo is never changed, so the one loaded for an
+ * entities file is shared by every serializer that uses that file. For
+ * each output encoding it also builds an escape table, see
+ * {@link #getEscapeTable(EncodingInfo)}, that tells in a single array
+ * load how the serializer must write any char.
+ *
  * DEVELOPERS: See Known Issue in the constructor.
  * 
  * @xsl.usage internal
  */
 final class CharInfo
 {
-    /** Given a character, lookup a String to output (e.g. a decorated entity reference). */
-    private HashMap m_charToString;
+    /**
+     * Given a character, lookup a String to output (e.g. a decorated entity
+     * reference). The array is indexed by the character, and only runs up
+     * to the highest character that has a String.
+     */
+    private String[] m_charToString;
+
+    /**
+     * Flag in an escape table: the char has a String to output in text.
+     */
+    static final byte ESC_TEXT_ENTITY = 0x01;
+
+    /**
+     * Flag in an escape table: the char has a String to output in an
+     * attribute value.
+     */
+    static final byte ESC_ATTR_ENTITY = 0x02;
+
+    /**
+     * Flag in an escape table: the char cannot be written as itself, because
+     * it is a control character or is not in the encoding, so it is written
+     * as a character reference unless it has a String to output. This is the
+     * opposite of ToStream.escapingNotNeeded(char).
+     */
+    static final byte ESC_CHAR_REF = 0x04;
+
+    /**
+     * Flag in an escape table: the char needs more than copying when it
+     * occurs in text: it has a String to output, it is a line end, or it is
+     * written as a character reference.
+     */
+    static final byte ESC_TEXT_DIRTY = 0x08;
+
+    /**
+     * Flag in an escape table: the char needs more than copying when it
+     * occurs in an XML attribute value.
+     */
+    static final byte ESC_ATTR_DIRTY = 0x10;
+
+    /**
+     * The escape tables built so far, keyed by the Java name of the
+     * encoding, or by "" for no encoding.
+     */
+    private final Hashtable m_escapeTables = new Hashtable();
 
     /**
      * The name of the HTML entities file.
@@ -144,14 +191,7 @@ final class CharInfo
 
 
     /**
-     * A base constructor just to explicitly create the fields,
-     * with the exception of m_charToString which is handled
-     * by the constructor that delegates base construction to this one.
-     * <p>
-     * m_charToString is not created here only for performance reasons,
-     * to avoid creating a Hashtable that will be replaced when
-     * making a mutable copy, {@link #mutableCopyOf(CharInfo)}. 
-     *
+     * A base constructor just to explicitly create the fields.
      */
     private CharInfo() 
     {
@@ -159,10 +199,7 @@ final class CharInfo
     	this.firstWordNotUsed = 0;
     	this.shouldMapAttrChar_ASCII = new boolean[ASCII_MAX];
     	this.shouldMapTextChar_ASCII = new boolean[ASCII_MAX];
-    	this.m_charKey = new CharKey();
-    	
-    	// Not set here, but in a constructor that uses this one
-    	// this.m_charToString =  new Hashtable();  
+    	this.m_charToString = new String[ASCII_MAX];
     	
     	this.onlyQuotAmpLtGt = true;
     	
@@ -174,7 +211,6 @@ final class CharInfo
     {
     	// call the default constructor to create the fields
     	this();
-    	m_charToString = new HashMap();
 
         ResourceBundle entities = null;
         boolean noExtraEntities = true;
@@ -372,14 +408,6 @@ final class CharInfo
         return extra;
     }
 
-    /**
-     * A utility object, just used to map characters to output Strings,
-     * needed because a HashMap needs to map an object as a key, not a 
-     * Java primitive type, like a char, so this object gets around that
-     * and it is reusable.
-     */
-    private final CharKey m_charKey;
-
     /**
      * Map a character to a String. For example given
      * the character '>' this method would return the fully decorated
@@ -388,13 +416,8 @@ final class CharInfo
      * but additional mappings defined through calls to defineChar2String()
      * are possible. Such entity reference mappings could be over-ridden.
      *
-     * This is reusing a stored key object, in an effort to avoid
-     * heap activity. Unfortunately, that introduces a threading risk.
-     * Simplest fix for now is to make it a synchronized method, or to give
-     * up the reuse; I see very little performance difference between them.
-     * Long-term solution would be to replace the hashtable with a sparse array
-     * keyed directly from the character's integer value; see DTM's
-     * string pool for a related solution.
+     * The Strings are kept in an array indexed by the character, so the
+     * lookup is safe to make from several threads at once.
      *
      * @param value The character that should be resolved to
      * a String, e.g. resolve '>' to  "&lt;".
@@ -404,9 +427,63 @@ final class CharInfo
      */
     String getOutputStringForChar(char value)
     {
-        // CharKey m_charKey = new CharKey(); //Alternative to synchronized
-        m_charKey.setChar(value);
-        return (String) m_charToString.get(m_charKey);
+        final String[] charToString = m_charToString;
+        return (value < charToString.length) ? charToString[value] : null;
+    }
+
+    /**
+     * Get the escape table for an encoding: for every char from 0 to 0xFFFF,
+     * a combination of the ESC_ flags that tells how the serializer writes
+     * that char when the output is in the given encoding. The table is built
+     * on first use and is then kept; it must not be changed.
+     *
+     * @param encoding the output encoding.
+     * @return the escape table, of length 0x10000.
+     * @xsl.usage internal
+     */
+    synchronized byte[] getEscapeTable(EncodingInfo encoding)
+    {
+        final String key = (encoding.javaName == null) ? "" : encoding.javaName;
+        byte[] table = (byte[]) m_escapeTables.get(key);
+        if (table == null)
+        {
+            final boolean[] inEncoding = encoding.getCharsInEncoding();
+            table = new byte[0x10000];
+            for (int i = 0; i < table.length; i++)
+            {
+                final char ch = (char) i;
+                int flags = 0;
+
+                final boolean charRef;
+                if (ch < 0x7F)
+                    charRef = ch < S_SPACE && ch != S_LINEFEED
+                        && ch != S_CARRIAGERETURN && ch != S_HORIZONAL_TAB;
+                else
+                    charRef = !inEncoding[ch];
+                if (charRef)
+                    flags |= ESC_CHAR_REF;
+
+                // Apart from the Strings, the text and attribute value
+                // writers copy printable ASCII, and chars above the C1
+                // controls that are in the encoding, except for LSEP.
+                final boolean plain = (S_SPACE <= ch && ch < 0x7F)
+                    || (0x9F < ch && ch != S_LINE_SEPARATOR && !charRef);
+
+                if (shouldMapTextChar(ch))
+                    flags |= ESC_TEXT_ENTITY | ESC_TEXT_DIRTY;
+                else if (!plain && ch != S_HORIZONAL_TAB)
+                    flags |= ESC_TEXT_DIRTY;
+
+                if (shouldMapAttrChar(ch))
+                    flags |= ESC_ATTR_ENTITY | ESC_ATTR_DIRTY;
+                else if (!plain)
+                    flags |= ESC_ATTR_DIRTY;
+
+                table[i] = (byte) flags;
+            }
+            m_escapeTables.put(key, table);
+        }
+        return table;
     }
     
     /**
@@ -490,17 +567,17 @@ final class CharInfo
     {
         CharInfo charInfo = (CharInfo) m_getCharInfoCache.get(entitiesFileName);
         if (charInfo != null) {
-        	return mutableCopyOf(charInfo);
+        	return charInfo;
         }
 
         // try to load it internally - cache
         try {
             charInfo = getCharInfoBasedOnPrivilege(entitiesFileName, 
                                         method, true);
-            // Put the common copy of charInfo in the cache, but return
-            // a copy of it.
+            // Put charInfo in the cache; it is never changed once built,
+            // so every serializer can share it.
             m_getCharInfoCache.put(entitiesFileName, charInfo);
-            return mutableCopyOf(charInfo);
+            return charInfo;
         } catch (Exception e) {}
 
         // try to load it externally - do not cache
@@ -527,34 +604,6 @@ final class CharInfo
                                 method, false);
     }
 
-    /**
-     * Create a mutable copy of the cached one.
-     * @param charInfo The cached one.
-     * @return
-     */
-    private static CharInfo mutableCopyOf(CharInfo charInfo) {
-    	CharInfo copy = new CharInfo();
-    	
-    	int max = charInfo.array_of_bits.length;
-    	System.arraycopy(charInfo.array_of_bits,0,copy.array_of_bits,0,max);
-    	
-    	copy.firstWordNotUsed = charInfo.firstWordNotUsed;
-    	
-    	max = charInfo.shouldMapAttrChar_ASCII.length;
-    	System.arraycopy(charInfo.shouldMapAttrChar_ASCII,0,copy.shouldMapAttrChar_ASCII,0,max);
-    	
-    	max = charInfo.shouldMapTextChar_ASCII.length;
-    	System.arraycopy(charInfo.shouldMapTextChar_ASCII,0,copy.shouldMapTextChar_ASCII,0,max);
-    	
-    	// utility field copy.m_charKey is already created in the default constructor 
-    	
-    	copy.m_charToString = (HashMap) charInfo.m_charToString.clone();
-    	
-    	copy.onlyQuotAmpLtGt = charInfo.onlyQuotAmpLtGt;
-    	    	
-		return copy;
-	}
-
 	/** 
 	 * Table of user-specified char infos.
 	 * The table maps entify file names (the name of the
@@ -728,8 +777,15 @@ final class CharInfo
      */
     boolean defineChar2StringMapping(String outputString, char inputChar) 
     {
-        CharKey character = new CharKey(inputChar);
-        m_charToString.put(character, outputString);
+        if (inputChar >= m_charToString.length)
+        {
+            String[] charToString = new String[Math.max(inputChar + 1,
+                                                        2 * m_charToString.length)];
+            System.arraycopy(m_charToString, 0, charToString, 0,
+                             m_charToString.length);
+            m_charToString = charToString;
+        }
+        m_charToString[inputChar] = outputString;
         set(inputChar);  // mark the character has having a mapping to a String
         
         boolean extraMapping = extraEntity(outputString, inputChar);
@@ -737,71 +793,4 @@ final class CharInfo
         	
     }
 
-    /**
-     * Simple class for fast lookup of char values, when used with
-     * hashtables.  You can set the char, then use it as a key.
-     *  
-     * @xsl.usage internal
-     */
-    private static class CharKey extends Object
-    {
-
-      /** String value          */
-      private char m_char;
-
-      /**
-       * Constructor CharKey
-       *
-       * @param key char value of this object.
-       */
-      public CharKey(char key)
-      {
-        m_char = key;
-      }
-  
-      /**
-       * Default constructor for a CharKey.
-       *
-       * @param key char value of this object.
-       */
-      public CharKey()
-      {
-      }
-  
-      /**
-       * Get the hash value of the character.  
-       *
-       * @return hash value of the character.
-       */
-      public final void setChar(char c)
-      {
-        m_char = c;
-      }
-
-
-
-      /**
-       * Get the hash value of the character.  
-       *
-       * @return hash value of the character.
-       */
-      public final int hashCode()
-      {
-        return (int)m_char;
-      }
-
-      /**
-       * Override of equals() for this object 
-       *
-       * @param obj to compare to
-       *
-       * @return True if this object equals this string value 
-       */
-      public final boolean equals(Object obj)
-      {
-        return ((CharKey)obj).m_char == m_char;
-      }
-    }
-   
-
 }
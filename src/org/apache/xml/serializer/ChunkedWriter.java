@@ -0,0 +1,266 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Vector;
+
+/**
+ * The writer a serializer writes through while chunks of its output are
+ * being serialized on other threads. It puts the chunks and the
+ * serializer's own output in document order: output written while no
+ * chunk is outstanding goes straight to the serializer's writer, and
+ * output written after a chunk is held until the chunk has been written.
+ *
+ * When the serializer's writer is one of its own UTF-8 or single-byte
+ * encoders, the chunks are encoded on the worker threads too, and their
+ * bytes are written to the encoder's stream once the encoder has written
+ * out what it holds. Otherwise the chunks are kept as characters and
+ * written to the serializer's writer.
+ *
+ * At most twice as many chunks as there are worker threads are
+ * outstanding at a time; a serializer that has recorded more waits for
+ * the first of them to be written.
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class ChunkedWriter extends Writer implements WriterChain
+{
+
+    /** The most chunks outstanding before addChunk() waits. */
+    private static final int MAX_PENDING = 2 * SubtreeChunk.THREADS;
+
+    /** The serializer's writer. */
+    private final Writer m_writer;
+
+    /**
+     * The stream that m_writer encodes to, if the chunks are encoded on the
+     * worker threads, or null.
+     */
+    private final OutputStream m_os;
+
+    /**
+     * The output not yet written, in order: SubtreeChunks and, for the
+     * serializer's own output, CharArrayWriters.
+     */
+    private final Vector m_queue = new Vector();
+
+    /** The CharArrayWriter at the end of m_queue, if there is one. */
+    private CharArrayWriter m_tail;
+
+    /** The number of chunks in m_queue. */
+    private int m_chunks = 0;
+
+    /**
+     * Create a writer that puts chunks into a serializer's output.
+     *
+     * @param writer the serializer's writer.
+     */
+    ChunkedWriter(Writer writer)
+    {
+        m_writer = writer;
+        m_os = (writer instanceof WriterToUTF8Buffered
+                || writer instanceof WriterToSingleByteBuffered)
+            ? ((WriterChain) writer).getOutputStream()
+            : null;
+    }
+
+    /**
+     * Tell whether the worker threads encode the chunks.
+     */
+    boolean isByteOutput()
+    {
+        return null != m_os;
+    }
+
+    /**
+     * Make an encoder like the serializer's, for a worker thread to
+     * encode a chunk with. Only used if isByteOutput() is true.
+     *
+     * @param out the stream to encode to.
+     * @return the encoder.
+     */
+    Writer newChunkWriter(OutputStream out)
+    {
+        if (m_writer instanceof WriterToUTF8Buffered)
+            return new WriterToUTF8Buffered(out);
+        return ((WriterToSingleByteBuffered) m_writer).newWriter(out);
+    }
+
+    /**
+     * Add a chunk to the output, and hand it to a worker thread.
+     *
+     * @param chunk the chunk, which has been recorded.
+     * @throws IOException if earlier output cannot be written.
+     */
+    void addChunk(SubtreeChunk chunk) throws IOException
+    {
+        m_queue.addElement(chunk);
+        m_tail = null;
+        m_chunks++;
+        SubtreeChunk.execute(chunk);
+        writeReady(MAX_PENDING);
+    }
+
+    /**
+     * Wait for all the chunks, and write all the output to the
+     * serializer's writer.
+     *
+     * @throws IOException if a chunk could not be serialized, or the
+     * output cannot be written.
+     */
+    void finish() throws IOException
+    {
+        writeReady(0);
+    }
+
+    /**
+     * Write out the output at the front of the queue, as far as the first
+     * chunk that is still being serialized. If more than the given number
+     * of chunks are outstanding, wait for them to be serialized.
+     */
+    private void writeReady(int maxChunks) throws IOException
+    {
+        while (!m_queue.isEmpty())
+        {
+            final Object first = m_queue.elementAt(0);
+            if (first instanceof SubtreeChunk)
+            {
+                final SubtreeChunk chunk = (SubtreeChunk) first;
+                if (m_chunks <= maxChunks && !chunk.isDone())
+                    break;
+                if (null != m_os)
+                {
+                    // The chunk's bytes follow what the encoder holds
+                    if (m_writer instanceof WriterToUTF8Buffered)
+                        ((WriterToUTF8Buffered) m_writer).flushBuffer();
+                    else
+                        ((WriterToSingleByteBuffered) m_writer).flushBuffer();
+                    chunk.writeTo(m_os);
+                }
+                else
+                    chunk.writeTo(m_writer);
+                m_chunks--;
+            }
+            else
+            {
+                ((CharArrayWriter) first).writeTo(m_writer);
+                if (first == m_tail)
+                    m_tail = null;
+            }
+            m_queue.removeElementAt(0);
+        }
+    }
+
+    /**
+     * Get the writer for output that must follow the outstanding chunks.
+     */
+    private Writer tail()
+    {
+        if (null == m_tail)
+        {
+            m_tail = new CharArrayWriter();
+            m_queue.addElement(m_tail);
+        }
+        return m_tail;
+    }
+
+    public void write(int c) throws IOException
+    {
+        if (m_queue.isEmpty())
+            m_writer.write(c);
+        else
+            tail().write(c);
+    }
+
+    public void write(char[] chars, int start, int length) throws IOException
+    {
+        if (m_queue.isEmpty())
+            m_writer.write(chars, start, length);
+        else
+            tail().write(chars, start, length);
+    }
+
+    public void write(String s) throws IOException
+    {
+        if (m_queue.isEmpty())
+            m_writer.write(s);
+        else
+            tail().write(s);
+    }
+
+    public void write(String s, int start, int length) throws IOException
+    {
+        if (m_queue.isEmpty())
+            m_writer.write(s, start, length);
+        else
+            tail().write(s, start, length);
+    }
+
+    /**
+     * Write the output that is ready, without waiting for chunks that are
+     * still being serialized, and flush the serializer's writer.
+     *
+     * @throws IOException if the output cannot be written.
+     */
+    public void flush() throws IOException
+    {
+        writeReady(Integer.MAX_VALUE);
+        m_writer.flush();
+    }
+
+    /**
+     * Write all the output, then close the serializer's writer.
+     *
+     * @throws IOException if the output cannot be written or the writer
+     * cannot be closed.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        }
+        finally
+        {
+            m_writer.close();
+        }
+    }
+
+    /**
+     * Get the serializer's writer.
+     */
+    public Writer getWriter()
+    {
+        return m_writer;
+    }
+
+    public OutputStream getOutputStream()
+    {
+        // This writer wraps a Writer, not an OutputStream
+        return null;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This class compresses the bytes written to it, in gzip or zlib
+ * ("deflate") format, and writes the compressed data to an OutputStream.
+ * The serializer's encoders write whole buffers to it, and each buffer is
+ * handed straight to the Deflater, without being copied first.
+ *
+ * Each document is compressed separately: the first write starts the
+ * compressed data, and finish(), which ToStream calls at the end of the
+ * document, ends it without closing the underlying stream. In gzip format
+ * several documents written to one stream form a multi-member gzip file.
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class CompressingOutputStream extends OutputStream
+{
+
+    /** The compression property value for gzip format. */
+    static final String GZIP = "gzip";
+
+    /** The compression property value for zlib format. */
+    static final String DEFLATE = "deflate";
+
+    /** The size of the buffer for compressed data. */
+    private static final int BUFFER_SIZE = 16*1024;
+
+    /**
+     * The gzip member header: magic number, deflate method, no flags, no
+     * time, no extra flags and operating system 0, as GZIPOutputStream
+     * writes it.
+     */
+    private static final byte[] GZIP_HEADER =
+        { (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    /** The stream to write compressed data to. */
+    private final OutputStream m_os;
+
+    /** True for gzip format, false for zlib format. */
+    private final boolean m_gzip;
+
+    /** The buffer for compressed data. */
+    private final byte[] m_buf = new byte[BUFFER_SIZE];
+
+    /** The checksum of the uncompressed data, for gzip format. */
+    private final CRC32 m_crc;
+
+    /** The compressor for the current document, or null between documents. */
+    private Deflater m_deflater;
+
+    /**
+     * Get the format for a value of the compression output property.
+     *
+     * @param compression the property value.
+     * @return GZIP or DEFLATE, or null if the value names neither.
+     */
+    static String getFormat(String compression)
+    {
+        if (GZIP.equalsIgnoreCase(compression))
+            return GZIP;
+        if (DEFLATE.equalsIgnoreCase(compression))
+            return DEFLATE;
+        return null;
+    }
+
+    /**
+     * Create a compressing stream.
+     *
+     * @param out the stream to write compressed data to.
+     * @param format GZIP or DEFLATE.
+     */
+    CompressingOutputStream(OutputStream out, String format)
+    {
+        m_os = out;
+        m_gzip = (GZIP == format);
+        m_crc = m_gzip ? new CRC32() : null;
+    }
+
+    /**
+     * Write a byte.
+     *
+     * @param b the byte, in the low eight bits.
+     * @throws IOException if the underlying stream cannot be written to.
+     */
+    public void write(int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Compress part of an array of bytes.
+     *
+     * @param b the bytes.
+     * @param off the index of the first byte to write.
+     * @param len the number of bytes to write.
+     * @throws IOException if the underlying stream cannot be written to.
+     */
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (len <= 0)
+            return;
+
+        if (null == m_deflater)
+            begin();
+        if (m_gzip)
+            m_crc.update(b, off, len);
+
+        final Deflater deflater = m_deflater;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput())
+            deflate();
+    }
+
+    /**
+     * Flush the underlying stream. Data held by the compressor is not
+     * forced out, as that would make the compression worse.
+     *
+     * @throws IOException if the underlying stream cannot be flushed.
+     */
+    public void flush() throws IOException
+    {
+        m_os.flush();
+    }
+
+    /**
+     * End the compressed data of the current document, if any, and close
+     * the underlying stream.
+     *
+     * @throws IOException if the underlying stream cannot be written to or
+     * closed.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            if (null != m_deflater)
+                finish();
+        }
+        finally
+        {
+            m_os.close();
+        }
+    }
+
+    /**
+     * End the compressed data of the current document, which is empty if
+     * nothing has been written since the last call. The underlying stream
+     * is left open, and a later write starts new compressed data.
+     *
+     * @throws IOException if the underlying stream cannot be written to.
+     */
+    void finish() throws IOException
+    {
+        if (null == m_deflater)
+            begin();
+        final Deflater deflater = m_deflater;
+
+        try
+        {
+            deflater.finish();
+            while (!deflater.finished())
+                deflate();
+
+            if (m_gzip)
+            {
+                // The trailer: the checksum, then the length modulo 2^32,
+                // both little-endian.
+                writeIntLE((int) m_crc.getValue());
+                writeIntLE(deflater.getTotalIn());
+            }
+        }
+        finally
+        {
+            m_deflater = null;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Start the compressed data of a document.
+     */
+    private void begin() throws IOException
+    {
+        m_deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, m_gzip);
+        if (m_gzip)
+        {
+            m_crc.reset();
+            m_os.write(GZIP_HEADER);
+        }
+    }
+
+    /**
+     * Write out whatever compressed data the compressor has ready.
+     */
+    private void deflate() throws IOException
+    {
+        final int n = m_deflater.deflate(m_buf, 0, m_buf.length);
+        if (n > 0)
+            m_os.write(m_buf, 0, n);
+    }
+
+    private void writeIntLE(int i) throws IOException
+    {
+        m_buf[0] = (byte) i;
+        m_buf[1] = (byte) (i >> 8);
+        m_buf[2] = (byte) (i >> 16);
+        m_buf[3] = (byte) (i >> 24);
+        m_os.write(m_buf, 0, 4);
+    }
+}
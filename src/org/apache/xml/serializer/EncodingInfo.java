@@ -20,6 +20,12 @@
  */
 package org.apache.xml.serializer;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
 
 /**
  * Holds information about a given encoding, which is the Java name for the
@@ -134,6 +140,62 @@ public final class EncodingInfo extends Object
         return m_encoding.isInEncoding(high, low); 
     }
 
+    /**
+     * This is not a public API. It tells for every char from '\u0000' to
+     * '\uFFFF' whether it is in the encoding, by the same test as
+     * isInEncoding(char), but far faster than asking about each char in
+     * turn, since the encoder is looked up only once.
+     * <p>
+     * The answers for high/low surrogates and for '\u0000' mean no more
+     * than they do for isInEncoding(char).
+     * @return an array of 0x10000 booleans, indexed by char.
+     * @xsl.usage internal
+     */
+    boolean[] getCharsInEncoding() {
+        final boolean[] in = new boolean[0x10000];
+        if (javaName == null) {
+            // As in inEncoding(char, String), with no encoding
+            // every character is in the encoding.
+            Arrays.fill(in, true);
+            return in;
+        }
+
+        final CharsetEncoder encoder;
+        try {
+            // Replace what cannot be encoded, as String.getBytes() does
+            encoder = Charset.forName(javaName).newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        } catch (IllegalArgumentException e) {
+            // An unknown encoding, which inEncoding(char, String)
+            // also treats as having no characters.
+            return in;
+        }
+
+        final char[] cArray = new char[1];
+        final byte[] first = new byte[1];
+        final CharBuffer chars = CharBuffer.wrap(cArray);
+        final ByteBuffer bytes = ByteBuffer.allocate(
+            (int) Math.ceil(encoder.maxBytesPerChar()) + 16);
+        for (int i = 0; i < in.length; i++) {
+            final char ch = (char) i;
+            cArray[0] = ch;
+            chars.clear();
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(chars, bytes, true);
+            encoder.flush(bytes);
+            if (bytes.position() == 0)
+                in[i] = false;
+            else {
+                // Only the first byte is looked at
+                first[0] = bytes.get(0);
+                in[i] = inEncoding(ch, first);
+            }
+        }
+        return in;
+    }
+
     /**
      * Create an EncodingInfo object based on the ISO name and Java name.
      * If both parameters are null any character will be considered to
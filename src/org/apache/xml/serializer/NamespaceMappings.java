@@ -20,9 +20,6 @@
  */
 package org.apache.xml.serializer;
 
-import java.util.Enumeration;
-import java.util.Hashtable;
-
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
@@ -57,6 +54,11 @@ import org.xml.sax.SAXException;
  * are on the stack and a prefix can be found given a uri, or a uri can be found
  * given a prefix.
  *
+ * The stack is kept in a few parallel arrays, which grow as needed but are
+ * otherwise reused, so pushing and popping mappings allocates nothing.
+ * A prefix is looked up by searching the stack from the top, which is fast
+ * for the handful of mappings usually in scope.
+ *
  * This class is intended for internal use only.  However, it is made public because
  * other packages require it. 
  * @xsl.usage internal
@@ -69,30 +71,36 @@ public class NamespaceMappings
      */
     private int count = 0;
 
+    /** The initial size of the arrays that hold the stack. */
+    private static final int INITIAL_CAPACITY = 16;
+
     /**
-     * Each entry (prefix) in this hashtable points to a Stack of URIs
-     * This table maps a prefix (String) to a Stack of NamespaceNodes.
-     * All Namespace nodes in that retrieved stack have the same prefix,
-     * though possibly different URI's or depths. Such a stack must have
-     * mappings at deeper depths push later on such a stack.  Mappings pushed
-     * earlier on the stack will have smaller values for MappingRecord.m_declarationDepth.
+     * The prefix of each mapping on the stack, shallowest to deepest.
+     * The mapping at index m_count - 1 is the top of the stack.
      */
-    private Hashtable m_namespaces = new Hashtable();
+    private String[] m_prefixes = new String[INITIAL_CAPACITY];
 
-    /** 
-     * This stack is used as a convenience.
-     * It contains the pushed NamespaceNodes (shallowest
-     * to deepest) and is used to delete NamespaceNodes 
-     * when leaving the current element depth 
-     * to returning to the parent. The mappings of the deepest
-     * depth can be popped of the top and the same node
-     * can be removed from the appropriate prefix stack.
-     * 
-     * All prefixes pushed at the current depth can be 
-     * removed at the same time by using this stack to
-     * ensure prefix/uri map scopes are closed correctly.
+    /**
+     * The hash code of each prefix in m_prefixes, so that most entries
+     * can be passed over without comparing the strings.
      */
-    private Stack m_nodeStack = new Stack();
+    private int[] m_prefixHashes = new int[INITIAL_CAPACITY];
+
+    /** The URI of each mapping, possibly "" but never null. */
+    private String[] m_uris = new String[INITIAL_CAPACITY];
+
+    /** The depth of the element where each mapping was declared. */
+    private int[] m_depths = new int[INITIAL_CAPACITY];
+
+    /**
+     * True for a mapping that popNamespace() has undeclared. The mapping
+     * stays on the stack, so that its element depth is still closed
+     * correctly, but it is no longer visible.
+     */
+    private boolean[] m_undeclared = new boolean[INITIAL_CAPACITY];
+
+    /** The number of mappings on the stack. */
+    private int m_count = 0;
 
     private static final String EMPTYSTRING = "";
     private static final String XML_PREFIX = "xml"; // was "xmlns"
@@ -107,8 +115,7 @@ public class NamespaceMappings
     }
 
     /**
-     * This method initializes the namespace object with appropriate stacks
-     * and predefines a few prefix/uri pairs which always exist.
+     * This method predefines a few prefix/uri pairs which always exist.
      */
     private void initNamespaces()
     {
@@ -116,16 +123,53 @@ public class NamespaceMappings
         // (a kludge)
         
         // Define the default namespace (initially maps to "" uri)
-        Stack stack;
-        MappingRecord nn;
-        nn = new MappingRecord(EMPTYSTRING, EMPTYSTRING, -1);
-        stack = createPrefixStack(EMPTYSTRING);
-        stack.push(nn);
+        push(EMPTYSTRING, EMPTYSTRING, -1);
 
         // define "xml" namespace
-        nn = new MappingRecord(XML_PREFIX, "http://www.w3.org/XML/1998/namespace", -1);
-        stack = createPrefixStack(XML_PREFIX);
-        stack.push(nn);
+        push(XML_PREFIX, "http://www.w3.org/XML/1998/namespace", -1);
+    }
+
+    /**
+     * Find the visible mapping for a prefix.
+     *
+     * @param prefix the prefix
+     * @return the index of the mapping on the stack, or -1 if the prefix is
+     * not mapped.
+     */
+    private int indexOfPrefix(String prefix)
+    {
+        final int hash = prefix.hashCode();
+        final String[] prefixes = m_prefixes;
+        final int[] hashes = m_prefixHashes;
+        for (int i = m_count - 1; i >= 0; i--)
+        {
+            if (hashes[i] == hash
+                && !m_undeclared[i]
+                && prefix.equals(prefixes[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the visible mapping, if any, of a prefix to a URI. A mapping is
+     * visible if no mapping of its prefix was declared after it.
+     *
+     * @param uri the namespace URI
+     * @param from the index to start searching down from
+     * @return the index of the mapping on the stack, or -1 if no prefix
+     * maps to the URI.
+     */
+    private int indexOfURI(String uri, int from)
+    {
+        for (int i = from; i >= 0; i--)
+        {
+            if (!m_undeclared[i]
+                && m_uris[i].equals(uri)
+                && indexOfPrefix(m_prefixes[i]) == i)
+                return i;
+        }
+        return -1;
     }
 
     /**
@@ -137,21 +181,14 @@ public class NamespaceMappings
      */
     public String lookupNamespace(String prefix)
     {
-        String uri = null;
-        final Stack stack = getPrefixStack(prefix);
-        if (stack != null && !stack.isEmpty()) {
-            uri = ((MappingRecord) stack.peek()).m_uri;
-        }
-        if (uri == null)
-            uri = EMPTYSTRING;
-        return uri;
+        final int i = indexOfPrefix(prefix);
+        return (i < 0) ? EMPTYSTRING : m_uris[i];
     }
   
     
     MappingRecord getMappingFromPrefix(String prefix) {
-        final Stack stack = (Stack) m_namespaces.get(prefix);
-        return stack != null && !stack.isEmpty() ? 
-            ((MappingRecord) stack.peek()) : null;
+        final int i = indexOfPrefix(prefix);
+        return (i < 0) ? null : new MappingRecord(i);
     }
 
     /**
@@ -164,36 +201,14 @@ public class NamespaceMappings
      */
     public String lookupPrefix(String uri)
     {
-        String foundPrefix = null;
-        Enumeration prefixes = m_namespaces.keys();
-        while (prefixes.hasMoreElements())
-        {
-            String prefix = (String) prefixes.nextElement();
-            String uri2 = lookupNamespace(prefix);
-            if (uri2 != null && uri2.equals(uri))
-            {
-                foundPrefix = prefix;
-                break;
-            }
-        }
-        return foundPrefix;
+        final int i = indexOfURI(uri, m_count - 1);
+        return (i < 0) ? null : m_prefixes[i];
     }
     
     MappingRecord getMappingFromURI(String uri)
     {
-        MappingRecord foundMap = null;
-        Enumeration prefixes = m_namespaces.keys();
-        while (prefixes.hasMoreElements())
-        {
-            String prefix = (String) prefixes.nextElement();
-            MappingRecord map2 = getMappingFromPrefix(prefix);
-            if (map2 != null && (map2.m_uri).equals(uri))
-            {
-                foundMap = map2;
-                break;
-            }
-        }
-        return foundMap;
+        final int i = indexOfURI(uri, m_count - 1);
+        return (i < 0) ? null : new MappingRecord(i);
     }
 
     /**
@@ -207,10 +222,10 @@ public class NamespaceMappings
             return false;
         }
 
-        Stack stack;
-        if ((stack = getPrefixStack(prefix)) != null)
+        final int i = indexOfPrefix(prefix);
+        if (i >= 0)
         {
-            stack.pop();
+            m_undeclared[i] = true;
             return true;
         }
         return false;
@@ -230,17 +245,10 @@ public class NamespaceMappings
             return false;
         }
 
-        Stack stack;
-        // Get the stack that contains URIs for the specified prefix
-        if ((stack = (Stack) m_namespaces.get(prefix)) == null)
-        {
-            m_namespaces.put(prefix, stack = new Stack());
-        }
-
-        if (!stack.empty())
+        final int i = indexOfPrefix(prefix);
+        if (i >= 0)
         {
-            MappingRecord mr = (MappingRecord)stack.peek();
-            if (uri.equals(mr.m_uri) || elemDepth == mr.m_declarationDepth) {
+            if (uri.equals(m_uris[i]) || elemDepth == m_depths[i]) {
                 // If the same prefix/uri mapping is already on the stack
                 // don't push this one.
                 // Or if we have a mapping at the same depth
@@ -248,12 +256,42 @@ public class NamespaceMappings
                 return false;
             }
         }
-        MappingRecord map = new MappingRecord(prefix,uri,elemDepth);
-        stack.push(map);
-        m_nodeStack.push(map);
+        push(prefix, uri, elemDepth);
         return true;
     }
 
+    /**
+     * Put a mapping on top of the stack, growing the arrays if they are full.
+     */
+    private void push(String prefix, String uri, int elemDepth)
+    {
+        if (m_count == m_prefixes.length)
+        {
+            final int newMax = 2 * m_count;
+            String[] prefixes = new String[newMax];
+            System.arraycopy(m_prefixes, 0, prefixes, 0, m_count);
+            m_prefixes = prefixes;
+            int[] hashes = new int[newMax];
+            System.arraycopy(m_prefixHashes, 0, hashes, 0, m_count);
+            m_prefixHashes = hashes;
+            String[] uris = new String[newMax];
+            System.arraycopy(m_uris, 0, uris, 0, m_count);
+            m_uris = uris;
+            int[] depths = new int[newMax];
+            System.arraycopy(m_depths, 0, depths, 0, m_count);
+            m_depths = depths;
+            boolean[] undeclared = new boolean[newMax];
+            System.arraycopy(m_undeclared, 0, undeclared, 0, m_count);
+            m_undeclared = undeclared;
+        }
+        final int i = m_count++;
+        m_prefixes[i] = prefix;
+        m_prefixHashes[i] = prefix.hashCode();
+        m_uris[i] = (uri == null) ? EMPTYSTRING : uri;
+        m_depths[i] = elemDepth;
+        m_undeclared[i] = false;
+    }
+
     /**
      * Pop, or undeclare all namespace definitions that are currently
      * declared at the given element depth, or deepter.
@@ -264,53 +302,33 @@ public class NamespaceMappings
      */
     void popNamespaces(int elemDepth, ContentHandler saxHandler)
     {
-        while (true)
+        if (elemDepth < 1)
+            return;
+
+        // The predefined mappings, at depth -1, stop the loop.
+        while (m_count > 0 && m_depths[m_count - 1] >= elemDepth)
         {
-            if (m_nodeStack.isEmpty())
-                return;
-            MappingRecord map = (MappingRecord) (m_nodeStack.peek());
-            int depth = map.m_declarationDepth;
-            if (elemDepth < 1 || map.m_declarationDepth < elemDepth)
-                break;
             /* the depth of the declared mapping is elemDepth or deeper
              * so get rid of it
              */
+            final int i = --m_count;
+            final String prefix = m_prefixes[i];
+            m_prefixes[i] = null;
+            m_uris[i] = null;
 
-            MappingRecord nm1 = (MappingRecord) m_nodeStack.pop();
-            // pop the node from the stack
-            String prefix = map.m_prefix;
-
-            Stack prefixStack = getPrefixStack(prefix);
-            MappingRecord nm2 = (MappingRecord) prefixStack.peek();
-            if (nm1 == nm2)
+            // A mapping that popNamespace() already undeclared has been
+            // reported, or was optimized away, so only the others are.
+            if (!m_undeclared[i] && saxHandler != null)
             {
-                // It would be nice to always pop() but we
-                // need to check that the prefix stack still has
-                // the node we want to get rid of. This is because
-                // the optimization of essentially this situation:
-                // <a xmlns:x="abc"><b xmlns:x="" xmlns:x="abc" /></a>
-                // will remove both mappings in <b> because the
-                // new mapping is the same as the masked one and we get
-                // <a xmlns:x="abc"><b/></a>
-                // So we are only removing xmlns:x="" or
-                // xmlns:x="abc" from the depth of element <b>
-                // when going back to <a> if in fact they have
-                // not been optimized away.
-                // 
-                prefixStack.pop();
-                if (saxHandler != null)
+                try
+                {
+                    saxHandler.endPrefixMapping(prefix);
+                }
+                catch (SAXException e)
                 {
-                    try
-                    {
-                        saxHandler.endPrefixMapping(prefix);
-                    }
-                    catch (SAXException e)
-                    {
-                        // not much we can do if they aren't willing to listen
-                    }
+                    // not much we can do if they aren't willing to listen
                 }
             }
-
         }
     }
 
@@ -330,147 +348,68 @@ public class NamespaceMappings
      */
     public Object clone() throws CloneNotSupportedException {
         NamespaceMappings clone = new NamespaceMappings();
-        clone.m_nodeStack = (NamespaceMappings.Stack) m_nodeStack.clone();        
-        clone.count = this.count;
-        clone.m_namespaces = (Hashtable) m_namespaces.clone();
-        
+        clone.m_prefixes = (String[]) m_prefixes.clone();
+        clone.m_prefixHashes = (int[]) m_prefixHashes.clone();
+        clone.m_uris = (String[]) m_uris.clone();
+        clone.m_depths = (int[]) m_depths.clone();
+        clone.m_undeclared = (boolean[]) m_undeclared.clone();
+        clone.m_count = m_count;
         clone.count = count;
         return clone;
         
     }
     
+    /**
+     * Copy the mappings for a serializer that takes over from the given
+     * element depth, and numbers that depth 0. The copy has the same
+     * mappings as this object, at depths less the given depth.
+     *
+     * @param elemDepth the element depth that becomes depth 0.
+     */
+    NamespaceMappings copyFromDepth(int elemDepth)
+    {
+        NamespaceMappings copy = new NamespaceMappings();
+        copy.m_prefixes = (String[]) m_prefixes.clone();
+        copy.m_prefixHashes = (int[]) m_prefixHashes.clone();
+        copy.m_uris = (String[]) m_uris.clone();
+        copy.m_undeclared = (boolean[]) m_undeclared.clone();
+        copy.m_depths = new int[m_depths.length];
+        for (int i = 0; i < m_count; i++)
+            copy.m_depths[i] = m_depths[i] - elemDepth;
+        copy.m_count = m_count;
+        copy.count = count;
+        return copy;
+    }
+
     final void reset()
     {
         this.count = 0;
-        this.m_namespaces.clear();
-        this.m_nodeStack.clear();        
+        for (int i = 0; i < m_count; i++)
+        {
+            m_prefixes[i] = null;
+            m_uris[i] = null;
+        }
+        this.m_count = 0;
         
         initNamespaces();
     }
     
     /**
-     * Just a little class that ties the 3 fields together
-     * into one object, and this simplifies the pushing
-     * and popping of namespaces to one push or one pop on
-     * one stack rather than on 3 separate stacks.
+     * A copy of one mapping on the stack, which ties its 3 fields
+     * together into one object.
      */
     class MappingRecord {
         final String m_prefix;  // the prefix
         final String m_uri;     // the uri, possibly "" but never null
         // the depth of the element where declartion was made
         final int m_declarationDepth;
-        MappingRecord(String prefix, String uri, int depth) {
-            m_prefix = prefix;
-            m_uri = (uri==null)? EMPTYSTRING : uri;
-            m_declarationDepth = depth;
+        MappingRecord(int index) {
+            m_prefix = m_prefixes[index];
+            m_uri = m_uris[index];
+            m_declarationDepth = m_depths[index];
         }
     }    
     
-    /**
-     * Rather than using java.util.Stack, this private class
-     * provides a minimal subset of methods and is faster
-     * because it is not thread-safe.
-     */
-    private class Stack {
-        private int top = -1;
-        private int max = 20;
-        Object[] m_stack = new Object[max];
-        
-        public Object clone() throws CloneNotSupportedException {
-            NamespaceMappings.Stack clone = new NamespaceMappings.Stack();  
-            clone.max = this.max;
-            clone.top = this.top;
-            clone.m_stack = new Object[clone.max];
-            for (int i=0; i <= top; i++) {
-            	// We are just copying references to immutable MappingRecord objects here
-            	// so it is OK if the clone has references to these.
-            	clone.m_stack[i] = this.m_stack[i];
-            }
-            return clone;            
-        }
-        
-        public Stack()
-        {
-        }
-        
-        public Object push(Object o) {
-            top++;
-            if (max <= top) {
-                int newMax = 2*max + 1;
-                Object[] newArray = new Object[newMax];
-                System.arraycopy(m_stack,0, newArray, 0, max);
-                max = newMax;
-                m_stack = newArray;
-            }
-            m_stack[top] = o;
-            return o;
-        }
-        
-        public Object pop() {
-            Object o;
-            if (0 <= top) {
-                o = m_stack[top];
-                // m_stack[top] = null;  do we really care?
-                top--;
-            }
-            else
-                o = null;
-            return o;
-        }
-        
-        public Object peek() {
-            Object o;
-            if (0 <= top) {
-                o = m_stack[top];
-            }
-            else
-                o = null;
-            return o;
-        }
-        
-        public Object peek(int idx) {
-            return m_stack[idx];
-        }
-        
-        public boolean isEmpty() {
-            return (top < 0);
-        }
-        public boolean empty() {
-            return (top < 0);
-        }
-        
-        public void clear() {
-            for (int i=0; i<= top; i++)
-                m_stack[i] = null;
-            top = -1;
-        }  
-        
-        public Object getElement(int index) {
-            return m_stack[index];      
-        }
-    }
-    /**
-     * A more type-safe way to get a stack of prefix mappings
-     * from the Hashtable m_namespaces
-     * (this is the only method that does the type cast).
-     */
-
-    private Stack getPrefixStack(String prefix) {
-        Stack fs = (Stack) m_namespaces.get(prefix);
-        return fs;
-    }
-    
-    /**
-     * A more type-safe way of saving stacks under the
-     * m_namespaces Hashtable.
-     */
-    private Stack createPrefixStack(String prefix)
-    {
-        Stack fs = new Stack();
-        m_namespaces.put(prefix, fs);
-        return fs;
-    }
-    
     /**
      * Given a namespace uri, get all prefixes bound to the Namespace URI in the current scope. 
      * 
@@ -483,15 +422,11 @@ public class NamespaceMappings
     public String[] lookupAllPrefixes(String uri)
     {
         java.util.ArrayList foundPrefixes = new java.util.ArrayList();
-        Enumeration prefixes = m_namespaces.keys();
-        while (prefixes.hasMoreElements())
+        int i = m_count - 1;
+        while ((i = indexOfURI(uri, i)) >= 0)
         {
-            String prefix = (String) prefixes.nextElement();
-            String uri2 = lookupNamespace(prefix);
-            if (uri2 != null && uri2.equals(uri))
-            {
-                foundPrefixes.add(prefix);
-            }
+            foundPrefixes.add(m_prefixes[i]);
+            i--;
         }
         String[] prefixArray = new String[foundPrefixes.size()];
         foundPrefixes.toArray(prefixArray);
@@ -75,6 +75,18 @@ import org.apache.xml.serializer.utils.WrappedRuntimeException;
  * <li> <b>S_OMIT_META_TAG </b> -
  * This non-standard property key is used to set a value of "yes" if the META tag should be omitted where it would
  *  otherwise be supplied.
+ * 
+ * <li> <b>S_KEY_ASYNC_OUTPUT </b> -
+ * This non-standard property key is used to set a value of "yes" if output to an
+ *  OutputStream should be written by a background thread.
+ * 
+ * <li> <b>S_KEY_COMPRESSION </b> -
+ * This non-standard property key is used to set a value of "gzip" or "deflate" if output
+ *  to an OutputStream should be compressed.
+ * 
+ * <li> <b>S_KEY_PARALLEL_DEPTH </b> -
+ * This non-standard property key is used to set the depth of the elements that
+ *  are serialized by several threads at once, for the xml output method.
  * </ul>
  * 
  * @see SerializerFactory
@@ -159,6 +171,33 @@ public final class OutputPropertiesFactory
     public static final String S_OMIT_META_TAG =
         S_BUILTIN_EXTENSIONS_UNIVERSAL + "omit-meta-tag";
 
+    /** 
+     * This non-standard property key is used to set a value of "yes" if output
+     * to an OutputStream should be handed to a background thread to write,
+     * through an {@link AsyncOutputStream}.
+     */
+    public static final String S_KEY_ASYNC_OUTPUT =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "async-output";
+
+    /** 
+     * This non-standard property key is used to set a value of "gzip" or
+     * "deflate" (zlib format) if output to an OutputStream should be compressed.
+     * The data for each document is ended at the end of the document.
+     */
+    public static final String S_KEY_COMPRESSION =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "compression";
+
+    /** 
+     * This non-standard property key is used to set an element depth of 2 or
+     * more. The elements at that depth, such as the records under a
+     * document's root element when it is 2, are then serialized in chunks
+     * on several threads, and the chunks are written out in document order.
+     * It applies to the xml output method only, and is ignored on a machine
+     * with a single processor.
+     */
+    public static final String S_KEY_PARALLEL_DEPTH =
+        S_BUILTIN_EXTENSIONS_UNIVERSAL + "parallel-depth";
+
     /**
      * The old built-in extension namespace, this is not a public API.
      */
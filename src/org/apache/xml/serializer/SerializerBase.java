@@ -830,9 +830,19 @@ public abstract class SerializerBase
      */
     public NamespaceMappings getNamespaceMappings()
     {
+        updateNamespaceMappings();
         return m_prefixMap;
     }
 
+    /**
+     * Bring the namespace mappings up to date with all the events received
+     * so far, before they are looked at. Only a serializer that holds some
+     * events back, as ToStream does for parallel output, has anything to do.
+     */
+    void updateNamespaceMappings()
+    {
+    }
+
     /**
      * Returns the prefix currently pointing to the given URI (if any).
      * @param namespaceURI the uri of the namespace in question
@@ -841,6 +851,7 @@ public abstract class SerializerBase
      */
     public String getPrefix(String namespaceURI)
     {
+        updateNamespaceMappings();
         String prefix = m_prefixMap.lookupPrefix(namespaceURI);
         return prefix;
     }
@@ -855,6 +866,7 @@ public abstract class SerializerBase
      */
     public String getNamespaceURI(String qname, boolean isElement)
     {
+        updateNamespaceMappings();
         String uri = EMPTYSTRING;
         int col = qname.lastIndexOf(':');
         final String prefix = (col > 0) ? qname.substring(0, col) : EMPTYSTRING;
@@ -885,6 +897,7 @@ public abstract class SerializerBase
      */
     public String getNamespaceURIFromPrefix(String prefix)
     {
+        updateNamespaceMappings();
         String uri = null;
         if (m_prefixMap != null)
             uri = m_prefixMap.lookupNamespace(prefix);
@@ -1241,6 +1254,26 @@ public abstract class SerializerBase
     	resetSerializerBase();
     	return true;
     }
+
+    /**
+     * The key of the output format this serializer was pooled under by
+     * SerializerFactory.getPooledSerializer(), or null if it was not taken
+     * from the pool.
+     */
+    String m_poolKey;
+
+    /**
+     * Reset this serializer so that SerializerFactory can pool it, and
+     * hand it out again for the same output format. Only serializers that
+     * write to a stream or writer override this; the others cannot be
+     * pooled.
+     *
+     * @return true if the serializer was reset and may be pooled.
+     */
+    boolean resetForPool()
+    {
+        return false;
+    }
     
     /**
      * Reset all of the fields owned by SerializerBase
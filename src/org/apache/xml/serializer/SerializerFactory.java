@@ -20,8 +20,11 @@
  */
 package org.apache.xml.serializer;
 
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
+import java.util.Vector;
 
 import javax.xml.transform.OutputKeys;
 
@@ -72,6 +75,37 @@ public final class SerializerFactory
    */
   private static Hashtable m_formats = new Hashtable();
 
+  /**
+   * The name of the system property that sets how many idle serializers
+   * are pooled for each output format. A value of 0 turns pooling off.
+   */
+  public static final String POOL_SIZE_PROPERTY =
+    "org.apache.xml.serializer.SerializerFactory.poolSize";
+
+  /** The pool size used if POOL_SIZE_PROPERTY is not set. */
+  public static final int DEFAULT_POOL_SIZE = 8;
+
+  /** The number of idle serializers pooled for each output format. */
+  private static int m_poolSize = DEFAULT_POOL_SIZE;
+
+  /**
+   * The pooled serializers: maps the key of an output format, see
+   * getPoolKey(), to a Vector of idle serializers for that format.
+   */
+  private static final Hashtable m_pools = new Hashtable();
+
+  static
+  {
+    try
+    {
+      String value = System.getProperty(POOL_SIZE_PROPERTY);
+      if (value != null)
+        m_poolSize = Integer.parseInt(value.trim());
+    }
+    catch (SecurityException ex){}
+    catch (NumberFormatException ex){}
+  }
+
   /**
    * Returns a serializer for the specified output method. The output method
    * is specified by the value of the property associated with the "method" key.
@@ -182,4 +216,137 @@ public final class SerializerFactory
       // If we make it to here ser is not null.
       return ser;
   }
+
+  /**
+   * Returns a serializer for the specified output format, as
+   * getSerializer() does, but takes it from a pool of serializers that
+   * have been used before and given back with releaseSerializer(), if
+   * there is one for the same output properties. A pooled serializer
+   * keeps its buffers, so serializing many small documents does not
+   * allocate new ones for each.
+   * <p>
+   * Only the serializers that write to a stream or writer are pooled;
+   * others are simply created.
+   *
+   * @param format The output format, minimally the "method" property must be set.
+   * @return A suitable serializer, with no output stream or writer set.
+   * @throws IllegalArgumentException if method is
+   * null or an appropriate serializer can't be found
+   * @throws WrappedRuntimeException if an exception is thrown while trying to find serializer
+   */
+  public static Serializer getPooledSerializer(Properties format)
+  {
+      if (m_poolSize <= 0)
+          return getSerializer(format);
+
+      final String key = getPoolKey(format);
+      SerializerBase pooled = null;
+      final Vector pool = (Vector) m_pools.get(key);
+      if (pool != null)
+      {
+          synchronized (pool)
+          {
+              final int n = pool.size();
+              if (n > 0)
+              {
+                  pooled = (SerializerBase) pool.elementAt(n - 1);
+                  pool.removeElementAt(n - 1);
+              }
+          }
+      }
+
+      final Serializer ser;
+      if (pooled != null)
+      {
+          // The serializer was reset when it was released
+          pooled.setOutputFormat(format);
+          ser = pooled;
+      }
+      else
+          ser = getSerializer(format);
+
+      if (ser instanceof SerializerBase)
+          ((SerializerBase) ser).m_poolKey = key;
+      return ser;
+  }
+
+  /**
+   * Gives a serializer obtained from getPooledSerializer() back to the
+   * pool, once it has finished serializing. The serializer is reset, and
+   * lets go of its output stream or writer; the caller must not use it
+   * again. Serializers that did not come from the pool, or that cannot
+   * be reset, are left alone.
+   *
+   * @param ser The serializer, which may be null.
+   */
+  public static void releaseSerializer(Serializer ser)
+  {
+      if (!(ser instanceof SerializerBase) || m_poolSize <= 0)
+          return;
+
+      final SerializerBase base = (SerializerBase) ser;
+      final String key = base.m_poolKey;
+      if (key == null || !base.resetForPool())
+          return;
+      base.m_poolKey = null;
+
+      Vector pool;
+      synchronized (m_pools)
+      {
+          pool = (Vector) m_pools.get(key);
+          if (pool == null)
+          {
+              pool = new Vector(m_poolSize);
+              m_pools.put(key, pool);
+          }
+      }
+      synchronized (pool)
+      {
+          if (pool.size() < m_poolSize && !pool.contains(ser))
+              pool.addElement(ser);
+      }
+  }
+
+  /**
+   * Get the number of idle serializers pooled for each output format.
+   *
+   * @return the pool size, or 0 if pooling is off.
+   */
+  public static int getPoolSize()
+  {
+      return m_poolSize;
+  }
+
+  /**
+   * Set the number of idle serializers pooled for each output format.
+   * Serializers already pooled are not dropped.
+   *
+   * @param size the pool size, or 0 to turn pooling off.
+   */
+  public static void setPoolSize(int size)
+  {
+      m_poolSize = size;
+  }
+
+  /**
+   * Make the key under which serializers for an output format are pooled:
+   * every property, including the defaults, in order of name.
+   */
+  private static String getPoolKey(Properties format)
+  {
+      final Vector names = new Vector();
+      for (Enumeration e = format.propertyNames(); e.hasMoreElements(); )
+          names.addElement(e.nextElement());
+      final Object[] sorted = names.toArray();
+      Arrays.sort(sorted);
+
+      final StringBuffer key = new StringBuffer();
+      for (int i = 0; i < sorted.length; i++)
+      {
+          final String name = (String) sorted[i];
+          key.append(name).append('=');
+          key.append(format.getProperty(name)).append('\n');
+      }
+      return key.toString();
+  }
 }
@@ -0,0 +1,733 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.Transformer;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * A run of the content of one element, recorded by a serializer so that
+ * it can be serialized on another thread. The serializer records the
+ * events it is sent, from the first child at the split depth set by the
+ * {@link OutputPropertiesFactory#S_KEY_PARALLEL_DEPTH} property, until
+ * either the element ends or enough content has been recorded for a
+ * chunk. A worker thread then replays the events into a serializer of its
+ * own, set up with the same output format and the namespace mappings in
+ * scope where the chunk began, and the output, already escaped and
+ * encoded, is kept until ChunkedWriter writes it out in document order.
+ *
+ * The worker threads are daemon threads shared by all serializers. There
+ * is one for each processor at most, and each ends once it has been idle
+ * for a few seconds.
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class SubtreeChunk implements Runnable
+{
+
+    /**
+     * The amount of content, in characters, after which a chunk is ended
+     * at the end of the next element at the split depth.
+     */
+    static final int CHUNK_SIZE = 32*1024;
+
+    /** The number of worker threads. */
+    static final int THREADS =
+        Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    /** How long a worker thread waits for work before ending. */
+    private static final long IDLE_TIMEOUT = 5000;
+
+    // The recorded events. Each code in m_events is followed by the
+    // int operands of its event; the String operands are in m_strings.
+    private static final int START_ELEMENT = 1;
+    private static final int END_ELEMENT = 2;
+    private static final int CHARACTERS = 3;
+    private static final int COMMENT = 4;
+    private static final int PROCESSING_INSTRUCTION = 5;
+    private static final int ENTITY_REFERENCE = 6;
+    private static final int START_ENTITY = 7;
+    private static final int END_ENTITY = 8;
+    private static final int START_CDATA = 9;
+    private static final int END_CDATA = 10;
+    private static final int ADD_ATTRIBUTE = 11;
+    private static final int ADD_ATTRIBUTE_ALWAYS = 12;
+    private static final int ADD_NAMED_ATTRIBUTE = 13;
+    private static final int ADD_XSL_ATTRIBUTE = 14;
+    private static final int ADD_UNIQUE_ATTRIBUTE = 15;
+    private static final int NAMESPACE_AFTER_START_ELEMENT = 16;
+    private static final int START_PREFIX_MAPPING = 17;
+    private static final int SET_ESCAPING = 18;
+    private static final int START_NON_ESCAPING = 19;
+    private static final int END_NON_ESCAPING = 20;
+    private static final int FLUSH_PENDING = 21;
+
+    /** Chunks waiting for a worker thread. */
+    private static final Vector m_queue = new Vector();
+
+    /** The number of worker threads running. */
+    private static int m_threads = 0;
+
+    /** The number of worker threads waiting for a chunk. */
+    private static int m_idle = 0;
+
+    /** The event codes and int operands. */
+    private int[] m_events = new int[256];
+
+    /** The number of entries of m_events in use. */
+    private int m_eventCount = 0;
+
+    /** The String operands, and the Attributes of startElement(). */
+    private Object[] m_strings = new Object[256];
+
+    /** The number of entries of m_strings in use. */
+    private int m_stringCount = 0;
+
+    /** The characters of characters() and comment() events. */
+    private char[] m_chars = new char[4096];
+
+    /** The number of entries of m_chars in use. */
+    private int m_charCount = 0;
+
+    /** The amount of content recorded, in characters. */
+    private int m_size = 0;
+
+    /** The depth of the current element, relative to the chunk's parent. */
+    private int m_depth = 0;
+
+    /** The number of entities started and not ended. */
+    private int m_entities = 0;
+
+    /** The serializer that the events are replayed into. */
+    private final ToStream m_serializer;
+
+    /** The output format of the recording serializer. */
+    final Properties m_format;
+
+    /**
+     * The recording serializer's CDATA section elements. Those set with
+     * setCdataSectionElements(Vector), as XSLTC sets them, are not in its
+     * output format.
+     */
+    final String m_cdataSections;
+
+    /** The namespace mappings in scope where the chunk began. */
+    final NamespaceMappings m_namespaces;
+
+    /** Whether output escaping was on where the chunk began. */
+    final boolean m_escaping;
+
+    /** The recording serializer's line separator. */
+    final char[] m_lineSep;
+
+    /** Whether the recording serializer replaces newlines. */
+    final boolean m_lineSepUse;
+
+    /** Whether the recording serializer expands DTD entities. */
+    final boolean m_expandDTDEntities;
+
+    /** The recording serializer's transformer, for warnings. */
+    final Transformer m_transformer;
+
+    /** The recording serializer's source locator, for warnings. */
+    final SourceLocator m_sourceLocator;
+
+    /** The writer that the chunk's output will be written to. */
+    private final ChunkedWriter m_output;
+
+    /** The output, if it is encoded by the worker thread. */
+    private ByteArrayOutputStream m_bytes;
+
+    /** The output, if it is left for the ChunkedWriter to encode. */
+    private CharArrayWriter m_text;
+
+    /** The exception or error the worker thread met, if any. */
+    private Throwable m_error;
+
+    /** Whether the worker thread has finished with the chunk. */
+    private boolean m_done = false;
+
+    /**
+     * Start recording a chunk.
+     *
+     * @param owner the serializer recording the chunk.
+     * @param serializer the serializer to replay the events into, made by
+     * the owner's newChunkSerializer().
+     * @param format the owner's output format.
+     * @param output the writer that the chunk will be written to.
+     */
+    SubtreeChunk(ToStream owner, ToStream serializer, Properties format,
+                 ChunkedWriter output)
+    {
+        m_serializer = serializer;
+        m_format = format;
+        m_cdataSections = owner.m_StringOfCDATASections;
+        m_namespaces = owner.m_prefixMap.copyFromDepth(
+            owner.m_elemContext.m_currentElemDepth);
+        m_escaping = owner.m_escaping;
+        m_lineSep = owner.m_lineSep;
+        m_lineSepUse = owner.m_lineSepUse;
+        m_expandDTDEntities = owner.m_expandDTDEntities;
+        m_transformer = owner.getTransformer();
+        m_sourceLocator = owner.m_sourceLocator;
+        m_output = output;
+    }
+
+    /**
+     * Tell whether the chunk holds enough content to be ended, which it
+     * can only be between two elements at the split depth.
+     */
+    boolean isComplete()
+    {
+        return m_size >= CHUNK_SIZE && 0 == m_depth && 0 == m_entities;
+    }
+
+    void startElement(String uri, String localName, String name,
+                      Attributes atts)
+    {
+        addEvent(START_ELEMENT);
+        addString(uri);
+        addString(localName);
+        addString(name);
+        addString((null == atts) ? null : new AttributesImpl(atts));
+        m_depth++;
+        m_size += name.length();
+    }
+
+    /**
+     * Record the end of an element.
+     *
+     * @return false if the element is the chunk's parent, which is not
+     * recorded.
+     */
+    boolean endElement(String uri, String localName, String name)
+    {
+        if (0 == m_depth)
+            return false;
+        addEvent(END_ELEMENT);
+        addString(uri);
+        addString(localName);
+        addString(name);
+        m_depth--;
+        return true;
+    }
+
+    void characters(char[] ch, int start, int length)
+    {
+        addChars(CHARACTERS, ch, start, length);
+    }
+
+    void comment(char[] ch, int start, int length)
+    {
+        addChars(COMMENT, ch, start, length);
+    }
+
+    void processingInstruction(String target, String data)
+    {
+        addEvent(PROCESSING_INSTRUCTION);
+        addString(target);
+        addString(data);
+        m_size += data.length();
+    }
+
+    void entityReference(String name)
+    {
+        addEvent(ENTITY_REFERENCE);
+        addString(name);
+    }
+
+    void startEntity(String name)
+    {
+        addEvent(START_ENTITY);
+        addString(name);
+        m_entities++;
+    }
+
+    void endEntity(String name)
+    {
+        addEvent(END_ENTITY);
+        addString(name);
+        m_entities--;
+    }
+
+    void startCDATA()
+    {
+        addEvent(START_CDATA);
+    }
+
+    void endCDATA()
+    {
+        addEvent(END_CDATA);
+    }
+
+    void addAttribute(String uri, String localName, String rawName,
+                      String type, String value, boolean xslAttribute)
+    {
+        addAttribute(ADD_ATTRIBUTE, uri, localName, rawName, type, value,
+                     xslAttribute);
+    }
+
+    void addAttributeAlways(String uri, String localName, String rawName,
+                            String type, String value, boolean xslAttribute)
+    {
+        addAttribute(ADD_ATTRIBUTE_ALWAYS, uri, localName, rawName, type,
+                     value, xslAttribute);
+    }
+
+    void addAttribute(String name, String value)
+    {
+        addEvent(ADD_NAMED_ATTRIBUTE);
+        addString(name);
+        addString(value);
+        m_size += value.length();
+    }
+
+    void addXSLAttribute(String name, String value, String uri)
+    {
+        addEvent(ADD_XSL_ATTRIBUTE);
+        addString(name);
+        addString(value);
+        addString(uri);
+        m_size += value.length();
+    }
+
+    void addUniqueAttribute(String name, String value, int flags)
+    {
+        addEvent(ADD_UNIQUE_ATTRIBUTE);
+        addEvent(flags);
+        addString(name);
+        addString(value);
+        m_size += value.length();
+    }
+
+    void namespaceAfterStartElement(String prefix, String uri)
+    {
+        addEvent(NAMESPACE_AFTER_START_ELEMENT);
+        addString(prefix);
+        addString(uri);
+    }
+
+    void startPrefixMapping(String prefix, String uri, boolean shouldFlush)
+    {
+        addEvent(START_PREFIX_MAPPING);
+        addEvent(shouldFlush ? 1 : 0);
+        addString(prefix);
+        addString(uri);
+    }
+
+    void setEscaping(boolean escape)
+    {
+        addEvent(SET_ESCAPING);
+        addEvent(escape ? 1 : 0);
+    }
+
+    void startNonEscaping()
+    {
+        addEvent(START_NON_ESCAPING);
+    }
+
+    void endNonEscaping()
+    {
+        addEvent(END_NON_ESCAPING);
+    }
+
+    void flushPending()
+    {
+        addEvent(FLUSH_PENDING);
+    }
+
+    /**
+     * Send the recorded events to a serializer, in the order they were
+     * recorded.
+     *
+     * @param s the serializer.
+     * @throws SAXException if the serializer throws it.
+     */
+    void replay(ToStream s) throws SAXException
+    {
+        final int[] events = m_events;
+        final Object[] strings = m_strings;
+        final int n = m_eventCount;
+        int j = 0;
+        for (int i = 0; i < n; i++)
+        {
+            switch (events[i])
+            {
+            case START_ELEMENT:
+                s.startElement((String) strings[j], (String) strings[j + 1],
+                    (String) strings[j + 2], (Attributes) strings[j + 3]);
+                j += 4;
+                break;
+            case END_ELEMENT:
+                s.endElement((String) strings[j], (String) strings[j + 1],
+                    (String) strings[j + 2]);
+                j += 3;
+                break;
+            case CHARACTERS:
+                s.characters(m_chars, events[i + 1], events[i + 2]);
+                i += 2;
+                break;
+            case COMMENT:
+                s.comment(m_chars, events[i + 1], events[i + 2]);
+                i += 2;
+                break;
+            case PROCESSING_INSTRUCTION:
+                s.processingInstruction((String) strings[j],
+                    (String) strings[j + 1]);
+                j += 2;
+                break;
+            case ENTITY_REFERENCE:
+                s.entityReference((String) strings[j++]);
+                break;
+            case START_ENTITY:
+                s.startEntity((String) strings[j++]);
+                break;
+            case END_ENTITY:
+                s.endEntity((String) strings[j++]);
+                break;
+            case START_CDATA:
+                s.startCDATA();
+                break;
+            case END_CDATA:
+                s.endCDATA();
+                break;
+            case ADD_ATTRIBUTE:
+                s.addAttribute((String) strings[j], (String) strings[j + 1],
+                    (String) strings[j + 2], (String) strings[j + 3],
+                    (String) strings[j + 4], 0 != events[++i]);
+                j += 5;
+                break;
+            case ADD_ATTRIBUTE_ALWAYS:
+                s.addAttributeAlways((String) strings[j],
+                    (String) strings[j + 1], (String) strings[j + 2],
+                    (String) strings[j + 3], (String) strings[j + 4],
+                    0 != events[++i]);
+                j += 5;
+                break;
+            case ADD_NAMED_ATTRIBUTE:
+                s.addAttribute((String) strings[j], (String) strings[j + 1]);
+                j += 2;
+                break;
+            case ADD_XSL_ATTRIBUTE:
+                s.addXSLAttribute((String) strings[j],
+                    (String) strings[j + 1], (String) strings[j + 2]);
+                j += 3;
+                break;
+            case ADD_UNIQUE_ATTRIBUTE:
+                s.addUniqueAttribute((String) strings[j],
+                    (String) strings[j + 1], events[++i]);
+                j += 2;
+                break;
+            case NAMESPACE_AFTER_START_ELEMENT:
+                s.namespaceAfterStartElement((String) strings[j],
+                    (String) strings[j + 1]);
+                j += 2;
+                break;
+            case START_PREFIX_MAPPING:
+                s.startPrefixMapping((String) strings[j],
+                    (String) strings[j + 1], 0 != events[++i]);
+                j += 2;
+                break;
+            case SET_ESCAPING:
+                s.setEscaping(0 != events[++i]);
+                break;
+            case START_NON_ESCAPING:
+                s.startNonEscaping();
+                break;
+            case END_NON_ESCAPING:
+                s.endNonEscaping();
+                break;
+            case FLUSH_PENDING:
+                s.flushPending();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Serialize the chunk. This is done on a worker thread.
+     */
+    public void run()
+    {
+        Throwable error = null;
+        try
+        {
+            final Writer writer;
+            if (m_output.isByteOutput())
+            {
+                m_bytes = new ByteArrayOutputStream(CHUNK_SIZE + CHUNK_SIZE/2);
+                writer = m_output.newChunkWriter(m_bytes);
+            }
+            else
+            {
+                m_text = new CharArrayWriter(CHUNK_SIZE + CHUNK_SIZE/2);
+                writer = m_text;
+            }
+
+            final ToStream s = m_serializer;
+            s.startChunkOutput(this, writer);
+            replay(s);
+            s.endChunkOutput();
+        }
+        catch (Throwable t)
+        {
+            // Even an Error, such as running out of memory, must reach the
+            // thread waiting for the chunk
+            error = t;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                // The recording is no longer needed
+                m_events = null;
+                m_strings = null;
+                m_chars = null;
+                m_error = error;
+                m_done = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Tell whether the chunk has been serialized.
+     */
+    synchronized boolean isDone()
+    {
+        return m_done;
+    }
+
+    /**
+     * Wait for the chunk to be serialized, then write its output to the
+     * underlying stream of a ChunkedWriter.
+     *
+     * @param os the stream.
+     * @throws IOException if the chunk could not be serialized, or the
+     * stream cannot be written to.
+     */
+    void writeTo(OutputStream os) throws IOException
+    {
+        waitForDone();
+        m_bytes.writeTo(os);
+    }
+
+    /**
+     * Wait for the chunk to be serialized, then write its output to the
+     * underlying writer of a ChunkedWriter.
+     *
+     * @param w the writer.
+     * @throws IOException if the chunk could not be serialized, or the
+     * writer cannot be written to.
+     */
+    void writeTo(Writer w) throws IOException
+    {
+        waitForDone();
+        m_text.writeTo(w);
+    }
+
+    /**
+     * Wait for a worker thread to serialize the chunk, and throw any error
+     * it met.
+     */
+    private synchronized void waitForDone() throws IOException
+    {
+        try
+        {
+            while (!m_done)
+                wait();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (m_error instanceof IOException)
+            throw (IOException) m_error;
+        if (null != m_error)
+        {
+            IOException ioe = new IOException(m_error.toString());
+            ioe.initCause(m_error);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Hand a chunk to a worker thread, starting one if none is idle.
+     *
+     * @param chunk the chunk.
+     */
+    static void execute(SubtreeChunk chunk)
+    {
+        synchronized (m_queue)
+        {
+            m_queue.addElement(chunk);
+            if (m_idle > 0)
+                m_queue.notify();
+            else if (m_threads < THREADS)
+                startWorker();
+        }
+    }
+
+    /**
+     * Start a worker thread. The caller holds the lock on m_queue.
+     */
+    private static void startWorker()
+    {
+        m_threads++;
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                workLoop();
+            }
+        }, "Xalan serializer chunk worker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The body of a worker thread: serialize the chunks handed to the
+     * workers, and end after a while with nothing to do.
+     */
+    private static void workLoop()
+    {
+        boolean ended = false;
+        try
+        {
+            while (true)
+            {
+                SubtreeChunk chunk;
+                synchronized (m_queue)
+                {
+                    if (m_queue.isEmpty())
+                    {
+                        m_idle++;
+                        try
+                        {
+                            m_queue.wait(IDLE_TIMEOUT);
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            // Treat it as the end of the wait
+                        }
+                        m_idle--;
+                        if (m_queue.isEmpty())
+                        {
+                            m_threads--;
+                            ended = true;
+                            return;
+                        }
+                    }
+                    chunk = (SubtreeChunk) m_queue.elementAt(0);
+                    m_queue.removeElementAt(0);
+                }
+                chunk.run();
+            }
+        }
+        finally
+        {
+            // A thread that dies must still give up its place, and leave
+            // a worker for any chunks it would have taken
+            if (!ended)
+            {
+                synchronized (m_queue)
+                {
+                    m_threads--;
+                    if (!m_queue.isEmpty() && 0 == m_idle)
+                        startWorker();
+                }
+            }
+        }
+    }
+
+    private void addEvent(int event)
+    {
+        if (m_eventCount == m_events.length)
+        {
+            int[] events = new int[2 * m_eventCount];
+            System.arraycopy(m_events, 0, events, 0, m_eventCount);
+            m_events = events;
+        }
+        m_events[m_eventCount++] = event;
+    }
+
+    private void addString(Object s)
+    {
+        if (m_stringCount == m_strings.length)
+        {
+            Object[] strings = new Object[2 * m_stringCount];
+            System.arraycopy(m_strings, 0, strings, 0, m_stringCount);
+            m_strings = strings;
+        }
+        m_strings[m_stringCount++] = s;
+    }
+
+    /**
+     * Record an event with characters, which are copied, as the caller
+     * may reuse its array.
+     */
+    private void addChars(int event, char[] ch, int start, int length)
+    {
+        if (m_charCount + length > m_chars.length)
+        {
+            char[] chars =
+                new char[Math.max(2 * m_chars.length, m_charCount + length)];
+            System.arraycopy(m_chars, 0, chars, 0, m_charCount);
+            m_chars = chars;
+        }
+        System.arraycopy(ch, start, m_chars, m_charCount, length);
+        addEvent(event);
+        addEvent(m_charCount);
+        addEvent(length);
+        m_charCount += length;
+        m_size += length;
+    }
+
+    private void addAttribute(int event, String uri, String localName,
+                              String rawName, String type, String value,
+                              boolean xslAttribute)
+    {
+        addEvent(event);
+        addEvent(xslAttribute ? 1 : 0);
+        addString(uri);
+        addString(localName);
+        addString(rawName);
+        addString(type);
+        addString(value);
+        m_size += value.length();
+    }
+}
@@ -647,12 +647,30 @@ public class ToHTMLStream extends ToStream
      */
     private ElemDesc getElemDesc2(String name)
     {
+        // Most documents use a few element names over and over, so the
+        // last description found for each hash slot is kept
+        final int slot = name.hashCode() & (ELEM_DESC_CACHE_SIZE - 1);
+        final String cachedName = m_elemDescNames[slot];
+        if (cachedName == name
+            || (cachedName != null && cachedName.equals(name)))
+            return m_elemDescs[slot];
+
         Object obj = m_htmlInfo.get2(name);
-        if (null != obj)
-            return (ElemDesc)obj;
-        return m_dummy;
+        final ElemDesc elemDesc = (null != obj) ? (ElemDesc) obj : m_dummy;
+        m_elemDescNames[slot] = name;
+        m_elemDescs[slot] = elemDesc;
+        return elemDesc;
     }
 
+    /** The number of element names getElemDesc2() remembers, a power of 2. */
+    private static final int ELEM_DESC_CACHE_SIZE = 64;
+
+    /** The element names last looked up by getElemDesc2(), by hash slot. */
+    private final String[] m_elemDescNames = new String[ELEM_DESC_CACHE_SIZE];
+
+    /** The descriptions of the names in m_elemDescNames. */
+    private final ElemDesc[] m_elemDescs = new ElemDesc[ELEM_DESC_CACHE_SIZE];
+
     /**
      * Default constructor.
      */
@@ -1394,8 +1412,7 @@ public class ToHTMLStream extends ToStream
         }
         string.getChars(0, end, m_attrBuff, 0);
         final char[] chars = m_attrBuff;
-
-        
+        final byte[] escapes = getEscapes();
 
         int cleanStart = 0;
         int cleanLength = 0;
@@ -1409,7 +1426,8 @@ public class ToHTMLStream extends ToStream
             // System.out.println("ch: "+(int)ch);
             // System.out.println("m_maxCharacter: "+(int)m_maxCharacter);
             // System.out.println("m_attrCharsMap[ch]: "+(int)m_attrCharsMap[ch]);
-            if (escapingNotNeeded(ch) && (!m_charInfo.shouldMapAttrChar(ch)))
+            if ((escapes[ch]
+                 & (CharInfo.ESC_CHAR_REF | CharInfo.ESC_ATTR_ENTITY)) == 0)
             {
                 cleanLength++;
             }
@@ -25,6 +25,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.channels.WritableByteChannel;
 import java.util.EmptyStackException;
 import java.util.Enumeration;
 import java.util.Iterator;
@@ -132,12 +133,77 @@ abstract public class ToStream extends SerializerBase
      */
     protected int m_lineSepLen = m_lineSep.length;
 
+    /**
+     * The line separator followed by spaces, that indent(int) writes
+     * from, or null if it has not been needed yet.
+     */
+    private char[] m_indentChars = null;
+
+    /** The line separator that m_indentChars was made with. */
+    private char[] m_indentLineSep = null;
+
     /**
      * Map that tells which characters should have special treatment, and it
      *  provides character to entity name lookup.
      */
     protected CharInfo m_charInfo;
 
+    /**
+     * The escape table of m_charInfo for m_encodingInfo, see
+     * {@link CharInfo#getEscapeTable(EncodingInfo)}, or null if not yet
+     * looked up. It is looked up again whenever either of them changes.
+     */
+    private byte[] m_escapes;
+
+    /** The CharInfo that m_escapes belongs to. */
+    private CharInfo m_escapesCharInfo;
+
+    /** The EncodingInfo that m_escapes was built for. */
+    private EncodingInfo m_escapesEncodingInfo;
+
+    /**
+     * A UTF-8 writer that this serializer made for an earlier output
+     * stream and no longer uses, whose buffers the next UTF-8 writer
+     * takes over; or null.
+     */
+    private WriterToUTF8Buffered m_spareUTF8Writer;
+
+    /**
+     * True if output to an OutputStream is written through an
+     * AsyncOutputStream, as set by the async-output property.
+     */
+    private boolean m_asyncOutput = false;
+
+    /**
+     * The compressed format for output to an OutputStream, as set by the
+     * compression property, or null if output is not compressed.
+     */
+    private String m_compression;
+
+    /**
+     * The stream that compresses the output, if any. It is finished at
+     * the end of each document.
+     */
+    CompressingOutputStream m_compressor;
+
+    /**
+     * The depth of the elements that are serialized in chunks on other
+     * threads, as set by the parallel-depth property, or 0 if none are.
+     */
+    private int m_splitDepth = 0;
+
+    /** The chunk being recorded, or null. */
+    SubtreeChunk m_chunk;
+
+    /**
+     * The writer that puts the chunks in order, while the current document
+     * has any, or null.
+     */
+    private ChunkedWriter m_chunkedWriter;
+
+    /** The output format the chunks of the current document are written in. */
+    private Properties m_chunkFormat;
+
     /** True if we control the buffer, and we should flush the output on endDocument. */
     boolean m_shouldFlush = true;
 
@@ -174,7 +240,7 @@ abstract public class ToStream extends SerializerBase
      * If this flag is true DTD entity references are not left as-is,
      * which is exiting older behavior.
      */
-    private boolean m_expandDTDEntities = true;
+    boolean m_expandDTDEntities = true;
   
 
     /**
@@ -238,6 +304,9 @@ abstract public class ToStream extends SerializerBase
      */
     protected final void flushWriter() throws org.xml.sax.SAXException
     {
+        if (m_chunkedWriter != null)
+            endChunkedOutput();
+
         final java.io.Writer writer = m_writer;
         if (null != writer)
         {
@@ -255,6 +324,13 @@ abstract public class ToStream extends SerializerBase
                     if (m_shouldFlush)
                         writer.flush();
                 }
+                else if (writer instanceof WriterToSingleByteBuffered)
+                {
+                    if (m_shouldFlush)
+                         writer.flush();
+                    else
+                         ((WriterToSingleByteBuffered) writer).flushBuffer();
+                }
                 else
                 {
                     // Flush always. 
@@ -262,6 +338,25 @@ abstract public class ToStream extends SerializerBase
                     // by this class, but don't have a choice.
                     writer.flush();
                 }
+
+                final CompressingOutputStream compressor = m_compressor;
+                if (null != compressor)
+                {
+                    // End the compressed data of this document. Everything
+                    // is pushed through to the compressor first, from a
+                    // background stage as well.
+                    writer.flush();
+                    compressor.finish();
+                    if (m_shouldFlush)
+                        compressor.flush();
+                }
+
+                final ChannelOutputStream channelStream = m_channelStream;
+                if (null != channelStream)
+                {
+                    writer.flush();
+                    channelStream.releaseBuffers();
+                }
             }
             catch (IOException ioe)
             {
@@ -388,10 +483,31 @@ abstract public class ToStream extends SerializerBase
 
             char first = getFirstCharLocName(name);
             switch (first) {
+            case 'a':
+                if (OutputPropertiesFactory.S_KEY_ASYNC_OUTPUT.equals(name)) {
+                    boolean b = "yes".equals(val) ? true : false;
+                    if (b != m_asyncOutput) {
+                        m_asyncOutput = b;
+                        // Put the stage into, or take it out of, the
+                        // writers for a stream that is already set
+                        if (m_outputStream != null && !m_writer_set_by_user)
+                            setOutputStreamInternal(m_outputStream, false);
+                    }
+                }
+                break;
             case 'c':
                 if (OutputKeys.CDATA_SECTION_ELEMENTS.equals(name)) {
                     String cdataSectionNames = val;
                     addCdataSectionElements(cdataSectionNames);
+                } else if (OutputPropertiesFactory.S_KEY_COMPRESSION.equals(name)) {
+                    String format = CompressingOutputStream.getFormat(val);
+                    if (format != m_compression) {
+                        m_compression = format;
+                        // Put the compressor into, or take it out of, the
+                        // writers for a stream that is already set
+                        if (m_outputStream != null && !m_writer_set_by_user)
+                            setOutputStreamInternal(m_outputStream, false);
+                    }
                 }
                 break;
             case 'd':
@@ -525,6 +641,21 @@ abstract public class ToStream extends SerializerBase
                     this.m_shouldNotWriteXMLHeader = b;
                 }
                 break;
+            case 'p':
+                if (OutputPropertiesFactory.S_KEY_PARALLEL_DEPTH.equals(name)) {
+                    int depth;
+                    try {
+                        depth = Integer.parseInt(val.trim());
+                    } catch (NumberFormatException e) {
+                        depth = 0;
+                    }
+                    // The document element itself is never split off, and
+                    // with a single processor recording chunks only adds
+                    // work
+                    m_splitDepth = (depth > 1 && SubtreeChunk.THREADS > 1)
+                        ? depth : 0;
+                }
+                break;
             case 's':
                 // if standalone was explicitly specified
                 if (OutputKeys.STANDALONE.equals(name)) {
@@ -649,6 +780,7 @@ abstract public class ToStream extends SerializerBase
      */
     public void setWriter(Writer writer)
     {        
+        m_channelStream = null;
         setWriterInternal(writer, true);
     }
     
@@ -657,6 +789,8 @@ abstract public class ToStream extends SerializerBase
 
         m_writer_set_by_user = setByUser;
         m_writer = writer;
+        if (setByUser)
+            m_compressor = null;
         // if we are tracing events we need to trace what
         // characters are written to the output writer.
         if (m_tracer != null) {
@@ -706,24 +840,70 @@ abstract public class ToStream extends SerializerBase
      */
     public void setOutputStream(OutputStream output)
     {
+        m_channelStream = null;
+        setOutputStreamInternal(output, true);
+    }
+
+    /**
+     * Specifies a channel to which the document should be serialized,
+     * such as a FileChannel or a SocketChannel in blocking mode. The
+     * encoded output is collected in pooled direct buffers and handed to
+     * the channel in large gathering writes; see
+     * {@link ChannelOutputStream}. This method should not be called while
+     * the serializer is in the process of serializing a document.
+     * <p>
+     * The output is only certain to reach the channel once the document
+     * has ended and the serializer has flushed its output.
+     *
+     * @param channel The channel
+     */
+    public void setOutputChannel(WritableByteChannel channel)
+    {
+        final ChannelOutputStream output = new ChannelOutputStream(channel);
         setOutputStreamInternal(output, true);
+        m_channelStream = output;
     }
+
+    /**
+     * The stream made by setOutputChannel(), if the output goes to it.
+     * Nothing else flushes or closes it, so flushWriter() writes its
+     * output to the channel and gives its buffers back to the pool.
+     */
+    private ChannelOutputStream m_channelStream;
     
     private void setOutputStreamInternal(OutputStream output, boolean setByUser)
     {
         m_outputStream = output;
+        m_compressor = null;
+        // The compressor goes under any background stage, so that the
+        // compression is done on the background thread too
+        if (m_compression != null)
+            output = m_compressor = new CompressingOutputStream(output, m_compression);
+        if (m_asyncOutput)
+            output = new AsyncOutputStream(output);
         String encoding = getOutputProperty(OutputKeys.ENCODING);        
         if (Encodings.DEFAULT_MIME_ENCODING.equalsIgnoreCase(encoding))
         {
             // We wrap the OutputStream with a writer, but
             // not one set by the user
-            setWriterInternal(new WriterToUTF8Buffered(output), false);
-        } else if (
-                "WINDOWS-1250".equals(encoding)
-                || "US-ASCII".equals(encoding)
-                || "ASCII".equals(encoding))
+            final WriterToUTF8Buffered writer = (m_spareUTF8Writer == null)
+                ? new WriterToUTF8Buffered(output)
+                : new WriterToUTF8Buffered(output, m_spareUTF8Writer);
+            m_spareUTF8Writer = null;
+            setWriterInternal(writer, false);
+        } else if ("WINDOWS-1250".equals(encoding))
         {
             setWriterInternal(new WriterToASCI(output), false);
+        } else if ("ASCII".equals(Encodings.convertMime2JavaEncoding(encoding)))
+        {
+            // Encode straight into a byte buffer, rather than through
+            // the JDK's encoder, for the single-byte encodings too
+            setWriterInternal(
+                WriterToSingleByteBuffered.newASCIIWriter(output), false);
+        } else if ("ISO8859_1".equals(Encodings.convertMime2JavaEncoding(encoding)))
+        {
+            setWriterInternal(
+                WriterToSingleByteBuffered.newLatin1Writer(output), false);
         } else if (encoding != null) {
             Writer osw = null;
                 try
@@ -768,6 +948,8 @@ abstract public class ToStream extends SerializerBase
      */
     public boolean setEscaping(boolean escape)
     {
+        if (m_chunk != null)
+            m_chunk.setEscaping(escape);
         final boolean temp = m_escaping;
         m_escaping = escape;
         return temp;
@@ -786,14 +968,23 @@ abstract public class ToStream extends SerializerBase
     protected void indent(int depth) throws IOException
     {
 
-        if (m_startNewLine)
-            outputLineSep();
         /* For m_indentAmount > 0 this extra test might be slower
          * but Xalan's default value is 0, so this extra test
          * will run faster in that situation.
          */
-        if (m_indentAmount > 0)
-            printSpace(depth * m_indentAmount);
+        final int spaces = (m_indentAmount > 0) ? depth * m_indentAmount : 0;
+        if (spaces > 0)
+        {
+            // The line separator and the spaces are written together,
+            // from a prepared array, rather than a character at a time
+            final char[] chars = getIndentChars(spaces);
+            if (m_startNewLine)
+                m_writer.write(chars, 0, m_lineSepLen + spaces);
+            else
+                m_writer.write(chars, m_lineSepLen, spaces);
+        }
+        else if (m_startNewLine)
+            outputLineSep();
 
     }
     
@@ -805,20 +996,32 @@ abstract public class ToStream extends SerializerBase
     {
         indent(m_elemContext.m_currentElemDepth);
     }
+
     /**
-     * Prints <var>n</var> spaces.
-     * @param n         Number of spaces to print.
+     * Get the array that indent(int) writes from: the line separator
+     * followed by at least the given number of spaces. The array is kept,
+     * and only made again when a deeper indentation or a different line
+     * separator is needed.
      *
-     * @throws org.xml.sax.SAXException if an error occurs when writing.
+     * @param spaces the number of spaces needed after the line separator.
+     * @return the array.
      */
-    private void printSpace(int n) throws IOException
+    private char[] getIndentChars(int spaces)
     {
-        final java.io.Writer writer = m_writer;
-        for (int i = 0; i < n; i++)
+        char[] chars = m_indentChars;
+        final int lineSepLen = m_lineSepLen;
+        if (chars == null
+            || m_indentLineSep != m_lineSep
+            || chars.length < lineSepLen + spaces)
         {
-            writer.write(' ');
+            // Make room for some deeper indentation too
+            chars = new char[lineSepLen + Math.max(2 * spaces, 64)];
+            System.arraycopy(m_lineSep, 0, chars, 0, lineSepLen);
+            java.util.Arrays.fill(chars, lineSepLen, chars.length, ' ');
+            m_indentChars = chars;
+            m_indentLineSep = m_lineSep;
         }
-
+        return chars;
     }
 
     /**
@@ -950,12 +1153,34 @@ abstract public class ToStream extends SerializerBase
             else
                 ret = false;
         }
+        else if (m_charInfo != null) {
+            ret = (getEscapes()[ch] & CharInfo.ESC_CHAR_REF) == 0;
+        }
         else {            
             ret = m_encodingInfo.isInEncoding(ch);
         }
         return ret;
     }
 
+    /**
+     * Get the escape table of the current CharInfo for the current
+     * encoding, which tells with the ESC_ flags of CharInfo how each
+     * char is written. m_charInfo must not be null.
+     *
+     * @return the escape table, which must not be changed.
+     */
+    final byte[] getEscapes()
+    {
+        if (m_escapesCharInfo != m_charInfo
+            || m_escapesEncodingInfo != m_encodingInfo)
+        {
+            m_escapes = m_charInfo.getEscapeTable(m_encodingInfo);
+            m_escapesCharInfo = m_charInfo;
+            m_escapesEncodingInfo = m_encodingInfo;
+        }
+        return m_escapes;
+    }
+
     /**
      * Once a surrogate has been detected, write out the pair of
      * characters if it is in the encoding, or if there is no
@@ -1208,6 +1433,8 @@ abstract public class ToStream extends SerializerBase
      */
     public void endNonEscaping() throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+            m_chunk.endNonEscaping();
         m_disableOutputEscapingStates.pop();
     }
 
@@ -1223,6 +1450,8 @@ abstract public class ToStream extends SerializerBase
      */
     public void startNonEscaping() throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+            m_chunk.startNonEscaping();
         m_disableOutputEscapingStates.push(true);
     }
 
@@ -1400,7 +1629,16 @@ abstract public class ToStream extends SerializerBase
         // characters to read from array is 0.
         // Section 7.6.1 of XSLT 1.0 (http://www.w3.org/TR/xslt#value-of) suggest no text node
         // is created if string is empty.	
-        if (length == 0 || (m_inEntityRef && !m_expandDTDEntities))
+        if (length == 0)
+            return;
+
+        if (recordContent())
+        {
+            m_chunk.characters(chars, start, length);
+            return;
+        }
+
+        if (m_inEntityRef && !m_expandDTDEntities)
             return;
             
         m_docIsEmpty = false;
@@ -1520,11 +1758,19 @@ abstract public class ToStream extends SerializerBase
                 m_ispreserve = true;
             
             
+            final byte[] escapes = getEscapes();
             for (; i < end; i++)
             {
                 char ch = chars[i];
-                
-                if (m_charInfo.shouldMapTextChar(ch)) {
+
+                final int flags = escapes[ch];
+                if ((flags & CharInfo.ESC_TEXT_DIRTY) == 0) {
+                    // By far the most common case: the character is
+                    // written as itself, so just add it to the clean ones
+                    continue;
+                }
+
+                if ((flags & CharInfo.ESC_TEXT_ENTITY) != 0) {
                     // The character is supposed to be replaced by a String
                     // e.g.   '&'  -->  "&amp;"
                     // e.g.   '<'  -->  "&lt;"
@@ -1595,7 +1841,7 @@ abstract public class ToStream extends SerializerBase
                         writer.write("&#8232;");
                         lastDirtyCharProcessed = i;
                     }
-                    else if (m_encodingInfo.isInEncoding(ch)) {
+                    else if ((flags & CharInfo.ESC_CHAR_REF) == 0) {
                         // If the character is in the encoding, and
                         // not in the normal ASCII range, we also
                         // just leave it get added on to the clean characters
@@ -1899,6 +2145,12 @@ abstract public class ToStream extends SerializerBase
         Attributes atts)
         throws org.xml.sax.SAXException
     {
+        if (recordContent())
+        {
+            m_chunk.startElement(namespaceURI, localName, name, atts);
+            return;
+        }
+
         if (m_inEntityRef)
             return;
 
@@ -2102,13 +2354,43 @@ abstract public class ToStream extends SerializerBase
            m_attrBuff = new char[len*2 + 1];             
         }
         string.getChars(0,len, m_attrBuff, 0);   
-        final char[] stringChars = m_attrBuff;
+        writeAttrChars(writer, m_attrBuff, len);
+    }
+
+    /**
+     * Write an attribute value held in a char array, escaping it as
+     * writeAttrString() does. Runs of characters that need no escaping are
+     * written straight from the array, in one call to the writer each.
+     *
+     * @param writer the writer to write to.
+     * @param stringChars the characters of the value.
+     * @param len the number of characters in the value.
+     *
+     * @throws java.io.IOException
+     */
+    private void writeAttrChars(Writer writer, char[] stringChars, int len)
+        throws IOException
+    {
+        final byte[] escapes = getEscapes();
 
+        // The start of the run of characters not yet written
+        int cleanStart = 0;
         for (int i = 0; i < len; i++)
         {
             char ch = stringChars[i];
-            
-            if (m_charInfo.shouldMapAttrChar(ch)) {
+
+            final int flags = escapes[ch];
+            if ((flags & CharInfo.ESC_ATTR_DIRTY) == 0) {
+                // The character is written as itself, with the rest of
+                // the run
+                continue;
+            }
+
+            if (i > cleanStart)
+                writer.write(stringChars, cleanStart, i - cleanStart);
+            cleanStart = i + 1;
+
+            if ((flags & CharInfo.ESC_ATTR_ENTITY) != 0) {
                 // The character is supposed to be replaced by a String
                 // e.g.   '&'  -->  "&amp;"
                 // e.g.   '<'  -->  "&lt;"
@@ -2165,7 +2447,7 @@ abstract public class ToStream extends SerializerBase
                     // LINE SEPARATOR
                     writer.write("&#8232;");
                 }
-                else if (m_encodingInfo.isInEncoding(ch)) {
+                else if ((flags & CharInfo.ESC_CHAR_REF) == 0) {
                     // If the character is in the encoding, and
                     // not in the normal ASCII range, we also
                     // just write it out
@@ -2183,6 +2465,9 @@ abstract public class ToStream extends SerializerBase
                     
             }
         }
+
+        if (len > cleanStart)
+            writer.write(stringChars, cleanStart, len - cleanStart);
     }
 
     /**
@@ -2204,6 +2489,20 @@ abstract public class ToStream extends SerializerBase
     public void endElement(String namespaceURI, String localName, String name)
         throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+        {
+            if (m_chunk.endElement(namespaceURI, localName, name))
+            {
+                if (m_chunk.isComplete()
+                    && !m_cdataStartCalled
+                    && m_disableOutputEscapingStates.size() == 0)
+                    endChunk();
+                return;
+            }
+            // The element the chunk is the content of is ending
+            endChunk();
+        }
+
         if (m_inEntityRef)
             return;
 
@@ -2333,6 +2632,17 @@ abstract public class ToStream extends SerializerBase
          * consideration that startElement() will soon be called
          */
 
+        if (m_chunk != null
+            || (shouldFlush
+                && m_elemContext.m_currentElemDepth == m_splitDepth - 1
+                && startChunk()))
+        {
+            // The answer is not known until the chunk is serialized, and
+            // nothing outside the serializer asks for it
+            m_chunk.startPrefixMapping(prefix, uri, shouldFlush);
+            return true;
+        }
+
         boolean pushed;
         int pushDepth;
         if (shouldFlush)
@@ -2393,6 +2703,11 @@ abstract public class ToStream extends SerializerBase
     {
 
         int start_old = start;
+        if (recordContent())
+        {
+            m_chunk.comment(ch, start, length);
+            return;
+        }
         if (m_inEntityRef)
             return;
         if (m_elemContext.m_startTagOpen)
@@ -2471,6 +2786,8 @@ abstract public class ToStream extends SerializerBase
      */
     public void endCDATA() throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+            m_chunk.endCDATA();
         if (m_cdataTagOpen)
             closeCDATA();
         m_cdataStartCalled = false;
@@ -2565,6 +2882,8 @@ abstract public class ToStream extends SerializerBase
      */
     public void startCDATA() throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+            m_chunk.startCDATA();
         m_cdataStartCalled = true;
     }
 
@@ -2585,6 +2904,12 @@ abstract public class ToStream extends SerializerBase
      */
     public void startEntity(String name) throws org.xml.sax.SAXException
     {
+        if (m_chunk != null)
+        {
+            m_chunk.startEntity(name);
+            return;
+        }
+
         if (name.equals("[dtd]"))
             m_inExternalDTD = true;
 
@@ -2954,6 +3279,11 @@ abstract public class ToStream extends SerializerBase
      */
     public void flushPending() throws SAXException
     {
+            if (m_chunk != null)
+            {
+                m_chunk.flushPending();
+                return;
+            }
             if (m_needToCallStartDocument)
             {
                 startDocumentInternal();
@@ -3014,6 +3344,13 @@ abstract public class ToStream extends SerializerBase
         String value,
         boolean xslAttribute)
     {
+        if (recordAttribute(uri, rawName, xslAttribute))
+        {
+            m_chunk.addAttributeAlways(
+                uri, localName, rawName, type, value, xslAttribute);
+            return true;
+        }
+
         boolean was_added;
         int index;
         if (uri == null || localName == null || uri.length() == 0)
@@ -3237,6 +3574,268 @@ abstract public class ToStream extends SerializerBase
         
         
     }
+    /**
+     * Report the end of an entity.
+     *
+     * @param name The name of the entity that is ending.
+     * @throws org.xml.sax.SAXException The application may raise an exception.
+     * @see #startEntity
+     */
+    public void endEntity(String name) throws org.xml.sax.SAXException
+    {
+        if (m_chunk != null)
+        {
+            m_chunk.endEntity(name);
+            return;
+        }
+        super.endEntity(name);
+    }
+
+    /**
+     *  Adds  the given attribute to the set of collected attributes, 
+     * but only if there is a currently open element.
+     *
+     * @param name the attribute's qualified name
+     * @param value the value of the attribute
+     */
+    public void addAttribute(String name, final String value)
+    {
+        if (m_chunk != null)
+        {
+            m_chunk.addAttribute(name, value);
+            return;
+        }
+        super.addAttribute(name, value);
+    }
+
+    /**
+     * Adds the given xsl:attribute to the set of collected attributes, 
+     * but only if there is a currently open element.
+     *
+     * @param name the attribute's qualified name (prefix:localName)
+     * @param value the value of the attribute
+     * @param uri the URI that the prefix of the name points to
+     */
+    public void addXSLAttribute(String name, final String value, final String uri)
+    {
+        if (recordAttribute(uri, name, true))
+        {
+            m_chunk.addXSLAttribute(name, value, uri);
+            return;
+        }
+        super.addXSLAttribute(name, value, uri);
+    }
+
+    /**
+     * The events of a chunk being recorded have not reached the namespace
+     * mappings, so the chunk is serialized here instead, as it would have
+     * been without the parallel-depth property.
+     */
+    void updateNamespaceMappings()
+    {
+        final SubtreeChunk chunk = m_chunk;
+        if (chunk == null)
+            return;
+
+        m_chunk = null;
+        // Go back to the state the chunk started in, and send it the
+        // chunk's events without starting another chunk
+        m_escaping = chunk.m_escaping;
+        m_cdataStartCalled = false;
+        m_disableOutputEscapingStates.clear();
+        final int splitDepth = m_splitDepth;
+        m_splitDepth = 0;
+        try
+        {
+            chunk.replay(this);
+        }
+        catch (SAXException e)
+        {
+            throw new WrappedRuntimeException(e);
+        }
+        finally
+        {
+            m_splitDepth = splitDepth;
+        }
+    }
+
+    /**
+     * Tell whether an event that adds content to the current element is to
+     * be recorded into a chunk rather than written, starting a chunk if
+     * the event is the first content of an element at the depth above
+     * the split depth.
+     */
+    final boolean recordContent() throws SAXException
+    {
+        return m_chunk != null
+            || (m_elemContext.m_currentElemDepth == m_splitDepth - 1
+                && startChunk());
+    }
+
+    /**
+     * Tell whether an attribute is to be recorded into the chunk being
+     * recorded, if there is one. An attribute that the serializer may
+     * have to make up a prefix for is not: made-up prefixes are numbered
+     * in document order, so the chunk is serialized here instead, and the
+     * attribute is added as usual.
+     */
+    final boolean recordAttribute(String uri, String rawName,
+                                  boolean xslAttribute)
+    {
+        if (m_chunk == null)
+            return false;
+        if (uri == null || uri.length() == 0
+            || (!xslAttribute && rawName.indexOf(':') > 0))
+            return true;
+        updateNamespaceMappings();
+        return false;
+    }
+
+    /**
+     * Start recording a chunk, unless the state of the serializer is one
+     * that a chunk cannot start in.
+     *
+     * @return true if a chunk was started.
+     */
+    private boolean startChunk() throws SAXException
+    {
+        if (m_tracer != null || m_doIndent || m_inEntityRef
+            || m_cdataStartCalled || m_cdataTagOpen
+            || m_disableOutputEscapingStates.size() > 0
+            || m_writer == null)
+            return false;
+
+        // The content event would close the start tag anyway, and only
+        // then is it known whether the element is a CDATA section element
+        if (m_elemContext.m_startTagOpen)
+        {
+            closeStartTag();
+            m_elemContext.m_startTagOpen = false;
+        }
+        if (m_elemContext.m_isCdataSection)
+            return false;
+
+        final ToStream serializer = newChunkSerializer();
+        if (serializer == null)
+            return false;
+
+        if (m_chunkedWriter == null)
+        {
+            m_chunkedWriter = new ChunkedWriter(m_writer);
+            m_writer = m_chunkedWriter;
+            m_chunkFormat = getOutputFormat();
+        }
+        m_chunk = new SubtreeChunk(this, serializer, m_chunkFormat,
+                                   m_chunkedWriter);
+        return true;
+    }
+
+    /**
+     * Stop recording the current chunk, and hand it to a worker thread.
+     */
+    private void endChunk() throws SAXException
+    {
+        final SubtreeChunk chunk = m_chunk;
+        m_chunk = null;
+        try
+        {
+            m_chunkedWriter.addChunk(chunk);
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);
+        }
+    }
+
+    /**
+     * Write out all the chunks of the document, and go back to writing
+     * to the serializer's own writer.
+     */
+    private void endChunkedOutput() throws SAXException
+    {
+        final ChunkedWriter chunkedWriter = m_chunkedWriter;
+        try
+        {
+            if (m_chunk != null)
+                endChunk();
+            chunkedWriter.finish();
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);
+        }
+        finally
+        {
+            m_chunk = null;
+            m_chunkedWriter = null;
+            m_chunkFormat = null;
+            m_writer = chunkedWriter.getWriter();
+        }
+    }
+
+    /**
+     * Make a serializer of the same kind as this one, for a worker thread
+     * to serialize chunks of this serializer's output with.
+     *
+     * @return the serializer, or null if this kind of serializer does not
+     * serialize in chunks.
+     */
+    ToStream newChunkSerializer()
+    {
+        return null;
+    }
+
+    /**
+     * Set up this serializer, made by newChunkSerializer(), to serialize
+     * a chunk. The output is written as if it were the content of a
+     * document with no XML declaration.
+     *
+     * @param chunk the chunk, which holds the recording serializer's
+     * settings.
+     * @param writer the writer for the chunk's output.
+     */
+    void startChunkOutput(SubtreeChunk chunk, Writer writer)
+    {
+        setOutputFormat(chunk.m_format);
+        m_CdataElems = null;
+        m_StringOfCDATASections = chunk.m_cdataSections;
+        if (m_StringOfCDATASections != null)
+            initCdataElems(m_StringOfCDATASections);
+        m_splitDepth = 0;
+        m_needToCallStartDocument = false;
+        m_prefixMap = chunk.m_namespaces;
+        m_escaping = chunk.m_escaping;
+        m_expandDTDEntities = chunk.m_expandDTDEntities;
+        m_lineSep = chunk.m_lineSep;
+        m_lineSepLen = m_lineSep.length;
+        m_lineSepUse = chunk.m_lineSepUse;
+        m_sourceLocator = chunk.m_sourceLocator;
+        super.setTransformer(chunk.m_transformer);
+        m_tracer = null;
+        setWriter(writer);
+    }
+
+    /**
+     * Finish the output of a chunk.
+     *
+     * @throws SAXException if the output cannot be written.
+     */
+    void endChunkOutput() throws SAXException
+    {
+        try
+        {
+            // The end tag that follows the chunk would close an open
+            // CDATA section
+            if (m_cdataTagOpen)
+                closeCDATA();
+            m_writer.flush();
+        }
+        catch (IOException e)
+        {
+            throw new SAXException(e);
+        }
+    }
+
     /**
      * Try's to reset the super class and reset this class for 
      * re-use, so that you don't need to create a new serializer 
@@ -3255,6 +3854,30 @@ abstract public class ToStream extends SerializerBase
         return wasReset;
     }
     
+    /**
+     * Reset this serializer so that SerializerFactory can pool it. Unlike
+     * reset(), it also lets go of the output stream and writer, so that
+     * the pool does not hold on to them. The buffers of a UTF-8 writer
+     * that this serializer made itself are kept for the next output
+     * stream.
+     *
+     * @return true if the serializer was reset and may be pooled.
+     */
+    boolean resetForPool()
+    {
+        if (!reset())
+            return false;
+
+        if (!m_writer_set_by_user && m_writer instanceof WriterToUTF8Buffered)
+            m_spareUTF8Writer = (WriterToUTF8Buffered) m_writer;
+        m_writer = null;
+        m_writer_set_by_user = false;
+        m_outputStream = null;
+        m_compressor = null;
+        m_channelStream = null;
+        return true;
+    }
+
     /**
      * Reset all of the fields owned by ToStream class
      *
@@ -3289,6 +3912,11 @@ abstract public class ToStream extends SerializerBase
          this.m_spaceBeforeClose = false;
          this.m_startNewLine = false;
          this.m_writer_set_by_user = false;
+         if (this.m_chunkedWriter != null)
+             this.m_writer = this.m_chunkedWriter.getWriter();
+         this.m_chunk = null;
+         this.m_chunkedWriter = null;
+         this.m_chunkFormat = null;
     }        
     
     /**
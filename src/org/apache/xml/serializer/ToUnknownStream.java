@@ -200,6 +200,47 @@ public final class ToUnknownStream extends SerializerBase
         return m_handler.reset();
     }
 
+    /**
+     * Reset this serializer so that SerializerFactory can pool it: the
+     * state kept about the first element is cleared, and an HTML handler
+     * that was switched to is dropped for a new XML one, as a new object
+     * would have.
+     *
+     * @return true if the serializer was reset and may be pooled.
+     */
+    boolean resetForPool()
+    {
+        if (m_handler instanceof ToXMLStream)
+        {
+            if (!((ToXMLStream) m_handler).resetForPool())
+                return false;
+        }
+        else
+            m_handler = new ToXMLStream();
+
+        // The attributes of the first element are handed to the wrapped
+        // handler, after which m_attributes is dropped.
+        if (m_attributes == null)
+            m_attributes = new AttributesImplSerializer();
+        else
+            m_attributes.clear();
+        m_tracer = null;
+        m_wrapped_handler_not_initialized = false;
+        m_firstElementPrefix = null;
+        m_firstElementName = null;
+        m_firstElementURI = null;
+        m_firstElementLocalName = null;
+        m_firstTagNotEmitted = true;
+        m_namespaceURI = null;
+        m_namespacePrefix = null;
+        m_needToCallStartDocument = false;
+        m_setVersion_called = false;
+        m_setDoctypeSystem_called = false;
+        m_setDoctypePublic_called = false;
+        m_setMediaType_called = false;
+        return true;
+    }
+
     /**
      * Converts the DOM node to output
      * @param node the DOM node to transform to output
@@ -996,7 +1037,16 @@ public final class ToUnknownStream extends SerializerBase
             Writer writer = oldHandler.getWriter();
 
             if (null != writer)
+            {
                 m_handler.setWriter(writer);
+
+                // A compressor under the writer is finished by the handler
+                // that ends the document
+                if (oldHandler instanceof ToStream
+                    && m_handler instanceof ToStream)
+                    ((ToStream) m_handler).m_compressor =
+                        ((ToStream) oldHandler).m_compressor;
+            }
             else
             {
                 OutputStream os = oldHandler.getOutputStream();
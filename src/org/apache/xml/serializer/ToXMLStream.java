@@ -251,6 +251,17 @@ public class ToXMLStream extends ToStream
     public void processingInstruction(String target, String data)
         throws org.xml.sax.SAXException
     {
+        if (recordContent())
+        {
+            m_chunk.processingInstruction(target, data);
+            // Keep track of output escaping, as startNonEscaping() and
+            // endNonEscaping() do for a chunk
+            if (target.equals(Result.PI_DISABLE_OUTPUT_ESCAPING))
+                m_disableOutputEscapingStates.push(true);
+            else if (target.equals(Result.PI_ENABLE_OUTPUT_ESCAPING))
+                m_disableOutputEscapingStates.pop();
+            return;
+        }
         if (m_inEntityRef)
             return;
         
@@ -343,6 +354,12 @@ public class ToXMLStream extends ToStream
      */
     public void entityReference(String name) throws org.xml.sax.SAXException
     {
+        if (recordContent())
+        {
+            m_chunk.entityReference(name);
+            return;
+        }
+
         if (m_elemContext.m_startTagOpen)
         {
             closeStartTag();
@@ -381,6 +398,12 @@ public class ToXMLStream extends ToStream
     public void addUniqueAttribute(String name, String value, int flags)
         throws SAXException
     {
+        if (m_chunk != null)
+        {
+            m_chunk.addUniqueAttribute(name, value, flags);
+            return;
+        }
+
         if (m_elemContext.m_startTagOpen)
         {
            
@@ -436,6 +459,13 @@ public class ToXMLStream extends ToStream
         boolean xslAttribute)
         throws SAXException
     {
+        if (recordAttribute(uri, rawName, xslAttribute))
+        {
+            m_chunk.addAttribute(
+                uri, localName, rawName, type, value, xslAttribute);
+            return;
+        }
+
         if (m_elemContext.m_startTagOpen)
         {
             boolean was_added = addAttributeAlways(uri, localName, rawName, type, value, xslAttribute);
@@ -530,6 +560,11 @@ public class ToXMLStream extends ToStream
         final String uri)
         throws SAXException
     {
+        if (m_chunk != null)
+        {
+            m_chunk.namespaceAfterStartElement(prefix, uri);
+            return;
+        }
 
         // hack for XSLTC with finding URI for default namespace
         if (m_elemContext.m_elementURI == null)
@@ -591,6 +626,17 @@ public class ToXMLStream extends ToStream
         return wasReset;
     }
     
+    /**
+     * Make another XML serializer, for a worker thread to serialize chunks
+     * of this serializer's output with.
+     *
+     * @return the serializer.
+     */
+    ToStream newChunkSerializer()
+    {
+        return new ToXMLStream();
+    }
+
     /**
      * Reset all of the fields owned by ToStream class
      *
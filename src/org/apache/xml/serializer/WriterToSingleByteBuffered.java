@@ -0,0 +1,293 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+
+/**
+ * This class writes characters to a byte stream in an encoding where every
+ * character is one byte, and the byte is the character's own value:
+ * ISO-8859-1 or US-ASCII. Each character is encoded straight into an
+ * internal byte buffer, which is written to the OutputStream when it
+ * fills and when flushBuffer(), flush() or close() is called.
+ *
+ * Characters that the encoding cannot represent are written as '?', as
+ * the JDK's encoders for these charsets do. The serializer writes such
+ * characters as character references wherever it can, so they only reach
+ * this writer in places like comments.
+ *
+ * This class is only used internally within Xalan.
+ *
+ * @xsl.usage internal
+ */
+final class WriterToSingleByteBuffered extends Writer implements WriterChain
+{
+
+  /** The number of bytes that the byte buffer can hold. */
+  private static final int BYTES_MAX = 16*1024;
+
+  /** The byte written for characters that are not in the encoding. */
+  private static final byte REPLACEMENT = (byte) '?';
+
+  /** The byte stream to write to. */
+  private final OutputStream m_os;
+
+  /** The largest character in the encoding: 0xFF or 0x7F. */
+  private final char m_maxChar;
+
+  /** The internal buffer where data is stored. */
+  private final byte m_outputBytes[];
+
+  /** The number of valid bytes in the buffer. */
+  private int count;
+
+  /**
+   * Create a buffered ISO-8859-1 writer.
+   *
+   * @param out the underlying output stream.
+   */
+  public static WriterToSingleByteBuffered newLatin1Writer(OutputStream out)
+  {
+    return new WriterToSingleByteBuffered(out, (char) 0xFF);
+  }
+
+  /**
+   * Create a buffered US-ASCII writer.
+   *
+   * @param out the underlying output stream.
+   */
+  public static WriterToSingleByteBuffered newASCIIWriter(OutputStream out)
+  {
+    return new WriterToSingleByteBuffered(out, (char) 0x7F);
+  }
+
+  /**
+   * Create a buffered writer.
+   *
+   * @param out the underlying output stream.
+   * @param maxChar the largest character the encoding can represent.
+   */
+  private WriterToSingleByteBuffered(OutputStream out, char maxChar)
+  {
+    m_os = out;
+    m_maxChar = maxChar;
+    m_outputBytes = new byte[BYTES_MAX];
+    count = 0;
+  }
+
+  /**
+   * Create another writer for the same encoding as this one.
+   *
+   * @param out the underlying output stream.
+   */
+  WriterToSingleByteBuffered newWriter(OutputStream out)
+  {
+    return new WriterToSingleByteBuffered(out, m_maxChar);
+  }
+
+  /**
+   * Write a single character.  The character to be written is contained in
+   * the 16 low-order bits of the given integer value; the 16 high-order bits
+   * are ignored.
+   *
+   * @param c  int specifying a character to be written.
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void write(final int c) throws IOException
+  {
+    if (count >= BYTES_MAX)
+      flushBuffer();
+
+    final char ch = (char) c;
+    m_outputBytes[count++] = (ch <= m_maxChar) ? (byte) ch : REPLACEMENT;
+  }
+
+  /**
+   * Write a portion of an array of characters.
+   *
+   * @param  chars  Array of characters
+   * @param  start   Offset from which to start writing characters
+   * @param  length   Number of characters to write
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void write(final char chars[], final int start, final int length)
+          throws IOException
+  {
+    final int n = start + length;
+    final char max = m_maxChar;
+    final byte[] buf_loc = m_outputBytes; // local reference for faster access
+    int count_loc = count;      // local integer for faster access
+
+    for (int i = start; i < n; i++)
+    {
+      if (count_loc == BYTES_MAX)
+      {
+        count = count_loc;
+        flushBuffer();
+        count_loc = 0;
+      }
+
+      final char c = chars[i];
+      if (c <= max)
+        buf_loc[count_loc++] = (byte) c;
+      else
+      {
+        buf_loc[count_loc++] = REPLACEMENT;
+
+        // A surrogate pair is one character, so is replaced only once.
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < n
+            && chars[i + 1] >= 0xDC00 && chars[i + 1] <= 0xDFFF)
+          i++;
+      }
+    }
+    count = count_loc;
+  }
+
+  /**
+   * Write a string.
+   *
+   * @param  s  String to be written
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void write(final String s) throws IOException
+  {
+    write(s, 0, s.length());
+  }
+
+  /**
+   * Write a portion of a string.
+   *
+   * @param  s  String to be written
+   * @param  start  Offset from which to start writing characters
+   * @param  length  Number of characters to write
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void write(final String s, final int start, final int length)
+          throws IOException
+  {
+    final int n = start + length;
+    final char max = m_maxChar;
+    final byte[] buf_loc = m_outputBytes; // local reference for faster access
+    int count_loc = count;      // local integer for faster access
+
+    for (int i = start; i < n; i++)
+    {
+      if (count_loc == BYTES_MAX)
+      {
+        count = count_loc;
+        flushBuffer();
+        count_loc = 0;
+      }
+
+      final char c = s.charAt(i);
+      if (c <= max)
+        buf_loc[count_loc++] = (byte) c;
+      else
+      {
+        buf_loc[count_loc++] = REPLACEMENT;
+
+        // A surrogate pair is one character, so is replaced only once.
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < n
+            && s.charAt(i + 1) >= 0xDC00 && s.charAt(i + 1) <= 0xDFFF)
+          i++;
+      }
+    }
+    count = count_loc;
+  }
+
+  /**
+   * Write an array of characters.
+   *
+   * @param  chars  Array of characters
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void write(final char chars[]) throws IOException
+  {
+    write(chars, 0, chars.length);
+  }
+
+  /**
+   * Flush the internal buffer
+   *
+   * @throws IOException
+   */
+  public void flushBuffer() throws IOException
+  {
+    if (count > 0)
+    {
+      m_os.write(m_outputBytes, 0, count);
+      count = 0;
+    }
+  }
+
+  /**
+   * Flush the stream.  If the stream has saved any characters from the
+   * various write() methods in a buffer, write them immediately to their
+   * intended destination.  Then, if that destination is another character or
+   * byte stream, flush it.  Thus one flush() invocation will flush all the
+   * buffers in a chain of Writers and OutputStreams.
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void flush() throws IOException
+  {
+    flushBuffer();
+    m_os.flush();
+  }
+
+  /**
+   * Close the stream, flushing it first.  Once a stream has been closed,
+   * further write() or flush() invocations will cause an IOException to be
+   * thrown.  Closing a previously-closed stream, however, has no effect.
+   *
+   * @exception  IOException  If an I/O error occurs
+   */
+  public void close() throws IOException
+  {
+    flushBuffer();
+    m_os.close();
+  }
+
+  /**
+   * Get the output stream where the events will be serialized to.
+   *
+   * @return reference to the result stream, or null of only a writer was
+   * set.
+   */
+  public OutputStream getOutputStream()
+  {
+    return m_os;
+  }
+
+  public Writer getWriter()
+  {
+    // Only one of getWriter() or getOutputStream() can return null
+    // This type of writer wraps an OutputStream, not a Writer.
+    return null;
+  }
+}
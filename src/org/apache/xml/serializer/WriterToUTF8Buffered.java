@@ -94,6 +94,22 @@ final class WriterToUTF8Buffered extends Writer implements WriterChain
 //      this(out, 8*1024);
   }
 
+  /**
+   * Create a buffered UTF-8 writer that takes over the buffers of
+   * another one. Any output still buffered in the other writer is
+   * discarded, and the other writer must not be used again.
+   *
+   * @param   out    the underlying output stream.
+   * @param   old    the writer whose buffers are reused.
+   */
+  WriterToUTF8Buffered(OutputStream out, WriterToUTF8Buffered old)
+  {
+      m_os = out;
+      m_outputBytes = old.m_outputBytes;
+      m_inputChars = old.m_inputChars;
+      count = 0;
+  }
+
   /**
    * Create an buffered UTF-8 writer to write data to the
    * specified underlying output stream with the specified buffer
@@ -0,0 +1,48 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * An IntBufferAllocator that keeps its blocks in direct buffers, outside
+ * the Java heap. The memory is reclaimed when the blocks become
+ * unreachable.
+ *
+ * @xsl.usage internal
+ */
+public class DirectIntBufferAllocator extends IntBufferAllocator
+{
+  /**
+   * Allocate a block in direct memory, in the platform's native byte order.
+   *
+   * @param size The number of ints the block must hold
+   * @return a direct IntBuffer of that capacity
+   */
+  public IntBuffer allocate(int size)
+  {
+    return ByteBuffer.allocateDirect(size << 2)
+                     .order(ByteOrder.nativeOrder())
+                     .asIntBuffer();
+  }
+}
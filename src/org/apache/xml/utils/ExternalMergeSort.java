@@ -0,0 +1,497 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * A sort whose records may not all fit in memory. Records are added one at
+ * a time, with an estimate of the memory each one takes. Once the records
+ * held pass the memory limit they are sorted and written to a temporary
+ * file as a run, and the memory is reused. When all the records have been
+ * added, finish() merges the runs, and next() hands back the records in
+ * order. If no run was ever written the records are simply sorted in
+ * memory, with a {@link ParallelMergeSort}.
+ *
+ * <p>The caller supplies a RecordCodec to write records to runs and read
+ * them back. Records that compare equal come back in the order they were
+ * added. The memory limit used by sorts that do not name their own is set
+ * by the {@link #MEMORY_PROPERTY} system property; by default there is
+ * none, and sorts never spill.</p>
+ *
+ * <p>Temporary files are removed by close(), which should be called
+ * whether or not the sort succeeded.</p>
+ * @xsl.usage internal
+ */
+public class ExternalMergeSort
+{
+
+  /**
+   * The name of the system property that sets the memory limit for sorts.
+   * The value is a number of bytes, optionally followed by k, m or g.
+   */
+  public static final String MEMORY_PROPERTY =
+    "org.apache.xml.utils.ExternalMergeSort.memory";
+
+  /** The largest number of runs merged at once. */
+  private static final int MAX_FANIN = 64;
+
+  /** The size of the buffers used to read and write runs. */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /** The memory limit for sorts, or 0 for none. */
+  private static long m_defaultMemoryLimit = 0;
+
+  static
+  {
+    try
+    {
+      String value = System.getProperty(MEMORY_PROPERTY);
+      if (value != null)
+        m_defaultMemoryLimit = parseSize(value);
+    }
+    catch (SecurityException ex){}
+    catch (NumberFormatException ex){}
+  }
+
+  /**
+   * Writes records to runs and reads them back.
+   */
+  public interface RecordCodec
+  {
+    /**
+     * Write a record.
+     *
+     * @param record the record.
+     * @param out the stream to write it to.
+     * @throws IOException if the record cannot be written.
+     */
+    void writeRecord(Object record, DataOutputStream out) throws IOException;
+
+    /**
+     * Read a record written by writeRecord().
+     *
+     * @param in the stream to read it from.
+     * @return the record.
+     * @throws IOException if the record cannot be read.
+     */
+    Object readRecord(DataInputStream in) throws IOException;
+  }
+
+  /** The comparator for records. */
+  private final Comparator m_comparator;
+
+  /** The codec for records. */
+  private final RecordCodec m_codec;
+
+  /** The memory limit for this sort. */
+  private final long m_memoryLimit;
+
+  /** The records held in memory. */
+  private Object[] m_records = new Object[1024];
+
+  /** The number of records held in memory. */
+  private int m_count = 0;
+
+  /** The estimated size of the records held in memory. */
+  private long m_size = 0;
+
+  /** The runs written so far, oldest first. */
+  private Vector m_runs = new Vector();
+
+  /** While merging, the stream of each run, or null once it is used up. */
+  private DataInputStream[] m_inputs;
+
+  /** While merging, the current record of each run. */
+  private Object[] m_heads;
+
+  /** While merging, a heap of run indexes ordered by their heads. */
+  private int[] m_heap;
+
+  /** While merging, the number of runs in the heap. */
+  private int m_heapSize;
+
+  /** When not merging, the index of the next record in m_records. */
+  private int m_next = 0;
+
+  /**
+   * Get the memory limit used by sorts that do not name their own.
+   *
+   * @return the limit in bytes, or 0 if there is none.
+   */
+  public static long getMemoryLimit()
+  {
+    return m_defaultMemoryLimit;
+  }
+
+  /**
+   * Set the memory limit used by sorts that do not name their own.
+   *
+   * @param limit the limit in bytes, or 0 for none.
+   */
+  public static void setMemoryLimit(long limit)
+  {
+    m_defaultMemoryLimit = limit;
+  }
+
+  /**
+   * Create a sort.
+   *
+   * @param comparator the comparator for records.
+   * @param codec the codec used to write records to runs.
+   * @param memoryLimit the estimated size of the records held in memory
+   * before a run is written, or 0 never to write one.
+   */
+  public ExternalMergeSort(Comparator comparator, RecordCodec codec,
+                           long memoryLimit)
+  {
+    m_comparator = comparator;
+    m_codec = codec;
+    m_memoryLimit = memoryLimit;
+  }
+
+  /**
+   * Add a record.
+   *
+   * @param record the record.
+   * @param size an estimate of the memory the record takes, in bytes.
+   * @throws IOException if a run cannot be written.
+   */
+  public void add(Object record, long size) throws IOException
+  {
+    if (m_count == m_records.length)
+    {
+      Object[] records = new Object[m_count * 2];
+      System.arraycopy(m_records, 0, records, 0, m_count);
+      m_records = records;
+    }
+    m_records[m_count++] = record;
+    m_size += size;
+
+    if (m_memoryLimit > 0 && m_size >= m_memoryLimit)
+      spill();
+  }
+
+  /**
+   * Tell whether any run has been written.
+   *
+   * @return true if the sort has spilled to disk.
+   */
+  public boolean hasSpilled()
+  {
+    return !m_runs.isEmpty();
+  }
+
+  /**
+   * Sort the records added, ready for next().
+   *
+   * @throws IOException if the runs cannot be merged.
+   */
+  public void finish() throws IOException
+  {
+    if (m_runs.isEmpty())
+    {
+      ParallelMergeSort.sort(m_records, 0, m_count, m_comparator);
+      m_next = 0;
+      return;
+    }
+
+    if (m_count > 0)
+      spill();
+    m_records = null;
+
+    // Merge the oldest runs together until few enough are left to be
+    // merged at once, keeping the runs in the order they were added.
+    while (m_runs.size() > MAX_FANIN)
+    {
+      // The merged run is not in m_runs until it is written, so close()
+      // cannot find it; delete it here if the merge fails.
+      File merged = createRunFile();
+      boolean written = false;
+      try
+      {
+        DataOutputStream out = openOutput(merged);
+        try
+        {
+          openMerge(MAX_FANIN);
+          Object record;
+          while (null != (record = nextMerged()))
+            writeRecord(record, out);
+          out.writeBoolean(false);
+        }
+        finally
+        {
+          out.close();
+          closeInputs();
+        }
+        written = true;
+      }
+      finally
+      {
+        if (!written)
+          merged.delete();
+      }
+      for (int i = 0; i < MAX_FANIN; i++)
+        ((File) m_runs.elementAt(i)).delete();
+      for (int i = 0; i < MAX_FANIN; i++)
+        m_runs.removeElementAt(0);
+      m_runs.insertElementAt(merged, 0);
+    }
+
+    openMerge(m_runs.size());
+  }
+
+  /**
+   * Get the next record in order. finish() must have been called.
+   *
+   * @return the record, or null once all the records have been returned.
+   * @throws IOException if a run cannot be read.
+   */
+  public Object next() throws IOException
+  {
+    if (null == m_inputs)
+      return (m_next < m_count) ? m_records[m_next++] : null;
+
+    return nextMerged();
+  }
+
+  /**
+   * Release the memory held and delete the temporary files.
+   */
+  public void close()
+  {
+    closeInputs();
+    for (int i = 0; i < m_runs.size(); i++)
+      ((File) m_runs.elementAt(i)).delete();
+    m_runs.removeAllElements();
+    m_records = null;
+    m_count = 0;
+  }
+
+  /**
+   * Sort the records held in memory and write them as a new run.
+   */
+  private void spill() throws IOException
+  {
+    ParallelMergeSort.sort(m_records, 0, m_count, m_comparator);
+
+    File run = createRunFile();
+    m_runs.addElement(run);
+    DataOutputStream out = openOutput(run);
+    try
+    {
+      for (int i = 0; i < m_count; i++)
+      {
+        writeRecord(m_records[i], out);
+        m_records[i] = null;
+      }
+      out.writeBoolean(false);
+    }
+    finally
+    {
+      out.close();
+    }
+    m_count = 0;
+    m_size = 0;
+  }
+
+  /**
+   * Write a record to a run. Each record is preceded by true, and a run
+   * ends with false, so no count is needed up front.
+   */
+  private void writeRecord(Object record, DataOutputStream out)
+          throws IOException
+  {
+    out.writeBoolean(true);
+    m_codec.writeRecord(record, out);
+  }
+
+  /**
+   * Open the first n runs and fill the heap with their first records.
+   */
+  private void openMerge(int n) throws IOException
+  {
+    m_inputs = new DataInputStream[n];
+    m_heads = new Object[n];
+    m_heap = new int[n];
+    m_heapSize = 0;
+
+    for (int i = 0; i < n; i++)
+    {
+      m_inputs[i] = new DataInputStream(new BufferedInputStream(
+        new FileInputStream((File) m_runs.elementAt(i)), BUFFER_SIZE));
+      if (readHead(i))
+      {
+        m_heap[m_heapSize] = i;
+        siftUp(m_heapSize++);
+      }
+    }
+  }
+
+  /**
+   * Take the smallest head off the heap, replacing it with the next
+   * record of its run.
+   */
+  private Object nextMerged() throws IOException
+  {
+    if (0 == m_heapSize)
+      return null;
+
+    int run = m_heap[0];
+    Object record = m_heads[run];
+
+    if (!readHead(run))
+      m_heap[0] = m_heap[--m_heapSize];
+    if (m_heapSize > 0)
+      siftDown(0);
+
+    return record;
+  }
+
+  /**
+   * Read the next record of a run into m_heads.
+   *
+   * @return false if the run is used up.
+   */
+  private boolean readHead(int run) throws IOException
+  {
+    DataInputStream in = m_inputs[run];
+    if (in.readBoolean())
+    {
+      m_heads[run] = m_codec.readRecord(in);
+      return true;
+    }
+    in.close();
+    m_inputs[run] = null;
+    m_heads[run] = null;
+    return false;
+  }
+
+  /**
+   * Compare the heads of two runs. Equal records are taken from the older
+   * run first, which keeps the sort stable.
+   */
+  private int compareRuns(int a, int b)
+  {
+    int cmp = m_comparator.compare(m_heads[a], m_heads[b]);
+    return (cmp != 0) ? cmp : a - b;
+  }
+
+  private void siftUp(int i)
+  {
+    int run = m_heap[i];
+    while (i > 0)
+    {
+      int parent = (i - 1) >> 1;
+      if (compareRuns(m_heap[parent], run) <= 0)
+        break;
+      m_heap[i] = m_heap[parent];
+      i = parent;
+    }
+    m_heap[i] = run;
+  }
+
+  private void siftDown(int i)
+  {
+    int run = m_heap[i];
+    while (true)
+    {
+      int child = 2 * i + 1;
+      if (child >= m_heapSize)
+        break;
+      if (child + 1 < m_heapSize
+          && compareRuns(m_heap[child + 1], m_heap[child]) < 0)
+        child++;
+      if (compareRuns(run, m_heap[child]) <= 0)
+        break;
+      m_heap[i] = m_heap[child];
+      i = child;
+    }
+    m_heap[i] = run;
+  }
+
+  /**
+   * Close any runs still open for merging.
+   */
+  private void closeInputs()
+  {
+    if (null == m_inputs)
+      return;
+    for (int i = 0; i < m_inputs.length; i++)
+    {
+      if (null != m_inputs[i])
+      {
+        try
+        {
+          m_inputs[i].close();
+        }
+        catch (IOException ioe){}
+      }
+    }
+    m_inputs = null;
+    m_heads = null;
+  }
+
+  /**
+   * Create a temporary file for a run. Runs are deleted by close(), not
+   * on exit, so that a long-running process does not collect their names.
+   */
+  private static File createRunFile() throws IOException
+  {
+    return File.createTempFile("xalansort", ".run");
+  }
+
+  /**
+   * Open a run for writing.
+   */
+  private static DataOutputStream openOutput(File run) throws IOException
+  {
+    return new DataOutputStream(new BufferedOutputStream(
+      new FileOutputStream(run), BUFFER_SIZE));
+  }
+
+  /**
+   * Parse a size such as "64m".
+   */
+  private static long parseSize(String value)
+  {
+    value = value.trim().toLowerCase();
+    long unit = 1;
+    if (value.endsWith("k"))
+      unit = 1L << 10;
+    else if (value.endsWith("m"))
+      unit = 1L << 20;
+    else if (value.endsWith("g"))
+      unit = 1L << 30;
+    if (unit != 1)
+      value = value.substring(0, value.length() - 1).trim();
+    return Long.parseLong(value) * unit;
+  }
+}
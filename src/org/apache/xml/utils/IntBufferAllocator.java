@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.nio.IntBuffer;
+
+/**
+ * Supplies the blocks of a {@link SuballocatedIntBuffer}. The allocator
+ * decides where the ints are kept; two are built in, one using direct
+ * (off-heap) memory and one using a memory-mapped temporary file, and
+ * others can be plugged in by class name.
+ *
+ * <p>An allocator may be shared by several vectors that have the same
+ * lifetime, such as the node tables of one DTM. Once they are no longer
+ * needed, {@link #release()} gives back everything it handed out.</p>
+ *
+ * @xsl.usage internal
+ */
+public abstract class IntBufferAllocator
+{
+  /** Name of the built-in allocator that uses direct buffers. */
+  public static final String DIRECT = "direct";
+
+  /** Name of the built-in allocator that uses a memory-mapped file. */
+  public static final String MAPPED = "mapped";
+
+  /**
+   * Allocate a block.
+   *
+   * @param size The number of ints the block must hold
+   * @return an IntBuffer with a capacity of at least <code>size</code>,
+   * addressed from 0.
+   */
+  public abstract IntBuffer allocate(int size);
+
+  /**
+   * Release the storage behind every block this allocator has handed out.
+   * The default implementation does nothing, leaving the blocks to the
+   * garbage collector.
+   */
+  public void release()
+  {
+  }
+
+  /**
+   * Create an allocator.
+   *
+   * @param name {@link #DIRECT}, {@link #MAPPED}, or the fully qualified
+   * name of an IntBufferAllocator subclass with a public no-argument
+   * constructor.
+   * @return a new allocator
+   *
+   * @throws WrappedRuntimeException if the named class cannot be
+   * instantiated.
+   */
+  public static IntBufferAllocator newInstance(String name)
+  {
+    if (DIRECT.equals(name))
+      return new DirectIntBufferAllocator();
+    else if (MAPPED.equals(name))
+      return new MappedIntBufferAllocator();
+
+    try
+    {
+      return (IntBufferAllocator) ObjectFactory.newInstance(
+        name, ObjectFactory.findClassLoader(), true);
+    }
+    catch (ObjectFactory.ConfigurationError e)
+    {
+      throw new WrappedRuntimeException(e.getException());
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An IntBufferAllocator that maps its blocks from a temporary file, so
+ * the operating system can page them in and out as needed. Blocks are
+ * appended to the file in the order they are allocated.
+ *
+ * <p>The file is created lazily in the directory named by the
+ * <code>java.io.tmpdir</code> system property. It is deleted as soon as
+ * it is open, where the operating system allows that, and otherwise by
+ * {@link #release()}, which the DTM calls when its manager releases it.
+ * It is not registered for deletion on exit, as the JVM would hold the
+ * name of every such file until it stopped.</p>
+ *
+ * @xsl.usage internal
+ */
+public class MappedIntBufferAllocator extends IntBufferAllocator
+{
+  /**
+   * The backing file, or null if no block has been allocated yet or the
+   * file was deleted once open.
+   */
+  private File m_file;
+
+  /** The open backing file. */
+  private RandomAccessFile m_raf;
+
+  /** Channel of the backing file, used to map the blocks. */
+  private FileChannel m_channel;
+
+  /** Offset in the file at which the next block will be mapped. */
+  private long m_end = 0;
+
+  /**
+   * Allocate a block by mapping the next <code>size</code> ints of the
+   * backing file.
+   *
+   * @param size The number of ints the block must hold
+   * @return a mapped IntBuffer of that capacity
+   *
+   * @throws WrappedRuntimeException if the file cannot be created or mapped.
+   */
+  public synchronized IntBuffer allocate(int size)
+  {
+    try
+    {
+      if (m_channel == null)
+      {
+        m_file = File.createTempFile("xalan-dtm", ".tmp");
+        try
+        {
+          m_raf = new RandomAccessFile(m_file, "rw");
+        }
+        catch (IOException ioe)
+        {
+          m_file.delete();
+          m_file = null;
+          throw ioe;
+        }
+        m_channel = m_raf.getChannel();
+
+        // Where an open file can be deleted, its space stays in use only
+        // until it is closed and its blocks are unmapped, so it cannot be
+        // left behind by a DTM that is never released.
+        if (m_file.delete())
+          m_file = null;
+      }
+
+      long length = ((long) size) << 2;
+      IntBuffer block = m_channel.map(FileChannel.MapMode.READ_WRITE,
+                                      m_end, length)
+                                 .order(ByteOrder.nativeOrder())
+                                 .asIntBuffer();
+      m_end += length;
+      return block;
+    }
+    catch (IOException ioe)
+    {
+      throw new WrappedRuntimeException(ioe);
+    }
+  }
+
+  /**
+   * Close and delete the backing file. Pages that are still mapped stay
+   * valid until the blocks are garbage collected.
+   */
+  public synchronized void release()
+  {
+    if (m_channel == null)
+      return;
+
+    try
+    {
+      m_raf.close();
+    }
+    catch (IOException ioe)
+    {
+      // Nothing more we can do; try to delete the file anyway.
+    }
+    if (m_file != null)
+      m_file.delete();
+
+    m_channel = null;
+    m_raf = null;
+    m_file = null;
+    m_end = 0;
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * A stable merge sort that spreads large sorts over several threads. The
+ * array is cut into one run per thread, the runs are sorted concurrently,
+ * and pairs of runs are then merged, each merge itself being split into
+ * independent pieces so that every thread has work until the last pass.
+ *
+ * <p>The comparator is called from several threads at once, so it must not
+ * change any shared state. Sorts of fewer than getThreshold() elements are
+ * done on the calling thread alone. The threshold and the number of threads
+ * are read from the {@link #THRESHOLD_PROPERTY} and
+ * {@link #THREADS_PROPERTY} system properties.</p>
+ *
+ * <p>Threads are obtained through {@link ThreadControllerWrapper}, so an
+ * application that pools threads for incremental parsing pools these too.
+ * A RuntimeException or Error thrown by the comparator on any thread is
+ * rethrown to the caller once all the threads have stopped.</p>
+ * @xsl.usage internal
+ */
+public class ParallelMergeSort
+{
+
+  /**
+   * The name of the system property that sets the number of elements at
+   * which sorts go parallel. A value of 0 turns parallel sorting off.
+   */
+  public static final String THRESHOLD_PROPERTY =
+    "org.apache.xml.utils.ParallelMergeSort.threshold";
+
+  /**
+   * The name of the system property that sets the number of threads a
+   * parallel sort uses. It defaults to the number of processors.
+   */
+  public static final String THREADS_PROPERTY =
+    "org.apache.xml.utils.ParallelMergeSort.threads";
+
+  /** The threshold used if THRESHOLD_PROPERTY is not set. */
+  public static final int DEFAULT_THRESHOLD = 50000;
+
+  /** The number of elements at which sorts go parallel, or 0. */
+  private static int m_threshold = DEFAULT_THRESHOLD;
+
+  /** The number of threads a parallel sort uses. */
+  private static int m_threads = Runtime.getRuntime().availableProcessors();
+
+  static
+  {
+    try
+    {
+      String value = System.getProperty(THRESHOLD_PROPERTY);
+      if (value != null)
+        m_threshold = Integer.parseInt(value.trim());
+      value = System.getProperty(THREADS_PROPERTY);
+      if (value != null)
+        m_threads = Integer.parseInt(value.trim());
+    }
+    catch (SecurityException ex){}
+    catch (NumberFormatException ex){}
+  }
+
+  /**
+   * Get the number of elements at which sorts go parallel.
+   *
+   * @return the threshold, or 0 if parallel sorting is off.
+   */
+  public static int getThreshold()
+  {
+    return m_threshold;
+  }
+
+  /**
+   * Set the number of elements at which sorts go parallel.
+   *
+   * @param threshold the threshold, or 0 to turn parallel sorting off.
+   */
+  public static void setThreshold(int threshold)
+  {
+    m_threshold = threshold;
+  }
+
+  /**
+   * Get the number of threads a parallel sort uses.
+   *
+   * @return the number of threads.
+   */
+  public static int getThreads()
+  {
+    return m_threads;
+  }
+
+  /**
+   * Set the number of threads a parallel sort uses.
+   *
+   * @param threads the number of threads; 1 or less turns parallel sorting
+   * off.
+   */
+  public static void setThreads(int threads)
+  {
+    m_threads = threads;
+  }
+
+  /**
+   * Tell whether a sort of the given number of elements would go parallel.
+   *
+   * @param n the number of elements.
+   * @return true if sort() would use more than one thread.
+   */
+  public static boolean isParallel(int n)
+  {
+    return m_threshold > 0 && n >= m_threshold && m_threads > 1;
+  }
+
+  /**
+   * Sort part of an array. Elements that compare equal keep their order.
+   *
+   * @param a the array.
+   * @param from the index of the first element to sort.
+   * @param to the index after the last element to sort.
+   * @param c the comparator, which must be safe to call from several
+   * threads at once.
+   */
+  public static void sort(Object[] a, int from, int to, Comparator c)
+  {
+    int n = to - from;
+    if (!isParallel(n))
+    {
+      Arrays.sort(a, from, to, c);
+      return;
+    }
+
+    int threads = Math.min(m_threads, n);
+
+    // Cut the array into one run per thread and sort the runs.
+    int[] bounds = new int[threads + 1];
+    Runnable[] tasks = new Runnable[threads];
+    for (int i = 0; i <= threads; i++)
+      bounds[i] = from + (int) ((long) n * i / threads);
+    for (int i = 0; i < threads; i++)
+      tasks[i] = new SortTask(a, bounds[i], bounds[i + 1], c);
+    runAll(tasks);
+
+    // Merge pairs of runs until one is left, ping-ponging between the
+    // array and a scratch copy.
+    Object[] src = a;
+    Object[] dst = new Object[a.length];
+    int runs = threads;
+    while (runs > 1)
+    {
+      int pairs = runs / 2;
+      int pieces = Math.max(1, threads / pairs);
+      int[] newBounds = new int[(runs + 1) / 2 + 1];
+      Vector merges = new Vector();
+
+      for (int p = 0; p < pairs; p++)
+      {
+        int lo = bounds[2 * p], mid = bounds[2 * p + 1], hi = bounds[2 * p + 2];
+        addMergeTasks(merges, src, dst, lo, mid, hi, pieces, c);
+        newBounds[p] = lo;
+      }
+      if ((runs & 1) != 0)
+      {
+        // The odd run out is copied across unchanged.
+        int lo = bounds[runs - 1], hi = bounds[runs];
+        merges.addElement(new MergeTask(src, dst, lo, hi, hi, hi, lo, c));
+        newBounds[pairs] = lo;
+      }
+      newBounds[newBounds.length - 1] = to;
+
+      tasks = new Runnable[merges.size()];
+      merges.copyInto(tasks);
+      runAll(tasks);
+
+      Object[] t = src;
+      src = dst;
+      dst = t;
+      bounds = newBounds;
+      runs = newBounds.length - 1;
+    }
+
+    if (src != a)
+      System.arraycopy(src, from, a, from, n);
+  }
+
+  /**
+   * Split the merge of two adjacent sorted runs into pieces that can be
+   * merged independently. Each piece starts at an evenly spaced element of
+   * the left run, and at the first element of the right run that does not
+   * sort before it.
+   */
+  private static void addMergeTasks(Vector merges, Object[] src,
+                                    Object[] dst, int lo, int mid, int hi,
+                                    int pieces, Comparator c)
+  {
+    int leftStart = lo, rightStart = mid;
+    for (int i = 1; i <= pieces; i++)
+    {
+      int leftEnd, rightEnd;
+      if (i == pieces)
+      {
+        leftEnd = mid;
+        rightEnd = hi;
+      }
+      else
+      {
+        leftEnd = lo + (int) ((long) (mid - lo) * i / pieces);
+        if (leftEnd == mid)
+          continue;
+        rightEnd = lowerBound(src, rightStart, hi, src[leftEnd], c);
+      }
+      merges.addElement(new MergeTask(src, dst, leftStart, leftEnd,
+                                      rightStart, rightEnd,
+                                      leftStart + (rightStart - mid), c));
+      leftStart = leftEnd;
+      rightStart = rightEnd;
+    }
+  }
+
+  /**
+   * Find the first element of a sorted range that does not sort before
+   * the given key.
+   */
+  private static int lowerBound(Object[] a, int from, int to, Object key,
+                                Comparator c)
+  {
+    while (from < to)
+    {
+      int m = (from + to) >>> 1;
+      if (c.compare(a[m], key) < 0)
+        from = m + 1;
+      else
+        to = m;
+    }
+    return from;
+  }
+
+  /**
+   * Run the tasks, all but the last on their own threads and the last on
+   * this one, and wait for them to finish.
+   */
+  private static void runAll(Runnable[] tasks)
+  {
+    Thread[] workers = new Thread[tasks.length];
+    Throwable failure = null;
+
+    for (int i = 0; i < tasks.length - 1; i++)
+      workers[i] = ThreadControllerWrapper.runThread(tasks[i], -1);
+
+    try
+    {
+      tasks[tasks.length - 1].run();
+    }
+    catch (Throwable t)
+    {
+      failure = t;
+    }
+
+    // Keep waiting if interrupted; the array must not be handed back
+    // while workers are still writing to it.
+    boolean interrupted = false;
+    for (int i = 0; i < tasks.length - 1; i++)
+    {
+      while (true)
+      {
+        try
+        {
+          ThreadControllerWrapper.waitThread(workers[i], tasks[i]);
+          break;
+        }
+        catch (InterruptedException ie)
+        {
+          interrupted = true;
+        }
+      }
+      if (null == failure)
+        failure = ((Task) tasks[i]).m_failure;
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+  }
+
+  /**
+   * A unit of work that remembers what it threw.
+   */
+  private abstract static class Task implements Runnable
+  {
+    /** What the task threw, if anything. */
+    Throwable m_failure;
+
+    public final void run()
+    {
+      try
+      {
+        execute();
+      }
+      catch (Throwable t)
+      {
+        m_failure = t;
+      }
+    }
+
+    /** Do the work. */
+    abstract void execute();
+  }
+
+  /**
+   * Sort one run in place.
+   */
+  private static class SortTask extends Task
+  {
+    private final Object[] m_a;
+    private final int m_from, m_to;
+    private final Comparator m_c;
+
+    SortTask(Object[] a, int from, int to, Comparator c)
+    {
+      m_a = a;
+      m_from = from;
+      m_to = to;
+      m_c = c;
+    }
+
+    void execute()
+    {
+      Arrays.sort(m_a, m_from, m_to, m_c);
+    }
+  }
+
+  /**
+   * Merge a piece of a left run with a piece of a right run. Equal
+   * elements are taken from the left first, which keeps the sort stable.
+   */
+  private static class MergeTask extends Task
+  {
+    private final Object[] m_src, m_dst;
+    private final int m_left, m_leftEnd, m_right, m_rightEnd, m_out;
+    private final Comparator m_c;
+
+    MergeTask(Object[] src, Object[] dst, int left, int leftEnd, int right,
+              int rightEnd, int out, Comparator c)
+    {
+      m_src = src;
+      m_dst = dst;
+      m_left = left;
+      m_leftEnd = leftEnd;
+      m_right = right;
+      m_rightEnd = rightEnd;
+      m_out = out;
+      m_c = c;
+    }
+
+    void execute()
+    {
+      int i = m_left, j = m_right, k = m_out;
+      while (i < m_leftEnd && j < m_rightEnd)
+      {
+        if (m_c.compare(m_src[j], m_src[i]) < 0)
+          m_dst[k++] = m_src[j++];
+        else
+          m_dst[k++] = m_src[i++];
+      }
+      while (i < m_leftEnd)
+        m_dst[k++] = m_src[i++];
+      while (j < m_rightEnd)
+        m_dst[k++] = m_src[j++];
+    }
+  }
+}
@@ -44,6 +44,11 @@ public class StringComparable implements Comparable  {
      private RuleBasedCollator m_collator;
      private String m_caseOrder;
      private int m_mask = 0xFFFFFFFF; 
+     // Collation key at no more than SECONDARY strength, for the
+     // comparison that comes before case-order
+     private CollationKey m_key;
+     // Collation key at the collator's own strength, made when first needed
+     private CollationKey m_fullKey;
      
     public StringComparable(final String text, final Locale locale, final Collator collator, final String caseOrder){
          m_text =  text;
@@ -51,6 +56,18 @@ public class StringComparable implements Comparable  {
          m_collator = (RuleBasedCollator)collator;
          m_caseOrder = caseOrder;
          m_mask = getMask(m_collator.getStrength());
+         
+         // Make the key once here, rather than comparing the text with
+         // the collator on every compareTo()
+         final int savedStrength = m_collator.getStrength();
+         if((savedStrength == Collator.PRIMARY) || (savedStrength == Collator.SECONDARY)){
+             m_key = m_collator.getCollationKey(text);
+             m_fullKey = m_key;
+         }else{
+             m_collator.setStrength(Collator.SECONDARY);
+             m_key = m_collator.getCollationKey(text);
+             m_collator.setStrength(savedStrength);
+         }
     }
   
    public final static Comparable getComparator( final String text, final Locale locale, final Collator collator, final String caseOrder){
@@ -61,23 +78,32 @@ public class StringComparable implements Comparable  {
        }       
    }
    
+   /**
+    * Compare two collation keys in the form returned by
+    * CollationKey.toByteArray(). The result has the same sign as
+    * comparing the CollationKeys themselves.
+    */
+   public final static int compareKeys(final byte[] key1, final byte[] key2){
+       final int n = Math.min(key1.length, key2.length);
+       for(int i = 0; i < n; i++){
+           if(key1[i] != key2[i]){
+               return (key1[i] & 0xFF) - (key2[i] & 0xFF);
+           }
+       }
+       return key1.length - key2.length;
+   }
+   
    public final String toString(){return m_text;}
    
    public int compareTo(Object o) {
-   final String pattern = ((StringComparable)o).toString();
+   final StringComparable other = (StringComparable)o;
+   final String pattern = other.toString();
    if(m_text.equals(pattern)){//Code-point equals 
       return 0;
    }
-   final int savedStrength = m_collator.getStrength(); 
    int comp = 0;
       // Is there difference more significant than case-order?     
-     if(((savedStrength == Collator.PRIMARY) || (savedStrength == Collator.SECONDARY))){  
-         comp = m_collator.compare(m_text, pattern );     
-     }else{// more than SECONDARY
-         m_collator.setStrength(Collator.SECONDARY);
-         comp = m_collator.compare(m_text, pattern );
-         m_collator.setStrength(savedStrength);
-     }
+     comp = m_key.compareTo(other.m_key);
      if(comp != 0){//Difference more significant than case-order 
         return comp ; 
      }      
@@ -88,10 +114,17 @@ public class StringComparable implements Comparable  {
        if(comp != 0){  
            return comp;
        }else{// No case differences. Less significant difference could exist 
-            return m_collator.compare(m_text, pattern );
+            return getFullKey().compareTo(other.getFullKey());
        }      
   }
   
+  private final CollationKey getFullKey(){
+      if(m_fullKey == null){
+          m_fullKey = m_collator.getCollationKey(m_text);
+      }
+      return m_fullKey;
+  }
+  
  
   private final int getCaseDiff (final String text, final String pattern){
      final int savedStrength = m_collator.getStrength();
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xml.utils;
+
+import java.nio.IntBuffer;
+
+/**
+ * A SuballocatedIntVector whose blocks are IntBuffers handed out by an
+ * {@link IntBufferAllocator} rather than int arrays on the Java heap.
+ * Depending on the allocator the ints may live in direct memory or in a
+ * memory-mapped file, so that very large tables neither count against
+ * the heap nor have to be traced by the garbage collector.
+ *
+ * <p>The API is that of SuballocatedIntVector, except that there are no
+ * int arrays to expose: {@link #getMap0()} and {@link #getMap()} return
+ * null, and callers that normally read those arrays directly must use
+ * {@link #elementAt(int)} instead.</p>
+ *
+ * @xsl.usage internal
+ */
+public class SuballocatedIntBuffer extends SuballocatedIntVector
+{
+  /** The allocator that supplies our blocks. */
+  protected IntBufferAllocator m_allocator;
+
+  /** The blocks allocated so far; entries past the last one are null. */
+  protected IntBuffer m_blocks[];
+
+  /** "Shortcut" handle to the block that addElement() is filling. */
+  protected IntBuffer m_buildBlock;
+
+  /**
+   * Construct a SuballocatedIntBuffer with the given block size.
+   * For efficiency, the block size is rounded to a power of two.
+   *
+   * @param blocksize Number of ints in each block
+   * @param allocator The allocator that supplies the blocks
+   */
+  public SuballocatedIntBuffer(int blocksize, IntBufferAllocator allocator)
+  {
+    // Keep the superclass' own heap block to the bare minimum; none of
+    // its storage is used.
+    super(1, 1);
+    m_map0 = null;
+    m_map = null;
+    m_buildCache = null;
+
+    for(m_SHIFT=0;0!=(blocksize>>>=1);++m_SHIFT)
+      ;
+    m_blocksize=1<<m_SHIFT;
+    m_MASK=m_blocksize-1;
+
+    m_allocator = allocator;
+    m_blocks = new IntBuffer[m_numblocks];
+    m_buildBlock = m_blocks[0] = allocator.allocate(m_blocksize);
+    m_buildCacheStartIndex = 0;
+  }
+
+  /**
+   * Return the block with the given index, allocating it (and growing
+   * the block table) if it does not exist yet.
+   *
+   * @param index Index of the block
+   * @return the block
+   */
+  private IntBuffer getBlock(int index)
+  {
+    if(index>=m_blocks.length)
+    {
+      IntBuffer[] newBlocks=new IntBuffer[index+m_numblocks];
+      System.arraycopy(m_blocks, 0, newBlocks, 0, m_blocks.length);
+      m_blocks=newBlocks;
+    }
+
+    IntBuffer block=m_blocks[index];
+    if(null==block)
+      block=m_blocks[index]=m_allocator.allocate(m_blocksize);
+    return block;
+  }
+
+  /**
+   * Append a int onto the vector.
+   *
+   * @param value Int to add to the list
+   */
+  public void addElement(int value)
+  {
+    int indexRelativeToCache = m_firstFree - m_buildCacheStartIndex;
+
+    if(indexRelativeToCache >= 0 && indexRelativeToCache < m_blocksize)
+    {
+      m_buildBlock.put(indexRelativeToCache, value);
+    }
+    else
+    {
+      int offset=m_firstFree&m_MASK;
+      m_buildBlock=getBlock(m_firstFree>>>m_SHIFT);
+      m_buildBlock.put(offset, value);
+      m_buildCacheStartIndex = m_firstFree-offset;
+    }
+    ++m_firstFree;
+  }
+
+  /**
+   * Wipe it out. Currently defined as equivalent to setSize(0).
+   * The blocks are kept for reuse.
+   */
+  public void removeAllElements()
+  {
+    m_firstFree = 0;
+    m_buildBlock = m_blocks[0];
+    m_buildCacheStartIndex = 0;
+  }
+
+  /**
+   * Sets the component at the specified index of this vector to be the
+   * specified object. The previous component at that position is discarded.
+   *
+   * @param value object to set
+   * @param at    Index of where to set the object
+   */
+  public void setElementAt(int value, int at)
+  {
+    getBlock(at>>>m_SHIFT).put(at&m_MASK, value);
+
+    if(at>=m_firstFree)
+      m_firstFree=at+1;
+  }
+
+  /**
+   * Get the nth element.
+   *
+   * @param i index of value to get
+   *
+   * @return value at given index. If that value wasn't previously set,
+   * the result is undefined.
+   */
+  public int elementAt(int i)
+  {
+    return m_blocks[i>>>m_SHIFT].get(i&m_MASK);
+  }
+
+  /**
+   * Searches for the first occurence of the given argument,
+   * beginning the search at index.
+   *
+   * @param elem object to look for
+   * @param index Index of where to begin search
+   * @return the index of the first occurrence of the object
+   * argument in this vector at position index or later in the
+   * vector; returns -1 if the object is not found.
+   */
+  public int indexOf(int elem, int index)
+  {
+    for(int i=index;i<m_firstFree;++i)
+      if(elementAt(i)==elem)
+        return i;
+
+    return -1;
+  }
+
+  /**
+   * Drop this vector's references to its blocks, so they can be reclaimed
+   * once the allocator itself has been released. The vector must not be
+   * used afterwards.
+   */
+  public void release()
+  {
+    m_blocks = null;
+    m_buildBlock = null;
+    m_firstFree = 0;
+  }
+}
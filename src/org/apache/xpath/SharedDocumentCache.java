@@ -0,0 +1,404 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xpath;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xml.dtm.ref.DTMManagerDefault;
+import org.apache.xpath.objects.XMLStringFactoryImpl;
+
+/**
+ * A cache of parsed documents that is shared by any number of
+ * transformations, on any number of threads. Each document is parsed once,
+ * into a DTM owned by the cache, and is then attached read-only to the
+ * DTMManager of every transformation that asks for it by URI, so that
+ * concurrent transformations share one copy of their lookup documents
+ * rather than each parsing its own.
+ *
+ * <p>Documents are keyed by their resolved system ID. Only documents that
+ * are parsed unchanged can be shared: the SourceTreeManager does not use
+ * the cache for stylesheets that strip whitespace, and DOMSources (which
+ * wrap a live DOM) are never cached. The cache holds at most
+ * getMaxDocuments() documents, evicting the least recently used one first.
+ * Documents that are known to have changed can be dropped with
+ * invalidate() or clear(); transformations already using them keep their
+ * copy.</p>
+ *
+ * <p>The DTM IDs of shared documents are taken from the top of a range
+ * that transformations seldom reach. A transformation that has already
+ * used one of those IDs for a document of its own simply parses its own
+ * copy instead.</p>
+ * @xsl.usage advanced
+ */
+public class SharedDocumentCache
+{
+
+  /** The number of documents a cache holds unless told otherwise. */
+  public static final int DEFAULT_MAX_DOCUMENTS = 64;
+
+  /** The cache used when sharing is switched on without naming one. */
+  private static SharedDocumentCache m_defaultInstance;
+
+  /** The manager that owns the shared DTMs. */
+  private final DTMManagerDefault m_dtmManager;
+
+  /** Map from system ID to the CachedDocument for that document. */
+  private final Hashtable m_documents = new Hashtable();
+
+  /** The maximum number of documents held. */
+  private int m_maxDocuments;
+
+  /** Counter used to order documents by their last use. */
+  private long m_useCount = 0;
+
+  /**
+   * The DTMManager for shared documents. Its IDs start well above the
+   * ones a transformation's own manager hands out first.
+   */
+  private static class SharedDTMManager extends DTMManagerDefault
+  {
+    SharedDTMManager()
+    {
+      setXMLStringFactory(XMLStringFactoryImpl.getFactory());
+      setMinimumDTMID(Math.min(1024, IDENT_MAX_DTMS / 2));
+    }
+  }
+
+  /**
+   * A document in the cache, or being loaded into it. Threads that ask
+   * for a document while it is being loaded wait for that load instead
+   * of starting their own.
+   */
+  private static class CachedDocument
+  {
+    /** The document, once loaded. */
+    DTM m_dtm;
+
+    /** Why the load failed, if it did. */
+    Exception m_failure;
+
+    /** Whether the load has finished. */
+    boolean m_done = false;
+
+    /** When the document was last used, from m_useCount. */
+    long m_lastUsed;
+
+    /** Data attached to the document by its users, created when needed. */
+    Hashtable m_data;
+
+    /**
+     * Record the outcome of the load and wake the waiting threads.
+     */
+    synchronized void complete(DTM dtm, Exception failure)
+    {
+      m_dtm = dtm;
+      m_failure = failure;
+      m_done = true;
+      notifyAll();
+    }
+
+    /**
+     * Wait for the load to finish.
+     *
+     * @return the document, or null if the load failed or the wait was
+     * interrupted.
+     */
+    synchronized DTM await()
+    {
+      while (!m_done)
+      {
+        try
+        {
+          wait();
+        }
+        catch (InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return m_dtm;
+    }
+  }
+
+  /**
+   * Create a cache holding up to DEFAULT_MAX_DOCUMENTS documents.
+   */
+  public SharedDocumentCache()
+  {
+    this(DEFAULT_MAX_DOCUMENTS);
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxDocuments The maximum number of documents to hold.
+   */
+  public SharedDocumentCache(int maxDocuments)
+  {
+    m_maxDocuments = maxDocuments;
+    m_dtmManager = new SharedDTMManager();
+  }
+
+  /**
+   * Get the process-wide cache, creating it if need be.
+   *
+   * @return the process-wide SharedDocumentCache.
+   */
+  public static synchronized SharedDocumentCache getDefaultInstance()
+  {
+    if (null == m_defaultInstance)
+      m_defaultInstance = new SharedDocumentCache();
+    return m_defaultInstance;
+  }
+
+  /**
+   * Set the maximum number of documents held, evicting documents if
+   * there are now too many.
+   *
+   * @param maxDocuments The maximum number of documents to hold.
+   */
+  public synchronized void setMaxDocuments(int maxDocuments)
+  {
+    m_maxDocuments = maxDocuments;
+    evict();
+  }
+
+  /**
+   * Get the maximum number of documents held.
+   *
+   * @return The maximum number of documents held.
+   */
+  public synchronized int getMaxDocuments()
+  {
+    return m_maxDocuments;
+  }
+
+  /**
+   * Get the number of documents held, including any being loaded.
+   *
+   * @return The number of documents held.
+   */
+  public int size()
+  {
+    return m_documents.size();
+  }
+
+  /**
+   * Drop a document from the cache, so that it is parsed again the next
+   * time it is asked for.
+   *
+   * @param systemId The resolved system ID of the document.
+   */
+  public synchronized void invalidate(String systemId)
+  {
+    CachedDocument doc = (CachedDocument) m_documents.get(systemId);
+    if (null != doc && doc.m_done)
+    {
+      m_documents.remove(systemId);
+      discard(doc);
+    }
+  }
+
+  /**
+   * Drop every document from the cache.
+   */
+  public synchronized void clear()
+  {
+    for (Enumeration e = m_documents.keys(); e.hasMoreElements(); )
+      invalidate((String) e.nextElement());
+  }
+
+  /**
+   * Get the root of a shared document, attached to the DTMManager of the
+   * given XPath context.
+   *
+   * @param source The Source of the document, as resolved by the caller.
+   * @param locator The location of the caller, for diagnostic purposes.
+   * @param xctxt The XPath context of the transformation asking for it.
+   *
+   * @return the document's root node, or DTM.NULL if the document can not
+   * be shared with this context, in which case the caller should parse it
+   * itself.
+   *
+   * @throws TransformerException if the document can not be parsed.
+   */
+  public int getSourceTree(Source source, SourceLocator locator,
+                           XPathContext xctxt)
+          throws TransformerException
+  {
+    String systemId = source.getSystemId();
+    DTMManager mgr = xctxt.getDTMManager();
+
+    if (null == systemId || source instanceof DOMSource
+        || !(mgr instanceof DTMManagerDefault))
+      return DTM.NULL;
+
+    DTM dtm = getDTM(systemId, source, locator);
+
+    if (null == dtm || !((DTMManagerDefault) mgr).addSharedDTM(dtm))
+      return DTM.NULL;
+
+    return dtm.getDocument();
+  }
+
+  /**
+   * Get a table in which users of a shared document may keep data derived
+   * from it, such as key indexes, for other transformations to reuse. The
+   * table lives as long as the document stays in the cache, and callers
+   * must synchronize on it.
+   *
+   * @param dtm A document obtained from this cache.
+   *
+   * @return the document's table, or null if the document is not held by
+   * this cache.
+   */
+  public synchronized Hashtable getDocumentData(DTM dtm)
+  {
+    for (Enumeration e = m_documents.elements(); e.hasMoreElements(); )
+    {
+      CachedDocument doc = (CachedDocument) e.nextElement();
+      if (doc.m_dtm == dtm)
+      {
+        if (null == doc.m_data)
+          doc.m_data = new Hashtable();
+        return doc.m_data;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get a shared document, loading it if it is not in the cache.
+   *
+   * @param systemId The key for the document.
+   * @param source The Source to load the document from.
+   * @param locator The location of the caller, for diagnostic purposes.
+   *
+   * @return the document, or null if it could not be obtained.
+   *
+   * @throws TransformerException if the document can not be parsed.
+   */
+  private DTM getDTM(String systemId, Source source, SourceLocator locator)
+          throws TransformerException
+  {
+    CachedDocument doc;
+    boolean load = false;
+
+    synchronized (this)
+    {
+      doc = (CachedDocument) m_documents.get(systemId);
+      if (null == doc)
+      {
+        doc = new CachedDocument();
+        m_documents.put(systemId, doc);
+        load = true;
+      }
+      doc.m_lastUsed = ++m_useCount;
+    }
+
+    if (!load)
+    {
+      DTM dtm = doc.await();
+      if (null == dtm && null != doc.m_failure)
+        throw new TransformerException(doc.m_failure.getMessage(), locator,
+                                       doc.m_failure);
+      return dtm;
+    }
+
+    DTM dtm = null;
+    Exception failure = null;
+    try
+    {
+      dtm = m_dtmManager.getDTM(source, false, null, false, true);
+    }
+    catch (Exception e)
+    {
+      failure = e;
+    }
+    finally
+    {
+      synchronized (this)
+      {
+        if (null == dtm)
+          m_documents.remove(systemId);
+        else
+          evict();
+      }
+      doc.complete(dtm, failure);
+    }
+
+    if (null != failure)
+      throw new TransformerException(failure.getMessage(), locator, failure);
+
+    return dtm;
+  }
+
+  /**
+   * Evict least recently used documents until the cache is within its
+   * bound. Documents still being loaded are left alone.
+   */
+  private void evict()
+  {
+    while (m_documents.size() > m_maxDocuments)
+    {
+      String victim = null;
+      CachedDocument victimDoc = null;
+
+      for (Enumeration e = m_documents.keys(); e.hasMoreElements(); )
+      {
+        String systemId = (String) e.nextElement();
+        CachedDocument doc = (CachedDocument) m_documents.get(systemId);
+        if (doc.m_done
+            && (null == victimDoc || doc.m_lastUsed < victimDoc.m_lastUsed))
+        {
+          victim = systemId;
+          victimDoc = doc;
+        }
+      }
+
+      if (null == victim)
+        break;
+
+      m_documents.remove(victim);
+      discard(victimDoc);
+    }
+  }
+
+  /**
+   * Give a document's IDs back to the shared manager. Transformations
+   * that have the document attached keep using it; it is only dropped
+   * from the cache.
+   */
+  private void discard(CachedDocument doc)
+  {
+    if (null != doc.m_dtm)
+      m_dtmManager.release(doc.m_dtm, true);
+  }
+}
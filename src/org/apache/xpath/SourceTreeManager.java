@@ -59,6 +59,30 @@ public class SourceTreeManager
   /** The TrAX URI resolver used to obtain source trees. */
   URIResolver m_uriResolver;
 
+  /** The cache of documents shared with other transformations, or null. */
+  private SharedDocumentCache m_sharedDocumentCache;
+
+  /**
+   * Set a cache of documents to share with other transformations. Source
+   * trees found in the cache are attached to this context's DTMManager
+   * rather than parsed again. The setting is kept across reset().
+   * @param cache The SharedDocumentCache to use, or null to parse every
+   * source tree for this context alone.
+   */
+  public void setSharedDocumentCache(SharedDocumentCache cache)
+  {
+    m_sharedDocumentCache = cache;
+  }
+
+  /**
+   * Get the cache of documents shared with other transformations.
+   * @return The SharedDocumentCache in use, or null.
+   */
+  public SharedDocumentCache getSharedDocumentCache()
+  {
+    return m_sharedDocumentCache;
+  }
+
   /**
    * Set an object that will be used to resolve URIs used in
    * document(), etc.
@@ -278,7 +302,11 @@ public class SourceTreeManager
     if (DTM.NULL != n)
       return n;
 
-    n = parseToNode(source, locator, xctxt);
+    if (null != m_sharedDocumentCache)
+      n = m_sharedDocumentCache.getSourceTree(source, locator, xctxt);
+
+    if (DTM.NULL == n)
+      n = parseToNode(source, locator, xctxt);
 
     if (DTM.NULL != n)
       putDocumentInCache(n, source);
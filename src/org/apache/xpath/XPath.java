@@ -30,8 +30,11 @@ import org.apache.xalan.res.XSLMessages;
 import org.apache.xml.dtm.DTM;
 import org.apache.xml.utils.PrefixResolver;
 import org.apache.xml.utils.SAXSourceLocator;
+import org.apache.xpath.compiler.BytecodeCompiler;
+import org.apache.xpath.compiler.CompiledXPath;
 import org.apache.xpath.compiler.Compiler;
 import org.apache.xpath.compiler.FunctionTable;
+import org.apache.xpath.compiler.XPathOptimizer;
 import org.apache.xpath.compiler.XPathParser;
 import org.apache.xpath.functions.Function;
 import org.apache.xpath.objects.XObject;
@@ -49,6 +52,40 @@ public class XPath implements Serializable, ExpressionOwner
   /** The top of the expression tree. 
    *  @serial */
   private Expression m_mainExp;
+
+  /**
+   * The name of the system property that turns on the compilation of
+   * expressions to bytecode. Its value is the number of times an XPath is
+   * executed before its expression is compiled; until then, and if the
+   * property is not set, the expression is interpreted. Only the operators
+   * at the top of an expression are compiled, see
+   * {@link org.apache.xpath.compiler.BytecodeCompiler}.
+   */
+  public static final String COMPILE_THRESHOLD_PROPERTY =
+    "org.apache.xpath.XPath.compileThreshold";
+
+  /** The value of COMPILE_THRESHOLD_PROPERTY, or 0 if expressions are
+   * always interpreted. */
+  private static int s_compileThreshold = 0;
+
+  static
+  {
+    try
+    {
+      String threshold = System.getProperty(COMPILE_THRESHOLD_PROPERTY);
+      if (threshold != null)
+        s_compileThreshold = Integer.parseInt(threshold.trim());
+    }
+    catch (SecurityException ex){}
+    catch (NumberFormatException ex){}
+  }
+
+  /** The number of times the expression has been executed, counted until
+   * it reaches the compile threshold. */
+  private transient int m_executions = 0;
+
+  /** The compiled expression, or null if the expression is interpreted. */
+  private transient volatile CompiledXPath m_compiled;
   
   /**
    * The function table for xpath build-in functions
@@ -99,6 +136,8 @@ public class XPath implements Serializable, ExpressionOwner
   	if(null != m_mainExp)
     	exp.exprSetParent(m_mainExp.exprGetParent()); // a bit bogus
     m_mainExp = exp;
+    m_compiled = null;
+    m_executions = 0;
   }
 
   /**
@@ -186,10 +225,14 @@ public class XPath implements Serializable, ExpressionOwner
 
     // System.out.println("expr: "+expr);
     this.setExpression(expr);
+
+    // The optimizer may replace the main expression
+    if (SELECT == type)
+      callVisitors(this, new XPathOptimizer());
     
     if((null != locator) && locator instanceof ExpressionNode)
     {
-    	expr.exprSetParent((ExpressionNode)locator);
+    	m_mainExp.exprSetParent((ExpressionNode)locator);
     }
 
   }
@@ -238,10 +281,14 @@ public class XPath implements Serializable, ExpressionOwner
 
     // System.out.println("expr: "+expr);
     this.setExpression(expr);
+
+    // The optimizer may replace the main expression
+    if (SELECT == type)
+      callVisitors(this, new XPathOptimizer());
     
     if((null != locator) && locator instanceof ExpressionNode)
     {
-    	expr.exprSetParent((ExpressionNode)locator);
+    	m_mainExp.exprSetParent((ExpressionNode)locator);
     }
 
   }
@@ -334,7 +381,11 @@ public class XPath implements Serializable, ExpressionOwner
 
     try
     {
-      xobj = m_mainExp.execute(xctxt);
+      CompiledXPath compiled = getCompiled();
+      if (null != compiled)
+        xobj = compiled.execute(xctxt);
+      else
+        xobj = m_mainExp.execute(xctxt);
     }
     catch (TransformerException te)
     {
@@ -409,6 +460,9 @@ public class XPath implements Serializable, ExpressionOwner
 
     try
     {
+      CompiledXPath compiled = getCompiled();
+      if (null != compiled)
+        return compiled.bool(xctxt);
       return m_mainExp.bool(xctxt);
     }
     catch (TransformerException te)
@@ -459,6 +513,38 @@ public class XPath implements Serializable, ExpressionOwner
     return false;
   }
 
+  /**
+   * Count an execution of the expression, and compile it when the count
+   * reaches the compile threshold.
+   *
+   * @return The compiled expression, or null if it is interpreted.
+   */
+  private CompiledXPath getCompiled()
+  {
+    if (null == m_compiled && m_executions < s_compileThreshold
+        && ++m_executions == s_compileThreshold)
+      compileExpression();
+    return m_compiled;
+  }
+
+  /**
+   * Compile the expression. If it cannot be compiled, it stays
+   * interpreted, and is not tried again.
+   */
+  private synchronized void compileExpression()
+  {
+    if (null != m_compiled)
+      return;
+    try
+    {
+      m_compiled = BytecodeCompiler.compile(m_mainExp);
+    }
+    catch (LinkageError le)
+    {
+      // BCEL is not on the classpath.
+    }
+  }
+
   /** Set to true to get diagnostic messages about the result of 
    *  match pattern testing.  */
   private static final boolean DEBUG_MATCHES = false;
@@ -232,8 +232,8 @@ public class XPathAPI
       (namespaceNode.getNodeType() == Node.DOCUMENT_NODE)
       ? ((Document) namespaceNode).getDocumentElement() : namespaceNode);
 
-    // Create the XPath object.
-    XPath xpath = new XPath(str, null, prefixResolver, XPath.SELECT, null);
+    // Get the XPath object, which is only compiled if it is not cached.
+    XPath xpath = XPathCache.getDefaultInstance().getXPath(str, prefixResolver);
 
     // Execute the XPath, and have it return the result
     // return xpath.execute(xpathSupport, contextNode, prefixResolver);
@@ -273,8 +273,8 @@ public class XPathAPI
     // (Changed from: XPathContext xpathSupport = new XPathContext();
     //    because XPathContext is weak in a number of areas... perhaps
     //    XPathContext should be done away with.)
-    // Create the XPath object.
-    XPath xpath = new XPath(str, null, prefixResolver, XPath.SELECT, null);
+    // Get the XPath object, which is only compiled if it is not cached.
+    XPath xpath = XPathCache.getDefaultInstance().getXPath(str, prefixResolver);
 
     // Create an XPathContext that doesn't support pushing and popping of
     // variable resolution scopes.  Sufficient for simple XPath 1.0 expressions.
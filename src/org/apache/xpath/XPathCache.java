@@ -0,0 +1,486 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xpath;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xml.utils.PrefixResolver;
+
+/**
+ * A cache of compiled XPath select expressions that is shared by any number
+ * of threads. APIs that are handed an expression as a string, such as
+ * XPathAPI, CachedXPathAPI and the javax.xml.xpath XPath, get the compiled
+ * expression from here, so that an expression is parsed and compiled once
+ * rather than on every call.
+ *
+ * <p>An expression is looked up by its string, and by the namespace
+ * bindings it was compiled with: when it is compiled, the prefixes it
+ * asks the PrefixResolver about are recorded along with the URIs they were
+ * bound to, and the compiled expression is only used again with a
+ * PrefixResolver that binds them to the same URIs. Expressions that depend
+ * on the PrefixResolver in any other way are not cached. Expressions that
+ * fail to compile are not cached either.</p>
+ *
+ * <p>The cache holds at most getMaxExpressions() expressions, evicting the
+ * least recently used one first, and counts its hits and misses.</p>
+ * @xsl.usage advanced
+ */
+public class XPathCache
+{
+
+  /** The number of expressions a cache holds unless told otherwise. */
+  public static final int DEFAULT_MAX_EXPRESSIONS = 256;
+
+  /** The cache used by the XPath APIs. */
+  private static XPathCache m_defaultInstance;
+
+  /**
+   * Map from expression string to an array of the Entries for that string,
+   * one for each set of namespace bindings. The arrays are replaced rather
+   * than changed, so they can be searched without holding the lock.
+   */
+  private final Hashtable m_entries = new Hashtable();
+
+  /** The most recently used entry, or null if the cache is empty. */
+  private Entry m_head;
+
+  /** The least recently used entry, or null if the cache is empty. */
+  private Entry m_tail;
+
+  /** The number of entries held. */
+  private int m_size = 0;
+
+  /** The maximum number of entries held. */
+  private int m_maxExpressions;
+
+  /** The number of lookups that found a compiled expression. */
+  private long m_hits = 0;
+
+  /** The number of lookups that had to compile the expression. */
+  private long m_misses = 0;
+
+  /**
+   * A compiled expression, with the namespace bindings it was compiled
+   * with. Entries are linked in order of use.
+   */
+  private static class Entry
+  {
+    /** The expression string. */
+    final String m_exprString;
+
+    /** The compiled expression. */
+    final XPath m_xpath;
+
+    /**
+     * The prefixes looked up when compiling, or null if the expression was
+     * compiled without a PrefixResolver.
+     */
+    final String[] m_prefixes;
+
+    /** The URIs the prefixes were bound to. */
+    final String[] m_uris;
+
+    /**
+     * The PrefixResolver's handlesNullPrefixes(), if compiling asked for
+     * it, or null.
+     */
+    final Boolean m_handlesNullPrefixes;
+
+    /** The next more recently used entry. */
+    Entry m_prev;
+
+    /** The next less recently used entry. */
+    Entry m_next;
+
+    /** Whether the entry is still in the cache. */
+    boolean m_cached = true;
+
+    Entry(String exprString, XPath xpath, RecordingPrefixResolver recorder)
+    {
+      m_exprString = exprString;
+      m_xpath = xpath;
+      if (null == recorder)
+      {
+        m_prefixes = null;
+        m_uris = null;
+        m_handlesNullPrefixes = null;
+      }
+      else
+      {
+        final int n = recorder.m_prefixes.size();
+        m_prefixes = new String[n];
+        m_uris = new String[n];
+        recorder.m_prefixes.copyInto(m_prefixes);
+        recorder.m_uris.copyInto(m_uris);
+        m_handlesNullPrefixes = recorder.m_handlesNullPrefixes;
+      }
+    }
+
+    /**
+     * Tell whether the expression was compiled with the same bindings as
+     * the given PrefixResolver has.
+     */
+    boolean matches(PrefixResolver prefixResolver)
+    {
+      if (null == prefixResolver || null == m_prefixes)
+        return (null == prefixResolver && null == m_prefixes);
+
+      if (null != m_handlesNullPrefixes
+          && m_handlesNullPrefixes.booleanValue()
+             != prefixResolver.handlesNullPrefixes())
+        return false;
+
+      for (int i = 0; i < m_prefixes.length; i++)
+      {
+        final String uri = prefixResolver.getNamespaceForPrefix(m_prefixes[i]);
+        if (null == uri ? null != m_uris[i] : !uri.equals(m_uris[i]))
+          return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A PrefixResolver that records the questions the compiler asks of
+   * another one, so that the compiled expression can be cached with them.
+   */
+  private static class RecordingPrefixResolver implements PrefixResolver
+  {
+    /** The PrefixResolver answering the questions. */
+    private final PrefixResolver m_resolver;
+
+    /** The prefixes looked up, in order. */
+    final Vector m_prefixes = new Vector();
+
+    /** The URIs the prefixes were bound to. */
+    final Vector m_uris = new Vector();
+
+    /** The answer from handlesNullPrefixes(), if it was asked. */
+    Boolean m_handlesNullPrefixes;
+
+    /**
+     * Whether the expression may be cached, which it may not if the
+     * compiler asked something that the bindings do not cover.
+     */
+    boolean m_cacheable = true;
+
+    RecordingPrefixResolver(PrefixResolver resolver)
+    {
+      m_resolver = resolver;
+    }
+
+    public String getNamespaceForPrefix(String prefix)
+    {
+      final String uri = m_resolver.getNamespaceForPrefix(prefix);
+      m_prefixes.addElement(prefix);
+      m_uris.addElement(uri);
+      return uri;
+    }
+
+    public String getNamespaceForPrefix(String prefix,
+                                        org.w3c.dom.Node context)
+    {
+      m_cacheable = false;
+      return m_resolver.getNamespaceForPrefix(prefix, context);
+    }
+
+    public String getBaseIdentifier()
+    {
+      m_cacheable = false;
+      return m_resolver.getBaseIdentifier();
+    }
+
+    public boolean handlesNullPrefixes()
+    {
+      final boolean handles = m_resolver.handlesNullPrefixes();
+      m_handlesNullPrefixes = handles ? Boolean.TRUE : Boolean.FALSE;
+      return handles;
+    }
+  }
+
+  /**
+   * Create a cache holding up to DEFAULT_MAX_EXPRESSIONS expressions.
+   */
+  public XPathCache()
+  {
+    this(DEFAULT_MAX_EXPRESSIONS);
+  }
+
+  /**
+   * Create a cache.
+   *
+   * @param maxExpressions The maximum number of expressions to hold.
+   */
+  public XPathCache(int maxExpressions)
+  {
+    m_maxExpressions = maxExpressions;
+  }
+
+  /**
+   * Get the process-wide cache, creating it if need be.
+   *
+   * @return the process-wide XPathCache.
+   */
+  public static synchronized XPathCache getDefaultInstance()
+  {
+    if (null == m_defaultInstance)
+      m_defaultInstance = new XPathCache();
+    return m_defaultInstance;
+  }
+
+  /**
+   * Get a compiled select expression, compiling it if it is not in the
+   * cache.
+   *
+   * @param exprString The XPath expression.
+   * @param prefixResolver The PrefixResolver to resolve prefixes in the
+   * expression with, or null.
+   *
+   * @return the compiled expression.
+   *
+   * @throws TransformerException if the expression can not be compiled.
+   */
+  public XPath getXPath(String exprString, PrefixResolver prefixResolver)
+          throws TransformerException
+  {
+    Entry[] entries;
+    synchronized (this)
+    {
+      entries = (Entry[]) m_entries.get(exprString);
+    }
+
+    // The PrefixResolver is asked about the bindings without the lock held
+    if (null != entries)
+    {
+      for (int i = 0; i < entries.length; i++)
+      {
+        final Entry entry = entries[i];
+        if (entry.matches(prefixResolver))
+        {
+          synchronized (this)
+          {
+            m_hits++;
+            if (entry.m_cached)
+            {
+              unlink(entry);
+              linkFirst(entry);
+            }
+          }
+          return entry.m_xpath;
+        }
+      }
+    }
+
+    synchronized (this)
+    {
+      m_misses++;
+    }
+
+    final RecordingPrefixResolver recorder = (null == prefixResolver)
+      ? null : new RecordingPrefixResolver(prefixResolver);
+    final XPath xpath =
+      new XPath(exprString, null, recorder, XPath.SELECT, null);
+
+    if (null == recorder || recorder.m_cacheable)
+      add(new Entry(exprString, xpath, recorder));
+
+    return xpath;
+  }
+
+  /**
+   * Set the maximum number of expressions held, evicting expressions if
+   * there are now too many.
+   *
+   * @param maxExpressions The maximum number of expressions to hold.
+   */
+  public synchronized void setMaxExpressions(int maxExpressions)
+  {
+    m_maxExpressions = maxExpressions;
+    evict();
+  }
+
+  /**
+   * Get the maximum number of expressions held.
+   *
+   * @return The maximum number of expressions held.
+   */
+  public synchronized int getMaxExpressions()
+  {
+    return m_maxExpressions;
+  }
+
+  /**
+   * Get the number of expressions held.
+   *
+   * @return The number of expressions held.
+   */
+  public synchronized int size()
+  {
+    return m_size;
+  }
+
+  /**
+   * Get the number of lookups that found the expression in the cache.
+   *
+   * @return The number of hits.
+   */
+  public synchronized long getHits()
+  {
+    return m_hits;
+  }
+
+  /**
+   * Get the number of lookups that had to compile the expression.
+   *
+   * @return The number of misses.
+   */
+  public synchronized long getMisses()
+  {
+    return m_misses;
+  }
+
+  /**
+   * Drop every expression from the cache. The hit and miss counts are
+   * kept.
+   */
+  public synchronized void clear()
+  {
+    for (Entry entry = m_head; null != entry; entry = entry.m_next)
+      entry.m_cached = false;
+    m_entries.clear();
+    m_head = null;
+    m_tail = null;
+    m_size = 0;
+  }
+
+  /**
+   * Add a newly compiled expression, unless another thread has added one
+   * for the same bindings meanwhile, and evict expressions if there are
+   * now too many.
+   */
+  private synchronized void add(Entry entry)
+  {
+    final Entry[] entries = (Entry[]) m_entries.get(entry.m_exprString);
+    Entry[] newEntries;
+    if (null == entries)
+      newEntries = new Entry[] { entry };
+    else
+    {
+      for (int i = 0; i < entries.length; i++)
+      {
+        if (sameBindings(entries[i], entry))
+          return;
+      }
+      newEntries = new Entry[entries.length + 1];
+      System.arraycopy(entries, 0, newEntries, 0, entries.length);
+      newEntries[entries.length] = entry;
+    }
+
+    m_entries.put(entry.m_exprString, newEntries);
+    linkFirst(entry);
+    m_size++;
+    evict();
+  }
+
+  /**
+   * Tell whether two entries for an expression were compiled with the same
+   * bindings.
+   */
+  private static boolean sameBindings(Entry a, Entry b)
+  {
+    if (null == a.m_prefixes || null == b.m_prefixes)
+      return (a.m_prefixes == b.m_prefixes);
+    if (a.m_handlesNullPrefixes != b.m_handlesNullPrefixes
+        || a.m_prefixes.length != b.m_prefixes.length)
+      return false;
+    for (int i = 0; i < a.m_prefixes.length; i++)
+    {
+      if (!a.m_prefixes[i].equals(b.m_prefixes[i])
+          || (null == a.m_uris[i] ? null != b.m_uris[i]
+                                  : !a.m_uris[i].equals(b.m_uris[i])))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Evict least recently used expressions until the cache is within its
+   * bound.
+   */
+  private void evict()
+  {
+    while (m_size > m_maxExpressions && null != m_tail)
+    {
+      final Entry victim = m_tail;
+      unlink(victim);
+      victim.m_cached = false;
+      m_size--;
+
+      final Entry[] entries = (Entry[]) m_entries.get(victim.m_exprString);
+      if (entries.length == 1)
+        m_entries.remove(victim.m_exprString);
+      else
+      {
+        final Entry[] newEntries = new Entry[entries.length - 1];
+        for (int i = 0, j = 0; i < entries.length; i++)
+        {
+          if (entries[i] != victim)
+            newEntries[j++] = entries[i];
+        }
+        m_entries.put(victim.m_exprString, newEntries);
+      }
+    }
+  }
+
+  /**
+   * Put an entry at the most recently used end of the list.
+   */
+  private void linkFirst(Entry entry)
+  {
+    entry.m_prev = null;
+    entry.m_next = m_head;
+    if (null != m_head)
+      m_head.m_prev = entry;
+    else
+      m_tail = entry;
+    m_head = entry;
+  }
+
+  /**
+   * Take an entry out of the list.
+   */
+  private void unlink(Entry entry)
+  {
+    if (null != entry.m_prev)
+      entry.m_prev.m_next = entry.m_next;
+    else
+      m_head = entry.m_next;
+    if (null != entry.m_next)
+      entry.m_next.m_prev = entry.m_prev;
+    else
+      m_tail = entry.m_prev;
+    entry.m_prev = null;
+    entry.m_next = null;
+  }
+}
@@ -20,28 +20,67 @@
  */
 package org.apache.xpath.axes;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Hashtable;
 
 import org.apache.xml.dtm.DTMIterator;
 import org.apache.xml.utils.WrappedRuntimeException;
 
 /**
- * Pool of object of a given type to pick from to help memory usage
+ * Pool of object of a given type to pick from to help memory usage.
+ *
+ * The free objects are kept by thread, so that threads evaluating the
+ * same expression do not contend for the pool. Each pool has an index of
+ * its own, and each thread keeps the free objects of every pool it has
+ * used in an array at that index, so pools never drop each other's free
+ * objects.
+ *
+ * A thread's free objects reference the pool's expression, so they are
+ * only softly held: they stay while memory allows, and a pool that is
+ * otherwise unused can still be collected, after which its index is given
+ * to a new pool.
  * @xsl.usage internal
  */
 public final class IteratorPool implements java.io.Serializable
 {
     static final long serialVersionUID = -460927331149566998L;
 
+  /**
+   * The free lists of each thread, a {@link FreeLists}.
+   */
+  private static final ThreadLocal s_freeLists = new ThreadLocal();
+
+  /** The number of indexes given out so far. */
+  private static int s_indexCount = 0;
+
+  /** Indexes of collected pools, to be given out again. */
+  private static int[] s_freeIndexes = new int[16];
+
+  /** The number of entries of s_freeIndexes in use. */
+  private static int s_freeIndexCount = 0;
+
+  /** Where the references to collected pools are queued. */
+  private static final ReferenceQueue s_collected = new ReferenceQueue();
+
+  /**
+   * The {@link PoolReference}s of the pools, which must themselves be
+   * reachable to be queued.
+   */
+  private static final Hashtable s_references = new Hashtable();
+
   /** 
    * Type of objects in this pool.
    */
   private final DTMIterator m_orig;
 
-  /** 
-   * Stack of given objects this points to.
+  /**
+   * The reference to this pool, which holds its index in each thread's
+   * free lists.
    */
-  private final ArrayList m_freeStack;
+  private transient PoolReference m_reference;
 
   /**
    * Constructor IteratorPool
@@ -51,7 +90,95 @@ public final class IteratorPool implements java.io.Serializable
   public IteratorPool(DTMIterator original)
   {
     m_orig = original;
-    m_freeStack = new ArrayList();
+    m_reference = newReference(this);
+  }
+
+  /**
+   * Read the object from a serialization stream.
+   *
+   * @param stream Input stream to read from
+   *
+   * @throws java.io.IOException
+   * @throws ClassNotFoundException
+   */
+  private void readObject(java.io.ObjectInputStream stream)
+          throws java.io.IOException, ClassNotFoundException
+  {
+    stream.defaultReadObject();
+    m_reference = newReference(this);
+  }
+
+  /**
+   * Give a pool an index, reusing the index of a collected pool if there
+   * is one.
+   *
+   * @param pool The pool.
+   *
+   * @return The reference to the pool, holding its index.
+   */
+  private static synchronized PoolReference newReference(IteratorPool pool)
+  {
+    PoolReference collected;
+    while (null != (collected = (PoolReference) s_collected.poll()))
+    {
+      s_references.remove(collected);
+      if (s_freeIndexCount == s_freeIndexes.length)
+      {
+        int[] indexes = new int[2 * s_freeIndexCount];
+        System.arraycopy(s_freeIndexes, 0, indexes, 0, s_freeIndexCount);
+        s_freeIndexes = indexes;
+      }
+      s_freeIndexes[s_freeIndexCount++] = collected.m_index;
+    }
+
+    final int index = (s_freeIndexCount > 0)
+                      ? s_freeIndexes[--s_freeIndexCount] : s_indexCount++;
+    final PoolReference ref = new PoolReference(pool, index);
+    s_references.put(ref, ref);
+    return ref;
+  }
+
+  /**
+   * Get the current thread's stack of free objects from this pool.
+   *
+   * @param create true if a stack should be made if the thread has none.
+   *
+   * @return The stack, or null if the thread has none and create is false.
+   */
+  private ArrayList getFreeStack(boolean create)
+  {
+    FreeLists lists = (FreeLists) s_freeLists.get();
+    if (null == lists)
+    {
+      if (!create)
+        return null;
+      lists = new FreeLists();
+      s_freeLists.set(lists);
+    }
+
+    final int index = m_reference.m_index;
+    SoftReference[] stacks = lists.m_stacks;
+    FreeStack stack = null;
+    if (index < stacks.length && null != stacks[index])
+      stack = (FreeStack) stacks[index].get();
+
+    // A stack left by a collected pool whose index this pool now has is
+    // not this pool's.
+    if (null == stack || stack.m_owner != m_reference)
+    {
+      if (!create)
+        return null;
+      if (index >= stacks.length)
+      {
+        SoftReference[] grown =
+          new SoftReference[Math.max(index + 1, 2 * stacks.length)];
+        System.arraycopy(stacks, 0, grown, 0, stacks.length);
+        lists.m_stacks = stacks = grown;
+      }
+      stack = new FreeStack(m_reference);
+      stacks[index] = new SoftReference(stack);
+    }
+    return stack;
   }
   
   /**
@@ -59,11 +186,13 @@ public final class IteratorPool implements java.io.Serializable
    *
    * @return An instance of the given object
    */
-  public synchronized DTMIterator getInstanceOrThrow()
+  public DTMIterator getInstanceOrThrow()
     throws CloneNotSupportedException
   {
+    ArrayList freeStack = getFreeStack(false);
+
     // Check if the pool is empty.
-    if (m_freeStack.isEmpty())
+    if (null == freeStack || freeStack.isEmpty())
     {
 
       // Create a new object if so.
@@ -72,7 +201,7 @@ public final class IteratorPool implements java.io.Serializable
     else
     {
       // Remove object from end of free pool.
-      DTMIterator result = (DTMIterator)m_freeStack.remove(m_freeStack.size() - 1);
+      DTMIterator result = (DTMIterator)freeStack.remove(freeStack.size() - 1);
       return result;
     }
   }
@@ -82,10 +211,12 @@ public final class IteratorPool implements java.io.Serializable
    *
    * @return An instance of the given object
    */
-  public synchronized DTMIterator getInstance()
+  public DTMIterator getInstance()
   {
+    ArrayList freeStack = getFreeStack(false);
+
     // Check if the pool is empty.
-    if (m_freeStack.isEmpty())
+    if (null == freeStack || freeStack.isEmpty())
     {
 
       // Create a new object if so.
@@ -101,7 +232,7 @@ public final class IteratorPool implements java.io.Serializable
     else
     {
       // Remove object from end of free pool.
-      DTMIterator result = (DTMIterator)m_freeStack.remove(m_freeStack.size() - 1);
+      DTMIterator result = (DTMIterator)freeStack.remove(freeStack.size() - 1);
       return result;
     }
   }
@@ -112,8 +243,50 @@ public final class IteratorPool implements java.io.Serializable
    *
    * @param obj Object to add.
    */
-  public synchronized void freeInstance(DTMIterator obj)
+  public void freeInstance(DTMIterator obj)
   {
-    m_freeStack.add(obj);
+    getFreeStack(true).add(obj);
+  }
+
+  /**
+   * The free objects that one thread keeps, for each pool by its index.
+   */
+  private static final class FreeLists
+  {
+    /** The {@link FreeStack} of each pool, softly held, or null. */
+    SoftReference[] m_stacks = new SoftReference[64];
+  }
+
+  /**
+   * The free objects of one pool in one thread.
+   */
+  private static final class FreeStack extends ArrayList
+  {
+    /**
+     * The reference to the pool the objects were cloned for, rather than
+     * the pool itself, so that the stack does not keep the pool alive.
+     */
+    final PoolReference m_owner;
+
+    FreeStack(PoolReference owner)
+    {
+      m_owner = owner;
+    }
+  }
+
+  /**
+   * A weak reference to a pool, queued once the pool is collected so that
+   * its index can be given out again.
+   */
+  private static final class PoolReference extends WeakReference
+  {
+    /** The index of the pool. */
+    final int m_index;
+
+    PoolReference(IteratorPool pool, int index)
+    {
+      super(pool, s_collected);
+      m_index = index;
+    }
   }
 }
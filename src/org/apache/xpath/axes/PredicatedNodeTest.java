@@ -102,6 +102,9 @@ public abstract class PredicatedNodeTest extends NodeTest implements SubContextL
     if(clone.m_lpi == this)
       clone.m_lpi = (LocPathIterator)clone;
 
+    if (null != this.m_invariantValues)
+      clone.m_invariantValues = (XObject[]) this.m_invariantValues.clone();
+
     return clone;
   }
   
@@ -147,6 +150,22 @@ public abstract class PredicatedNodeTest extends NodeTest implements SubContextL
     
   }
 
+  /**
+   * Mark a predicate as invariant, meaning that its value does not depend
+   * on the node it is evaluated for, nor on its position or the size of
+   * the context. An invariant predicate whose value is a number, string or
+   * boolean is evaluated once for each time the step is rooted, rather
+   * than once for each node.
+   *
+   * @param index The index of the predicate.
+   */
+  public void setPredicateInvariant(int index)
+  {
+    if (null == m_invariantPredicates)
+      m_invariantPredicates = new boolean[m_predicates.length];
+    m_invariantPredicates[index] = true;
+  }
+
   /**
    * Init predicate info.
    *
@@ -258,6 +277,15 @@ public abstract class PredicatedNodeTest extends NodeTest implements SubContextL
           throw new org.apache.xml.utils.WrappedRuntimeException(e);
         }
       }
+
+      // The invariant predicates are evaluated again for the new root
+      if (null != m_invariantPredicates)
+      {
+        if (null == m_invariantValues)
+          m_invariantValues = new XObject[m_invariantPredicates.length];
+        else
+          java.util.Arrays.fill(m_invariantValues, null);
+      }
     }
   }
 
@@ -339,7 +367,24 @@ public abstract class PredicatedNodeTest extends NodeTest implements SubContextL
       for (int i = 0; i < nPredicates; i++)
       {
         // System.out.println("Executing predicate expression - waiting count: "+m_lpi.getWaitingCount());
-        XObject pred = m_predicates[i].execute(xctxt);
+        XObject pred;
+        if (null != m_invariantValues && i < m_invariantValues.length
+            && m_invariantPredicates[i])
+        {
+          pred = m_invariantValues[i];
+          if (null == pred)
+          {
+            pred = m_predicates[i].execute(xctxt);
+
+            // A node-set is not kept, as it would be iterated again.
+            int type = pred.getType();
+            if (XObject.CLASS_NUMBER == type || XObject.CLASS_STRING == type
+                || XObject.CLASS_BOOLEAN == type)
+              m_invariantValues[i] = pred;
+          }
+        }
+        else
+          pred = m_predicates[i].execute(xctxt);
         // System.out.println("\nBack from executing predicate expression - waiting count: "+m_lpi.getWaitingCount());
         // System.out.println("pred.getType(): "+pred.getType());
         if (XObject.CLASS_NUMBER == pred.getType())
@@ -613,6 +658,20 @@ public abstract class PredicatedNodeTest extends NodeTest implements SubContextL
    */
   transient protected int[] m_proximityPositions;
 
+  /** For each predicate, true if it is invariant, or null if none is.
+   *  Is static and does not need to be deep cloned.
+   *  @serial
+   */
+  private boolean[] m_invariantPredicates;
+
+  /**
+   * The values of the invariant predicates since the step was last
+   * rooted, or null for a predicate not yet evaluated. Only made by
+   * resetProximityPositions(), so a node test that is never rooted (as
+   * in a UnionChildIterator) does not keep values.
+   */
+  transient private XObject[] m_invariantValues;
+
   /** If true, diagnostic messages about predicate execution will be posted.  */
   static final boolean DEBUG_PREDICATECOUNTING = false;
   
@@ -0,0 +1,643 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xpath.compiler;
+
+import java.lang.reflect.Constructor;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Vector;
+
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.ALOAD;
+import org.apache.bcel.generic.ASTORE;
+import org.apache.bcel.generic.ArrayType;
+import org.apache.bcel.generic.BranchHandle;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+import org.apache.bcel.generic.GOTO;
+import org.apache.bcel.generic.IFEQ;
+import org.apache.bcel.generic.IFGE;
+import org.apache.bcel.generic.IFGT;
+import org.apache.bcel.generic.IFLE;
+import org.apache.bcel.generic.IFLT;
+import org.apache.bcel.generic.IFNE;
+import org.apache.bcel.generic.IF_ICMPEQ;
+import org.apache.bcel.generic.IF_ICMPNE;
+import org.apache.bcel.generic.IfInstruction;
+import org.apache.bcel.generic.InstructionConstants;
+import org.apache.bcel.generic.InstructionFactory;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.InstructionList;
+import org.apache.bcel.generic.MethodGen;
+import org.apache.bcel.generic.ObjectType;
+import org.apache.bcel.generic.PUSH;
+import org.apache.bcel.generic.Type;
+import org.apache.xpath.Expression;
+import org.apache.xpath.objects.XNumber;
+import org.apache.xpath.operations.And;
+import org.apache.xpath.operations.Bool;
+import org.apache.xpath.operations.Div;
+import org.apache.xpath.operations.Equals;
+import org.apache.xpath.operations.Gt;
+import org.apache.xpath.operations.Gte;
+import org.apache.xpath.operations.Lt;
+import org.apache.xpath.operations.Lte;
+import org.apache.xpath.operations.Minus;
+import org.apache.xpath.operations.Mod;
+import org.apache.xpath.operations.Mult;
+import org.apache.xpath.operations.Neg;
+import org.apache.xpath.operations.NotEquals;
+import org.apache.xpath.operations.Operation;
+import org.apache.xpath.operations.Or;
+import org.apache.xpath.operations.Plus;
+import org.apache.xpath.operations.UnaryOperation;
+
+/**
+ * Compiles the operators at the top of an expression tree to JVM
+ * bytecode, using BCEL as XSLTC does. The arithmetic, comparison,
+ * <code>and</code> and <code>or</code> operators and number literals are
+ * evaluated on primitive doubles and booleans in the generated code, which
+ * saves the virtual calls between the operator objects and the XNumber and
+ * XBoolean objects they pass between them. Any other expression in the
+ * tree, such as a location path, a function call or a variable reference,
+ * is called from the generated code just as the operator above it would
+ * have called it, so the compiled expression gives the same results as the
+ * tree.
+ *
+ * Each compiled expression is a class of its own, defined by a class
+ * loader of its own, so that it can be unloaded with the XPath it was
+ * compiled for.
+ *
+ * @xsl.usage internal
+ */
+public final class BytecodeCompiler
+{
+
+  /** The kind of expression that is called from the generated code. */
+  private static final int LEAF = 0;
+
+  /** The kind of expression that is compiled as a number. */
+  private static final int NUMBER = 1;
+
+  /** The kind of expression that is compiled as a boolean. */
+  private static final int BOOLEAN = 2;
+
+  /** The class that the generated classes extend. */
+  private static final String BASE_CLASS =
+    "org.apache.xpath.compiler.CompiledXPath";
+
+  /** The prefix of the names of the generated classes. */
+  private static final String CLASS_PREFIX =
+    "org.apache.xpath.compiler.Generated";
+
+  private static final ObjectType EXPRESSION_TYPE =
+    new ObjectType("org.apache.xpath.Expression");
+
+  private static final ObjectType XPATHCONTEXT_TYPE =
+    new ObjectType("org.apache.xpath.XPathContext");
+
+  private static final ObjectType XOBJECT_TYPE =
+    new ObjectType("org.apache.xpath.objects.XObject");
+
+  private static final ObjectType XNUMBER_TYPE =
+    new ObjectType("org.apache.xpath.objects.XNumber");
+
+  private static final ObjectType XBOOLEAN_TYPE =
+    new ObjectType("org.apache.xpath.objects.XBoolean");
+
+  private static final ArrayType LEAVES_TYPE =
+    new ArrayType(EXPRESSION_TYPE, 1);
+
+  /** The number of classes generated so far, used to name them. */
+  private static int s_classCount = 0;
+
+  /** The name of the class being generated. */
+  private final String m_className;
+
+  /** The expressions that the generated code calls. */
+  private final Vector m_leaves = new Vector();
+
+  /** The constant pool of the class being generated. */
+  private ConstantPoolGen m_cpg;
+
+  /** The instruction factory for the class being generated. */
+  private InstructionFactory m_factory;
+
+  /** The instructions of the method being generated. */
+  private InstructionList m_il;
+
+  /** The next free local variable slot in the method being generated. */
+  private int m_nextLocal;
+
+  /**
+   * Create a compiler for one expression.
+   *
+   * @param className The name of the class to generate.
+   */
+  private BytecodeCompiler(String className)
+  {
+    m_className = className;
+  }
+
+  /**
+   * Compile an expression to bytecode.
+   *
+   * @param expr The expression, which must not be changed afterwards.
+   *
+   * @return The compiled expression, or null if the top of the expression
+   * is not an operator that can be compiled, or the generated class
+   * cannot be loaded.
+   */
+  public static CompiledXPath compile(Expression expr)
+  {
+    if (!(expr instanceof Operation || expr instanceof UnaryOperation)
+        || LEAF == kindOf(expr))
+      return null;
+
+    final String className;
+    synchronized (BytecodeCompiler.class)
+    {
+      className = CLASS_PREFIX + (s_classCount++);
+    }
+
+    final BytecodeCompiler compiler = new BytecodeCompiler(className);
+    final byte[] bytes = compiler.generate(expr);
+    final Expression[] leaves = new Expression[compiler.m_leaves.size()];
+    compiler.m_leaves.copyInto(leaves);
+
+    try
+    {
+      final ExpressionClassLoader loader = (ExpressionClassLoader)
+        AccessController.doPrivileged(new PrivilegedAction() {
+          public Object run() {
+            return new ExpressionClassLoader(
+              CompiledXPath.class.getClassLoader());
+          }
+        });
+      final Class c = loader.defineClass(bytes);
+      final Constructor ctor =
+        c.getConstructor(new Class[] { Expression[].class });
+      return (CompiledXPath) ctor.newInstance(new Object[] { leaves });
+    }
+    catch (Exception e)
+    {
+      // A class loader may not be created, or the class not instantiated;
+      // the expression is interpreted.
+      return null;
+    }
+  }
+
+  /**
+   * Tell how an expression is compiled.
+   *
+   * @param expr The expression.
+   *
+   * @return NUMBER or BOOLEAN for the operators and literals that are
+   * compiled, or LEAF for an expression that is called.
+   */
+  private static int kindOf(Expression expr)
+  {
+    // Subclasses may override the operations, so only the classes
+    // themselves are compiled.
+    final Class c = expr.getClass();
+    if (c == Plus.class || c == Minus.class || c == Mult.class
+        || c == Div.class || c == Mod.class || c == Neg.class
+        || c == org.apache.xpath.operations.Number.class
+        || c == XNumber.class)
+      return NUMBER;
+    if (c == And.class || c == Or.class || c == Bool.class
+        || c == Equals.class || c == NotEquals.class
+        || c == Lt.class || c == Lte.class || c == Gt.class
+        || c == Gte.class)
+      return BOOLEAN;
+    return LEAF;
+  }
+
+  /**
+   * Generate the class for an expression.
+   *
+   * @param expr The expression.
+   *
+   * @return The class file.
+   */
+  private byte[] generate(Expression expr)
+  {
+    final ClassGen cg = new ClassGen(m_className, BASE_CLASS, "<generated>",
+                                     Constants.ACC_PUBLIC
+                                     | Constants.ACC_FINAL
+                                     | Constants.ACC_SUPER,
+                                     null);
+    m_cpg = cg.getConstantPool();
+    m_factory = new InstructionFactory(cg);
+
+    // public <init>(Expression[] leaves) { super(leaves); }
+    m_il = new InstructionList();
+    m_il.append(InstructionConstants.ALOAD_0);
+    m_il.append(InstructionConstants.ALOAD_1);
+    m_il.append(m_factory.createInvoke(BASE_CLASS, "<init>", Type.VOID,
+                                       new Type[] { LEAVES_TYPE },
+                                       Constants.INVOKESPECIAL));
+    m_il.append(InstructionConstants.RETURN);
+    addMethod(cg, Type.VOID, new Type[] { LEAVES_TYPE },
+              new String[] { "leaves" }, "<init>");
+
+    // public XObject execute(XPathContext xctxt)
+    m_il = new InstructionList();
+    m_nextLocal = 2;
+    compileObject(expr);
+    m_il.append(InstructionConstants.ARETURN);
+    addMethod(cg, XOBJECT_TYPE, new Type[] { XPATHCONTEXT_TYPE },
+              new String[] { "xctxt" }, "execute");
+
+    // public boolean bool(XPathContext xctxt)
+    m_il = new InstructionList();
+    m_nextLocal = 2;
+    compileBoolean(expr);
+    m_il.append(InstructionConstants.IRETURN);
+    addMethod(cg, Type.BOOLEAN, new Type[] { XPATHCONTEXT_TYPE },
+              new String[] { "xctxt" }, "bool");
+
+    return cg.getJavaClass().getBytes();
+  }
+
+  /**
+   * Add the instructions in m_il to the class as a public method.
+   */
+  private void addMethod(ClassGen cg, Type returnType, Type[] argTypes,
+                         String[] argNames, String name)
+  {
+    final MethodGen mg = new MethodGen(Constants.ACC_PUBLIC, returnType,
+                                       argTypes, argNames, name,
+                                       m_className, m_il, m_cpg);
+    if (!"<init>".equals(name))
+      mg.addException("javax.xml.transform.TransformerException");
+    mg.setMaxStack();
+    mg.setMaxLocals();
+    cg.addMethod(mg.getMethod());
+    m_il.dispose();
+  }
+
+  /**
+   * Push the leaf expression onto the stack, adding it to the leaves.
+   */
+  private void loadLeaf(Expression expr)
+  {
+    m_il.append(InstructionConstants.ALOAD_0);
+    m_il.append(m_factory.createGetField(BASE_CLASS, "m_leaves",
+                                         LEAVES_TYPE));
+    m_il.append(new PUSH(m_cpg, m_leaves.size()));
+    m_il.append(InstructionConstants.AALOAD);
+    m_leaves.addElement(expr);
+  }
+
+  /**
+   * Append a branch whose target is set later.
+   */
+  private BranchHandle branch(IfInstruction inst)
+  {
+    return m_il.append(inst);
+  }
+
+  /**
+   * Append the code that pushes 1 if the given branch was not taken, and 0
+   * if it was.
+   */
+  private void pushTrueUnless(BranchHandle toFalse)
+  {
+    m_il.append(InstructionConstants.ICONST_1);
+    final BranchHandle toEnd = m_il.append(new GOTO(null));
+    toFalse.setTarget(m_il.append(InstructionConstants.ICONST_0));
+    toEnd.setTarget(m_il.append(InstructionConstants.NOP));
+  }
+
+  /**
+   * Append the code that evaluates an expression to a double.
+   *
+   * @param expr The expression.
+   */
+  private void compileNumber(Expression expr)
+  {
+    switch (kindOf(expr))
+    {
+    case NUMBER :
+      if (expr instanceof XNumber)
+      {
+        m_il.append(new PUSH(m_cpg, ((XNumber) expr).num()));
+      }
+      else if (expr instanceof UnaryOperation)
+      {
+        compileNumber(((UnaryOperation) expr).getOperand());
+        if (expr instanceof Neg)
+          m_il.append(InstructionConstants.DNEG);
+      }
+      else
+      {
+        // The left operand is evaluated first, as in Operation.execute()
+        final Operation op = (Operation) expr;
+        compileNumber(op.getLeftOperand());
+        compileNumber(op.getRightOperand());
+        if (expr instanceof Plus)
+          m_il.append(InstructionConstants.DADD);
+        else if (expr instanceof Minus)
+          m_il.append(InstructionConstants.DSUB);
+        else if (expr instanceof Mult)
+          m_il.append(InstructionConstants.DMUL);
+        else if (expr instanceof Div)
+          m_il.append(InstructionConstants.DDIV);
+        else
+          m_il.append(InstructionConstants.DREM);
+      }
+      break;
+    case BOOLEAN :
+      // XBoolean.num() is 1 or 0
+      compileBoolean(expr);
+      m_il.append(InstructionConstants.I2D);
+      break;
+    default :
+      // Executed and detached, as Operation.operandNum() does
+      final int slot = m_nextLocal++;
+      compileObject(expr);
+      m_il.append(InstructionConstants.DUP);
+      m_il.append(new ASTORE(slot));
+      m_il.append(m_factory.createInvoke("org.apache.xpath.objects.XObject",
+                                         "num", Type.DOUBLE, Type.NO_ARGS,
+                                         Constants.INVOKEVIRTUAL));
+      detach(slot);
+    }
+  }
+
+  /**
+   * Append the code that evaluates an expression to a boolean, pushed as
+   * 1 or 0.
+   *
+   * @param expr The expression.
+   */
+  private void compileBoolean(Expression expr)
+  {
+    switch (kindOf(expr))
+    {
+    case BOOLEAN :
+      if (expr instanceof Bool)
+      {
+        compileBoolean(((UnaryOperation) expr).getOperand());
+      }
+      else if (expr instanceof And || expr instanceof Or)
+      {
+        final Operation op = (Operation) expr;
+        final boolean isAnd = expr instanceof And;
+        compileBoolean(op.getLeftOperand());
+        final BranchHandle shortCut =
+          branch(isAnd ? (IfInstruction) new IFEQ(null) : new IFNE(null));
+        compileBoolean(op.getRightOperand());
+        final BranchHandle toEnd = m_il.append(new GOTO(null));
+        shortCut.setTarget(m_il.append(isAnd
+                                       ? InstructionConstants.ICONST_0
+                                       : InstructionConstants.ICONST_1));
+        toEnd.setTarget(m_il.append(InstructionConstants.NOP));
+      }
+      else
+      {
+        compileComparison((Operation) expr);
+      }
+      break;
+    case NUMBER :
+      if (expr instanceof XNumber)
+      {
+        m_il.append(new PUSH(m_cpg, ((XNumber) expr).bool()));
+      }
+      else
+      {
+        compileNumber(expr);
+        m_il.append(m_factory.createInvoke(BASE_CLASS, "toBoolean",
+                                           Type.BOOLEAN,
+                                           new Type[] { Type.DOUBLE },
+                                           Constants.INVOKESTATIC));
+      }
+      break;
+    default :
+      loadLeaf(expr);
+      m_il.append(InstructionConstants.ALOAD_1);
+      m_il.append(m_factory.createInvoke("org.apache.xpath.Expression",
+                                         "bool", Type.BOOLEAN,
+                                         new Type[] { XPATHCONTEXT_TYPE },
+                                         Constants.INVOKEVIRTUAL));
+    }
+  }
+
+  /**
+   * Append the code that evaluates a comparison to a boolean, pushed as 1
+   * or 0.
+   *
+   * @param op The comparison.
+   */
+  private void compileComparison(Operation op)
+  {
+    final Expression left = op.getLeftOperand();
+    final Expression right = op.getRightOperand();
+    final int leftKind = kindOf(left);
+    final int rightKind = kindOf(right);
+    final boolean isEquality = op instanceof Equals
+                               || op instanceof NotEquals;
+
+    if (LEAF == leftKind || LEAF == rightKind
+        || (isEquality && leftKind != rightKind))
+    {
+      // A node-set, a string, or a number compared for equality with a
+      // boolean, is compared by XObject, as Operation.execute() does.
+      compileObjectComparison(op, left, right);
+      return;
+    }
+
+    if (isEquality && BOOLEAN == leftKind)
+    {
+      // XBoolean.equals() compares the booleans
+      compileBoolean(left);
+      compileBoolean(right);
+      pushTrueUnless(branch(op instanceof Equals
+                            ? (IfInstruction) new IF_ICMPNE(null)
+                            : new IF_ICMPEQ(null)));
+      return;
+    }
+
+    // Numbers, or booleans compared by order, are compared as doubles.
+    // The comparison is false if either is NaN, except for '!='.
+    compileNumber(left);
+    compileNumber(right);
+    if (op instanceof Lt)
+    {
+      m_il.append(InstructionConstants.DCMPG);
+      pushTrueUnless(branch(new IFGE(null)));
+    }
+    else if (op instanceof Lte)
+    {
+      m_il.append(InstructionConstants.DCMPG);
+      pushTrueUnless(branch(new IFGT(null)));
+    }
+    else if (op instanceof Gt)
+    {
+      m_il.append(InstructionConstants.DCMPL);
+      pushTrueUnless(branch(new IFLE(null)));
+    }
+    else if (op instanceof Gte)
+    {
+      m_il.append(InstructionConstants.DCMPL);
+      pushTrueUnless(branch(new IFLT(null)));
+    }
+    else if (op instanceof Equals)
+    {
+      m_il.append(InstructionConstants.DCMPL);
+      pushTrueUnless(branch(new IFNE(null)));
+    }
+    else
+    {
+      m_il.append(InstructionConstants.DCMPL);
+      pushTrueUnless(branch(new IFEQ(null)));
+    }
+  }
+
+  /**
+   * Append the code that evaluates both operands of a comparison to
+   * XObjects, compares them, and detaches the operands that are leaves.
+   *
+   * @param op The comparison.
+   * @param left Its left operand.
+   * @param right Its right operand.
+   */
+  private void compileObjectComparison(Operation op, Expression left,
+                                       Expression right)
+  {
+    final int leftSlot = m_nextLocal++;
+    final int rightSlot = m_nextLocal++;
+
+    compileObject(left);
+    m_il.append(new ASTORE(leftSlot));
+    compileObject(right);
+    m_il.append(new ASTORE(rightSlot));
+
+    final String method;
+    if (op instanceof Equals)
+      method = "equals";
+    else if (op instanceof NotEquals)
+      method = "notEquals";
+    else if (op instanceof Lt)
+      method = "lessThan";
+    else if (op instanceof Lte)
+      method = "lessThanOrEqual";
+    else if (op instanceof Gt)
+      method = "greaterThan";
+    else
+      method = "greaterThanOrEqual";
+
+    m_il.append(new ALOAD(leftSlot));
+    m_il.append(new ALOAD(rightSlot));
+    m_il.append(m_factory.createInvoke("org.apache.xpath.objects.XObject",
+                                       method, Type.BOOLEAN,
+                                       new Type[] { XOBJECT_TYPE },
+                                       Constants.INVOKEVIRTUAL));
+
+    if (LEAF == kindOf(left))
+      detach(leftSlot);
+    if (LEAF == kindOf(right))
+      detach(rightSlot);
+  }
+
+  /**
+   * Append the code that detaches the XObject in a local variable.
+   */
+  private void detach(int slot)
+  {
+    m_il.append(new ALOAD(slot));
+    m_il.append(m_factory.createInvoke("org.apache.xpath.objects.XObject",
+                                       "detach", Type.VOID, Type.NO_ARGS,
+                                       Constants.INVOKEVIRTUAL));
+  }
+
+  /**
+   * Append the code that evaluates an expression to an XObject.
+   *
+   * @param expr The expression.
+   */
+  private void compileObject(Expression expr)
+  {
+    switch (kindOf(expr))
+    {
+    case NUMBER :
+      if (expr instanceof XNumber)
+      {
+        // A literal is its own value
+        loadLeaf(expr);
+        m_il.append(m_factory.createCheckCast(XOBJECT_TYPE));
+      }
+      else
+      {
+        m_il.append(m_factory.createNew(XNUMBER_TYPE));
+        m_il.append(InstructionConstants.DUP);
+        compileNumber(expr);
+        m_il.append(m_factory.createInvoke(
+          "org.apache.xpath.objects.XNumber", "<init>", Type.VOID,
+          new Type[] { Type.DOUBLE }, Constants.INVOKESPECIAL));
+      }
+      break;
+    case BOOLEAN :
+      compileBoolean(expr);
+      final BranchHandle toFalse = branch(new IFEQ(null));
+      m_il.append(m_factory.createFieldAccess(
+        "org.apache.xpath.objects.XBoolean", "S_TRUE", XBOOLEAN_TYPE,
+        Constants.GETSTATIC));
+      final BranchHandle toEnd = m_il.append(new GOTO(null));
+      final InstructionHandle falseHandle =
+        m_il.append(m_factory.createFieldAccess(
+          "org.apache.xpath.objects.XBoolean", "S_FALSE", XBOOLEAN_TYPE,
+          Constants.GETSTATIC));
+      toFalse.setTarget(falseHandle);
+      toEnd.setTarget(m_il.append(InstructionConstants.NOP));
+      break;
+    default :
+      loadLeaf(expr);
+      m_il.append(InstructionConstants.ALOAD_1);
+      m_il.append(InstructionConstants.ICONST_1);
+      m_il.append(m_factory.createInvoke("org.apache.xpath.Expression",
+                                         "execute", XOBJECT_TYPE,
+                                         new Type[] { XPATHCONTEXT_TYPE,
+                                                      Type.BOOLEAN },
+                                         Constants.INVOKEVIRTUAL));
+    }
+  }
+
+  /**
+   * The class loader that defines a generated class.
+   */
+  static final class ExpressionClassLoader extends ClassLoader
+  {
+    ExpressionClassLoader(ClassLoader parent)
+    {
+      super(parent);
+    }
+
+    /**
+     * Access to final protected superclass member from outer class.
+     */
+    Class defineClass(final byte[] b)
+    {
+      return defineClass(null, b, 0, b.length);
+    }
+  }
+}
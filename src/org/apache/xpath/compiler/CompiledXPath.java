@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xpath.compiler;
+
+import org.apache.xpath.Expression;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.objects.XObject;
+
+/**
+ * The base class of the classes that {@link BytecodeCompiler} generates.
+ * A generated class evaluates the operators at the top of an expression
+ * tree in its own bytecode, and calls the expressions below them, such as
+ * location paths, function calls and variable references, which are kept
+ * in an array.
+ *
+ * This class is public only so that the generated classes, which are
+ * loaded by their own class loader, can extend it.
+ *
+ * @xsl.usage internal
+ */
+public abstract class CompiledXPath
+{
+
+  /**
+   * The expressions that the generated code calls, indexed as they were
+   * when the code was generated.
+   */
+  protected final Expression[] m_leaves;
+
+  /**
+   * Create a compiled expression.
+   *
+   * @param leaves The expressions that the generated code calls.
+   */
+  protected CompiledXPath(Expression[] leaves)
+  {
+    m_leaves = leaves;
+  }
+
+  /**
+   * Evaluate the expression, with the same result as
+   * {@link Expression#execute(XPathContext)} on the expression it was
+   * compiled from.
+   *
+   * @param xctxt The runtime execution context.
+   *
+   * @return The result of the expression.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public abstract XObject execute(XPathContext xctxt)
+          throws javax.xml.transform.TransformerException;
+
+  /**
+   * Evaluate the expression as a boolean, with the same result as
+   * {@link Expression#bool(XPathContext)} on the expression it was
+   * compiled from.
+   *
+   * @param xctxt The runtime execution context.
+   *
+   * @return The result of the expression as a boolean.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public abstract boolean bool(XPathContext xctxt)
+          throws javax.xml.transform.TransformerException;
+
+  /**
+   * Convert a number to a boolean, as XNumber.bool() does.
+   *
+   * @param d The number.
+   *
+   * @return false if the number is zero or NaN, true otherwise.
+   */
+  protected static boolean toBoolean(double d)
+  {
+    return (Double.isNaN(d) || (d == 0.0)) ? false : true;
+  }
+}
@@ -0,0 +1,457 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/*
+ * $Id$
+ */
+package org.apache.xpath.compiler;
+
+import org.apache.xpath.Expression;
+import org.apache.xpath.ExpressionNode;
+import org.apache.xpath.ExpressionOwner;
+import org.apache.xpath.XPathVisitor;
+import org.apache.xpath.axes.LocPathIterator;
+import org.apache.xpath.axes.PredicatedNodeTest;
+import org.apache.xpath.functions.FuncBoolean;
+import org.apache.xpath.functions.FuncCeiling;
+import org.apache.xpath.functions.FuncConcat;
+import org.apache.xpath.functions.FuncContains;
+import org.apache.xpath.functions.FuncCount;
+import org.apache.xpath.functions.FuncFalse;
+import org.apache.xpath.functions.FuncFloor;
+import org.apache.xpath.functions.FuncNormalizeSpace;
+import org.apache.xpath.functions.FuncNot;
+import org.apache.xpath.functions.FuncNumber;
+import org.apache.xpath.functions.FuncPosition;
+import org.apache.xpath.functions.FuncRound;
+import org.apache.xpath.functions.FuncStartsWith;
+import org.apache.xpath.functions.FuncString;
+import org.apache.xpath.functions.FuncStringLength;
+import org.apache.xpath.functions.FuncSubstring;
+import org.apache.xpath.functions.FuncSubstringAfter;
+import org.apache.xpath.functions.FuncSubstringBefore;
+import org.apache.xpath.functions.FuncSum;
+import org.apache.xpath.functions.FuncTranslate;
+import org.apache.xpath.functions.FuncTrue;
+import org.apache.xpath.functions.Function;
+import org.apache.xpath.functions.Function2Args;
+import org.apache.xpath.functions.Function3Args;
+import org.apache.xpath.functions.FunctionMultiArgs;
+import org.apache.xpath.functions.FunctionOneArg;
+import org.apache.xpath.functions.WrongNumberArgsException;
+import org.apache.xpath.objects.XNumber;
+import org.apache.xpath.objects.XObject;
+import org.apache.xpath.objects.XString;
+import org.apache.xpath.operations.Bool;
+import org.apache.xpath.operations.Equals;
+import org.apache.xpath.operations.Gt;
+import org.apache.xpath.operations.Gte;
+import org.apache.xpath.operations.Lt;
+import org.apache.xpath.operations.Lte;
+import org.apache.xpath.operations.NotEquals;
+import org.apache.xpath.operations.Operation;
+import org.apache.xpath.operations.UnaryOperation;
+import org.apache.xpath.operations.Variable;
+
+/**
+ * Rewrites a compiled select expression into one that gives the same
+ * results with less work. It is run by {@link org.apache.xpath.XPath} on
+ * the expression tree that the {@link Compiler} builds, and makes these
+ * rewrites:
+ *
+ * <ul>
+ * <li>A subexpression made only of literals, operators and the string,
+ * number and boolean functions is evaluated, and replaced by its value.</li>
+ * <li><code>count(p) &gt; 0</code>, <code>count(p) != 0</code>,
+ * <code>count(p) &gt;= 1</code> and <code>boolean(p)</code>, for a
+ * location path p, are replaced by a test that stops at the first node of
+ * p, and <code>count(p) = 0</code> and <code>not(p)</code> by its
+ * negation.</li>
+ * <li>A predicate <code>[position() = n]</code>, for an integer n, is
+ * replaced by <code>[n]</code>, so that the step stops after the nth
+ * node.</li>
+ * <li>A predicate that does not depend on the context node, position or
+ * size, such as <code>[$mode = 'full']</code>, is marked invariant, so
+ * that a step evaluates it once each time it is rooted rather than for
+ * each node.</li>
+ * </ul>
+ *
+ * <p>Location paths such as <code>//a</code> are already given
+ * descendant iterators by {@link org.apache.xpath.axes.WalkerFactory}
+ * when they are compiled, and are not rewritten here.</p>
+ *
+ * @xsl.usage internal
+ */
+public class XPathOptimizer extends XPathVisitor
+{
+
+  /**
+   * Visit a binary operation, folding it if it is constant, or rewriting
+   * a comparison of a count() with 0 or 1.
+   */
+  public boolean visitBinaryOperation(ExpressionOwner owner, Operation op)
+  {
+    if (isConstant(op))
+      return !fold(owner, op);
+
+    Expression exists = getExistenceTest(op);
+    if (null != exists)
+    {
+      owner.setExpression(exists);
+      exists.callVisitors(owner, this);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Visit a unary operation, folding it if it is constant.
+   */
+  public boolean visitUnaryOperation(ExpressionOwner owner, UnaryOperation op)
+  {
+    if (isConstant(op))
+      return !fold(owner, op);
+    return true;
+  }
+
+  /**
+   * Visit a function call, folding it if it is constant, or rewriting
+   * boolean() and not() of a location path.
+   */
+  public boolean visitFunction(ExpressionOwner owner, Function func)
+  {
+    if (func instanceof FuncTrue || func instanceof FuncFalse)
+      return false;
+
+    if (isConstant(func))
+      return !fold(owner, func);
+
+    if (func instanceof FuncBoolean || func instanceof FuncNot)
+    {
+      Expression arg = ((FunctionOneArg) func).getArg0();
+      if (arg instanceof LocPathIterator)
+      {
+        Bool exists = new Bool();
+        if (func instanceof FuncBoolean)
+        {
+          exists.setRight(arg);
+          owner.setExpression(exists);
+          exists.callVisitors(owner, this);
+          return false;
+        }
+        try
+        {
+          exists.setRight(arg);
+          func.setArg(exists, 0);
+        }
+        catch (WrongNumberArgsException wnae)
+        {
+          // not() takes one argument
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Visit a step, marking its invariant predicates.
+   */
+  public boolean visitStep(ExpressionOwner owner,
+                           org.apache.xpath.patterns.NodeTest step)
+  {
+    if (step instanceof PredicatedNodeTest)
+    {
+      PredicatedNodeTest pnt = (PredicatedNodeTest) step;
+      int n = pnt.getPredicateCount();
+      for (int i = 0; i < n; i++)
+      {
+        Expression pred = pnt.getPredicate(i);
+        if (!isLiteral(pred) && isPure(pred, true))
+          pnt.setPredicateInvariant(i);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Visit a predicate, rewriting <code>position() = n</code> as
+   * <code>n</code>.
+   */
+  public boolean visitPredicate(ExpressionOwner owner, Expression pred)
+  {
+    // Only the predicates of a step count positions as position() does
+    if (pred.getClass() == Equals.class
+        && pred.exprGetParent() instanceof PredicatedNodeTest)
+    {
+      Operation op = (Operation) pred;
+      Expression index = null;
+      if (op.getLeftOperand() instanceof FuncPosition)
+        index = op.getRightOperand();
+      else if (op.getRightOperand() instanceof FuncPosition)
+        index = op.getLeftOperand();
+
+      if (null != index && isPure(index, false))
+      {
+        Expression value = evaluate(index);
+        if (value instanceof XNumber)
+        {
+          // [1.5] selects the first node, where position() = 1.5 is
+          // never true, so only integers are rewritten.
+          double n = ((XNumber) value).num();
+          if (!Double.isInfinite(n) && n == Math.floor(n))
+          {
+            owner.setExpression(value);
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Get the test that replaces a comparison of count() of a location path
+   * with 0 or 1, if the comparison is one that only tells whether the
+   * location path selects a node.
+   *
+   * @param op The comparison.
+   *
+   * @return The test, or null.
+   */
+  private Expression getExistenceTest(Operation op)
+  {
+    Expression left = op.getLeftOperand();
+    Expression right = op.getRightOperand();
+    Expression path;
+    double n;
+    boolean countOnLeft;
+    if (isCountOfPath(left) && right instanceof XNumber)
+    {
+      path = ((FunctionOneArg) left).getArg0();
+      n = ((XNumber) right).num();
+      countOnLeft = true;
+    }
+    else if (isCountOfPath(right) && left instanceof XNumber)
+    {
+      path = ((FunctionOneArg) right).getArg0();
+      n = ((XNumber) left).num();
+      countOnLeft = false;
+    }
+    else
+      return null;
+
+    // The comparison, written with the count on the left
+    Class c = op.getClass();
+    if (!countOnLeft)
+    {
+      if (c == Lt.class)
+        c = Gt.class;
+      else if (c == Gt.class)
+        c = Lt.class;
+      else if (c == Lte.class)
+        c = Gte.class;
+      else if (c == Gte.class)
+        c = Lte.class;
+    }
+
+    boolean exists;
+    if ((c == Gt.class && n == 0) || (c == NotEquals.class && n == 0)
+        || (c == Gte.class && n == 1))
+      exists = true;
+    else if ((c == Equals.class && n == 0) || (c == Lt.class && n == 1)
+             || (c == Lte.class && n == 0))
+      exists = false;
+    else
+      return null;
+
+    Bool test = new Bool();
+    test.setRight(path);
+    if (exists)
+      return test;
+
+    FuncNot not = new FuncNot();
+    try
+    {
+      not.setArg(test, 0);
+    }
+    catch (WrongNumberArgsException wnae)
+    {
+      return null;
+    }
+    return not;
+  }
+
+  /**
+   * Tell if an expression is count() of a location path.
+   */
+  private static boolean isCountOfPath(Expression expr)
+  {
+    return expr.getClass() == FuncCount.class
+           && ((FunctionOneArg) expr).getArg0() instanceof LocPathIterator;
+  }
+
+  /**
+   * Replace a constant expression with its value.
+   *
+   * @param owner The owner of the expression.
+   * @param expr The expression.
+   *
+   * @return true if the expression was replaced.
+   */
+  private boolean fold(ExpressionOwner owner, Expression expr)
+  {
+    Expression literal = evaluate(expr);
+    if (null == literal)
+      return false;
+    owner.setExpression(literal);
+    return true;
+  }
+
+  /**
+   * Evaluate a constant expression. The expressions that isConstant()
+   * accepts do not use the execution context.
+   *
+   * @param expr The expression.
+   *
+   * @return A literal for its value, or null if it could not be evaluated,
+   * in which case the error is left to be reported when it is executed.
+   */
+  private static Expression evaluate(Expression expr)
+  {
+    try
+    {
+      XObject value = expr.execute(null);
+      switch (value.getType())
+      {
+      case XObject.CLASS_NUMBER :
+        return new XNumber(value.num());
+      case XObject.CLASS_STRING :
+        return new XString(value.str());
+      case XObject.CLASS_BOOLEAN :
+        // XBoolean is not visitable, so booleans are kept as functions
+        return value.bool() ? (Expression) new FuncTrue() : new FuncFalse();
+      default :
+        return null;
+      }
+    }
+    catch (javax.xml.transform.TransformerException te)
+    {
+      return null;
+    }
+    catch (RuntimeException re)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Tell if an expression is a literal.
+   */
+  private static boolean isLiteral(Expression expr)
+  {
+    return expr instanceof XNumber || expr instanceof XString
+           || expr instanceof FuncTrue || expr instanceof FuncFalse;
+  }
+
+  /**
+   * Tell if an expression always has the same value, and is not already
+   * a literal.
+   */
+  private static boolean isConstant(Expression expr)
+  {
+    return !isLiteral(expr) && isPure(expr, false);
+  }
+
+  /**
+   * Tell if an expression does not depend on the context node, position
+   * or size, nor on anything else that may change while it is evaluated.
+   *
+   * @param expr The expression.
+   * @param allowVariables true if variable references and the count() and
+   * sum() of them are allowed.
+   *
+   * @return true if the expression is made only of literals, operators
+   * and the string, number and boolean functions, with all their
+   * arguments given, and variables if they are allowed.
+   */
+  private static boolean isPure(Expression expr, boolean allowVariables)
+  {
+    if (isLiteral(expr))
+      return true;
+
+    if (expr instanceof Variable)
+      return allowVariables;
+
+    // The operations have no subclasses outside this package that could
+    // depend on the context.
+    if (expr instanceof Operation
+        && expr.getClass().getName().startsWith("org.apache.xpath.operations."))
+    {
+      Operation op = (Operation) expr;
+      return isPure(op.getLeftOperand(), allowVariables)
+             && isPure(op.getRightOperand(), allowVariables);
+    }
+    if (expr instanceof UnaryOperation
+        && expr.getClass().getName().startsWith("org.apache.xpath.operations."))
+      return isPure(((UnaryOperation) expr).getOperand(), allowVariables);
+
+    if (!(expr instanceof FunctionOneArg))
+      return false;
+
+    Class c = expr.getClass();
+    if (!(c == FuncNot.class || c == FuncBoolean.class
+          || c == FuncNumber.class || c == FuncString.class
+          || c == FuncStringLength.class || c == FuncNormalizeSpace.class
+          || c == FuncFloor.class || c == FuncCeiling.class
+          || c == FuncRound.class || c == FuncConcat.class
+          || c == FuncContains.class || c == FuncStartsWith.class
+          || c == FuncSubstring.class || c == FuncSubstringBefore.class
+          || c == FuncSubstringAfter.class || c == FuncTranslate.class
+          || (allowVariables && (c == FuncCount.class || c == FuncSum.class))))
+      return false;
+
+    // Without an argument, string() and the like use the context node
+    FunctionOneArg func = (FunctionOneArg) expr;
+    if (null == func.getArg0() || !isPure(func.getArg0(), allowVariables))
+      return false;
+    if (func instanceof Function2Args)
+    {
+      Expression arg1 = ((Function2Args) func).getArg1();
+      if (null != arg1 && !isPure(arg1, allowVariables))
+        return false;
+    }
+    if (func instanceof Function3Args)
+    {
+      Expression arg2 = ((Function3Args) func).getArg2();
+      if (null != arg2 && !isPure(arg2, allowVariables))
+        return false;
+    }
+    if (func instanceof FunctionMultiArgs)
+    {
+      Expression[] args = ((FunctionMultiArgs) func).getArgs();
+      if (null != args)
+      {
+        for (int i = 0; i < args.length; i++)
+        {
+          if (!isPure(args[i], allowVariables))
+            return false;
+        }
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the  "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+// $Id$
+
+package org.apache.xpath.jaxp;
+
+import javax.xml.xpath.XPathFunctionResolver;
+import javax.xml.xpath.XPathVariableResolver;
+
+import org.apache.xpath.XPathContext;
+
+/**
+ * An evaluation session lets the evaluations that one thread makes through
+ * {@link javax.xml.xpath.XPath} and {@link javax.xml.xpath.XPathExpression}
+ * share one XPathContext, instead of each evaluation setting up its own.
+ * The DTM that wraps a DOM document is kept in that context, so later
+ * evaluations against the same document do not wrap it again.
+ *
+ * <p>A session is begun and ended on the thread that evaluates:</p>
+ * <pre>
+ *   JAXPEvaluationSession.begin();
+ *   try {
+ *       // XPath and XPathExpression evaluate() calls
+ *   } finally {
+ *       JAXPEvaluationSession.end();
+ *   }
+ * </pre>
+ *
+ * <p>Sessions may be nested, and the outermost end() ends the session. The
+ * session then lets go of its context and of the DTMs in it. Nodes and node
+ * lists returned by its evaluations can still be used.</p>
+ *
+ * <p>A DTM is built over a DOM as the DOM is navigated, so a document must
+ * not be changed while a session that has evaluated against it is open.
+ * End the session after changing a document, and begin a new one.</p>
+ *
+ * <p>Evaluations against an InputSource parse a new document each time, and
+ * do not use the session. An evaluation made while another is in progress
+ * on the same thread, by an XPathFunction or XPathVariableResolver, does
+ * not use it either.</p>
+ *
+ * @xsl.usage general
+ */
+public final class JAXPEvaluationSession
+{
+
+    /** The session open on each thread, if there is one. */
+    private static final ThreadLocal s_sessions = new ThreadLocal();
+
+    /** The number of calls to begin() not yet matched by end(). */
+    private int m_depth = 0;
+
+    /** Whether an evaluation is using one of the session's contexts. */
+    private boolean m_inUse = false;
+
+    /** The context for evaluations without a function resolver, or null. */
+    private XPathContext m_context;
+
+    /** The context for evaluations with a function resolver, or null. */
+    private XPathContext m_extContext;
+
+    /** The extensions provider that owns m_extContext. */
+    private JAXPExtensionsProvider m_extensions;
+
+    private JAXPEvaluationSession()
+    {
+    }
+
+    /**
+     * Begin an evaluation session on the current thread, or a nested one if
+     * a session is already open.
+     */
+    public static void begin()
+    {
+        JAXPEvaluationSession session =
+            (JAXPEvaluationSession) s_sessions.get();
+        if (session == null)
+        {
+            session = new JAXPEvaluationSession();
+            s_sessions.set(session);
+        }
+        session.m_depth++;
+    }
+
+    /**
+     * End the evaluation session begun by the matching call to begin(). If
+     * it is the outermost session, the contexts and DTMs it kept are let go.
+     *
+     * @throws IllegalStateException if no session is open on the current
+     * thread.
+     */
+    public static void end()
+    {
+        final JAXPEvaluationSession session =
+            (JAXPEvaluationSession) s_sessions.get();
+        if (session == null)
+            throw new IllegalStateException();
+        if (--session.m_depth == 0)
+            s_sessions.set(null);
+    }
+
+    /**
+     * Make an XPathContext for a single evaluation.
+     *
+     * @param functionResolver the function resolver, or null.
+     * @param featureSecureProcessing whether extension functions may not be
+     * called.
+     * @param variableResolver the variable resolver.
+     * @return the new context.
+     */
+    static XPathContext newXPathContext(XPathFunctionResolver functionResolver,
+                                        boolean featureSecureProcessing,
+                                        XPathVariableResolver variableResolver)
+    {
+        XPathContext xpathSupport;
+
+        // Create an XPathContext that doesn't support pushing and popping of
+        // variable resolution scopes.  Sufficient for simple XPath 1.0
+        // expressions.
+        if ( functionResolver != null ) {
+            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
+                    functionResolver, featureSecureProcessing );
+            xpathSupport = new XPathContext(jep, false);
+        } else {
+            xpathSupport = new XPathContext(false);
+        }
+
+        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
+        return xpathSupport;
+    }
+
+    /**
+     * Get the XPathContext for an evaluation: the session's, if a session
+     * is open on the current thread and free, or else a new one. The
+     * context is handed back with releaseXPathContext().
+     *
+     * @param functionResolver the function resolver, or null.
+     * @param featureSecureProcessing whether extension functions may not be
+     * called.
+     * @param variableResolver the variable resolver.
+     * @return the context.
+     */
+    static XPathContext getXPathContext(XPathFunctionResolver functionResolver,
+                                        boolean featureSecureProcessing,
+                                        XPathVariableResolver variableResolver)
+    {
+        final JAXPEvaluationSession session =
+            (JAXPEvaluationSession) s_sessions.get();
+        if (session == null || session.m_inUse)
+            return newXPathContext(functionResolver, featureSecureProcessing,
+                                   variableResolver);
+
+        XPathContext xpathSupport;
+        if (functionResolver != null)
+        {
+            if (session.m_extContext == null)
+            {
+                session.m_extContext = newXPathContext(functionResolver,
+                    featureSecureProcessing, variableResolver);
+                session.m_extensions =
+                    (JAXPExtensionsProvider) session.m_extContext.getOwnerObject();
+                session.m_inUse = true;
+                return session.m_extContext;
+            }
+            session.m_extensions.setResolver(functionResolver,
+                                             featureSecureProcessing);
+            xpathSupport = session.m_extContext;
+        }
+        else
+        {
+            if (session.m_context == null)
+            {
+                session.m_context = newXPathContext(null, false,
+                                                    variableResolver);
+                session.m_inUse = true;
+                return session.m_context;
+            }
+            xpathSupport = session.m_context;
+        }
+
+        ((JAXPVariableStack) xpathSupport.getVarStack())
+            .setResolver(variableResolver);
+        session.m_inUse = true;
+        return xpathSupport;
+    }
+
+    /**
+     * Hand back a context got from getXPathContext(). A session's context
+     * that an evaluation failed in is dropped, as the failure may have left
+     * it in an unknown state.
+     *
+     * @param xpathSupport the context.
+     * @param completed whether the evaluation completed.
+     */
+    static void releaseXPathContext(XPathContext xpathSupport,
+                                    boolean completed)
+    {
+        final JAXPEvaluationSession session =
+            (JAXPEvaluationSession) s_sessions.get();
+        if (session == null || !session.m_inUse)
+            return;
+
+        if (xpathSupport == session.m_context)
+        {
+            if (!completed)
+                session.m_context = null;
+        }
+        else if (xpathSupport == session.m_extContext)
+        {
+            if (!completed)
+            {
+                session.m_extContext = null;
+                session.m_extensions = null;
+            }
+        }
+        else
+            return;
+        session.m_inUse = false;
+    }
+}
@@ -43,7 +43,7 @@ import javax.xml.namespace.QName;
  */
 public class JAXPExtensionsProvider implements ExtensionsProvider {
     	
-    private final XPathFunctionResolver resolver;
+    private XPathFunctionResolver resolver;
     private boolean extensionInvocationDisabled = false;
 	
     public JAXPExtensionsProvider(XPathFunctionResolver resolver) {
@@ -57,6 +57,15 @@ public class JAXPExtensionsProvider implements ExtensionsProvider {
         this.extensionInvocationDisabled = featureSecureProcessing;
     }
 
+    /**
+     * Change the resolver, for an evaluation session's next evaluation.
+     */
+    void setResolver(XPathFunctionResolver resolver,
+        boolean featureSecureProcessing ) {
+        this.resolver = resolver;
+        this.extensionInvocationDisabled = featureSecureProcessing;
+    }
+
     /**
      * Is the extension function available?
      */
@@ -39,12 +39,19 @@ import org.apache.xalan.res.XSLMessages;
  */
 public class JAXPVariableStack extends VariableStack {
     	
-    private final XPathVariableResolver resolver;
+    private XPathVariableResolver resolver;
 	
     public JAXPVariableStack(XPathVariableResolver resolver) {
         super(2);
         this.resolver = resolver;
     }
+
+    /**
+     * Change the resolver, for an evaluation session's next evaluation.
+     */
+    void setResolver(XPathVariableResolver resolver) {
+        this.resolver = resolver;
+    }
 	
     public XObject getVariableOrParam(XPathContext xctxt, QName qname)
         throws TransformerException,IllegalArgumentException {
@@ -96,26 +96,31 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
 
     public Object eval(Object item, QName returnType)
             throws javax.xml.transform.TransformerException {
-        XObject resultObject = eval ( item );
+        // Use the context of the thread's evaluation session, if it has one
+        org.apache.xpath.XPathContext xpathSupport =
+            JAXPEvaluationSession.getXPathContext( functionResolver,
+                    featureSecureProcessing, variableResolver );
+        boolean completed = false;
+        try {
+            Object result = eval( xpathSupport, item, returnType );
+            completed = true;
+            return result;
+        } finally {
+            JAXPEvaluationSession.releaseXPathContext( xpathSupport,
+                    completed );
+        }
+    }
+
+    private Object eval(org.apache.xpath.XPathContext xpathSupport,
+            Object item, QName returnType)
+            throws javax.xml.transform.TransformerException {
+        XObject resultObject = eval ( xpathSupport, item );
         return getResultAsType( resultObject, returnType );
     }
     
-    private XObject eval ( Object contextItem )
+    private XObject eval ( org.apache.xpath.XPathContext xpathSupport,
+            Object contextItem )
             throws javax.xml.transform.TransformerException {
-        org.apache.xpath.XPathContext xpathSupport = null;
-
-        // Create an XPathContext that doesn't support pushing and popping of
-        // variable resolution scopes.  Sufficient for simple XPath 1.0
-        // expressions.
-        if ( functionResolver != null ) {
-            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
-                    functionResolver, featureSecureProcessing );
-            xpathSupport = new org.apache.xpath.XPathContext(jep, false);
-        } else {
-            xpathSupport = new org.apache.xpath.XPathContext(false);
-        }
-
-        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
         XObject xobj = null;
           
         Node contextNode = (Node)contextItem;
@@ -293,7 +298,11 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
             }
             db = dbf.newDocumentBuilder();
             Document document = db.parse( source );
-            return eval(  document, returnType );
+            // The document is new, so an evaluation session would only
+            // keep it alive
+            return eval( JAXPEvaluationSession.newXPathContext(
+                    functionResolver, featureSecureProcessing,
+                    variableResolver ), document, returnType );
         } catch ( Exception e ) {
             throw new XPathExpressionException ( e );
         }
@@ -372,6 +381,11 @@ public class XPathExpressionImpl  implements javax.xml.xpath.XPathExpression{
 
 
     private static Document getDummyDocument( ) {
+        // we don't need synchronization here; even if two threads
+        // enter this code at the same time, we just waste a little time
+        if ( d != null ) {
+            return d;
+        }
         try {
             if ( dbf == null ) {
                 dbf = DocumentBuilderFactory.newInstance();
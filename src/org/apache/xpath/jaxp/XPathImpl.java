@@ -190,27 +190,14 @@ public class XPathImpl implements javax.xml.xpath.XPath {
     }
 
     
-    private XObject eval(String expression, Object contextItem)
+    private XObject eval(org.apache.xpath.XPathContext xpathSupport,
+        String expression, Object contextItem)
         throws javax.xml.transform.TransformerException {
-        org.apache.xpath.XPath xpath = new org.apache.xpath.XPath( expression,
-            null, prefixResolver, org.apache.xpath.XPath.SELECT ); 
-        org.apache.xpath.XPathContext xpathSupport = null;
-
-        // Create an XPathContext that doesn't support pushing and popping of
-        // variable resolution scopes.  Sufficient for simple XPath 1.0
-        // expressions.
-        if ( functionResolver != null ) {
-            JAXPExtensionsProvider jep = new JAXPExtensionsProvider(
-                    functionResolver, featureSecureProcessing );
-            xpathSupport = new org.apache.xpath.XPathContext(jep, false);
-        } else { 
-            xpathSupport = new org.apache.xpath.XPathContext(false);
-        }
+        org.apache.xpath.XPath xpath = XPathCache.getDefaultInstance().getXPath(
+            expression, prefixResolver );
 
         XObject xobj = null;
         
-        xpathSupport.setVarStack(new JAXPVariableStack(variableResolver));
-        
         // If item is null, then we will create a a Dummy contextNode
         if ( contextItem instanceof Node ) {
             xobj = xpath.execute (xpathSupport, (Node)contextItem,
@@ -276,10 +263,17 @@ public class XPathImpl implements javax.xml.xpath.XPath {
             throw new IllegalArgumentException ( fmsg );
         }
 
+        // Use the context of the thread's evaluation session, if it has one
+        org.apache.xpath.XPathContext xpathSupport =
+            JAXPEvaluationSession.getXPathContext( functionResolver,
+                    featureSecureProcessing, variableResolver );
+        boolean completed = false;
         try {
  
-            XObject resultObject = eval( expression, item );
-            return getResultAsType( resultObject, returnType );
+            XObject resultObject = eval( xpathSupport, expression, item );
+            Object result = getResultAsType( resultObject, returnType );
+            completed = true;
+            return result;
         } catch ( java.lang.NullPointerException npe ) {
             // If VariableResolver returns null Or if we get 
             // NullPointerException at this stage for some other reason
@@ -294,7 +288,10 @@ public class XPathImpl implements javax.xml.xpath.XPath {
                 // XPathExpressionException ( as per spec )
                 throw new XPathExpressionException ( te );
             }
-        } 
+        } finally {
+            JAXPEvaluationSession.releaseXPathContext( xpathSupport,
+                    completed );
+        }
         
     }
 
@@ -473,7 +470,11 @@ public class XPathImpl implements javax.xml.xpath.XPath {
 
             Document document = getParser().parse( source );
 
-            XObject resultObject = eval( expression, document );
+            // The document is new, so an evaluation session would only
+            // keep it alive
+            XObject resultObject = eval( JAXPEvaluationSession.newXPathContext(
+                    functionResolver, featureSecureProcessing,
+                    variableResolver ), expression, document );
             return getResultAsType( resultObject, returnType );
         } catch ( SAXException e ) {
             throw new XPathExpressionException ( e );
@@ -49,7 +49,24 @@ public class Bool extends UnaryOperation
     else
       return right.bool() ? XBoolean.S_TRUE : XBoolean.S_FALSE;
   }
-  
+
+  /**
+   * Execute the operation through bool(), so that a location path operand
+   * is only walked as far as its first node.
+   *
+   * @param xctxt The runtime execution context.
+   *
+   * @return {@link org.apache.xpath.objects.XBoolean#S_TRUE} or
+   * {@link org.apache.xpath.objects.XBoolean#S_FALSE}.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public XObject execute(XPathContext xctxt)
+          throws javax.xml.transform.TransformerException
+  {
+    return m_right.bool(xctxt) ? XBoolean.S_TRUE : XBoolean.S_FALSE;
+  }
+
   /**
    * Evaluate this operation directly to a boolean.
    *
@@ -48,6 +48,22 @@ public class Mod extends Operation
     return new XNumber(left.num() % right.num());
   }
   
+  /**
+   * Execute the operation. The operands are evaluated to doubles, without
+   * making an XNumber for an operand that is an arithmetic operation.
+   *
+   * @param xctxt The runtime execution context.
+   *
+   * @return The result of the operation as an XNumber.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public XObject execute(XPathContext xctxt)
+          throws javax.xml.transform.TransformerException
+  {
+    return new XNumber(num(xctxt));
+  }
+
   /**
    * Evaluate this operation directly to a double.
    *
@@ -61,7 +77,7 @@ public class Mod extends Operation
           throws javax.xml.transform.TransformerException
   {
 
-    return (m_left.num(xctxt) % m_right.num(xctxt));
+    return (operandNum(m_left, xctxt) % operandNum(m_right, xctxt));
   }
 
 }
@@ -46,6 +46,22 @@ public class Neg extends UnaryOperation
     return new XNumber(-right.num());
   }
   
+  /**
+   * Execute the operation. The operand is evaluated to a double, without
+   * making an XNumber for an operand that is an arithmetic operation.
+   *
+   * @param xctxt The runtime execution context.
+   *
+   * @return The result of the operation as an XNumber.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  public XObject execute(XPathContext xctxt)
+          throws javax.xml.transform.TransformerException
+  {
+    return new XNumber(num(xctxt));
+  }
+
   /**
    * Evaluate this operation directly to a double.
    *
@@ -59,7 +75,7 @@ public class Neg extends UnaryOperation
           throws javax.xml.transform.TransformerException
   {
 
-    return -(m_right.num(xctxt));
+    return -(Operation.operandNum(m_right, xctxt));
   }
 
 }
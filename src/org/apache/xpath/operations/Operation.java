@@ -115,6 +115,33 @@ public class Operation extends Expression implements ExpressionOwner
     return result;
   }
 
+  /**
+   * Evaluate an operand of an arithmetic operation to a double. An operand
+   * that is itself an arithmetic operation is evaluated with num(), so no
+   * XNumber is made for its result; any other operand is executed and
+   * detached, as execute() does.
+   *
+   * @param operand The operand expression.
+   * @param xctxt The runtime execution context.
+   *
+   * @return The value of the operand as a double.
+   *
+   * @throws javax.xml.transform.TransformerException
+   */
+  static double operandNum(Expression operand, XPathContext xctxt)
+          throws javax.xml.transform.TransformerException
+  {
+    if (operand instanceof Plus || operand instanceof Minus
+        || operand instanceof Mult || operand instanceof Div
+        || operand instanceof Mod || operand instanceof Neg)
+      return operand.num(xctxt);
+
+    XObject value = operand.execute(xctxt, true);
+    double result = value.num();
+    value.detach();
+    return result;
+  }
+
   /**
    * Apply the operation to two operands, and return the result.
    *